@@ -17,18 +17,26 @@ public class BigPingPong extends Task {
         int nTasks = noargs ? 10 : Integer.parseInt(args[0]);
         int nSchedulers = noargs ? 1 : Integer.parseInt(args[1]);
         int nThreadsPerScheduler = noargs ? 1 : Integer.parseInt(args[2]);
+        boolean mpsc = args.length > 3 && args[3].equalsIgnoreCase("-mpsc");
         Scheduler [] schedulers = new Scheduler[nSchedulers];
         
         System.out.println("nTasks : " + nTasks + ", nSchedulers: " + nSchedulers + 
-                ", nThreadsPerScheduler: " + nThreadsPerScheduler);
+                ", nThreadsPerScheduler: " + nThreadsPerScheduler + (mpsc ? ", MpscMailbox" : ""));
         
         for (int c = 0; c < 13; c++) { // Timing loop
             long beginTime = System.currentTimeMillis();
             mboxes = new Mailbox[nTasks];
 //            mainmb = new Mailbox<Msg>(/* initial size = */ nTasks);
-            mainmb = new Mailbox<Msg>(/* initial size = */ nTasks, nTasks);
-            for (int i = 0; i < nTasks; i++) {
-                mboxes[i] = new Mailbox<Msg>(/* initial size = */ nTasks, nTasks);
+            if (mpsc) {
+                mainmb = new MpscMailbox<Msg>();
+                for (int i = 0; i < nTasks; i++) {
+                    mboxes[i] = new MpscMailbox<Msg>();
+                }
+            } else {
+                mainmb = new Mailbox<Msg>(/* initial size = */ nTasks, nTasks);
+                for (int i = 0; i < nTasks; i++) {
+                    mboxes[i] = new Mailbox<Msg>(/* initial size = */ nTasks, nTasks);
+                }
             }
 
             for (int i = 0 ; i < nSchedulers; i++) {
@@ -0,0 +1,77 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.bench;
+
+import java.util.concurrent.CountDownLatch;
+
+import kilim.Pausable;
+import kilim.Scheduler;
+import kilim.Task;
+import zhmt.dawn.NonpausableTask;
+
+// Usage: java kilim.bench.CallbackLane -n 1000000
+//    A plain thread hands n completions to the default scheduler, first as tasks (a Task, and hence a
+//    Fiber, per completion), then as callbacks (Scheduler.schedule(NonpausableTask)). Prints the time
+//    until all of them have run.
+public class CallbackLane {
+    static int n = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equalsIgnoreCase("-n")) {
+                    n = Integer.parseInt(args[++i]);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Integer argument expected");
+        }
+        System.out.println("n: " + n);
+        for (int i = 0; i < 5; i++) {
+            benchTasks();
+            benchCallbacks();
+            System.gc();
+        }
+        System.exit(0);
+    }
+
+    static void benchTasks() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(n);
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            new Task() {
+                public void execute() throws Pausable {
+                    latch.countDown();
+                }
+            }.start();
+        }
+        latch.await();
+        report("tasks", start);
+    }
+
+    static void benchCallbacks() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(n);
+        Scheduler s = Scheduler.getDefaultScheduler();
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            s.schedule(new NonpausableTask() {
+                public void execute() {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        report("callbacks", start);
+    }
+
+    static void report(String what, long start) {
+        long elapsed = System.nanoTime() - start;
+        System.out.println(what + ": " + (elapsed / 1000000) + " ms, " + (elapsed / n) + " ns each");
+    }
+}
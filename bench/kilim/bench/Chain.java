@@ -12,8 +12,10 @@ public class Chain extends Task {
     static class Mbx extends Mailbox<Integer>{}
     static int nTasks = 500;
     static int nMsgs = 10000;
+    static boolean mpsc = false;
+    static boolean spsc = false;
     
-    Mbx  mymb, nextmb;
+    Mailbox<Integer>  mymb, nextmb;
     static long startTime;
     
     static Mailbox<Integer> signalMbx = new Mailbox<Integer>();
@@ -28,13 +30,18 @@ public class Chain extends Task {
                     nMsgs = Integer.parseInt(args[++i]);
                 } else if (arg.equalsIgnoreCase("-nTasks")) {
                     nTasks = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-mpsc")) {
+                    mpsc = true;
+                } else if (arg.equalsIgnoreCase("-spsc")) {
+                    spsc = true;
                 }
             }
         } 
         catch (NumberFormatException e) {
             System.err.println("Integer argument expected");
         }
-        System.out.println("Num tasks in chain: " + nTasks + ". Num messages sent:" + nMsgs);
+        System.out.println("Num tasks in chain: " + nTasks + ". Num messages sent:" + nMsgs
+                + (mpsc ? ". Using MpscMailbox" : spsc ? ". Using SpscChannel" : ""));
         for (int i = 0; i < 5; i++) {
           bench(nMsgs, nTasks);
         }
@@ -44,18 +51,18 @@ public class Chain extends Task {
     static void bench(int nMsgs, int nTasks) {
         startTime = System.currentTimeMillis();
         
-        Mbx mb = new Mbx();
-        Mbx nextmb = null;
+        Mailbox<Integer> mb = newMailbox();
+        Mailbox<Integer> nextmb = null;
         // Create a chain of tasks.
         
         for (int i = 0; i < nTasks; i++) {
            Task t = new Chain(mb, nextmb);
            t.start();
            nextmb = mb;
-           mb = new Mbx();
+           mb = newMailbox();
         }
         for (int i = 0; i < nMsgs; i++) {
-            nextmb.putnb(0); // enqueue a message for the head of the chain.
+            nextmb.putb(0); // enqueue a message for the head of the chain (waits if it is bounded and full).
         }
         signalMbx.getb();
         System.out.println("Bench finished");
@@ -64,7 +71,11 @@ public class Chain extends Task {
         
     }
     
-    public Chain(Mbx mb, Mbx next) {
+    static Mailbox<Integer> newMailbox() {
+        return mpsc ? new MpscMailbox<Integer>() : spsc ? new SpscChannel<Integer>() : new Mbx();
+    }
+    
+    public Chain(Mailbox<Integer> mb, Mailbox<Integer> next) {
         mymb = mb;
         nextmb = next;
     }
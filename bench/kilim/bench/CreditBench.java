@@ -0,0 +1,102 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.bench;
+
+import kilim.CreditMailbox;
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Task;
+
+// Usage: java kilim.bench.CreditBench -nProducers 1000 -n 2000000 -capacity 256 -batch 32
+//    nProducers tasks flood one consumer task through a mailbox of the given capacity, first a
+//    bounded Mailbox (each get() wakes one blocked producer), then a CreditMailbox. Prints ns per
+//    message, and for the CreditMailbox the number of grants and sender wakeups.
+public class CreditBench {
+    static int nProducers = 1000;
+    static int n = 2000000;
+    static int capacity = 256;
+    static int batch = 32;
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equalsIgnoreCase("-nProducers")) {
+                    nProducers = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-n")) {
+                    n = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-capacity")) {
+                    capacity = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-batch")) {
+                    batch = Integer.parseInt(args[++i]);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Integer argument expected");
+        }
+        System.out.println("nProducers: " + nProducers + ", n: " + n + ", capacity: " + capacity + ", batch: "
+                + batch);
+        for (int i = 0; i < 5; i++) {
+            benchMailbox();
+            benchCredits();
+            System.gc();
+        }
+        System.exit(0);
+    }
+
+    static void benchMailbox() {
+        final Mailbox<Integer> mb = new Mailbox<Integer>(capacity, capacity);
+        final int perProducer = n / nProducers;
+        for (int i = 0; i < nProducers; i++) {
+            new Task() {
+                public void execute() throws Pausable {
+                    for (int j = 0; j < perProducer; j++) {
+                        mb.put(j);
+                    }
+                }
+            }.start();
+        }
+        consume(mb, perProducer * nProducers, "Mailbox", null);
+    }
+
+    static void benchCredits() {
+        final CreditMailbox<Integer> mb = new CreditMailbox<Integer>(capacity, batch);
+        final int perProducer = n / nProducers;
+        for (int i = 0; i < nProducers; i++) {
+            new Task() {
+                public void execute() throws Pausable {
+                    CreditMailbox<Integer>.Sender sender = mb.sender();
+                    for (int j = 0; j < perProducer; j++) {
+                        sender.put(j);
+                    }
+                    sender.close();
+                }
+            }.start();
+        }
+        consume(mb, perProducer * nProducers, "CreditMailbox", mb);
+    }
+
+    static void consume(final Mailbox<Integer> mb, final int total, String what, CreditMailbox<?> cmb) {
+        long start = System.nanoTime();
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        Task consumer = new Task() {
+            public void execute() throws Pausable {
+                for (int i = 0; i < total; i++) {
+                    mb.get();
+                }
+            }
+        };
+        consumer.informOnExit(exitmb);
+        consumer.start();
+        exitmb.getb();
+        long elapsed = System.nanoTime() - start;
+        System.out.println(what + ": " + (elapsed / 1000000) + " ms, " + (elapsed / total) + " ns/msg"
+                + (cmb == null ? "" : ", grants: " + cmb.getGrants() + ", wakeups: " + cmb.getWakeups()));
+    }
+}
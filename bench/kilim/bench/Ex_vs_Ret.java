@@ -6,6 +6,11 @@
 
 package kilim.bench;
 
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Task;
+
 public class Ex_vs_Ret {
 
     /**
@@ -39,6 +44,60 @@ public class Ex_vs_Ret {
         }
         elapsed = System.currentTimeMillis() - start;
         System.out.println("ex : " + elapsed);
+
+        // The same, through woven (pausable) methods, in a task.
+        runWoven(false, 1000, depth);
+        runWoven(true, 1000, depth);
+        System.out.println("woven ret ms: " + runWoven(false, ntimes, depth));
+        System.out.println("woven ex : " + runWoven(true, ntimes, depth));
+        System.exit(0);
+    }
+
+    static long runWoven(boolean useEx, int ntimes, int depth) {
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        Task t = new WovenTask(useEx, ntimes, depth);
+        t.informOnExit(exitmb);
+        long start = System.currentTimeMillis();
+        t.start();
+        exitmb.getb();
+        return System.currentTimeMillis() - start;
+    }
+
+    static class WovenTask extends Task {
+        boolean useEx;
+        int ntimes;
+        int depth;
+
+        WovenTask(boolean useEx, int ntimes, int depth) {
+            this.useEx = useEx;
+            this.ntimes = ntimes;
+            this.depth = depth;
+        }
+
+        public void execute() throws Pausable {
+            for (int i = 0; i < ntimes; i++) {
+                if (useEx) {
+                    try {
+                        pex(depth);
+                    } catch (FastEx fe) {}
+                } else {
+                    pret(depth);
+                }
+            }
+        }
+    }
+
+    static void pret(int depth) throws Pausable {
+        if (depth != 0) {
+            pret(depth-1);
+        }
+    }
+
+    static void pex(int depth) throws FastEx, Pausable {
+        if (depth == 0) {
+            throw new FastEx();
+        }
+        pex(depth-1);
     }
     
     static void ret(int depth) {
@@ -0,0 +1,112 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.bench;
+
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Task;
+import kilim.Topic;
+
+// Usage: java kilim.bench.FanOut -nSubs 5000 -n 1000
+//    A publisher task sends n messages to nSubs subscriber tasks, first with a put to a mailbox per
+//    subscriber, then through a Topic. Prints ns per delivered message (n * nSubs of them).
+public class FanOut {
+    static int nSubs = 5000;
+    static int n = 1000;
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equalsIgnoreCase("-nSubs")) {
+                    nSubs = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-n")) {
+                    n = Integer.parseInt(args[++i]);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Integer argument expected");
+        }
+        System.out.println("nSubs: " + nSubs + ", n: " + n);
+        for (int i = 0; i < 5; i++) {
+            benchMailboxes();
+            benchTopic();
+            System.gc();
+        }
+        System.exit(0);
+    }
+
+    static void benchMailboxes() {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final Mailbox<Integer>[] mboxes = new Mailbox[nSubs];
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        for (int i = 0; i < nSubs; i++) {
+            final Mailbox<Integer> mb = mboxes[i] = new Mailbox<Integer>(64, 64);
+            Task t = new Task() {
+                public void execute() throws Pausable {
+                    for (int j = 0; j < n; j++) {
+                        mb.get();
+                    }
+                }
+            };
+            t.informOnExit(exitmb);
+            t.start();
+        }
+        long start = System.nanoTime();
+        new Task() {
+            public void execute() throws Pausable {
+                for (int j = 0; j < n; j++) {
+                    Integer msg = j;
+                    for (Mailbox<Integer> mb : mboxes) {
+                        mb.put(msg);
+                    }
+                }
+            }
+        }.start();
+        for (int i = 0; i < nSubs; i++) {
+            exitmb.getb();
+        }
+        report("mailboxes", start);
+    }
+
+    static void benchTopic() {
+        final Topic<Integer> topic = new Topic<Integer>(64);
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        for (int i = 0; i < nSubs; i++) {
+            final Topic.Subscriber<Integer> sub = topic.subscribe();
+            Task t = new Task() {
+                public void execute() throws Pausable {
+                    for (int j = 0; j < n; j++) {
+                        sub.get();
+                    }
+                }
+            };
+            t.informOnExit(exitmb);
+            t.start();
+        }
+        long start = System.nanoTime();
+        new Task() {
+            public void execute() throws Pausable {
+                for (int j = 0; j < n; j++) {
+                    topic.publish(j);
+                }
+            }
+        }.start();
+        for (int i = 0; i < nSubs; i++) {
+            exitmb.getb();
+        }
+        report("topic", start);
+    }
+
+    static void report(String what, long start) {
+        long elapsed = System.nanoTime() - start;
+        System.out.println(what + ": " + (elapsed / 1000000) + " ms, " + (elapsed / ((long) n * nSubs))
+                + " ns/msg");
+    }
+}
@@ -0,0 +1,157 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.bench;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import kilim.Pausable;
+import kilim.Scheduler;
+import kilim.http.HttpRequest;
+import kilim.http.HttpResponse;
+import kilim.http.HttpSession;
+import kilim.nio.NioSelectorScheduler;
+
+// Usage: java kilim.bench.HttpLoad -nClients 16 -nRequests 200000 -pipeline 1
+//    Each of nClients blocking client threads sends its share of nRequests keep-alive GETs,
+//    <pipeline> at a time, to an HttpSession that answers with a small body. Prints requests/sec.
+//    Try with -Dkilim.nio.affinity=true and -Dkilim.Scheduler.numThreads=<n>.
+public class HttpLoad {
+    static int nClients  = 16;
+    static int nRequests = 200000;
+    static int pipeline  = 1;
+
+    static final byte[] REQUEST = "GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes();
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equalsIgnoreCase("-nClients")) {
+                    nClients = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-nRequests")) {
+                    nRequests = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-pipeline")) {
+                    pipeline = Integer.parseInt(args[++i]);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Integer argument expected");
+        }
+        NioSelectorScheduler nio = new NioSelectorScheduler();
+        int port = nio.listen(0, LoadSession.class, Scheduler.getDefaultScheduler());
+        System.out.println("nClients: " + nClients + ", nRequests: " + nRequests + ", pipeline: " + pipeline + ", affinity: "
+                + NioSelectorScheduler.sessionAffinity);
+        for (int i = 0; i < 5; i++) {
+            bench(port);
+        }
+        System.exit(0);
+    }
+
+    static void bench(final int port) throws Exception {
+        final int perClient = nRequests / nClients / pipeline * pipeline;
+        Thread[] clients = new Thread[nClients];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < nClients; i++) {
+            clients[i] = new Thread() {
+                public void run() {
+                    try {
+                        client(port, perClient);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            clients[i].start();
+        }
+        for (Thread t : clients) {
+            t.join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println("Elapsed: " + elapsed + " ms, " + (perClient * nClients * 1000L / elapsed)
+                + " requests/sec");
+    }
+
+    static void client(int port, int n) throws IOException {
+        Socket s = new Socket("localhost", port);
+        s.setTcpNoDelay(true);
+        OutputStream os = s.getOutputStream();
+        InputStream is = new BufferedInputStream(s.getInputStream());
+        byte[] buf = new byte[4096];
+        byte[] reqs = new byte[REQUEST.length * pipeline];
+        for (int i = 0; i < pipeline; i++) {
+            System.arraycopy(REQUEST, 0, reqs, i * REQUEST.length, REQUEST.length);
+        }
+        for (int i = 0; i < n; i += pipeline) {
+            os.write(reqs);
+            os.flush();
+            for (int j = 0; j < pipeline; j++) {
+                readResponse(is, buf);
+            }
+        }
+        s.close();
+    }
+
+    /**
+     * Reads the header and a Content-Length delimited body, and nothing beyond, so that pipelined
+     * responses can be read one after the other from a buffered stream.
+     */
+    static void readResponse(InputStream is, byte[] buf) throws IOException {
+        int len = 0;
+        while (len < 4 || buf[len - 1] != '\n' || buf[len - 2] != '\r' || buf[len - 3] != '\n'
+                || buf[len - 4] != '\r') {
+            int c = is.read();
+            if (c < 0) {
+                throw new EOFException();
+            }
+            buf[len++] = (byte) c;
+        }
+        String hdr = new String(buf, 0, len, "ISO-8859-1");
+        int idx = hdr.indexOf("Content-Length:");
+        int clen = 0;
+        if (idx >= 0) {
+            int eol = hdr.indexOf('\r', idx);
+            clen = Integer.parseInt(hdr.substring(idx + "Content-Length:".length(), eol).trim());
+        }
+        while (clen > 0) {
+            int n = is.read(buf, 0, Math.min(buf.length, clen));
+            if (n < 0) {
+                throw new EOFException();
+            }
+            clen -= n;
+        }
+    }
+
+    public static class LoadSession extends HttpSession {
+        static final byte[] BODY = "Hello, World".getBytes();
+
+        @Override
+        public void execute() throws Pausable, Exception {
+            batchResponses = true;
+            HttpRequest req = new HttpRequest();
+            HttpResponse resp = new HttpResponse();
+            try {
+                while (true) {
+                    readRequest(req);
+                    resp.setContentType("text/plain");
+                    resp.getOutputStream().write(BODY);
+                    sendResponse(resp);
+                    if (!req.keepAlive()) {
+                        break;
+                    }
+                }
+            } catch (EOFException ignore) {
+            }
+            close();
+        }
+    }
+}
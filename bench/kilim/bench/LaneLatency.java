@@ -0,0 +1,93 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Priority;
+import kilim.Scheduler;
+import kilim.Task;
+
+// Usage: java kilim.bench.LaneLatency -nThreads 2 -nLoad 1000 -nBeats 2000
+//    nLoad NORMAL tasks keep yielding, saturating a scheduler with nThreads workers, while the main
+//    thread starts nBeats short "heartbeat" tasks, one every 100us, first as NORMAL tasks (queued
+//    behind the load, as all tasks were before lanes) and then as CRITICAL ones. Prints the average
+//    and worst delay from start() to the heartbeat running.
+public class LaneLatency {
+    static int nThreads = 2;
+    static int nLoad = 1000;
+    static int nBeats = 2000;
+    static volatile boolean stop;
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equalsIgnoreCase("-nThreads")) {
+                    nThreads = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-nLoad")) {
+                    nLoad = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-nBeats")) {
+                    nBeats = Integer.parseInt(args[++i]);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Integer argument expected");
+        }
+        System.out.println("nThreads: " + nThreads + ", nLoad: " + nLoad + ", nBeats: " + nBeats);
+        Scheduler scheduler = new Scheduler(nThreads);
+        for (int i = 0; i < nLoad; i++) {
+            Task t = new Task() {
+                public void execute() throws Pausable {
+                    while (!stop) {
+                        Task.yield();
+                    }
+                }
+            };
+            t.setScheduler(scheduler);
+            t.start();
+        }
+        for (int i = 0; i < 3; i++) {
+            beats(scheduler, Priority.NORMAL);
+            beats(scheduler, Priority.CRITICAL);
+        }
+        stop = true;
+        System.exit(0);
+    }
+
+    static void beats(Scheduler scheduler, Priority p) {
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong worst = new AtomicLong();
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        for (int i = 0; i < nBeats; i++) {
+            final long started = System.nanoTime();
+            Task t = new Task() {
+                public void execute() throws Pausable {
+                    long delay = System.nanoTime() - started;
+                    total.addAndGet(delay);
+                    long w;
+                    while (delay > (w = worst.get()) && !worst.compareAndSet(w, delay)) {
+                    }
+                }
+            };
+            t.setPriority(p).setScheduler(scheduler);
+            t.informOnExit(exitmb);
+            t.start();
+            LockSupport.parkNanos(100000);
+        }
+        for (int i = 0; i < nBeats; i++) {
+            exitmb.getb();
+        }
+        System.out.println(p + ": avg " + (total.get() / nBeats / 1000) + " us, worst "
+                + (worst.get() / 1000) + " us, NORMAL depth " + scheduler.getQueueDepth(Priority.NORMAL));
+    }
+}
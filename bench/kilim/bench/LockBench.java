@@ -0,0 +1,101 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.bench;
+
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.ReentrantLock;
+import kilim.Task;
+import zhmt.dawn.concurrent.FiberReentrantLock;
+
+// Usage: java kilim.bench.LockBench -nTasks 100 -nRounds 10000
+//    nTasks tasks on the default scheduler take a shared lock nRounds times each, bump a counter and
+//    yield, first with kilim.ReentrantLock (a thread lock that pins the task while held), then with
+//    zhmt.dawn.concurrent.FiberReentrantLock. Prints ns per lock/unlock pair.
+//    Try with -Dkilim.Scheduler.numThreads=<n>.
+public class LockBench {
+    static int nTasks  = 100;
+    static int nRounds = 10000;
+    static long counter;
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equalsIgnoreCase("-nTasks")) {
+                    nTasks = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-nRounds")) {
+                    nRounds = Integer.parseInt(args[++i]);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Integer argument expected");
+        }
+        System.out.println("nTasks: " + nTasks + ", nRounds: " + nRounds);
+        for (int i = 0; i < 5; i++) {
+            run("kilim.ReentrantLock", new ReentrantLock(), null);
+            run("FiberReentrantLock", null, new FiberReentrantLock());
+            System.gc();
+        }
+        System.exit(0);
+    }
+
+    static void run(String what, ReentrantLock tlock, FiberReentrantLock flock) {
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        counter = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < nTasks; i++) {
+            Task t = (flock == null) ? new ThreadLocker(tlock) : new FiberLocker(flock);
+            t.informOnExit(exitmb);
+            t.start();
+        }
+        for (int i = 0; i < nTasks; i++) {
+            exitmb.getb();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (counter != (long) nTasks * nRounds) {
+            throw new AssertionError("Lost updates: " + counter);
+        }
+        System.out.println(what + ": " + (elapsed / 1000000) + " ms, " + (elapsed / counter) + " ns/lock");
+    }
+
+    static class ThreadLocker extends Task {
+        final ReentrantLock lock;
+
+        ThreadLocker(ReentrantLock lock) {
+            this.lock = lock;
+        }
+
+        public void execute() throws Pausable {
+            for (int r = 0; r < nRounds; r++) {
+                lock.lock();
+                counter++;
+                lock.unlock();
+                Task.yield();
+            }
+        }
+    }
+
+    static class FiberLocker extends Task {
+        final FiberReentrantLock lock;
+
+        FiberLocker(FiberReentrantLock lock) {
+            this.lock = lock;
+        }
+
+        public void execute() throws Pausable {
+            for (int r = 0; r < nRounds; r++) {
+                lock.lock();
+                counter++;
+                lock.release();
+                Task.yield();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.bench;
+
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Task;
+
+// Usage: java kilim.bench.MailboxBatch -nMsgs 2000000 -nProducers 4 -batch 64
+//    nProducers tasks send nMsgs messages in all through a bounded Mailbox to a consumer task, first
+//    one at a time (put/get), then in batches (putAll/getBatch). Prints ns per message.
+public class MailboxBatch {
+    static int nMsgs      = 2000000;
+    static int nProducers = 4;
+    static int batch      = 64;
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equalsIgnoreCase("-nMsgs")) {
+                    nMsgs = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-nProducers")) {
+                    nProducers = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-batch")) {
+                    batch = Integer.parseInt(args[++i]);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Integer argument expected");
+        }
+        System.out.println("nMsgs: " + nMsgs + ", nProducers: " + nProducers + ", batch: " + batch);
+        for (int i = 0; i < 5; i++) {
+            run(false);
+            run(true);
+            System.gc();
+        }
+        System.exit(0);
+    }
+
+    static void run(final boolean batched) {
+        final Mailbox<Integer> mb = new Mailbox<Integer>(1024, 4096);
+        final int perProducer = nMsgs / nProducers / batch * batch;
+        final Integer msg = 1;
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        long start = System.nanoTime();
+        for (int i = 0; i < nProducers; i++) {
+            new Task() {
+                public void execute() throws Pausable {
+                    Integer[] src = new Integer[batch];
+                    for (int k = 0; k < batch; k++) {
+                        src[k] = msg;
+                    }
+                    for (int j = 0; j < perProducer; j += batch) {
+                        if (batched) {
+                            mb.putAll(src, 0, batch);
+                        } else {
+                            for (int k = 0; k < batch; k++) {
+                                mb.put(msg);
+                            }
+                        }
+                    }
+                }
+            }.start();
+        }
+        Task consumer = new Task() {
+            public void execute() throws Pausable {
+                int total = perProducer * nProducers;
+                Integer[] dst = new Integer[batch];
+                while (total > 0) {
+                    if (batched) {
+                        total -= mb.getBatch(dst);
+                    } else {
+                        mb.get();
+                        total--;
+                    }
+                }
+            }
+        };
+        consumer.informOnExit(exitmb);
+        consumer.start();
+        exitmb.getb();
+        long elapsed = System.nanoTime() - start;
+        System.out.println((batched ? "batched" : "single") + ": " + (elapsed / 1000000) + " ms, "
+                + (elapsed / ((long) perProducer * nProducers)) + " ns/msg");
+    }
+}
@@ -0,0 +1,111 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.bench;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import kilim.DeadlineScheduler;
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Scheduler;
+import kilim.Task;
+
+// Usage: java kilim.bench.Overload -nThreads 1 -nRequests 5000 -work 1000 -load 125 -deadline 50
+//    The main thread starts nRequests "request handlers", each of which spins for work us and has
+//    deadline ms to finish, at load percent of what nThreads workers can handle. Prints how many
+//    finished in time, finished late or were shed, first with the FIFO Scheduler and then with a
+//    DeadlineScheduler that sheds the tasks that come up too late to finish in time.
+public class Overload {
+    static int nThreads = 1;
+    static int nRequests = 5000;
+    static int work = 1000;
+    static int load = 125;
+    static int deadline = 50;
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equalsIgnoreCase("-nThreads")) {
+                    nThreads = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-nRequests")) {
+                    nRequests = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-work")) {
+                    work = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-load")) {
+                    load = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-deadline")) {
+                    deadline = Integer.parseInt(args[++i]);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Integer argument expected");
+        }
+        System.out.println("nThreads: " + nThreads + ", nRequests: " + nRequests + ", work: " + work
+                + " us, load: " + load + "%, deadline: " + deadline + " ms");
+        for (int i = 0; i < 3; i++) {
+            Scheduler fifo = new Scheduler(nThreads);
+            run("FIFO    ", fifo);
+            fifo.shutdown();
+
+            DeadlineScheduler edf = new DeadlineScheduler(nThreads);
+            edf.setShedder(new DeadlineScheduler.Shedder() {
+                public boolean shed(Task t) {
+                    return true;
+                }
+            });
+            run("Deadline", edf);
+            edf.shutdown();
+        }
+        System.exit(0);
+    }
+
+    static void run(String name, Scheduler scheduler) {
+        final AtomicInteger onTime = new AtomicInteger();
+        final AtomicInteger late = new AtomicInteger();
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        long interval = work * 1000L * 100 / load / nThreads; // ns between arrivals
+        long next = System.nanoTime();
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < nRequests; i++) {
+            final long due = System.currentTimeMillis() + deadline;
+            Task t = new Task() {
+                public void execute() throws Pausable {
+                    long end = System.nanoTime() + work * 1000L;
+                    while (System.nanoTime() < end) {
+                    }
+                    if (System.currentTimeMillis() <= due) {
+                        onTime.incrementAndGet();
+                    } else {
+                        late.incrementAndGet();
+                    }
+                }
+            };
+            // The scheduler's deadline is the latest the handler can start and still finish in time.
+            t.setDeadline(due - (work + 999) / 1000).setScheduler(scheduler);
+            t.informOnExit(exitmb);
+            t.start();
+            next += interval;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        int shed = 0;
+        for (int i = 0; i < nRequests; i++) {
+            if (exitmb.getb().result == DeadlineScheduler.SHED) {
+                shed++;
+            }
+        }
+        long elapsed = System.currentTimeMillis() - begin;
+        System.out.println(name + ": on time " + onTime + ", late " + late + ", shed " + shed
+                + " (" + elapsed + " ms)");
+    }
+}
@@ -0,0 +1,104 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import kilim.ExitMsg;
+import kilim.LongMailbox;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Task;
+
+// Usage: java kilim.bench.PrimitiveMailboxBench -nMsgs 10000000
+//    A task sends nMsgs distinct longs to another through a bounded mailbox, first a Mailbox<Long>
+//    (a Long allocated per message), then a LongMailbox. Prints ns per message and the number of
+//    collections during the run.
+public class PrimitiveMailboxBench {
+    static int nMsgs = 10000000;
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equalsIgnoreCase("-nMsgs")) {
+                    nMsgs = Integer.parseInt(args[++i]);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Integer argument expected");
+        }
+        System.out.println("nMsgs: " + nMsgs);
+        for (int i = 0; i < 5; i++) {
+            boxed();
+            primitive();
+            System.gc();
+        }
+        System.exit(0);
+    }
+
+    static void boxed() {
+        final Mailbox<Long> mb = new Mailbox<Long>(1024, 1024);
+        run("Mailbox<Long>", new Task() {
+            public void execute() throws Pausable {
+                for (long i = 0; i < nMsgs; i++) {
+                    mb.put(i);
+                }
+            }
+        }, new Task() {
+            public void execute() throws Pausable {
+                long sum = 0;
+                for (int i = 0; i < nMsgs; i++) {
+                    sum += mb.get();
+                }
+                exitResult = sum;
+            }
+        });
+    }
+
+    static void primitive() {
+        final LongMailbox mb = new LongMailbox(1024, 1024);
+        run("LongMailbox", new Task() {
+            public void execute() throws Pausable {
+                for (long i = 0; i < nMsgs; i++) {
+                    mb.put(i);
+                }
+            }
+        }, new Task() {
+            public void execute() throws Pausable {
+                long sum = 0;
+                for (int i = 0; i < nMsgs; i++) {
+                    sum += mb.getLong();
+                }
+                exitResult = sum;
+            }
+        });
+    }
+
+    static void run(String what, Task producer, Task consumer) {
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        consumer.informOnExit(exitmb);
+        long gcs = gcCount();
+        long start = System.nanoTime();
+        consumer.start();
+        producer.start();
+        exitmb.getb();
+        long elapsed = System.nanoTime() - start;
+        System.out.println(what + ": " + (elapsed / 1000000) + " ms, " + (elapsed / nMsgs) + " ns/msg, "
+                + (gcCount() - gcs) + " GCs");
+    }
+
+    static long gcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            n += gc.getCollectionCount();
+        }
+        return n;
+    }
+}
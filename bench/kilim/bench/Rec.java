@@ -35,6 +35,7 @@ public class Rec extends Task {
         long start = System.currentTimeMillis();
         if (pausable) {
             Fiber f = new Fiber(ex);
+            f.setStatePool(new StatePool()); // only used if woven with -p
             while (true) {
                 ex.execute(f.begin());
                 if (f.end()) break;
@@ -0,0 +1,148 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.bench;
+
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Task;
+
+// Usage: java kilim.bench.ResumeCost -nTasks 1000 -nRounds 1000 -nThreads 4
+//    yield:   nTasks tasks yield nRounds times each; every yield is a resume() issued at the end
+//             of _runExecute, followed by a trip through the scheduler.
+//    wake:    nThreads plain threads post nRounds messages to each of nTasks tasks that loop on
+//             their mailboxes. Each post calls resume(), which mostly finds the task already
+//             scheduled or running.
+//    refused: nThreads plain threads call resume() on a finished task; the cost of the check alone,
+//             with all threads contending on the same task.
+//    Prints ns per resume() for each.
+public class ResumeCost {
+    static int nTasks   = 1000;
+    static int nRounds  = 1000;
+    static int nThreads = 4;
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equalsIgnoreCase("-nTasks")) {
+                    nTasks = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-nRounds")) {
+                    nRounds = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-nThreads")) {
+                    nThreads = Integer.parseInt(args[++i]);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Integer argument expected");
+        }
+        System.out.println("nTasks: " + nTasks + ", nRounds: " + nRounds + ", nThreads: " + nThreads);
+        for (int i = 0; i < 5; i++) {
+            yieldBench();
+            wakeBench();
+            refusedBench();
+            System.gc();
+        }
+        System.exit(0);
+    }
+
+    static void yieldBench() {
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        long start = System.nanoTime();
+        for (int i = 0; i < nTasks; i++) {
+            Task t = new Yielder();
+            t.informOnExit(exitmb);
+            t.start();
+        }
+        for (int i = 0; i < nTasks; i++) {
+            exitmb.getb();
+        }
+        report("yield", start, (long) nTasks * nRounds);
+    }
+
+    static void wakeBench() throws InterruptedException {
+        final Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        final Waiter[] waiters = new Waiter[nTasks];
+        for (int i = 0; i < nTasks; i++) {
+            waiters[i] = new Waiter();
+            waiters[i].informOnExit(exitmb);
+            waiters[i].start();
+        }
+        final int perThread = nRounds / nThreads;
+        Thread[] posters = new Thread[nThreads];
+        long start = System.nanoTime();
+        for (int i = 0; i < nThreads; i++) {
+            posters[i] = new Thread() {
+                public void run() {
+                    for (int r = 0; r < perThread; r++) {
+                        for (Waiter w : waiters) {
+                            w.mb.putb(r);
+                        }
+                    }
+                }
+            };
+            posters[i].start();
+        }
+        for (Thread t : posters) {
+            t.join();
+        }
+        for (Waiter w : waiters) {
+            w.mb.putb(-1);
+        }
+        for (int i = 0; i < nTasks; i++) {
+            exitmb.getb();
+        }
+        report("wake", start, (long) nTasks * perThread * nThreads);
+    }
+
+    static void refusedBench() throws InterruptedException {
+        final Task done = new Yielder().start();
+        done.joinb();
+        final int n = nTasks * nRounds / nThreads;
+        Thread[] threads = new Thread[nThreads];
+        long start = System.nanoTime();
+        for (int i = 0; i < nThreads; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int r = 0; r < n; r++) {
+                        if (done.resume()) {
+                            throw new AssertionError("Finished task resumed");
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        report("refused", start, (long) n * nThreads);
+    }
+
+    static void report(String what, long start, long nResumes) {
+        long elapsed = System.nanoTime() - start;
+        System.out.println(what + ": " + (elapsed / 1000000) + " ms, " + (elapsed / nResumes) + " ns/resume");
+    }
+
+    static class Yielder extends Task {
+        public void execute() throws Pausable {
+            for (int i = 0; i < nRounds; i++) {
+                Task.yield();
+            }
+        }
+    }
+
+    static class Waiter extends Task {
+        Mailbox<Integer> mb = new Mailbox<Integer>(100);
+
+        public void execute() throws Pausable {
+            while (mb.get() >= 0) {
+            }
+        }
+    }
+}
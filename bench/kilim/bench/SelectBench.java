@@ -0,0 +1,76 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.bench;
+
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.MailboxSelector;
+import kilim.Pausable;
+import kilim.Task;
+
+// Usage: java kilim.bench.SelectBench -nBoxes 32 -n 1000000
+//    A plain thread posts n messages round-robin to nBoxes mailboxes, which a task consumes with
+//    Mailbox.select() and then with a MailboxSelector. Prints ns per message for each.
+public class SelectBench {
+    static int nBoxes = 32;
+    static int n = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equalsIgnoreCase("-nBoxes")) {
+                    nBoxes = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-n")) {
+                    n = Integer.parseInt(args[++i]);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Integer argument expected");
+        }
+        System.out.println("nBoxes: " + nBoxes + ", n: " + n);
+        for (int i = 0; i < 5; i++) {
+            bench(false);
+            bench(true);
+            System.gc();
+        }
+        System.exit(0);
+    }
+
+    static void bench(final boolean useSelector) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final Mailbox<Integer>[] mboxes = new Mailbox[nBoxes];
+        for (int i = 0; i < nBoxes; i++) {
+            mboxes[i] = new Mailbox<Integer>(100);
+        }
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        Task consumer = new Task() {
+            public void execute() throws Pausable {
+                MailboxSelector sel = useSelector ? new MailboxSelector(mboxes) : null;
+                for (int i = 0; i < n; i++) {
+                    int ready = useSelector ? sel.select() : Mailbox.select(mboxes);
+                    mboxes[ready].getnb();
+                }
+                if (useSelector) {
+                    sel.close();
+                }
+            }
+        };
+        consumer.informOnExit(exitmb);
+        long start = System.nanoTime();
+        consumer.start();
+        Integer msg = 0;
+        for (int i = 0; i < n; i++) {
+            mboxes[i % nBoxes].putb(msg);
+        }
+        exitmb.getb();
+        long elapsed = System.nanoTime() - start;
+        System.out.println((useSelector ? "MailboxSelector: " : "Mailbox.select: ") + (elapsed / 1000000)
+                + " ms, " + (elapsed / n) + " ns/msg");
+    }
+}
@@ -0,0 +1,100 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.bench;
+
+import java.util.Arrays;
+
+import kilim.Mailbox;
+import kilim.MpscMailbox;
+import kilim.SpscChannel;
+
+// Usage: java kilim.bench.SpscBench -n 10000000
+//    The cost of the queue operations alone: one thread fills a Mailbox, an MpscMailbox and an
+//    SpscChannel with 512 messages (putnb) and empties it again (getnb), n times over in all, and
+//    compares with storing to and loading from a plain array. The bulk variants move the 512 messages
+//    with one put(T[]...) and one get(T[]...). Prints ns per message (one put and one get).
+public class SpscBench {
+    static int n = 10000000;
+    static final int BATCH = 512;
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equalsIgnoreCase("-n")) {
+                    n = Integer.parseInt(args[++i]);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Integer argument expected");
+        }
+        System.out.println("n: " + n);
+        for (int i = 0; i < 5; i++) {
+            bench("Mailbox", new Mailbox<Integer>(BATCH, BATCH));
+            bench("MpscMailbox", new MpscMailbox<Integer>());
+            bench("SpscChannel", new SpscChannel<Integer>(BATCH));
+            benchBulk("Mailbox, bulk", new Mailbox<Integer>(BATCH, BATCH));
+            benchBulk("SpscChannel, bulk", new SpscChannel<Integer>(BATCH));
+            benchArray();
+            System.gc();
+        }
+        System.exit(0);
+    }
+
+    static void bench(String what, Mailbox<Integer> mb) {
+        Integer msg = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i += BATCH) {
+            for (int j = 0; j < BATCH; j++) {
+                mb.putnb(msg);
+            }
+            for (int j = 0; j < BATCH; j++) {
+                if (mb.getnb() == null) {
+                    throw new AssertionError(what + " lost a message");
+                }
+            }
+        }
+        report(what, start);
+    }
+
+    static void benchBulk(String what, Mailbox<Integer> mb) {
+        Integer[] src = new Integer[BATCH];
+        Integer[] dst = new Integer[BATCH];
+        Arrays.fill(src, 0);
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i += BATCH) {
+            if (mb.putnb(src, 0, BATCH) != BATCH || mb.get(dst, 0, BATCH, null) != BATCH) {
+                throw new AssertionError(what + " lost a message");
+            }
+        }
+        report(what, start);
+    }
+
+    static Object sink;
+
+    static void benchArray() {
+        Object[] ring = new Object[BATCH];
+        Integer msg = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i += BATCH) {
+            for (int j = 0; j < BATCH; j++) {
+                ring[j] = msg;
+            }
+            for (int j = 0; j < BATCH; j++) {
+                sink = ring[j];
+                ring[j] = null;
+            }
+        }
+        report("array", start);
+    }
+
+    static void report(String what, long start) {
+        long elapsed = System.nanoTime() - start;
+        System.out.println(what + ": " + (elapsed / 1000000) + " ms, " + (elapsed * 10 / n) / 10.0 + " ns/msg");
+    }
+}
@@ -0,0 +1,84 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.bench;
+
+import kilim.*;
+
+// Usage: java kilim.bench.Timeouts -nTasks 100000 -nRounds 10 -sleep 20
+//    Each of nTasks tasks sleeps nRounds times, for <sleep> ms each time, and then
+//    does nRounds timed gets that are satisfied (and hence cancelled) well before the timeout.
+public class Timeouts extends Task {
+    static int nTasks = 100000;
+    static int nRounds = 10;
+    static int sleepMillis = 20;
+
+    static Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equalsIgnoreCase("-nTasks")) {
+                    nTasks = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-nRounds")) {
+                    nRounds = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-sleep")) {
+                    sleepMillis = Integer.parseInt(args[++i]);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Integer argument expected");
+        }
+        System.out.println("nTasks: " + nTasks + ", nRounds: " + nRounds + ", sleep: " + sleepMillis + " ms");
+        for (int i = 0; i < 5; i++) {
+            bench();
+            Thread.sleep(500);
+            System.gc();
+        }
+        System.exit(0);
+    }
+
+    static void bench() {
+        long start = System.currentTimeMillis();
+        Timeouts[] tasks = new Timeouts[nTasks];
+        for (int i = 0; i < nTasks; i++) {
+            tasks[i] = new Timeouts();
+            tasks[i].informOnExit(exitmb);
+            tasks[i].start();
+        }
+        for (int i = 0; i < nTasks; i++) {
+            exitmb.getb();
+        }
+        long sleepDone = System.currentTimeMillis();
+        // The tasks are now waiting with a timeout on their own mailboxes.
+        for (int r = 0; r < nRounds; r++) {
+            for (int i = 0; i < nTasks; i++) {
+                tasks[i].mymb.putnb(r);
+            }
+        }
+        for (int i = 0; i < nTasks; i++) {
+            exitmb.getb();
+        }
+        long end = System.currentTimeMillis();
+        System.out.println("Sleeps: " + (sleepDone - start) + " ms (ideal " + (nRounds * sleepMillis)
+                + " ms). Timed gets: " + (end - sleepDone) + " ms");
+    }
+
+    Mailbox<Integer> mymb = new Mailbox<Integer>();
+    Mailbox<ExitMsg> donemb = exitmb;
+
+    public void execute() throws Pausable {
+        for (int i = 0; i < nRounds; i++) {
+            Task.sleep(sleepMillis);
+        }
+        donemb.put(new ExitMsg(this, "slept"));
+        for (int i = 0; i < nRounds; i++) {
+            mymb.get(60000);
+        }
+    }
+}
@@ -41,6 +41,7 @@ public class Unwind extends Task {
             // Manually doing what the scheduler would do, just to cut out the
             // thread scheduling.
             Fiber f = new Fiber(ex);
+            f.setStatePool(new StatePool()); // only used if woven with -p
             while (true) {
                 ex.execute(f.begin());
                 if (f.end()) break;
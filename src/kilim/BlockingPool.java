@@ -0,0 +1,326 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import zhmt.dawn.NonpausableTask;
+
+/**
+ * A pool of plain threads for the blocking calls a task cannot avoid (file I/O, DNS lookups, JDBC), so
+ * that they don't stall a WorkerThread. See {@link Task#blocking(Callable)}.
+ * <p>
+ * The pool is elastic: threads are started on demand up to maxThreads and retire after keepAliveSecs of
+ * idleness. It is also bounded: at most maxQueue calls may wait for a thread; beyond that, callers are
+ * paused until a call is picked up, which pushes back on the tasks producing the work instead of
+ * queueing it without limit.
+ * <p>
+ * Finished calls are not resumed one by one from the pool threads. They are queued, and a single
+ * callback on the scheduler resumes all the tasks that finished since the last one ran, so a burst of
+ * completions costs one hand-off to the scheduler rather than one per call. There is one such callback
+ * per scheduler, run by the scheduler of the tasks it resumes, so a scheduler that is shut down holds
+ * up no task but its own.
+ */
+public class BlockingPool {
+    public static int defaultMaxThreads = Integer.getInteger("kilim.BlockingPool.maxThreads", 64);
+    public static int defaultMaxQueue = Integer.getInteger("kilim.BlockingPool.maxQueue", 1024);
+    public static int defaultKeepAliveSecs = Integer.getInteger("kilim.BlockingPool.keepAliveSecs", 60);
+
+    private static BlockingPool defaultPool;
+
+    final int maxQueue;
+    final ThreadPoolExecutor executor;
+
+    /** calls submitted but not yet picked up by a pool thread */
+    final AtomicInteger queued = new AtomicInteger();
+    /** tasks paused until queued drops below maxQueue */
+    final ConcurrentLinkedQueue<Task> spaceWaiters = new ConcurrentLinkedQueue<Task>();
+    final SpaceAvailable spaceAvailable = new SpaceAvailable();
+
+    final ConcurrentHashMap<Scheduler, Drainer> drainers = new ConcurrentHashMap<Scheduler, Drainer>();
+
+    // Metrics
+    final AtomicLong numCalls = new AtomicLong();
+    final AtomicLong numWaitsForSpace = new AtomicLong();
+    final AtomicLong numWakeups = new AtomicLong();
+    final AtomicLong totalQueueNanos = new AtomicLong();
+    final AtomicLong totalRunNanos = new AtomicLong();
+    final AtomicLong maxQueueNanos = new AtomicLong();
+    final AtomicLong maxRunNanos = new AtomicLong();
+
+    public BlockingPool() {
+        this(defaultMaxThreads, defaultMaxQueue, defaultKeepAliveSecs);
+    }
+
+    public BlockingPool(int maxThreads, int maxQueue, int keepAliveSecs) {
+        if (maxThreads < 1 || maxQueue < 1) {
+            throw new IllegalArgumentException("maxThreads and maxQueue must be positive");
+        }
+        this.maxQueue = maxQueue;
+        // core == max, with core threads allowed to time out: a thread per call until maxThreads are
+        // running, then queueing, and back to no threads when idle.
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, keepAliveSecs, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    final AtomicInteger n = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "kilim-blocking-" + n.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public synchronized static BlockingPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new BlockingPool();
+        }
+        return defaultPool;
+    }
+
+    public synchronized static void setDefault(BlockingPool pool) {
+        defaultPool = pool;
+    }
+
+    /**
+     * Run c on a pool thread, pausing the calling task until it returns.
+     *
+     * @return c's result
+     * @throws Exception
+     *             whatever c threw
+     */
+    public <T> T call(Callable<T> c) throws Pausable, Exception {
+        Task t = Task.getCurrentTask();
+        Call<T> call = new Call<T>(this, t, c);
+        if (!reserve()) {
+            numWaitsForSpace.incrementAndGet();
+            do {
+                spaceWaiters.add(t);
+                Task.pause(spaceAvailable);
+                spaceWaiters.remove(t); // in case we got here without being polled
+            } while (!reserve());
+        }
+        call.submitNanos = System.nanoTime();
+        try {
+            executor.execute(call);
+        } catch (RuntimeException e) { // rejected, shut down
+            release();
+            throw e;
+        }
+        while (!call.done) {
+            Task.pause(call);
+        }
+        if (call.exception != null) {
+            if (call.exception instanceof Exception) {
+                throw (Exception) call.exception;
+            }
+            throw (Error) call.exception;
+        }
+        return call.result;
+    }
+
+    private boolean reserve() {
+        while (true) {
+            int n = queued.get();
+            if (n >= maxQueue) {
+                return false;
+            }
+            if (queued.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Called on a pool thread when it picks up a call.
+     */
+    void release() {
+        queued.decrementAndGet();
+        Task t = spaceWaiters.poll();
+        if (t != null) {
+            t.resume();
+        }
+    }
+
+    /**
+     * Called on a pool thread when a call is done. Only the first of a burst of calls schedules the
+     * drainer of the task's scheduler; the rest piggyback on it.
+     */
+    void finished(Call<?> call) {
+        Scheduler s = call.task.getScheduler();
+        if (s == null) {
+            s = Scheduler.getDefaultScheduler();
+        }
+        if (s.isShutdown()) {
+            // Nothing will run the drainer, nor the task; don't keep the drainer around either.
+            drainers.remove(s);
+            call.task.resume();
+            return;
+        }
+        Drainer d = drainers.get(s);
+        if (d == null) {
+            d = new Drainer();
+            Drainer prev = drainers.putIfAbsent(s, d);
+            if (prev != null) {
+                d = prev;
+            }
+        }
+        d.finished.add(call);
+        if (d.pending.compareAndSet(false, true)) {
+            s.schedule(d);
+        }
+    }
+
+    void record(long queueNanos, long runNanos) {
+        numCalls.incrementAndGet();
+        totalQueueNanos.addAndGet(queueNanos);
+        totalRunNanos.addAndGet(runNanos);
+        updateMax(maxQueueNanos, queueNanos);
+        updateMax(maxRunNanos, runNanos);
+    }
+
+    private static void updateMax(AtomicLong max, long v) {
+        long m;
+        while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+        }
+    }
+
+    /**
+     * Stop the pool threads once the calls already submitted are done.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /** @return calls completed so far */
+    public long getCalls() {
+        return numCalls.get();
+    }
+
+    /** @return the number of calls that had to wait for room in the queue */
+    public long getWaitsForSpace() {
+        return numWaitsForSpace.get();
+    }
+
+    /** @return the number of times the drainer ran; getCalls() / getWakeups() is the average batch size */
+    public long getWakeups() {
+        return numWakeups.get();
+    }
+
+    /** @return calls waiting for a pool thread right now */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /** @return pool threads alive right now */
+    public int getPoolSize() {
+        return executor.getPoolSize();
+    }
+
+    /** @return mean time (ns) between submitting a call and a pool thread picking it up */
+    public long getAvgQueueNanos() {
+        long n = numCalls.get();
+        return n == 0 ? 0 : totalQueueNanos.get() / n;
+    }
+
+    /** @return mean time (ns) a call ran on its pool thread */
+    public long getAvgRunNanos() {
+        long n = numCalls.get();
+        return n == 0 ? 0 : totalRunNanos.get() / n;
+    }
+
+    public long getMaxQueueNanos() {
+        return maxQueueNanos.get();
+    }
+
+    public long getMaxRunNanos() {
+        return maxRunNanos.get();
+    }
+
+    public String toString() {
+        return "BlockingPool(threads=" + getPoolSize() + ", depth=" + getQueueDepth() + ", calls=" + getCalls()
+                + ", waitsForSpace=" + getWaitsForSpace() + ", wakeups=" + getWakeups() + ", avgQueueNs="
+                + getAvgQueueNanos() + ", maxQueueNs=" + getMaxQueueNanos() + ", avgRunNs=" + getAvgRunNanos()
+                + ", maxRunNs=" + getMaxRunNanos() + ")";
+    }
+
+    class SpaceAvailable implements PauseReason {
+        public boolean isValid(Task t) {
+            return queued.get() >= maxQueue;
+        }
+
+        public String toString() {
+            return "blocking pool full";
+        }
+    }
+
+    /**
+     * Resumes the tasks of all the calls finished so far on one scheduler.
+     */
+    class Drainer extends NonpausableTask {
+        final ConcurrentLinkedQueue<Call<?>> finished = new ConcurrentLinkedQueue<Call<?>>();
+        final AtomicBoolean pending = new AtomicBoolean();
+
+        public void execute() {
+            numWakeups.incrementAndGet();
+            // Clear the flag first: a call finishing from here on either is seen by the loop below or
+            // schedules the drainer again.
+            pending.set(false);
+            Call<?> call;
+            while ((call = finished.poll()) != null) {
+                call.task.resume();
+            }
+        }
+    }
+
+    static class Call<T> implements Runnable, PauseReason {
+        final BlockingPool pool;
+        final Task task;
+        final Callable<T> callable;
+        long submitNanos;
+        T result;
+        Throwable exception;
+        volatile boolean done;
+
+        Call(BlockingPool pool, Task task, Callable<T> callable) {
+            this.pool = pool;
+            this.task = task;
+            this.callable = callable;
+        }
+
+        public void run() {
+            long start = System.nanoTime();
+            pool.release();
+            try {
+                result = callable.call();
+            } catch (Throwable th) {
+                exception = th;
+            }
+            pool.record(start - submitNanos, System.nanoTime() - start);
+            done = true;
+            pool.finished(this);
+        }
+
+        public boolean isValid(Task t) {
+            return !done;
+        }
+
+        public String toString() {
+            return "blocking call " + callable;
+        }
+    }
+}
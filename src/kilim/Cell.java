@@ -7,7 +7,6 @@
 package kilim;
 
 import java.util.LinkedList;
-import java.util.TimerTask;
 
 /**
  * A cell is a single-space buffer that supports multiple producers and a single
@@ -132,19 +131,13 @@ public class Cell<T> implements PauseReason, EventPublisher {
         T msg = get(t);
         long begin = System.currentTimeMillis();
         while (msg == null) {
-            TimerTask tt = new TimerTask() {
-                    public void run() {
-                        Cell.this.removeMsgAvailableListener(t);
-                        t.onEvent(Cell.this, timedOut);
-                    }
-                };
-            Task.timer.schedule(tt, timeoutMillis);
+            t.taskTimer.setTimer(timeoutMillis);
             Task.pause(this);
-            tt.cancel();
+            t.taskTimer.cancel();
+            removeMsgAvailableListener(t);
             if (System.currentTimeMillis() - begin > timeoutMillis) {
                 break;
             }
-            removeMsgAvailableListener(t);
             msg = get(t);
         }
         return msg;
@@ -190,14 +183,9 @@ public class Cell<T> implements PauseReason, EventPublisher {
         final Task t = Task.getCurrentTask();
         long begin = System.currentTimeMillis();
         while (!put(msg, t)) {
-            TimerTask tt = new TimerTask() {
-                    public void run() {
-                        Cell.this.removeSpaceAvailableListener(t);
-                        t.onEvent(Cell.this, timedOut);
-                    }
-                };
-            Task.timer.schedule(tt, timeoutMillis);
+            t.taskTimer.setTimer(timeoutMillis);
             Task.pause(this);
+            t.taskTimer.cancel();
             removeSpaceAvailableListener(t);
             if (System.currentTimeMillis() - begin >= timeoutMillis) {
                 return false;
@@ -292,6 +280,9 @@ public class Cell<T> implements PauseReason, EventPublisher {
 
     // Implementation of PauseReason
     public boolean isValid(Task t) {
+        if (t.taskTimer.isExpired()) {
+            return false;
+        }
         synchronized(this) {
             return (t == sink) || srcs.contains(t);
         } 
@@ -46,6 +46,8 @@ public interface Constants extends Opcodes {
     String THROWABLE_CLASS  = "java/lang/Throwable";
     String FIBER_CLASS      = "kilim/Fiber";
     String STATE_CLASS      = "kilim/State";
+    String STATE_POOL_CLASS = "kilim/StatePool";
+    String STATE_POOL_ID    = "POOL_ID";
     String TASK_CLASS       = "kilim/Task";
     String PAUSABLE_CLASS   = "kilim/Pausable";
     String NOT_PAUSABLE_CLASS   = "kilim/NotPausable";
@@ -0,0 +1,454 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded mailbox with credit-based flow control. In a plain bounded {@link Mailbox}, each
+ * producer that finds it full registers as a listener, and each get() wakes one of them to put
+ * one message; with many producers stuck, every message costs a wakeup and a trip through the
+ * monitor for the registration.
+ * <p>
+ * Here the capacity is handed out as credits, one per message. Producers put through a
+ * {@link Sender}, which draws credits from the shared pool in batches (one CAS for a batch) and
+ * spends them locally without any synchronization until it runs out. The consumer returns
+ * credits to the pool a batch at a time, and each such grant wakes only as many waiting senders
+ * as it has batches for. A sender that can't get credits pauses (or blocks, for a thread) until
+ * a grant. The consumer also returns its credits when it finds the mailbox empty, so that a
+ * partly used batch is never stranded.
+ * <p>
+ * Credits held by a sender are not available to others; a sender that stops producing should
+ * be closed, which returns them. Size the capacity for at least one batch per active sender.
+ * <p>
+ * The puts inherited from Mailbox work as well, each call through a Sender of its own that draws
+ * only the credits the call needs and returns any left over, so they don't batch.
+ */
+public class CreditMailbox<T> extends Mailbox<T> {
+    final int batch;
+    final int capacity;
+    /** credits in the pool, not held by any sender nor spent on a message in the mailbox */
+    final AtomicInteger credits;
+    /** senders waiting for credits */
+    final ConcurrentLinkedQueue<Sender> starved = new ConcurrentLinkedQueue<Sender>();
+    /** messages taken since the last grant; consumer only */
+    int pending;
+
+    final AtomicLong numGrants = new AtomicLong();
+    final AtomicLong numWakeups = new AtomicLong();
+
+    public CreditMailbox(int capacity) {
+        this(capacity, Math.max(1, capacity / 8));
+    }
+
+    /**
+     * @param capacity the maximum number of messages; also the total number of credits.
+     * @param batch the number of credits a sender draws at a time, and the consumer returns at a time.
+     */
+    public CreditMailbox(int capacity, int batch) {
+        super(Math.min(10, capacity), capacity);
+        if (batch < 1 || batch > capacity) {
+            throw new IllegalArgumentException("batch must be between 1 and capacity: " + batch);
+        }
+        this.capacity = capacity;
+        this.batch = batch;
+        credits = new AtomicInteger(capacity);
+    }
+
+    /**
+     * @return a new producer handle. A Sender has a single user, as its credits are kept without
+     *         synchronization; give each producer its own.
+     */
+    public Sender sender() {
+        return new Sender();
+    }
+
+    @Override
+    public T get(EventSubscriber eo) {
+        T msg = super.get(eo);
+        if (msg != null) {
+            consumed(1);
+        } else {
+            flush();
+        }
+        return msg;
+    }
+
+    @Override
+    public int get(T[] dst, int off, int len, EventSubscriber eo) {
+        int k = super.get(dst, off, len, eo);
+        if (k > 0) {
+            consumed(k);
+        } else {
+            flush();
+        }
+        return k;
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> c, int max) {
+        int k = super.drainTo(c, max);
+        if (k > 0) {
+            consumed(k);
+        } else {
+            flush();
+        }
+        return k;
+    }
+
+    @Override
+    public T remove(int idx) {
+        T msg = super.remove(idx);
+        consumed(1);
+        return msg;
+    }
+
+    private void consumed(int k) {
+        pending += k;
+        if (pending >= batch) {
+            flush();
+        }
+    }
+
+    /**
+     * Return the credits of the messages taken so far to the pool.
+     */
+    private void flush() {
+        int n = pending;
+        if (n > 0) {
+            pending = 0;
+            numGrants.incrementAndGet();
+            release(n);
+        }
+    }
+
+    /**
+     * Add n credits to the pool, and wake a waiting sender for each batch of them (at least one).
+     */
+    void release(int n) {
+        credits.addAndGet(n); // must precede the poll of starved below
+        int toWake = (n + batch - 1) / batch;
+        Sender s;
+        while (toWake > 0 && (s = starved.poll()) != null) {
+            if (s.queued.compareAndSet(true, false)) { // else it found credits by itself
+                numWakeups.incrementAndGet();
+                s.wake();
+                toWake--;
+            }
+        }
+    }
+
+    /** @return credits in the pool right now */
+    public int getCredits() {
+        return credits.get();
+    }
+
+    /** @return the number of times the consumer returned credits */
+    public long getGrants() {
+        return numGrants.get();
+    }
+
+    /** @return the number of senders woken by grants */
+    public long getWakeups() {
+        return numWakeups.get();
+    }
+
+    public int getBatch() {
+        return batch;
+    }
+
+    /**
+     * Put a message if there is a credit for it. Otherwise, if eo is non-null, it is called with a
+     * space-available event at the next grant, unless removed with removeSpaceAvailableListener.
+     */
+    @Override
+    public boolean put(T msg, EventSubscriber eo) {
+        Sender s = new Sender(1, true);
+        if (s.putnb(msg)) {
+            return true;
+        }
+        if (eo != null && s.await(eo)) {
+            s.send(msg);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Put as many of the len messages as there are credits for, registering eo as in
+     * {@link #put(Object, EventSubscriber)} if there are none.
+     */
+    @Override
+    public int put(T[] src, int off, int len, EventSubscriber eo) {
+        if (len == 0) {
+            return 0;
+        }
+        Sender s = new Sender(len, true);
+        if (!s.draw() && (eo == null || !s.await(eo))) {
+            return 0;
+        }
+        int k = s.local;
+        s.sendAll(src, off, k);
+        return k;
+    }
+
+    @Override
+    public void put(T msg) throws Pausable {
+        new Sender(1, true).put(msg);
+    }
+
+    @Override
+    public boolean put(T msg, int timeoutMillis) throws Pausable {
+        if (msg == null) {
+            throw new NullPointerException("Null message supplied to put");
+        }
+        Sender s = new Sender(1, true);
+        if (!s.draw()) {
+            final Task t = Task.getCurrentTask();
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (!s.await(t)) {
+                long left = end - System.currentTimeMillis();
+                if (left <= 0) {
+                    s.cancel();
+                    return false;
+                }
+                t.taskTimer.setTimer(left);
+                Task.pause(s);
+                t.taskTimer.cancel();
+            }
+        }
+        s.send(msg);
+        return true;
+    }
+
+    @Override
+    public void putb(T msg, long timeoutMillis) {
+        if (msg == null) {
+            throw new NullPointerException("Null message supplied to put");
+        }
+        Sender s = new Sender(1, true);
+        if (!s.draw()) {
+            Thread th = Thread.currentThread();
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (!s.await(th)) {
+                if (timeoutMillis == 0) {
+                    LockSupport.park(s);
+                } else {
+                    long left = end - System.currentTimeMillis();
+                    if (left <= 0) {
+                        s.cancel();
+                        return;
+                    }
+                    LockSupport.parkNanos(s, left * 1000000L);
+                }
+            }
+        }
+        s.send(msg);
+    }
+
+    @Override
+    public void putAll(T[] src, int off, int len) throws Pausable {
+        Sender s = new Sender(len, true);
+        while (len > 0) {
+            if (!s.draw()) {
+                Task t = Task.getCurrentTask();
+                while (!s.await(t)) {
+                    Task.pause(s);
+                }
+            }
+            int k = Math.min(s.local, len);
+            s.sendAll(src, off, k);
+            off += k;
+            len -= k;
+        }
+        s.close();
+    }
+
+    /**
+     * Also drops eo's registration, if any, for the next grant.
+     */
+    @Override
+    public void removeSpaceAvailableListener(EventSubscriber spcSub) {
+        super.removeSpaceAvailableListener(spcSub);
+        for (Sender s : starved) {
+            if (s.perCall && s.waiter == spcSub) {
+                s.cancel();
+            }
+        }
+    }
+
+    /**
+     * A producer's handle on the mailbox, holding the credits it has drawn.
+     */
+    public class Sender implements PauseReason {
+        /** the most credits drawn at a time */
+        final int drawSize;
+        /** serves a single call of one of the inherited puts */
+        final boolean perCall;
+        /** credits drawn and not yet spent */
+        int local;
+        /** set while on starved, so that it is queued at most once */
+        final AtomicBoolean queued = new AtomicBoolean();
+        /** the Task, Thread or EventSubscriber waiting for credits */
+        volatile Object waiter;
+
+        Sender() {
+            this(batch, false);
+        }
+
+        Sender(int drawSize, boolean perCall) {
+            this.drawSize = drawSize;
+            this.perCall = perCall;
+        }
+
+        /**
+         * Draw up to drawSize credits from the pool.
+         */
+        private boolean draw() {
+            while (true) {
+                int n = credits.get();
+                if (n == 0) {
+                    return false;
+                }
+                int k = Math.min(n, drawSize);
+                if (credits.compareAndSet(n, n - k)) {
+                    local = k;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Queue up for the next grant, unless credits turn up meanwhile.
+         * @return true if it drew credits after all.
+         */
+        private boolean await(Object w) {
+            waiter = w;
+            if (queued.compareAndSet(false, true)) {
+                starved.offer(this);
+            }
+            // A grant may have come before it could see us on starved.
+            if (draw()) {
+                queued.compareAndSet(true, false);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Leave starved, if queued.
+         */
+        void cancel() {
+            if (queued.compareAndSet(true, false)) {
+                starved.remove(this);
+            }
+        }
+
+        void wake() {
+            Object w = waiter;
+            if (w instanceof Task) {
+                ((Task) w).resume();
+            } else if (w instanceof Thread) {
+                LockSupport.unpark((Thread) w);
+            } else if (w != null) {
+                ((EventSubscriber) w).onEvent(CreditMailbox.this, spaceAvailble);
+            }
+        }
+
+        private void send(T msg) {
+            local--;
+            boolean ok = CreditMailbox.super.put(msg, null);
+            assert ok : "Credit spent, but the mailbox is full";
+        }
+
+        /**
+         * Put k messages, for which there are credits at hand, under one acquisition of the monitor.
+         */
+        private void sendAll(T[] src, int off, int k) {
+            local -= k;
+            int n = CreditMailbox.super.put(src, off, k, null);
+            assert n == k : "Credits spent, but the mailbox is full";
+        }
+
+        /**
+         * Put a message if a credit is at hand or can be drawn; don't pause or block.
+         * @return false if there are no credits.
+         */
+        public boolean putnb(T msg) {
+            if (msg == null) {
+                throw new NullPointerException("Null message supplied to put");
+            }
+            if (local == 0 && !draw()) {
+                return false;
+            }
+            send(msg);
+            return true;
+        }
+
+        /**
+         * Put a message, pausing the calling task until there is a credit for it.
+         */
+        public void put(T msg) throws Pausable {
+            if (msg == null) {
+                throw new NullPointerException("Null message supplied to put");
+            }
+            if (local == 0 && !draw()) {
+                Task t = Task.getCurrentTask();
+                while (!await(t)) {
+                    Task.pause(this);
+                }
+            }
+            send(msg);
+        }
+
+        /**
+         * Put a message, blocking the calling thread until there is a credit for it.
+         */
+        public void putb(T msg) {
+            if (msg == null) {
+                throw new NullPointerException("Null message supplied to put");
+            }
+            if (local == 0 && !draw()) {
+                Thread th = Thread.currentThread();
+                while (!await(th)) {
+                    LockSupport.park(this);
+                }
+            }
+            send(msg);
+        }
+
+        /** @return credits drawn and not yet spent */
+        public int getCredits() {
+            return local;
+        }
+
+        /**
+         * Return the unspent credits to the pool. The sender may still be used; it draws again.
+         */
+        public void close() {
+            int n = local;
+            if (n > 0) {
+                local = 0;
+                release(n);
+            }
+        }
+
+        // Implementation of PauseReason
+        public boolean isValid(Task t) {
+            return queued.get() && credits.get() == 0 && !t.taskTimer.isExpired();
+        }
+
+        public String toString() {
+            return "CreditMailbox.Sender(credits=" + local + ")";
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+/**
+ * A queue of runnable tasks ordered by deadline ({@link Task#setDeadline(long)}), for the
+ * {@link DeadlineScheduler}. It is a timing wheel: a ring of FIFO buckets, each covering
+ * <code>granularity</code> ms, with a bitmap of the non-empty ones. put() is O(1), and get() scans at
+ * most one bitmap word per 64 buckets, however many tasks are queued. Tasks due within the same
+ * bucket come out in FIFO order.
+ * <p>
+ * The ring spans a horizon of buckets &times; granularity ms, starting at the earliest queued
+ * task or the present, whichever is earlier. Deadlines beyond the horizon are rounded down to it,
+ * and overdue ones up to its start. A task without a deadline is taken to be due a horizon after it
+ * is queued, so that it runs behind tasks due sooner but is not starved by them.
+ * <p>
+ * Like RingQueue, this is not thread-safe; the owner guards it.
+ */
+public class DeadlineQueue {
+    final RingQueue<Task>[] buckets;
+    final long[]            bits;
+    final int               mask;
+    final long              granularity;
+    /** the slot (time / granularity) of the ring's first bucket; not later than the present */
+    long                    cur;
+    int                     size;
+
+    /**
+     * @param numBuckets rounded up to a power of 2, at least 64.
+     * @param granularity the time covered by a bucket, in ms.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public DeadlineQueue(int numBuckets, int granularity) {
+        if (granularity < 1) {
+            throw new IllegalArgumentException("granularity must be positive: " + granularity);
+        }
+        int n = 64;
+        while (n < numBuckets) n <<= 1;
+        buckets = new RingQueue[n];
+        for (int i = 0; i < n; i++) {
+            buckets[i] = new RingQueue<Task>(4);
+        }
+        bits = new long[n >>> 6];
+        mask = n - 1;
+        this.granularity = granularity;
+    }
+
+    public void put(Task t, long now) {
+        long nowSlot = now / granularity;
+        if (size == 0) {
+            cur = nowSlot;
+        }
+        long d = t.deadline;
+        long slot = (d == 0) ? nowSlot + mask : d / granularity;
+        if (slot < cur) {
+            slot = cur;
+        } else if (slot - cur > mask) {
+            slot = cur + mask;
+        }
+        int i = (int) slot & mask;
+        buckets[i].put(t);
+        bits[i >>> 6] |= 1L << i;
+        size++;
+    }
+
+    /**
+     * @return the task with the earliest deadline, or null.
+     */
+    public Task get(long now) {
+        if (size == 0) {
+            return null;
+        }
+        int start = (int) cur & mask;
+        int i = nextBucket(start);
+        RingQueue<Task> b = buckets[i];
+        Task t = b.get();
+        if (b.size() == 0) {
+            bits[i >>> 6] &= ~(1L << i);
+        }
+        size--;
+        // Nothing is queued before this bucket; move the ring up to it, but not past the present.
+        long slot = cur + ((i - start) & mask);
+        long nowSlot = now / granularity;
+        long c = slot < nowSlot ? slot : nowSlot;
+        if (c > cur) {
+            cur = c;
+        }
+        return t;
+    }
+
+    /**
+     * @return the first non-empty bucket at or after from, wrapping around. There must be one.
+     */
+    private int nextBucket(int from) {
+        long[] bs = bits;
+        int nw = bs.length;
+        int w = from >>> 6;
+        long word = bs[w] & (-1L << from);
+        for (int k = 0; k < nw; k++) {
+            if (word != 0) {
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+            w = (w + 1) & (nw - 1);
+            word = bs[w];
+        }
+        // back at the first word; only the buckets before from are left
+        assert word != 0 : "No task in a non-empty DeadlineQueue";
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        int start = (int) cur & mask;
+        for (int k = 0; k <= mask; k++) {
+            RingQueue<Task> b = buckets[(start + k) & mask];
+            if (b.size() > 0) {
+                sb.append('+').append(k * granularity).append("ms: ").append(b).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,160 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A scheduler that runs the runnable task with the earliest deadline first (see
+ * {@link Task#setDeadline(long)}), instead of the oldest. Tasks without a deadline run behind those
+ * due sooner, but are not starved by them; see {@link DeadlineQueue}. Task priorities are ignored.
+ * <p>
+ * A task may come up after its deadline has passed, typically because the scheduler is overloaded.
+ * By default it runs anyway. With a {@link Shedder} set, the scheduler asks it what to do, and a task
+ * it rejects is shed, with {@link #SHED} as its exit result. Under overload, that keeps the workers
+ * on tasks that can still make it, so that only a few tasks are rejected, instead of most of them
+ * finishing late.
+ * <p>
+ * Tasks pinned to a thread ({@link Task#preferredResumeThread}) go straight to that thread, as with
+ * the base Scheduler, and are never shed. Set the system property
+ * <code>kilim.Scheduler.deadlines=true</code> to make this the default scheduler.
+ */
+public class DeadlineScheduler extends Scheduler {
+    /**
+     * The exit result of a task that was shed.
+     */
+    public static final String SHED = "SHED";
+
+    public static int defaultBuckets     = Integer.getInteger("kilim.Scheduler.deadlineBuckets", 1024);
+    public static int defaultGranularity = Integer.getInteger("kilim.Scheduler.deadlineGranularity", 1);
+
+    /**
+     * Decides the fate of tasks that come up for running after their deadline.
+     */
+    public interface Shedder {
+        /**
+         * Called in the worker thread that took t off the queue, after t's deadline. A t that has
+         * never run is dropped. A t that has run and paused may hold locks, permits or credits, so
+         * it is run once more instead: the pause it resumes from throws a {@link ShedException},
+         * and its catch and finally blocks run on the way out.
+         * @return true to shed t, false to run it all the same.
+         */
+        boolean shed(Task t);
+    }
+
+    /** guarded by this */
+    final DeadlineQueue        queue;
+    volatile Shedder           shedder;
+    final AtomicLong           numLate = new AtomicLong();
+    final AtomicLong           numShed = new AtomicLong();
+
+    public DeadlineScheduler(int numThreads) {
+        this(numThreads, defaultIdleStrategy);
+    }
+
+    public DeadlineScheduler(int numThreads, IdleStrategy idleStrategy) {
+        this.idleStrategy = idleStrategy;
+        queue = new DeadlineQueue(defaultBuckets, defaultGranularity);
+        for (int i = 0; i < numThreads; i++) {
+            allThreads.add(new WorkerThread(this));
+        }
+        for (WorkerThread wt : allThreads) {
+            wt.start();
+        }
+        setTimeSlice(defaultTimeSlice);
+    }
+
+    /**
+     * @param s the shedder, or null to run late tasks as usual.
+     */
+    public void setShedder(Shedder s) {
+        shedder = s;
+    }
+
+    public Shedder getShedder() {
+        return shedder;
+    }
+
+    /**
+     * @return the number of times a task came up for running after its deadline, shed or not.
+     */
+    public long getLate() {
+        return numLate.get();
+    }
+
+    /**
+     * @return the number of tasks shed.
+     */
+    public long getShed() {
+        return numShed.get();
+    }
+
+    /**
+     * @return the number of runnable tasks waiting in the deadline queue, of whatever priority. A
+     *         snapshot, for monitoring.
+     */
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    @Override
+    public void schedule(Task t) {
+        assert t.state == Task.SCHEDULED : "Task " + t + " scheduled even though it is not in the SCHEDULED state";
+        WorkerThread prefThread = t.preferredResumeThread;
+        if (prefThread != null) {
+            prefThread.addRunnableTask(t);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            queue.put(t, now);
+        }
+        wakeIdleWorker();
+    }
+
+    @Override
+    void loadNextTask(WorkerThread wt) throws ShutdownException {
+        while (true) {
+            Task t;
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                if (shutdown) throw new ShutdownException();
+                t = queue.get(now);
+            }
+            if (t == null) {
+                return;
+            }
+            long d = t.deadline;
+            if (d != 0 && d < now) {
+                numLate.incrementAndGet();
+                Shedder s = shedder;
+                if (s != null && s.shed(t)) {
+                    numShed.incrementAndGet();
+                    if (!t.fiber.hasState()) {
+                        t.abandon(SHED);
+                        continue;
+                    }
+                    t.killOnResume(new ShedException());
+                }
+            }
+            WorkerThread prefThread = t.preferredResumeThread;
+            if (prefThread == null || prefThread == wt) {
+                wt.addRunnableTask(t);
+                return;
+            }
+            prefThread.addRunnableTask(t);
+        }
+    }
+
+    @Override
+    public void dump() {
+        synchronized (this) {
+            System.out.println(queue);
+        }
+        System.out.println("late: " + numLate + ", shed: " + numShed);
+    }
+}
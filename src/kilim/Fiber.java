@@ -57,6 +57,12 @@ public final class Fiber {
      */
     public Task                      task;
 
+    /*
+     * Recycled states for code woven with state pooling. Set to the pool of the
+     * WorkerThread each time the task runs, null if the task is not run by a worker.
+     */
+    StatePool                  statePool;
+
     /*
      * Special marker state used by pause
      */
@@ -100,6 +106,13 @@ public final class Fiber {
     public boolean isDone() {
         return isDone;
     }
+
+    /**
+     * @return true if the task has run and paused, and so has frames to restore when it resumes.
+     */
+    boolean hasState() {
+        return stateStack[0] != null;
+    }
     
     public static void pause() throws Pausable {
         throw new IllegalStateException("pause() called without weaving");
@@ -219,14 +232,40 @@ public final class Fiber {
         }
     }
 
+    /**
+     * Called by the generated code on entry to a pausable method that catches exceptions thrown
+     * by its pausable callees. The callee has done down() by then, so this is the method's own
+     * index in the state stack, which {@link #upEx(int)} needs later.
+     */
+    public int getDepth() {
+        return iStack;
+    }
+
     /**
      * In the normal (non-exception) scheme of things, the iStack is incremented
      * by down() on the way down and decremented by a corresponding up() when returning 
      * or pausing. If, however, an exception is thrown, we lose track of where we
-     * are in the hierarchy. We recalibrate iStack by creating a dummy exception
-     * and comparing it to the stack depth of an exception taken earlier.
-     * This is done in scheduler.getStackDepth();
-     * A sample stack trace of the dummy exception looks as follows
+     * are in the hierarchy. The woven method that caught the exception recorded its
+     * own depth on entry (see {@link #getDepth()}), and hands it back here to
+     * recalibrate iStack and release the states of the frames that were unwound.
+     * @return Fiber.pc (note: in contrast up() returns status)
+     */
+    public int upEx(int depth) {
+        State cs = stateStack[depth];
+
+        for (int i = iStack; i >= depth; i--) {
+            stateStack[i] = null; // release state
+        }
+
+        iStack = depth;
+        curState = cs;
+        return (cs == null) ? 0 : cs.pc;
+    }
+
+    /**
+     * Recalibrates iStack for code woven before the depth was recorded on method entry, by
+     * creating a dummy exception and counting the frames above the task's _runExecute
+     * (see {@link Task#getStackDepth()}). A sample stack trace of the dummy exception:
      * <pre>
      *   at kilim.Fiber.upEx(Fiber.java:250)
      *   at kilim.test.ex.ExCatch.normalCatch(ExCatch.java)
@@ -235,25 +274,12 @@ public final class Fiber {
      *   at kilim.Task.runExecute(Task.java)
      *   at kilim.WorkerThread.run(WorkerThread.java:11)
      * </pre>
-     * We have to figure out the stack depth (iStack) of the method
-     * that caught the exception and called upEx ("normalCatch" here).
-     * The call stack below runExecute may be owned by the scheduler, which
-     * may permit more than one task to build up on the stack. For this reason,
-     * we let the scheduler tell us the depth of upEx below the task's execute().
+     * This costs microseconds per caught exception; rather, re-weave and let the generated
+     * code call {@link #upEx(int)}.
      * @return Fiber.pc (note: in contrast up() returns status)
      */
     public int upEx() {
-        // compute new iStack. 
-        int is = task.getStackDepth() - 2; // remove upEx and convert to 0-based index. 
-        State cs = stateStack[is];
-
-        for (int i = iStack; i >= is; i--) {
-            stateStack[i] = null; // release state
-        }
-
-        iStack = is;
-        curState = cs;
-        return (cs == null) ? 0 : cs.pc;
+        return upEx(task.getStackDepth() - 2); // remove upEx and convert to 0-based index.
     }
     
     /**
@@ -291,6 +317,34 @@ public final class Fiber {
       return stateStack[iStack];
     }
 
+    /**
+     * Called by code woven with state pooling, in place of allocating a new state object.
+     * @return a recycled instance of the state class registered with {@link StatePool} as
+     *         poolId, or null (in which case the generated code allocates one).
+     */
+    public State allocState(int poolId) {
+        StatePool p = statePool;
+        return p == null ? null : p.get(poolId);
+    }
+
+    /**
+     * Called by code woven with state pooling after it has restored its frame from s.
+     */
+    public void releaseState(State s) {
+        StatePool p = statePool;
+        if (p != null) {
+            p.put(s);
+        }
+    }
+
+    /**
+     * Lets code that drives a fiber by hand, outside a scheduler, use a pool of its own.
+     * The pool must not be shared with other threads.
+     */
+    public void setStatePool(StatePool pool) {
+        statePool = pool;
+    }
+
     void togglePause() {
         // The client code would have called fiber.down()
         // before calling Task.pause. curStatus would be
@@ -0,0 +1,75 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+/**
+ * What a WorkerThread does when it finds no runnable task. Set the system property
+ * <code>kilim.Scheduler.idleStrategy</code> to <code>spin</code>, <code>yield</code> or <code>park</code>
+ * (the default) to choose the strategy of the default scheduler, or pass one to the Scheduler constructor.
+ * <p>
+ * A worker that parks first pushes itself on its scheduler's {@link IdleWorkerStack} and looks for work once more;
+ * Scheduler.schedule() pops an idle worker and unparks it. Neither the push nor the pop takes a lock.
+ */
+public enum IdleStrategy {
+    /**
+     * Never park; poll for work in a tight loop. Lowest wakeup latency, but each worker burns a core
+     * even when there is nothing to do.
+     */
+    SPIN {
+        @Override
+        void idle(WorkerThread wt, int n) {
+        }
+    },
+
+    /**
+     * Poll for a while, then poll with Thread.yield() in between, and only then park.
+     */
+    YIELD {
+        @Override
+        void idle(WorkerThread wt, int n) {
+            if (n < SPINS) {
+                return;
+            }
+            if (n < SPINS + YIELDS) {
+                Thread.yield();
+            } else {
+                wt.park();
+            }
+        }
+    },
+
+    /**
+     * Park as soon as there is nothing to do.
+     */
+    PARK {
+        @Override
+        void idle(WorkerThread wt, int n) {
+            wt.park();
+        }
+    };
+
+    static final int SPINS  = 1000;
+    static final int YIELDS = 100;
+
+    /**
+     * Called by an idle worker between attempts to find a task.
+     * @param n the number of consecutive times this worker has found nothing to do
+     */
+    abstract void idle(WorkerThread wt, int n);
+
+    /**
+     * @return the strategy named (case-insensitively) by s, or dflt if s is null or unknown.
+     */
+    public static IdleStrategy parse(String s, IdleStrategy dflt) {
+        if (s != null) {
+            try {
+                return valueOf(s.trim().toUpperCase());
+            } catch (IllegalArgumentException ignore) {}
+        }
+        return dflt;
+    }
+}
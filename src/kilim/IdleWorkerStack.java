@@ -0,0 +1,92 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free (Treiber) stack of parked WorkerThreads. Instead of references, it links the
+ * workers by their index, packing the index of the top worker and a version number into one
+ * long. A stamped CAS like this avoids the ABA problem without allocating a node on every push.
+ * <p>
+ * A worker may be on the stack at most once (see {@link WorkerThread#park()}). A worker that finds
+ * work after pushing itself stays on the stack, marked busy; pop() drops busy workers and carries on
+ * down the stack, so that a wakeup always goes to a worker that is idle.
+ */
+public class IdleWorkerStack {
+    private static final long    INDEX_MASK = 0xFFFFFFFFL;
+
+    /** high 32 bits: version; low 32 bits: 1 + index of top worker, 0 if empty */
+    private final AtomicLong     head       = new AtomicLong();
+    private volatile WorkerThread[] workers = new WorkerThread[0];
+
+    /**
+     * Make wt known to the stack. Called once per worker, before it starts.
+     * @return the worker's index
+     */
+    synchronized int register(WorkerThread wt) {
+        WorkerThread[] ws = workers;
+        WorkerThread[] newWs = new WorkerThread[ws.length + 1];
+        System.arraycopy(ws, 0, newWs, 0, ws.length);
+        newWs[ws.length] = wt;
+        workers = newWs;
+        return ws.length;
+    }
+
+    void push(WorkerThread wt) {
+        long link = wt.idleIndex + 1;
+        while (true) {
+            long h = head.get();
+            wt.nextIdle = (int) (h & INDEX_MASK);
+            if (head.compareAndSet(h, nextVersion(h) | link)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the most recently parked worker that is still idle, or null if there are none. Busy
+     *         workers above it are taken off the stack; they push themselves again when they next
+     *         go idle.
+     */
+    WorkerThread pop() {
+        while (true) {
+            long h = head.get();
+            int link = (int) (h & INDEX_MASK);
+            if (link == 0) {
+                return null;
+            }
+            WorkerThread wt = workers[link - 1];
+            if (head.compareAndSet(h, nextVersion(h) | (wt.nextIdle & INDEX_MASK))) {
+                if (wt.takeWakeup()) {
+                    return wt;
+                }
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return (head.get() & INDEX_MASK) == 0;
+    }
+
+    private static long nextVersion(long h) {
+        return (h & ~INDEX_MASK) + (1L << 32);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        WorkerThread[] ws = workers;
+        // Racy, and bounded in case the stack changes underneath.
+        int link = (int) (head.get() & INDEX_MASK);
+        for (int i = 0; link != 0 && i < ws.length; i++, link = ws[link - 1].nextIdle) {
+            if (sb.length() > 1) sb.append(", ");
+            sb.append(ws[link - 1].getName());
+        }
+        return sb.append(']').toString();
+    }
+}
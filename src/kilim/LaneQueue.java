@@ -0,0 +1,105 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+/**
+ * A queue of runnable tasks with one FIFO lane per {@link Priority}. get() takes from the most urgent
+ * lane that has tasks and has not used up its weight in the current round; once every lane with
+ * tasks has, a new round starts. While all lanes are busy, a round of weights 16,8,1 hands out 16
+ * CRITICAL, 8 NORMAL and 1 BULK task, so a CRITICAL task waits for at most 9 others however long the
+ * other lanes are, and BULK is never starved. With one lane busy, it gets every turn.
+ * <p>
+ * Like RingQueue, this is not thread-safe; the owner guards it.
+ */
+public class LaneQueue {
+    final RingQueue<Task>[] lanes;
+    final int[]             weights;
+    /** turns left to each lane in the current round */
+    final int[]             credits;
+    int                     size;
+
+    public LaneQueue(int initialSize) {
+        this(initialSize, Priority.defaultWeights);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public LaneQueue(int initialSize, int[] weights) {
+        int n = Priority.lanes.length;
+        if (weights.length != n) {
+            throw new IllegalArgumentException("Expected " + n + " lane weights, got " + weights.length);
+        }
+        lanes = new RingQueue[n];
+        for (int i = 0; i < n; i++) {
+            if (weights[i] < 1) {
+                throw new IllegalArgumentException("Lane weight must be positive: " + weights[i]);
+            }
+            lanes[i] = new RingQueue<Task>(initialSize);
+        }
+        this.weights = weights.clone();
+        credits = weights.clone();
+    }
+
+    public boolean put(Task t) {
+        boolean ret = lanes[t.priority.ordinal()].put(t);
+        if (ret) {
+            size++;
+        }
+        return ret;
+    }
+
+    public Task get() {
+        if (size == 0) {
+            return null;
+        }
+        RingQueue<Task>[] ls = lanes;
+        int[] cs = credits;
+        while (true) {
+            for (int i = 0; i < ls.length; i++) {
+                if (cs[i] > 0) {
+                    Task t = ls[i].get();
+                    if (t != null) {
+                        cs[i]--;
+                        size--;
+                        return t;
+                    }
+                }
+            }
+            // Every lane with tasks has had its turns.
+            System.arraycopy(weights, 0, cs, 0, cs.length);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** @return the number of tasks waiting in lane p */
+    public int size(Priority p) {
+        return lanes[p.ordinal()].size();
+    }
+
+    public boolean contains(Task t) {
+        return lanes[t.priority.ordinal()].contains(t);
+    }
+
+    public void reset() {
+        for (RingQueue<Task> l : lanes) {
+            l.reset();
+        }
+        System.arraycopy(weights, 0, credits, 0, credits.length);
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lanes.length; i++) {
+            sb.append(Priority.lanes[i]).append(": ").append(lanes[i]).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,265 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+/**
+ * A Mailbox of longs, kept in a ring of primitives so that messages are never boxed on the
+ * put(long)/getLong() paths, nor on their bulk variants. Otherwise it is a Mailbox&lt;Long&gt;: same
+ * semantics (multiple producers, single consumer, optional bound) and it can be passed to
+ * {@link Mailbox#select(Mailbox...)}. The inherited, boxed methods work too, for code that doesn't
+ * know the difference.
+ */
+public class LongMailbox extends PrimitiveMailbox<Long> {
+    private long[] ring;
+    private final long[] taken = new long[1]; // for the single consumer's getLong()
+
+    public LongMailbox() {
+        this(10);
+    }
+
+    public LongMailbox(int initialSize) {
+        this(initialSize, Integer.MAX_VALUE);
+    }
+
+    public LongMailbox(int initialSize, int maxSize) {
+        super(initialSize, maxSize);
+        ring = new long[initialSize];
+    }
+
+    int capacity() {
+        return ring.length;
+    }
+
+    void resize(int newCap) {
+        long[] r = new long[newCap];
+        int first = Math.min(numMsgs, ring.length - icons);
+        System.arraycopy(ring, icons, r, 0, first);
+        System.arraycopy(ring, 0, r, first, numMsgs - first);
+        ring = r;
+    }
+
+    Long boxAt(int i) {
+        return ring[i];
+    }
+
+    void unboxTo(int i, Long msg) {
+        ring[i] = msg;
+    }
+
+    void copySlot(int from, int to) {
+        ring[to] = ring[from];
+    }
+
+    /**
+     * Non-blocking, nonpausing put.
+     * @param eo. If non-null, registers this observer and calls it with an SpaceAvailable event
+     *  when there's space.
+     * @return false if the mailbox is full.
+     */
+    public boolean put(long msg, EventSubscriber eo) {
+        EventSubscriber subscriber = null;
+        boolean ret;
+        synchronized (this) {
+            ret = reserve(1) == 1;
+            if (ret) {
+                ring[iprod] = msg;
+                subscriber = added(1);
+            } else if (eo != null) {
+                srcs.add(eo);
+            }
+        }
+        if (ret) {
+            messageAdded(subscriber);
+        }
+        return ret;
+    }
+
+    public boolean putnb(long msg) {
+        return put(msg, null);
+    }
+
+    /**
+     * Put a message, pausing the calling task until the mailbox has space.
+     */
+    public void put(long msg) throws Pausable {
+        Task t = Task.getCurrentTask();
+        while (!put(msg, t)) {
+            Task.pause(this);
+            removeSpaceAvailableListener(t);
+        }
+    }
+
+    /**
+     * Put a message, blocking the thread until the mailbox has space.
+     */
+    public void putb(long msg) {
+        BlockingSubscriber evs = new BlockingSubscriber();
+        while (!put(msg, evs)) {
+            evs.blockingWait(0);
+            evs.eventRcvd = false;
+        }
+    }
+
+    /**
+     * Non-blocking, nonpausing bulk put, under a single acquisition of the monitor.
+     * @return the number of messages added.
+     * @see Mailbox#put(Object[], int, int, EventSubscriber)
+     */
+    public int put(long[] src, int off, int len, EventSubscriber eo) {
+        EventSubscriber subscriber = null;
+        int k;
+        synchronized (this) {
+            k = reserve(len);
+            if (k > 0) {
+                int ip = iprod;
+                int first = Math.min(k, ring.length - ip);
+                System.arraycopy(src, off, ring, ip, first);
+                System.arraycopy(src, off + first, ring, 0, k - first);
+                subscriber = added(k);
+            }
+            if (k < len && eo != null) {
+                srcs.add(eo);
+            }
+        }
+        if (k > 0) {
+            messageAdded(subscriber);
+        }
+        return k;
+    }
+
+    public int putnb(long[] src, int off, int len) {
+        return put(src, off, len, null);
+    }
+
+    /**
+     * Put len messages from src, pausing the calling task whenever the mailbox is full.
+     */
+    public void putAll(long[] src, int off, int len) throws Pausable {
+        Task t = Task.getCurrentTask();
+        int k = put(src, off, len, t);
+        while (k < len) {
+            off += k;
+            len -= k;
+            Task.pause(this);
+            removeSpaceAvailableListener(t);
+            k = put(src, off, len, t);
+        }
+    }
+
+    /**
+     * Non-blocking, nonpausing bulk get, under a single acquisition of the monitor.
+     * @param eo. If non-null (and if there is no message), registers this observer.
+     * @return the number of messages moved into dst, 0 if there were none.
+     * @see Mailbox#get(Object[], int, int, EventSubscriber)
+     */
+    public int get(long[] dst, int off, int len, EventSubscriber eo) {
+        EventSubscriber[] producers = null;
+        int k;
+        synchronized (this) {
+            k = Math.min(numMsgs, len);
+            if (k > 0) {
+                int ic = icons;
+                int first = Math.min(k, ring.length - ic);
+                System.arraycopy(ring, ic, dst, off, first);
+                System.arraycopy(ring, 0, dst, off + first, k - first);
+                producers = removed(k);
+            } else if (len > 0) {
+                addMsgAvailableListener(eo);
+            }
+        }
+        notifySpaceAvailable(producers);
+        return k;
+    }
+
+    /**
+     * Moves the next message, if there is one, into taken[0].
+     * @param eo. If non-null (and if there is no message), registers this observer.
+     */
+    private boolean take(EventSubscriber eo) {
+        EventSubscriber[] producers;
+        synchronized (this) {
+            if (numMsgs == 0) {
+                addMsgAvailableListener(eo);
+                return false;
+            }
+            taken[0] = ring[icons];
+            producers = removed(1);
+        }
+        notifySpaceAvailable(producers);
+        return true;
+    }
+
+    /**
+     * @return the next message, pausing the calling task until there is one.
+     */
+    public long getLong() throws Pausable {
+        Task t = Task.getCurrentTask();
+        while (!take(t)) {
+            Task.pause(this);
+            removeMsgAvailableListener(t);
+        }
+        return taken[0];
+    }
+
+    /**
+     * Wait for at least one message, then move as many as are available, up to dst.length, into dst.
+     * @return the number of messages moved, at least 1.
+     * @throws IllegalArgumentException if dst is empty, as there would never be room for a message.
+     */
+    public int getBatch(long[] dst) throws Pausable {
+        if (dst.length == 0) {
+            throw new IllegalArgumentException("dst is empty");
+        }
+        Task t = Task.getCurrentTask();
+        int n = get(dst, 0, dst.length, t);
+        while (n == 0) {
+            Task.pause(this);
+            removeMsgAvailableListener(t);
+            n = get(dst, 0, dst.length, t);
+        }
+        return n;
+    }
+
+    /**
+     * As {@link #getBatch(long[])}, but waits at most timeoutMillis.
+     * @return the number of messages moved, 0 if timed out.
+     */
+    public int getBatch(long[] dst, long timeoutMillis) throws Pausable {
+        if (dst.length == 0) {
+            throw new IllegalArgumentException("dst is empty");
+        }
+        final Task t = Task.getCurrentTask();
+        int n = get(dst, 0, dst.length, t);
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (n == 0) {
+            t.taskTimer.setTimer(timeoutMillis);
+            Task.pause(this);
+            t.taskTimer.cancel();
+            removeMsgAvailableListener(t);
+            n = get(dst, 0, dst.length, t);
+
+            timeoutMillis = end - System.currentTimeMillis();
+            if (timeoutMillis <= 0) {
+                removeMsgAvailableListener(t);
+                break;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return the next message, blocking the thread until there is one.
+     */
+    public long getLongb() {
+        BlockingSubscriber evs = new BlockingSubscriber();
+        while (!take(evs)) {
+            evs.blockingWait(0);
+            evs.eventRcvd = false;
+        }
+        return taken[0];
+    }
+}
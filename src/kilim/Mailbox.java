@@ -6,8 +6,9 @@
 
 package kilim;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.LinkedList;
-import java.util.TimerTask;
 
 /**
  * This is a typed buffer that supports multiple producers and a single
@@ -42,6 +43,10 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
     
     LinkedList<EventSubscriber> srcs = new LinkedList<EventSubscriber>();
 
+    /** The selector this mailbox is registered with, if any, and its index there. See MailboxSelector. */
+    volatile MailboxSelector selector;
+    int selectorIndex;
+
     // DEBUG stuff
     // To do: move into monitorable stat object
     /*
@@ -145,13 +150,232 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
                 }
             }
         }
-        // notify get's subscriber that something is available
+        if (ret) {
+            messageAdded(subscriber);
+        }
+        return ret;
+    }
+    
+    /**
+     * Called by a put that added messages, after the monitor is released: notifies get's subscriber
+     * that something is available, and marks this mailbox ready in its selector, if any.
+     */
+    final void messageAdded(EventSubscriber subscriber) {
         if (subscriber != null) {
             subscriber.onEvent(this, messageAvailable);
         }
+        MailboxSelector s = selector;
+        if (s != null) {
+            s.ready(this);
+        }
+    }
+
+    /**
+     * Non-blocking, nonpausing bulk get. Moves up to len messages into dst under a single
+     * acquisition of the monitor. Producers waiting for space are notified after the monitor is
+     * released, one for each message taken.
+     * @param eo. If non-null (and if there is no message), registers this observer. The observer is
+     *  notified with a MessageAvailable event when a put() is done.
+     * @return the number of messages moved, 0 if there were none.
+     */
+    public int get(T[] dst, int off, int len, EventSubscriber eo) {
+        EventSubscriber[] producers = null;
+        int k;
+        synchronized(this) {
+            int n = numMsgs;
+            k = Math.min(n, len);
+            if (k > 0) {
+                int ic = icons;
+                int first = Math.min(k, msgs.length - ic);
+                System.arraycopy(msgs, ic, dst, off, first);
+                Arrays.fill(msgs, ic, ic + first, null);
+                if (k > first) {
+                    System.arraycopy(msgs, 0, dst, off + first, k - first);
+                    Arrays.fill(msgs, 0, k - first, null);
+                }
+                icons = (ic + k) % msgs.length;
+                numMsgs = n - k;
+                producers = pollProducers(k);
+            } else if (len > 0) {
+                addMsgAvailableListener(eo);
+            }
+        }
+        notifySpaceAvailable(producers);
+        return k;
+    }
+
+    /**
+     * Non-blocking, nonpausing bulk get. Moves up to max messages into c, in order, under a single
+     * acquisition of the monitor; see {@link #get(Object[], int, int, EventSubscriber)}.
+     * @return the number of messages moved.
+     */
+    public int drainTo(Collection<? super T> c, int max) {
+        EventSubscriber[] producers = null;
+        int k;
+        synchronized(this) {
+            int n = numMsgs;
+            k = Math.min(n, max);
+            if (k > 0) {
+                int ic = icons;
+                for (int i = 0; i < k; i++) {
+                    c.add(msgs[ic]);
+                    msgs[ic] = null;
+                    ic = (ic + 1) % msgs.length;
+                }
+                icons = ic;
+                numMsgs = n - k;
+                producers = pollProducers(k);
+            }
+        }
+        notifySpaceAvailable(producers);
+        return k;
+    }
+
+    /**
+     * Takes up to n of the producers waiting for space. Called with the monitor held.
+     */
+    EventSubscriber[] pollProducers(int n) {
+        int np = Math.min(n, srcs.size());
+        if (np == 0) {
+            return null;
+        }
+        EventSubscriber[] ret = new EventSubscriber[np];
+        for (int i = 0; i < np; i++) {
+            ret[i] = srcs.poll();
+        }
         return ret;
     }
-    
+
+    void notifySpaceAvailable(EventSubscriber[] producers) {
+        if (producers != null) {
+            for (EventSubscriber p : producers) {
+                p.onEvent(this, spaceAvailble);
+            }
+        }
+    }
+
+    /**
+     * Non-blocking, nonpausing bulk put. Adds as many of the len messages from src as fit, under a
+     * single acquisition of the monitor, and notifies the consumer once.
+     * @param eo. If non-null and not all the messages fit, registers this observer and calls it with
+     *  a SpaceAvailable event when there's space.
+     * @return the number of messages added.
+     */
+    @SuppressWarnings("unchecked")
+    public int put(T[] src, int off, int len, EventSubscriber eo) {
+        EventSubscriber subscriber = null;
+        int k;
+        synchronized(this) {
+            for (int i = off; i < off + len; i++) {
+                if (src[i] == null) {
+                    throw new NullPointerException("Null message supplied to put");
+                }
+            }
+            int n = numMsgs;
+            k = Math.min(len, maxMsgs - n);
+            if (n + k > msgs.length) {
+                // grow once for the whole batch, unwrapping the ring
+                T[] newmsgs = (T[]) new Object[Math.min(Math.max(msgs.length * 2, n + k), maxMsgs)];
+                int ic = icons;
+                int first = Math.min(n, msgs.length - ic);
+                System.arraycopy(msgs, ic, newmsgs, 0, first);
+                System.arraycopy(msgs, 0, newmsgs, first, n - first);
+                msgs = newmsgs;
+                icons = 0;
+                iprod = n;
+            }
+            if (k > 0) {
+                int ip = iprod;
+                int first = Math.min(k, msgs.length - ip);
+                System.arraycopy(src, off, msgs, ip, first);
+                System.arraycopy(src, off + first, msgs, 0, k - first);
+                iprod = (ip + k) % msgs.length;
+                numMsgs = n + k;
+                subscriber = sink;
+                sink = null;
+            }
+            if (k < len && eo != null) {
+                srcs.add(eo);
+            }
+        }
+        if (k > 0) {
+            messageAdded(subscriber);
+        }
+        return k;
+    }
+
+    /**
+     * Bulk put, don't pause or block.
+     * @return the number of messages added, which is less than len if the mailbox filled up.
+     */
+    public int putnb(T[] src, int off, int len) {
+        return put(src, off, len, null);
+    }
+
+    /**
+     * Put len messages from src, pausing the calling task whenever the mailbox is full.
+     */
+    public void putAll(T[] src, int off, int len) throws Pausable {
+        Task t = Task.getCurrentTask();
+        int k = put(src, off, len, t);
+        while (k < len) {
+            off += k;
+            len -= k;
+            Task.pause(this);
+            removeSpaceAvailableListener(t);
+            k = put(src, off, len, t);
+        }
+    }
+
+    /**
+     * Wait for at least one message, then move as many as are available, up to dst.length, into
+     * dst under a single acquisition of the monitor.
+     * @return the number of messages moved, at least 1.
+     * @throws IllegalArgumentException if dst is empty, as there would never be room for a message.
+     * @throws Pausable
+     */
+    public int getBatch(T[] dst) throws Pausable {
+        if (dst.length == 0) {
+            throw new IllegalArgumentException("dst is empty");
+        }
+        Task t = Task.getCurrentTask();
+        int n = get(dst, 0, dst.length, t);
+        while (n == 0) {
+            Task.pause(this);
+            removeMsgAvailableListener(t);
+            n = get(dst, 0, dst.length, t);
+        }
+        return n;
+    }
+
+    /**
+     * As {@link #getBatch(Object[])}, but waits at most timeoutMillis.
+     * @return the number of messages moved, 0 if timed out.
+     * @throws Pausable
+     */
+    public int getBatch(T[] dst, long timeoutMillis) throws Pausable {
+        if (dst.length == 0) {
+            throw new IllegalArgumentException("dst is empty");
+        }
+        final Task t = Task.getCurrentTask();
+        int n = get(dst, 0, dst.length, t);
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (n == 0) {
+            t.taskTimer.setTimer(timeoutMillis);
+            Task.pause(this);
+            t.taskTimer.cancel();
+            removeMsgAvailableListener(t);
+            n = get(dst, 0, dst.length, t);
+
+            timeoutMillis = end - System.currentTimeMillis();
+            if (timeoutMillis <= 0) {
+                removeMsgAvailableListener(t);
+                break;
+            }
+        }
+        return n;
+    }
+
     /**
      * Get, don't pause or block.
      * 
@@ -186,15 +410,9 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
         T msg = get(t);
         long end = System.currentTimeMillis() + timeoutMillis;
         while (msg == null) {
-            TimerTask tt = new TimerTask() {
-                public void run() {
-                    Mailbox.this.removeMsgAvailableListener(t);
-                    t.onEvent(Mailbox.this, timedOut);
-                }
-            };
-            Task.timer.schedule(tt, timeoutMillis);
+            t.taskTimer.setTimer(timeoutMillis);
             Task.pause(this);
-            tt.cancel();
+            t.taskTimer.cancel();
             removeMsgAvailableListener(t);
             msg = get(t);
             
@@ -240,15 +458,9 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
 		boolean has_msg = hasMessage(t);
 		long end = System.currentTimeMillis() + timeoutMillis;
 		while (has_msg == false) {
-			TimerTask tt = new TimerTask() {
-				public void run() {
-                    Mailbox.this.removeMsgAvailableListener(t);
-	                t.onEvent(Mailbox.this, timedOut);
-				}
-			};
-			Task.timer.schedule(tt, timeoutMillis);
+			t.taskTimer.setTimer(timeoutMillis);
 			Task.pause(this);
-			tt.cancel();
+			t.taskTimer.cancel();
 			has_msg = hasMessage(t);
 			timeoutMillis = end - System.currentTimeMillis();
 			if (timeoutMillis <= 0) {
@@ -274,17 +486,9 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
 
 		boolean has_msg = hasMessages(num, t);
 		while (has_msg == false) {
-			TimerTask tt = new TimerTask() {
-				public void run() {
-                    Mailbox.this.removeMsgAvailableListener(t);
-	                t.onEvent(Mailbox.this, timedOut);
-				}
-			};
-			Task.timer.schedule(tt, timeoutMillis);
+			t.taskTimer.setTimer(timeoutMillis);
 			Task.pause(this);
-			if (!tt.cancel()) {
-            	removeMsgAvailableListener(t);
-			}
+			t.taskTimer.cancel();
 
 			has_msg = hasMessages(num, t);
 			timeoutMillis = end - System.currentTimeMillis();
@@ -381,6 +585,8 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
      * Takes an array of mailboxes and returns the index of the first mailbox
      * that has a message. It is possible that because of race conditions, an
      * earlier mailbox in the list may also have received a message.
+     * Each call subscribes to and unsubscribes from every mailbox; to select
+     * over the same mailboxes repeatedly, use a {@link MailboxSelector}.
      */
     // TODO: need timeout variant
     @SuppressWarnings("unchecked")
@@ -458,14 +664,9 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
         final Task t = Task.getCurrentTask();
         long begin = System.currentTimeMillis();
         while (!put(msg, t)) {
-            TimerTask tt = new TimerTask() {
-                public void run() {
-                    Mailbox.this.removeSpaceAvailableListener(t);
-                    t.onEvent(Mailbox.this, timedOut);
-                }
-            };
-            Task.timer.schedule(tt, timeoutMillis);
+            t.taskTimer.setTimer(timeoutMillis);
             Task.pause(this);
+            t.taskTimer.cancel();
             removeSpaceAvailableListener(t);
             if (System.currentTimeMillis() - begin >= timeoutMillis) {
                 return false;
@@ -573,6 +774,9 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
 
     // Implementation of PauseReason
     public boolean isValid(Task t) {
+        if (t.taskTimer.isExpired()) {
+            return false;
+        }
         synchronized(this) {
             return (t == sink) || srcs.contains(t);
         } 
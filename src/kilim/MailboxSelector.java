@@ -0,0 +1,183 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Waits for a message on any of a fixed set of mailboxes. Unlike {@link Mailbox#select(Mailbox...)},
+ * which subscribes to every mailbox and unsubscribes again on each call, a selector registers with
+ * its mailboxes once, when it is created. From then on a put marks its mailbox ready with a volatile
+ * read (and, for the first message since the consumer last looked, a CAS and an enqueue), and
+ * select() takes the next mailbox off the ready-set without touching the idle ones.
+ * <p>
+ * Like a mailbox, a selector has a single consumer: one task calls select() and then takes
+ * messages from the mailbox whose index it returns, typically with getnb(). A mailbox that still
+ * has messages at the next select() goes to the back of the ready-set, so busy mailboxes are served
+ * round-robin. A mailbox can be registered with one selector at a time; close() releases them.
+ *
+ * <pre>
+ * MailboxSelector sel = new MailboxSelector(control, data);
+ * while (true) {
+ *     switch (sel.select()) {
+ *     case 0: handle(control.getnb()); break;
+ *     case 1: handle(data.getnb()); break;
+ *     }
+ * }
+ * </pre>
+ */
+public class MailboxSelector implements PauseReason {
+    final Mailbox<?>[] mboxes;
+    /** marks[i] is 1 while mboxes[i] is in the ready-set, so it is queued at most once */
+    final AtomicIntegerArray marks;
+    final ConcurrentLinkedQueue<Mailbox<?>> readySet = new ConcurrentLinkedQueue<Mailbox<?>>();
+    /** the task paused in select(), for producers to resume */
+    volatile Task waiter;
+    /** index returned by the last select(); re-checked by the next one */
+    int last = -1;
+
+    /**
+     * Register with mboxes. Mailboxes that already have messages are ready right away.
+     * @throws IllegalStateException if one of them is registered with another selector
+     */
+    public MailboxSelector(Mailbox<?>... mboxes) {
+        this.mboxes = mboxes.clone();
+        marks = new AtomicIntegerArray(mboxes.length);
+        for (int i = 0; i < mboxes.length; i++) {
+            Mailbox<?> mb = mboxes[i];
+            synchronized (mb) {
+                if (mb.selector != null) {
+                    close();
+                    throw new IllegalStateException("Mailbox " + mb + " is registered with another selector");
+                }
+                mb.selectorIndex = i;
+                mb.selector = this; // volatile store, publishes selectorIndex
+            }
+        }
+        for (Mailbox<?> mb : this.mboxes) {
+            if (mb.hasMessage()) {
+                mark(mb);
+            }
+        }
+    }
+
+    /**
+     * Called by a producer after adding messages to mb.
+     */
+    void ready(Mailbox<?> mb) {
+        if (mark(mb)) {
+            Task t = waiter;
+            if (t != null) {
+                t.resume();
+            }
+        }
+    }
+
+    private boolean mark(Mailbox<?> mb) {
+        int i = mb.selectorIndex;
+        if (marks.get(i) == 0 && marks.compareAndSet(i, 0, 1)) {
+            readySet.offer(mb);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the index of a mailbox that has a message, or -1 if none does. Doesn't pause.
+     */
+    public int selectnb() {
+        int i = last;
+        if (i >= 0) {
+            last = -1;
+            // A put while the consumer was busy with mboxes[i] may have re-marked it already;
+            // otherwise re-queue it here if the consumer left messages behind.
+            Mailbox<?> mb = mboxes[i];
+            if (mb.hasMessage()) {
+                mark(mb);
+            }
+        }
+        Mailbox<?> mb;
+        while ((mb = readySet.poll()) != null) {
+            i = mb.selectorIndex;
+            // Unmark before looking, so that a put from here on marks it again.
+            marks.set(i, 0);
+            if (mb.hasMessage()) {
+                last = i;
+                return i;
+            }
+            // stale: the consumer took the messages already
+        }
+        return -1;
+    }
+
+    /**
+     * Pause the current task until one of the mailboxes has a message.
+     * @return the index of that mailbox.
+     */
+    public int select() throws Pausable {
+        waiter = Task.getCurrentTask();
+        int i;
+        while ((i = selectnb()) < 0) {
+            Task.pause(this);
+        }
+        waiter = null;
+        return i;
+    }
+
+    /**
+     * Pause the current task for up to timeoutMillis until one of the mailboxes has a message.
+     * @return the index of that mailbox, or -1 if timed out.
+     */
+    public int select(long timeoutMillis) throws Pausable {
+        final Task t = Task.getCurrentTask();
+        long begin = System.currentTimeMillis();
+        waiter = t;
+        int i;
+        while ((i = selectnb()) < 0) {
+            long left = timeoutMillis - (System.currentTimeMillis() - begin);
+            if (left <= 0) {
+                break;
+            }
+            t.taskTimer.setTimer(left);
+            Task.pause(this);
+            t.taskTimer.cancel();
+        }
+        waiter = null;
+        return i;
+    }
+
+    /**
+     * Unregister from the mailboxes, after which they may be used with another selector.
+     */
+    public void close() {
+        for (Mailbox<?> mb : mboxes) {
+            synchronized (mb) {
+                if (mb.selector == this) {
+                    mb.selector = null;
+                }
+            }
+        }
+    }
+
+    public int size() {
+        return mboxes.length;
+    }
+
+    public Mailbox<?> mailbox(int i) {
+        return mboxes[i];
+    }
+
+    // Implementation of PauseReason
+    public boolean isValid(Task t) {
+        return readySet.isEmpty() && !t.taskTimer.isExpired();
+    }
+
+    public String toString() {
+        return "MailboxSelector(" + mboxes.length + " mailboxes)";
+    }
+}
@@ -0,0 +1,337 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A drop-in replacement for {@link Mailbox} for the fan-in case: any number of producers, one
+ * consumer, and no monitor on any path.
+ * <p>
+ * Messages are kept in an unbounded linked queue (Vyukov's multi-producer/single-consumer
+ * queue). A put() is one atomic swap of the tail, a volatile store to link the node in and a
+ * volatile read of the sink; a get() by the consumer touches no shared counters at all. The
+ * consumer waiting for a message is kept in a single atomic sink slot, which the first producer
+ * to find it there claims with a CAS and notifies.
+ * <p>
+ * Because the queue is unbounded, put() never pauses and there is no list of blocked producers
+ * (the maxSize arguments of Mailbox do not apply). Use a bounded {@link Mailbox} where
+ * producers must be throttled. size(), peek() and friends walk the queue and are meant for
+ * monitoring and for the consumer only.
+ */
+public class MpscMailbox<T> extends Mailbox<T> {
+    private Node<T>                                 head;                                       // consumer only
+    private final AtomicReference<Node<T>>         tail = new AtomicReference<Node<T>>();
+    private final AtomicReference<EventSubscriber> sink = new AtomicReference<EventSubscriber>();
+
+    public MpscMailbox() {
+        super(1);
+        head = new Node<T>(null);
+        tail.set(head);
+    }
+
+    /**
+     * Non-blocking, nonpausing get.
+     * @param eo. If non-null, registers this observer and calls it with a MessageAvailable event when
+     *  a put() is done.
+     * @return buffered message if there's one, or null
+     */
+    @Override
+    public T get(EventSubscriber eo) {
+        T msg = poll();
+        if (msg == null && eo != null) {
+            addMsgAvailableListener(eo);
+            // A producer may have linked a message in before it could see eo in the sink.
+            msg = poll();
+            if (msg != null) {
+                sink.compareAndSet(eo, null);
+            }
+        }
+        return msg;
+    }
+
+    /**
+     * Retrieve a message, blocking the thread for at most timeoutMillis (0 for no limit). Unlike
+     * in a Mailbox, a message-available event is not a promise of a message here: a producer may
+     * announce a message that get() has already picked up on its second look. So on a spurious
+     * event this waits again, instead of returning null early.
+     * @return null if timed out.
+     */
+    @Override
+    public T getb(final long timeoutMillis) {
+        boolean infiniteWait = timeoutMillis == 0;
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            BlockingSubscriber evs = new BlockingSubscriber();
+            T msg = get(evs);
+            if (msg != null) {
+                return msg;
+            }
+            long remaining = end - System.currentTimeMillis();
+            if (!infiniteWait && remaining <= 0) {
+                removeMsgAvailableListener(evs);
+                return null;
+            }
+            evs.blockingWait(infiniteWait ? 0 : remaining);
+            removeMsgAvailableListener(evs);
+        }
+    }
+
+    /**
+     * Non-blocking, nonpausing put. Always succeeds, as the queue is unbounded.
+     * @param eo ignored
+     * @return true
+     */
+    @Override
+    public boolean put(T msg, EventSubscriber eo) {
+        if (msg == null) {
+            throw new NullPointerException("Null message supplied to put");
+        }
+        Node<T> n = new Node<T>(msg);
+        Node<T> prev = tail.getAndSet(n);
+        prev.next = n; // volatile store; must precede the read of sink below.
+
+        EventSubscriber subscriber = sink.get();
+        if (subscriber != null && !sink.compareAndSet(subscriber, null)) {
+            subscriber = null; // taken by another producer
+        }
+        messageAdded(subscriber);
+        return true;
+    }
+
+    /**
+     * Non-blocking, nonpausing bulk get. Moves up to len messages into dst.
+     * @param eo. If non-null (and if there is no message), registers this observer.
+     * @return the number of messages moved
+     */
+    @Override
+    public int get(T[] dst, int off, int len, EventSubscriber eo) {
+        int k = 0;
+        T msg;
+        while (k < len && (msg = poll()) != null) {
+            dst[off + k++] = msg;
+        }
+        if (k == 0 && len > 0 && eo != null) {
+            addMsgAvailableListener(eo);
+            // A producer may have linked a message in before it could see eo in the sink.
+            if ((msg = poll()) != null) {
+                sink.compareAndSet(eo, null);
+                dst[off] = msg;
+                k = 1;
+            }
+        }
+        return k;
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> c, int max) {
+        int k = 0;
+        T msg;
+        while (k < max && (msg = poll()) != null) {
+            c.add(msg);
+            k++;
+        }
+        return k;
+    }
+
+    /**
+     * Non-blocking, nonpausing bulk put. The messages are linked into a chain first, which is then
+     * appended with a single swap of the tail, and the consumer is notified once.
+     * @param eo ignored
+     * @return len
+     */
+    @Override
+    public int put(T[] src, int off, int len, EventSubscriber eo) {
+        if (len == 0) {
+            return 0;
+        }
+        Node<T> first = null, last = null;
+        for (int i = off; i < off + len; i++) {
+            if (src[i] == null) {
+                throw new NullPointerException("Null message supplied to put");
+            }
+            Node<T> n = new Node<T>(src[i]);
+            if (first == null) {
+                first = n;
+            } else {
+                last.next = n;
+            }
+            last = n;
+        }
+        Node<T> prev = tail.getAndSet(last);
+        prev.next = first; // volatile store; must precede the read of sink below.
+
+        EventSubscriber subscriber = sink.get();
+        if (subscriber != null && !sink.compareAndSet(subscriber, null)) {
+            subscriber = null; // taken by another producer
+        }
+        messageAdded(subscriber);
+        return len;
+    }
+
+    private T poll() {
+        Node<T> h = head;
+        while (true) {
+            Node<T> n = h.next;
+            if (n == null) {
+                if (tail.get() == h) {
+                    return null;
+                }
+                // A producer has swapped the tail but not linked its node in yet, and a later
+                // producer may already have announced its message behind it. Wait for the link.
+                Thread.yield();
+                continue;
+            }
+            head = h = n;
+            T msg = n.msg;
+            if (msg != null) { // null if it was remove()d
+                n.msg = null;
+                return msg;
+            }
+        }
+    }
+
+    @Override
+    public boolean hasMessage(Task eo) {
+        if (hasMessage()) {
+            return true;
+        }
+        addMsgAvailableListener(eo);
+        if (hasMessage()) {
+            sink.compareAndSet(eo, null);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean hasMessages(int num, Task eo) {
+        if (count(num) >= num) {
+            return true;
+        }
+        addMsgAvailableListener(eo);
+        if (count(num) >= num) {
+            sink.compareAndSet(eo, null);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public T peek(int idx) {
+        assert idx >= 0 : "negative index";
+        Node<T> n = nodeAt(idx);
+        return n == null ? null : n.msg;
+    }
+
+    @Override
+    public T remove(int idx) {
+        assert idx >= 0 : "negative index";
+        Node<T> n = nodeAt(idx);
+        if (n == null) {
+            throw new IllegalStateException();
+        }
+        // Producers may be appending to this very node, so leave it linked in and
+        // let poll() skip it.
+        T msg = n.msg;
+        n.msg = null;
+        return msg;
+    }
+
+    @Override
+    public Object[] messages() {
+        ArrayList<Object> ret = new ArrayList<Object>();
+        for (Node<T> n = head.next; n != null; n = n.next) {
+            if (n.msg != null) {
+                ret.add(n.msg);
+            }
+        }
+        return ret.toArray();
+    }
+
+    private Node<T> nodeAt(int idx) {
+        for (Node<T> n = head.next; n != null; n = n.next) {
+            if (n.msg != null && idx-- == 0) {
+                return n;
+            }
+        }
+        return null;
+    }
+
+    private int count(int max) {
+        int c = 0;
+        for (Node<T> n = head.next; n != null && c < max; n = n.next) {
+            if (n.msg != null) {
+                c++;
+            }
+        }
+        return c;
+    }
+
+    @Override
+    public void addSpaceAvailableListener(EventSubscriber spcSub) {
+        // Never full; nothing to wait for.
+    }
+
+    @Override
+    public void removeSpaceAvailableListener(EventSubscriber spcSub) {
+    }
+
+    @Override
+    public void addMsgAvailableListener(EventSubscriber msgSub) {
+        if (!sink.compareAndSet(null, msgSub)) {
+            EventSubscriber old = sink.get();
+            if (old != msgSub) {
+                throw new AssertionError(
+                        "Error: A mailbox can not be shared by two consumers.  New = "
+                                + msgSub + ", Old = " + old);
+            }
+        }
+    }
+
+    @Override
+    public void removeMsgAvailableListener(EventSubscriber msgSub) {
+        sink.compareAndSet(msgSub, null);
+    }
+
+    @Override
+    public int size() {
+        return count(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean hasMessage() {
+        return count(1) > 0;
+    }
+
+    @Override
+    public boolean hasSpace() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "id:" + System.identityHashCode(this) + " " + "numMsgs:" + size();
+    }
+
+    // Implementation of PauseReason
+    @Override
+    public boolean isValid(Task t) {
+        return t == sink.get() && !t.taskTimer.isExpired();
+    }
+
+    static final class Node<T> {
+        T                   msg;
+        volatile Node<T>    next;
+
+        Node(T m) {
+            msg = m;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+import java.util.Collection;
+
+/**
+ * The common part of the mailboxes that keep their messages in a ring of primitives
+ * ({@link IntMailbox}, {@link LongMailbox}). This class does the ring bookkeeping and implements
+ * the Mailbox API, boxing and unboxing one message at a time, so that these mailboxes work
+ * wherever a Mailbox does (Mailbox.select in particular). The subclasses add the unboxed
+ * put/get methods, which are the reason for their existence.
+ * <p>
+ * The semantics are those of Mailbox: any number of producers, a single consumer, an optional
+ * bound, and the same events; the fields below are guarded by the monitor.
+ */
+abstract class PrimitiveMailbox<T> extends Mailbox<T> {
+    int       icons   = 0; // consumer index
+    int       iprod   = 0; // producer index
+    int       numMsgs = 0;
+    final int maxMsgs;
+
+    PrimitiveMailbox(int initialSize, int maxSize) {
+        super(0, 0); // Mailbox's own array goes unused
+        if (initialSize > maxSize)
+            throw new IllegalArgumentException("initialSize: " + initialSize
+                    + " cannot exceed maxSize: " + maxSize);
+        maxMsgs = maxSize;
+    }
+
+    /** @return the length of the ring */
+    abstract int capacity();
+
+    /** Replace the ring with one of newCap slots, holding the messages from index 0 on. */
+    abstract void resize(int newCap);
+
+    abstract T boxAt(int i);
+
+    abstract void unboxTo(int i, T msg);
+
+    abstract void copySlot(int from, int to);
+
+    /**
+     * Make room for up to k more messages, growing the ring if needed. Called with the monitor held.
+     * @return how many of the k fit.
+     */
+    final int reserve(int k) {
+        int n = numMsgs;
+        k = Math.min(k, maxMsgs - n);
+        int cap = capacity();
+        if (n + k > cap) {
+            resize(Math.min(Math.max(cap * 2, n + k), maxMsgs));
+            icons = 0;
+            iprod = n;
+        }
+        return k;
+    }
+
+    /**
+     * Account for k (> 0) messages stored from iprod on. Called with the monitor held.
+     * @return the consumer to notify, if any.
+     */
+    final EventSubscriber added(int k) {
+        iprod = (iprod + k) % capacity();
+        numMsgs += k;
+        EventSubscriber subscriber = sink;
+        sink = null;
+        return subscriber;
+    }
+
+    /**
+     * Account for k (> 0) messages taken from icons on. Called with the monitor held.
+     * @return the producers to notify, if any.
+     */
+    final EventSubscriber[] removed(int k) {
+        icons = (icons + k) % capacity();
+        numMsgs -= k;
+        return pollProducers(k);
+    }
+
+    @Override
+    public T get(EventSubscriber eo) {
+        T msg = null;
+        EventSubscriber[] producers = null;
+        synchronized (this) {
+            if (numMsgs > 0) {
+                msg = boxAt(icons);
+                producers = removed(1);
+            } else {
+                addMsgAvailableListener(eo);
+            }
+        }
+        notifySpaceAvailable(producers);
+        return msg;
+    }
+
+    @Override
+    public boolean put(T msg, EventSubscriber eo) {
+        EventSubscriber subscriber = null;
+        boolean ret;
+        synchronized (this) {
+            if (msg == null) {
+                throw new NullPointerException("Null message supplied to put");
+            }
+            ret = reserve(1) == 1;
+            if (ret) {
+                unboxTo(iprod, msg);
+                subscriber = added(1);
+            } else if (eo != null) {
+                srcs.add(eo);
+            }
+        }
+        if (ret) {
+            messageAdded(subscriber);
+        }
+        return ret;
+    }
+
+    @Override
+    public int get(T[] dst, int off, int len, EventSubscriber eo) {
+        EventSubscriber[] producers = null;
+        int k;
+        synchronized (this) {
+            k = Math.min(numMsgs, len);
+            if (k > 0) {
+                int cap = capacity();
+                for (int i = 0; i < k; i++) {
+                    dst[off + i] = boxAt((icons + i) % cap);
+                }
+                producers = removed(k);
+            } else if (len > 0) {
+                addMsgAvailableListener(eo);
+            }
+        }
+        notifySpaceAvailable(producers);
+        return k;
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> c, int max) {
+        EventSubscriber[] producers = null;
+        int k;
+        synchronized (this) {
+            k = Math.min(numMsgs, max);
+            if (k > 0) {
+                int cap = capacity();
+                for (int i = 0; i < k; i++) {
+                    c.add(boxAt((icons + i) % cap));
+                }
+                producers = removed(k);
+            }
+        }
+        notifySpaceAvailable(producers);
+        return k;
+    }
+
+    @Override
+    public int put(T[] src, int off, int len, EventSubscriber eo) {
+        EventSubscriber subscriber = null;
+        int k;
+        synchronized (this) {
+            for (int i = off; i < off + len; i++) {
+                if (src[i] == null) {
+                    throw new NullPointerException("Null message supplied to put");
+                }
+            }
+            k = reserve(len);
+            if (k > 0) {
+                int cap = capacity();
+                for (int i = 0; i < k; i++) {
+                    unboxTo((iprod + i) % cap, src[off + i]);
+                }
+                subscriber = added(k);
+            }
+            if (k < len && eo != null) {
+                srcs.add(eo);
+            }
+        }
+        if (k > 0) {
+            messageAdded(subscriber);
+        }
+        return k;
+    }
+
+    @Override
+    public synchronized boolean hasMessage(Task eo) {
+        if (numMsgs > 0) {
+            return true;
+        }
+        addMsgAvailableListener(eo);
+        return false;
+    }
+
+    @Override
+    public synchronized boolean hasMessages(int num, Task eo) {
+        if (numMsgs >= num) {
+            return true;
+        }
+        addMsgAvailableListener(eo);
+        return false;
+    }
+
+    @Override
+    public synchronized T peek(int idx) {
+        assert idx >= 0 : "negative index";
+        return idx < numMsgs ? boxAt((icons + idx) % capacity()) : null;
+    }
+
+    @Override
+    public synchronized T remove(int idx) {
+        assert idx >= 0 : "negative index";
+        if (idx >= numMsgs) {
+            throw new IllegalStateException();
+        }
+        int cap = capacity();
+        int ic = icons;
+        T msg = boxAt((ic + idx) % cap);
+        for (int i = idx; i > 0; i--) {
+            copySlot((ic + i - 1) % cap, (ic + i) % cap);
+        }
+        icons = (ic + 1) % cap;
+        numMsgs--;
+        return msg;
+    }
+
+    @Override
+    public synchronized Object[] messages() {
+        Object[] result = new Object[numMsgs];
+        int cap = capacity();
+        for (int i = 0; i < numMsgs; i++) {
+            result[i] = boxAt((icons + i) % cap);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized int size() {
+        return numMsgs;
+    }
+
+    @Override
+    public synchronized boolean hasMessage() {
+        return numMsgs > 0;
+    }
+
+    @Override
+    public synchronized boolean hasSpace() {
+        return maxMsgs - numMsgs > 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "id:" + System.identityHashCode(this) + " " + "numMsgs:" + numMsgs;
+    }
+}
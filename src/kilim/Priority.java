@@ -0,0 +1,56 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+/**
+ * The scheduling lane of a task; see {@link Task#setPriority(Priority)}. Each lane is a FIFO of its
+ * own, and a worker takes from the lanes in weighted round-robin order (see {@link LaneQueue}), so
+ * that a CRITICAL task overtakes a backlog of NORMAL and BULK ones, while BULK tasks still get their
+ * share of the workers however busy the other lanes are.
+ * <p>
+ * The weights are the most tasks taken from a lane in one round while the other lanes have tasks
+ * waiting. Set the system property <code>kilim.Scheduler.laneWeights</code> to three comma-separated
+ * numbers, for CRITICAL, NORMAL and BULK, to change them; the default is <code>16,8,1</code>.
+ */
+public enum Priority {
+    /** Latency-sensitive work: heartbeats, admin requests, timeouts. */
+    CRITICAL,
+    /** The default. */
+    NORMAL,
+    /** Throughput work that can wait: batch jobs, background maintenance. */
+    BULK;
+
+    static final Priority[] lanes = values();
+
+    static final int[] defaultWeights = parseWeights(System.getProperty("kilim.Scheduler.laneWeights"),
+            new int[] {16, 8, 1});
+
+    /**
+     * @return one weight per lane, read from s ("16,8,1"), or dflt if s is null or malformed.
+     */
+    public static int[] parseWeights(String s, int[] dflt) {
+        if (s == null) {
+            return dflt;
+        }
+        String[] parts = s.split(",");
+        if (parts.length != lanes.length) {
+            return dflt;
+        }
+        int[] ret = new int[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                ret[i] = Integer.parseInt(parts[i].trim());
+                if (ret[i] < 1) {
+                    return dflt;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return dflt;
+        }
+        return ret;
+    }
+}
@@ -7,26 +7,65 @@
 package kilim;
 
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
 import zhmt.dawn.NonpausableTask;
 
 /** 
  * This is a basic FIFO Executor. It maintains a list of
- * runnable tasks and hands them out to WorkerThreads. Note that
+ * runnable tasks and hands them out to WorkerThreads. The list is split into
+ * lanes by {@link Priority}, each FIFO, which workers take from in weighted
+ * round-robin order (see {@link LaneQueue}). Note that
  * we don't maintain a list of all tasks, but we will at some point
  * when we introduce monitoring/watchdog services. 
  * Paused tasks are not GC'd because their PauseReasons ought to be 
  * registered with some other live object.
- * 
+ * <p>
+ * Besides tasks, the scheduler runs plain callbacks ({@link NonpausableTask}), which need
+ * neither a fiber nor a trip through Task._runExecute; see {@link #schedule(NonpausableTask)}.
  */
 public class Scheduler {
     public static volatile Scheduler defaultScheduler = null;
     public static int defaultNumberThreads;
+    public static boolean defaultWorkStealing;
+    public static boolean defaultDeadlines;
+    public static IdleStrategy defaultIdleStrategy;
     
     public LinkedList<WorkerThread> allThreads = new LinkedList<WorkerThread>();
-    public RingQueue<WorkerThread> waitingThreads = new RingQueue<WorkerThread>(10);
+    /**
+     * The workers parked for want of tasks; they replace the old waitingThreads queue. Wake one
+     * with {@link #wakeIdleWorker()}.
+     */
+    public final IdleWorkerStack idleWorkers = new IdleWorkerStack();
+    protected IdleStrategy idleStrategy = defaultIdleStrategy;
     protected volatile boolean shutdown = false;
-    public RingQueue<Task> runnableTasks = new RingQueue<Task>(100);
+    /**
+     * The runnable tasks, one FIFO lane per priority. It used to be a RingQueue&lt;Task&gt;, and
+     * keeps its put, get, size, contains and reset methods.
+     */
+    public LaneQueue runnableTasks = new LaneQueue(100);
+    private int nextWorker;
+
+    /**
+     * The most callbacks a worker runs in one go, before it looks at its tasks again.
+     */
+    public static int callbackBatch = Integer.getInteger("kilim.Scheduler.callbackBatch", 64);
+
+    /**
+     * Callbacks scheduled by threads other than this scheduler's workers.
+     */
+    protected final ConcurrentLinkedQueue<NonpausableTask> callbacks = new ConcurrentLinkedQueue<NonpausableTask>();
+
+    /**
+     * The time slice of new schedulers, in milliseconds, from the system property
+     * <code>kilim.Scheduler.timeSlice</code>; 0 (the default) for none. See {@link #setTimeSlice(long)}.
+     */
+    public static long defaultTimeSlice = Long.getLong("kilim.Scheduler.timeSlice", 0);
+
+    protected volatile long timeSlice;
+    /** Started by setTimeSlice; guarded by allThreads. */
+    TimeSlicer timeSlicer;
 
     static {
         String s = System.getProperty("kilim.Scheduler.numThreads");
@@ -38,28 +77,60 @@ public class Scheduler {
         if (defaultNumberThreads == 0) {
             defaultNumberThreads = Runtime.getRuntime().availableProcessors();
         }
+        defaultWorkStealing = Boolean.getBoolean("kilim.Scheduler.workStealing");
+        defaultDeadlines = Boolean.getBoolean("kilim.Scheduler.deadlines");
+        defaultIdleStrategy = IdleStrategy.parse(System.getProperty("kilim.Scheduler.idleStrategy"),
+                IdleStrategy.PARK);
     }
     protected Scheduler() {}
     
     public Scheduler(int numThreads) {
+        this(numThreads, defaultIdleStrategy);
+    }
+    
+    public Scheduler(int numThreads, IdleStrategy idleStrategy) {
+        this.idleStrategy = idleStrategy;
         for (int i = 0; i < numThreads; i++) {
             WorkerThread wt = new WorkerThread(this);
             allThreads.add(wt);
-            addWaitingThread(wt);
             wt.start();
         }
+        setTimeSlice(defaultTimeSlice);
     }
-    
-    void addWaitingThread(WorkerThread wt) {
-      synchronized (waitingThreads) {
-        waitingThreads.put(wt);
-      }
+
+    /**
+     * Ask a task that has had its worker thread for between one and two time slices to yield, so
+     * that a long computation does not hold up the other tasks queued for that thread. Only loops in
+     * code woven with kilim.analysis.MethodWeaver#preemptLoops set (the weaver's -y option) check for
+     * the request; other code runs on until it pauses, as before. As a worker services its timers
+     * between tasks, this also bounds how late they fire while it is busy.
+     * @param millis the time slice; 0 to turn preemption off.
+     */
+    public void setTimeSlice(long millis) {
+        synchronized (allThreads) {
+            timeSlice = millis;
+            if (millis > 0 && timeSlicer == null) {
+                timeSlicer = new TimeSlicer(this);
+                timeSlicer.start();
+            }
+        }
+    }
+
+    public long getTimeSlice() {
+        return timeSlice;
     }
     
-    WorkerThread getWaitingThread() {
-      synchronized(waitingThreads) {
-        return waitingThreads.get();
-      }
+    /**
+     * Unpark a worker that is waiting for something to do, if there is one. For subclasses that
+     * queue tasks themselves, as they used to take a worker off waitingThreads.
+     */
+    protected void wakeIdleWorker() {
+        if (!idleWorkers.isEmpty()) {
+            WorkerThread wt = idleWorkers.pop();
+            if (wt != null) {
+                LockSupport.unpark(wt);
+            }
+        }
     }
 
     /**
@@ -67,17 +138,34 @@ public class Scheduler {
      * it is not scheduled when it is runnable.
      */
     public void schedule(Task t) {
-        WorkerThread wt = null;
-        
+        assert t.state == Task.SCHEDULED :  "Task " + t + " scheduled even though it is not in the SCHEDULED state";
+        WorkerThread prefThread = t.preferredResumeThread;
+        if (prefThread != null) {
+            // Straight to the thread it is pinned or bound to; see loadNextTask.
+            prefThread.addRunnableTask(t);
+            return;
+        }
         synchronized(this) {
-            assert t.running == true :  "Task " + t + " scheduled even though running is false";
             runnableTasks.put(t);
         }
-        wt = getWaitingThread();
-        if (wt != null) {
-            synchronized(wt) {
-                wt.notify(); //TODO: Move to workerthread, because wait has moved.
+        wakeIdleWorker();
+    }
+
+    /**
+     * Hands out this scheduler's worker threads in round-robin order, for spreading tasks bound
+     * to a thread (see {@link Task#bindToThread(WorkerThread)}) evenly.
+     * @return a worker thread, or null if this scheduler has none of its own.
+     */
+    public WorkerThread nextWorker() {
+        synchronized (allThreads) {
+            int n = allThreads.size();
+            if (n == 0) {
+                return null;
+            }
+            if (nextWorker >= n) {
+                nextWorker = 0;
             }
+            return allThreads.get(nextWorker++);
         }
     }
     
@@ -87,9 +175,7 @@ public class Scheduler {
             defaultScheduler = null;
         }
         for (WorkerThread wt: allThreads) {
-            synchronized(wt) {
-                wt.notify();
-            }
+            LockSupport.unpark(wt);
         }
     }
     
@@ -114,7 +200,7 @@ public class Scheduler {
 
                 t = runnableTasks.get();
                 if (t == null) {
-                  // WorkerThread will add itself to waitingThreads in WorkerThread.getNextTask()
+                  // WorkerThread will idle in WorkerThread.getNextTask()
                   break;
                 } else {
                     prefThread = t.preferredResumeThread;
@@ -123,11 +209,8 @@ public class Scheduler {
                       break; // Supplied worker thread has work to do
                     } else {
                       // The task states a preferred thread which is not the supplied worker thread
-                      // Enqueue it and continue searching.
+                      // Enqueue it (which unparks that thread) and continue searching.
                       prefThread.addRunnableTask(t);
-                      synchronized(prefThread) {
-                        prefThread.notify();
-                      }
                     }
                 }
             }
@@ -135,9 +218,28 @@ public class Scheduler {
         }
     }
 
+    /**
+     * @return the number of runnable tasks of priority p waiting for a worker, in the shared queue
+     *         and in the workers' own queues. A snapshot, for monitoring.
+     */
+    public int getQueueDepth(Priority p) {
+        int n;
+        synchronized (this) {
+            n = runnableTasks.size(p);
+        }
+        synchronized (allThreads) {
+            for (WorkerThread wt : allThreads) {
+                n += wt.queueDepth(p);
+            }
+        }
+        return n;
+    }
+
     public synchronized static Scheduler getDefaultScheduler() {
         if (defaultScheduler == null) {
-            defaultScheduler = new Scheduler(defaultNumberThreads);
+            defaultScheduler = defaultDeadlines ? new DeadlineScheduler(defaultNumberThreads)
+                    : defaultWorkStealing ? new WorkStealingScheduler(defaultNumberThreads)
+                    : new Scheduler(defaultNumberThreads);
         }
         return defaultScheduler;
     }
@@ -167,7 +269,44 @@ public class Scheduler {
     }
     */
 
-	public void schedule(NonpausableTask nonpausableTask) {
-		
-	}
+    /**
+     * Run a callback on one of this scheduler's worker threads. Workers run callbacks in batches of
+     * up to {@link #callbackBatch}, between tasks and before going idle. A callback scheduled by one
+     * of this scheduler's own workers runs on that worker, and is queued without synchronization;
+     * any other thread hands it over through a lock-free queue and wakes up an idle worker.
+     * <p>
+     * This is the lane for cross-thread completions and timer expiries (see
+     * {@link NonpausableTask#start(long)}), whose work is typically just to resume a task.
+     */
+    public void schedule(NonpausableTask callback) {
+        Thread cur = Thread.currentThread();
+        if (cur instanceof WorkerThread && ((WorkerThread) cur).scheduler == this) {
+            ((WorkerThread) cur).callbacks.put(callback);
+            return;
+        }
+        callbacks.offer(callback);
+        wakeIdleWorker();
+    }
+
+    /**
+     * Run up to max of the callbacks scheduled by other threads.
+     * @return the number of callbacks run.
+     */
+    protected int runCallbacks(int max) {
+        int n = 0;
+        NonpausableTask c;
+        while (n < max && (c = callbacks.poll()) != null) {
+            runCallback(c);
+            n++;
+        }
+        return n;
+    }
+
+    static void runCallback(NonpausableTask c) {
+        try {
+            c.execute();
+        } catch (Throwable th) {
+            th.printStackTrace();
+        }
+    }
 }
@@ -0,0 +1,21 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+/**
+ * Thrown where a task paused, when it resumes, if a {@link DeadlineScheduler} shed it after it had
+ * started running (see {@link DeadlineScheduler.Shedder}), so that its catch and finally blocks get
+ * to release what it holds. A task that lets it propagate exits with {@link DeadlineScheduler#SHED}
+ * as its result.
+ */
+public class ShedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ShedException() {
+        super(DeadlineScheduler.SHED, null, false, false); // no stack trace; it is not an error
+    }
+}
@@ -0,0 +1,426 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A drop-in replacement for {@link Mailbox} for the strict pipeline case: one producer, one
+ * consumer, and no monitor on any path.
+ * <p>
+ * Messages are kept in a pre-allocated ring whose size is a power of two. The producer owns the
+ * tail index and the consumer the head index; each keeps a cached copy of the other's index and
+ * reads the real one only when the cache says the ring is full (producer) or empty (consumer). A
+ * put() is then a plain store into the ring and a store of the tail, a get() a load from the ring
+ * and a store of the head. The index stores are volatile rather than lazySet: a side that is about
+ * to pause registers itself and then re-reads the other side's index, and only a full barrier
+ * between a store of the index and the read of the waiter keeps both sides from missing each
+ * other. Batched puts and gets move any number of messages for one such store.
+ * <p>
+ * The ring is bounded; put() pauses (putb() blocks, putnb() fails) while it is full. The
+ * maxSize of Mailbox is the capacity here. Using a channel from two producers or two consumers
+ * corrupts it; use {@link MpscMailbox} or {@link Mailbox} for that.
+ */
+public class SpscChannel<T> extends Mailbox<T> {
+    private final Object[]                          ring;
+    private final int                               mask;
+    /** next slot to read; written by the consumer only */
+    private final AtomicLong                        head     = new AtomicLong();
+    /** next slot to write; written by the producer only */
+    private final AtomicLong                        tail     = new AtomicLong();
+    private long                                    headCache;                                    // producer only
+    private long                                    tailCache;                                    // consumer only, never behind head
+    /** the consumer, if waiting for a message */
+    private final AtomicReference<EventSubscriber> sink     = new AtomicReference<EventSubscriber>();
+    /** the producer, if waiting for space */
+    private final AtomicReference<EventSubscriber> producer = new AtomicReference<EventSubscriber>();
+
+    public SpscChannel() {
+        this(1024);
+    }
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public SpscChannel(int capacity) {
+        super(1);
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        ring = new Object[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return ring.length;
+    }
+
+    /**
+     * Non-blocking, nonpausing get.
+     * @param eo. If non-null, registers this observer and calls it with a MessageAvailable event when
+     *  a put() is done.
+     * @return buffered message if there's one, or null
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(EventSubscriber eo) {
+        long h = head.get();
+        if (h == tailCache && !refreshTail(h, eo)) {
+            return null;
+        }
+        int i = (int) h & mask;
+        T msg = (T) ring[i];
+        ring[i] = null;
+        consumed(h + 1);
+        return msg;
+    }
+
+    /**
+     * Called by the consumer when its cached tail says the ring is empty.
+     * @return true if there is a message after all.
+     */
+    private boolean refreshTail(long h, EventSubscriber eo) {
+        if (h != (tailCache = tail.get())) {
+            return true;
+        }
+        if (eo == null) {
+            return false;
+        }
+        addMsgAvailableListener(eo);
+        // The producer may have stored a message before it could see eo in the sink.
+        if (h != (tailCache = tail.get())) {
+            sink.compareAndSet(eo, null);
+            return true;
+        }
+        return false;
+    }
+
+    private void consumed(long h) {
+        head.set(h); // volatile store; must precede the read of producer below.
+        EventSubscriber p = producer.get();
+        if (p != null && producer.compareAndSet(p, null)) {
+            p.onEvent(this, spaceAvailble);
+        }
+    }
+
+    /**
+     * Retrieve a message, blocking the thread for at most timeoutMillis (0 for no limit). As in
+     * {@link MpscMailbox#getb(long)}, a message-available event may be spurious here, so this waits
+     * again instead of returning null early.
+     * @return null if timed out.
+     */
+    @Override
+    public T getb(final long timeoutMillis) {
+        boolean infiniteWait = timeoutMillis == 0;
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            BlockingSubscriber evs = new BlockingSubscriber();
+            T msg = get(evs);
+            if (msg != null) {
+                return msg;
+            }
+            long remaining = end - System.currentTimeMillis();
+            if (!infiniteWait && remaining <= 0) {
+                removeMsgAvailableListener(evs);
+                return null;
+            }
+            evs.blockingWait(infiniteWait ? 0 : remaining);
+            removeMsgAvailableListener(evs);
+        }
+    }
+
+    /**
+     * Put a message, blocking the thread for at most timeoutMillis (0 for no limit) while the ring
+     * is full. The message is dropped if it times out.
+     */
+    @Override
+    public void putb(T msg, final long timeoutMillis) {
+        boolean infiniteWait = timeoutMillis == 0;
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            BlockingSubscriber evs = new BlockingSubscriber();
+            if (put(msg, evs)) {
+                return;
+            }
+            long remaining = end - System.currentTimeMillis();
+            if (!infiniteWait && remaining <= 0) {
+                removeSpaceAvailableListener(evs);
+                return;
+            }
+            evs.blockingWait(infiniteWait ? 0 : remaining);
+            removeSpaceAvailableListener(evs);
+        }
+    }
+
+    /**
+     * Non-blocking, nonpausing put.
+     * @param eo. If non-null, registers this observer and calls it with a SpaceAvailable event when
+     *  there's space.
+     * @return false if the ring is full.
+     */
+    @Override
+    public boolean put(T msg, EventSubscriber eo) {
+        if (msg == null) {
+            throw new NullPointerException("Null message supplied to put");
+        }
+        long t = tail.get();
+        if (t - headCache >= ring.length && !refreshHead(t, eo)) {
+            return false;
+        }
+        ring[(int) t & mask] = msg;
+        produced(t + 1);
+        return true;
+    }
+
+    /**
+     * Called by the producer when its cached head says the ring is full.
+     * @return true if there is room after all.
+     */
+    private boolean refreshHead(long t, EventSubscriber eo) {
+        if (t - (headCache = head.get()) < ring.length) {
+            return true;
+        }
+        if (eo == null) {
+            return false;
+        }
+        addSpaceAvailableListener(eo);
+        // The consumer may have taken a message before it could see eo.
+        if (t - (headCache = head.get()) < ring.length) {
+            producer.compareAndSet(eo, null);
+            return true;
+        }
+        return false;
+    }
+
+    private void produced(long t) {
+        tail.set(t); // volatile store; must precede the read of sink below.
+        EventSubscriber subscriber = sink.get();
+        if (subscriber != null && !sink.compareAndSet(subscriber, null)) {
+            subscriber = null; // taken back by the consumer
+        }
+        messageAdded(subscriber);
+    }
+
+    /**
+     * Non-blocking, nonpausing bulk get. Moves up to len messages into dst for a single store of
+     * the head.
+     * @param eo. If non-null (and if there is no message), registers this observer.
+     * @return the number of messages moved
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public int get(T[] dst, int off, int len, EventSubscriber eo) {
+        if (len == 0) {
+            return 0;
+        }
+        long h = head.get();
+        if (h == tailCache && !refreshTail(h, eo)) {
+            return 0;
+        }
+        int k = (int) Math.min(len, tailCache - h);
+        int i = (int) h & mask;
+        int first = Math.min(k, ring.length - i);
+        System.arraycopy(ring, i, dst, off, first);
+        Arrays.fill(ring, i, i + first, null);
+        if (k > first) {
+            System.arraycopy(ring, 0, dst, off + first, k - first);
+            Arrays.fill(ring, 0, k - first, null);
+        }
+        consumed(h + k);
+        return k;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super T> c, int max) {
+        long h = head.get();
+        long t = tailCache = tail.get();
+        int k = (int) Math.min(max, t - h);
+        if (k <= 0) {
+            return 0;
+        }
+        for (int j = 0; j < k; j++) {
+            int i = (int) (h + j) & mask;
+            c.add((T) ring[i]);
+            ring[i] = null;
+        }
+        consumed(h + k);
+        return k;
+    }
+
+    /**
+     * Non-blocking, nonpausing bulk put. Adds as many of the len messages as fit for a single store
+     * of the tail, and notifies the consumer once.
+     * @param eo. If non-null and not all the messages fit, registers this observer and calls it with
+     *  a SpaceAvailable event when there's space.
+     * @return the number of messages added.
+     */
+    @Override
+    public int put(T[] src, int off, int len, EventSubscriber eo) {
+        for (int i = off; i < off + len; i++) {
+            if (src[i] == null) {
+                throw new NullPointerException("Null message supplied to put");
+            }
+        }
+        long t = tail.get();
+        if (t + len - headCache > ring.length) {
+            headCache = head.get();
+        }
+        int k = (int) Math.min(len, ring.length - (t - headCache));
+        if (k == 0) {
+            if (len == 0 || !refreshHead(t, eo)) {
+                return 0;
+            }
+            k = (int) Math.min(len, ring.length - (t - headCache));
+        }
+        int i = (int) t & mask;
+        int first = Math.min(k, ring.length - i);
+        System.arraycopy(src, off, ring, i, first);
+        System.arraycopy(src, off + first, ring, 0, k - first);
+        produced(t + k);
+        if (k < len && eo != null) {
+            refreshHead(t + k, eo);
+        }
+        return k;
+    }
+
+    @Override
+    public boolean hasMessage(Task eo) {
+        if (hasMessage()) {
+            return true;
+        }
+        addMsgAvailableListener(eo);
+        if (hasMessage()) {
+            sink.compareAndSet(eo, null);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean hasMessages(int num, Task eo) {
+        if (size() >= num) {
+            return true;
+        }
+        addMsgAvailableListener(eo);
+        if (size() >= num) {
+            sink.compareAndSet(eo, null);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T peek(int idx) {
+        assert idx >= 0 : "negative index";
+        long h = head.get();
+        return idx < tail.get() - h ? (T) ring[(int) (h + idx) & mask] : null;
+    }
+
+    /**
+     * Remove the message at idx. For the consumer only: the messages before idx are shifted up by
+     * one, which touches no slot the producer may be writing.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T remove(int idx) {
+        assert idx >= 0 : "negative index";
+        long h = head.get();
+        if (idx >= (tailCache = tail.get()) - h) {
+            throw new IllegalStateException();
+        }
+        T msg = (T) ring[(int) (h + idx) & mask];
+        for (int i = idx; i > 0; i--) {
+            ring[(int) (h + i) & mask] = ring[(int) (h + i - 1) & mask];
+        }
+        ring[(int) h & mask] = null;
+        consumed(h + 1);
+        return msg;
+    }
+
+    @Override
+    public Object[] messages() {
+        long h = head.get();
+        int n = (int) (tail.get() - h);
+        Object[] ret = new Object[n];
+        for (int i = 0; i < n; i++) {
+            ret[i] = ring[(int) (h + i) & mask];
+        }
+        return ret;
+    }
+
+    @Override
+    public void addSpaceAvailableListener(EventSubscriber spcSub) {
+        if (!producer.compareAndSet(null, spcSub)) {
+            EventSubscriber old = producer.get();
+            if (old != spcSub) {
+                throw new AssertionError(
+                        "Error: An SpscChannel can not be shared by two producers.  New = "
+                                + spcSub + ", Old = " + old);
+            }
+        }
+    }
+
+    @Override
+    public void removeSpaceAvailableListener(EventSubscriber spcSub) {
+        producer.compareAndSet(spcSub, null);
+    }
+
+    @Override
+    public void addMsgAvailableListener(EventSubscriber msgSub) {
+        if (msgSub == null) {
+            return;
+        }
+        if (!sink.compareAndSet(null, msgSub)) {
+            EventSubscriber old = sink.get();
+            if (old != msgSub) {
+                throw new AssertionError(
+                        "Error: A mailbox can not be shared by two consumers.  New = "
+                                + msgSub + ", Old = " + old);
+            }
+        }
+    }
+
+    @Override
+    public void removeMsgAvailableListener(EventSubscriber msgSub) {
+        sink.compareAndSet(msgSub, null);
+    }
+
+    @Override
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    @Override
+    public boolean hasMessage() {
+        return tail.get() != head.get();
+    }
+
+    @Override
+    public boolean hasSpace() {
+        return tail.get() - head.get() < ring.length;
+    }
+
+    @Override
+    public String toString() {
+        return "id:" + System.identityHashCode(this) + " " + "numMsgs:" + size();
+    }
+
+    // Implementation of PauseReason
+    @Override
+    public boolean isValid(Task t) {
+        return (t == sink.get() || t == producer.get()) && !t.taskTimer.isExpired();
+    }
+}
@@ -12,19 +12,45 @@ package kilim;
  * look like this:
  * <pre>
  * public final class kilim.S_O2I3 extends kilim.State{
+ *   public static final int POOL_ID = kilim.StatePool.register(kilim.S_O2I3.class);
  *   public java.lang.Object f0, f1;
  *   public int f2, f3, f4;
- *   public kilim.S_O2I3();
+ *   public kilim.S_O2I3() { super(POOL_ID); }
+ *   public void clearRefs() { self = null; f0 = null; f1 = null; }
  * }
  * </pre>
  * This customized class contains slots for two objects and three
  * integers (its name is indicative of this aspect) and is used
  * as a canonical class to store any activation frame that needs
  * to store two objects and three ints.
- *  
+ * <p>
+ * Generated state classes are also registered with {@link StatePool}, so that classes
+ * woven with pooling enabled can recycle them instead of allocating one per pause.
  */
 
 public class State {
     public int pc;
     public Object self;
+
+    /**
+     * Index of this state's class in a {@link StatePool}; 0 if the class is not pooled.
+     * Generated state classes register themselves with StatePool when loaded.
+     */
+    public final int poolId;
+
+    public State() {
+        this(0);
+    }
+
+    protected State(int poolId) {
+        this.poolId = poolId;
+    }
+
+    /**
+     * Called before the state is returned to a pool, so that it doesn't keep the values of a
+     * finished activation frame alive. Generated state classes also null their object fields.
+     */
+    public void clearRefs() {
+        self = null;
+    }
 }
@@ -0,0 +1,113 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Free lists of State objects, one per generated State class. Each WorkerThread owns a pool,
+ * which the fibers it runs use without synchronization.
+ * <p>
+ * Only code woven with state pooling enabled (<code>kilim.tools.Weaver -p</code>) uses the
+ * pool: instead of allocating a new State on every pause, the generated code asks the fiber
+ * for a recycled one ({@link Fiber#allocState(int)}), and hands it back once it has restored
+ * the frame from it ({@link Fiber#releaseState(State)}).
+ */
+public class StatePool {
+    /**
+     * The most free states kept per State class.
+     */
+    public static int                     maxFreePerClass = Integer.getInteger("kilim.StatePool.maxFree", 256);
+
+    private static final ArrayList<Class<?>> classes = new ArrayList<Class<?>>();
+    static {
+        classes.add(State.class); // pool id 0 is not pooled.
+    }
+
+    private State[][] free    = new State[16][];
+    private int[]     numFree = new int[16];
+
+    /**
+     * Called by each generated State class when it is loaded.
+     * @return the pool id of the class.
+     */
+    public static synchronized int register(Class<? extends State> stateClass) {
+        classes.add(stateClass);
+        return classes.size() - 1;
+    }
+
+    /**
+     * @return a recycled instance of the State class registered as poolId, or null if there
+     *         is none.
+     */
+    public State get(int poolId) {
+        if (poolId < numFree.length) {
+            int n = numFree[poolId];
+            if (n > 0) {
+                State[] list = free[poolId];
+                State s = list[--n];
+                list[n] = null;
+                numFree[poolId] = n;
+                return s;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Recycle s, unless its class is not pooled or its free list is full.
+     */
+    public void put(State s) {
+        int id = s.poolId;
+        if (id == 0) {
+            return;
+        }
+        if (id >= numFree.length) {
+            int newLen = Math.max(id + 1, numFree.length * 2);
+            free = Arrays.copyOf(free, newLen);
+            numFree = Arrays.copyOf(numFree, newLen);
+        }
+        int n = numFree[id];
+        if (n >= maxFreePerClass) {
+            return;
+        }
+        State[] list = free[id];
+        if (list == null) {
+            list = free[id] = new State[Math.min(16, maxFreePerClass)];
+        } else if (n == list.length) {
+            list = free[id] = Arrays.copyOf(list, Math.min(n * 2, maxFreePerClass));
+        }
+        s.clearRefs();
+        list[n] = s;
+        numFree[id] = n + 1;
+    }
+
+    /**
+     * @return the number of free states in this pool.
+     */
+    public int size() {
+        int ret = 0;
+        for (int n : numFree) {
+            ret += n;
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("StatePool(");
+        synchronized (StatePool.class) {
+            for (int i = 1; i < numFree.length && i < classes.size(); i++) {
+                if (numFree[i] > 0) {
+                    sb.append(classes.get(i).getName()).append('=').append(numFree[i]).append(' ');
+                }
+            }
+        }
+        return sb.append(')').toString();
+    }
+}
@@ -9,9 +9,11 @@ package kilim;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import kilim.timerservice.Timer;
 
 /**
  * A base class for tasks. A task is a lightweight thread (it contains its 
@@ -42,15 +44,26 @@ public abstract class Task implements EventSubscriber {
      * @see kilim.PauseReason
      */
     protected PauseReason      pauseReason;
+
+    /** thrown by checkKill() when the task resumes; set before it is run, see killOnResume */
+    RuntimeException           killWith;
     
     /**
-     * running = true when it is put on the schdulers run Q (by Task.resume()). 
-     * The Task.runExecute() method is called at some point; 'running' remains 
-     * true until the end of runExecute (where it is reset), at which point a 
-     * fresh decision is made whether the task needs to continue running.
+     * The task's lifecycle, as one word so that resume() can claim the task with a single CAS
+     * instead of taking the task's monitor. Task.resume() moves an IDLE or PAUSED task to
+     * SCHEDULED and puts it on the scheduler's run Q. _runExecute() marks it RUNNING and, at the
+     * end, either DONE or PAUSED, at which point a fresh decision is made whether the task needs
+     * to continue running. resume() has no effect in the SCHEDULED, RUNNING and DONE states.
      */
-    protected boolean  running = false;
-    protected boolean  done = false;
+    volatile int               state;
+    static final int           IDLE      = 0;
+    static final int           SCHEDULED = 1;
+    static final int           RUNNING   = 2;
+    static final int           PAUSED    = 3;
+    static final int           DONE      = 4;
+
+    private static final AtomicIntegerFieldUpdater<Task> stateUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(Task.class, "state");
 
 
     /**
@@ -66,6 +79,24 @@ public abstract class Task implements EventSubscriber {
      */
     int numActivePins;
 
+    /**
+     * Set by {@link #bindToThread(WorkerThread)}; the task keeps its preferredResumeThread
+     * until it is done.
+     */
+    boolean boundToThread;
+
+    /**
+     * The scheduler lane this task is queued in when it becomes runnable.
+     * @see #setPriority(Priority)
+     */
+    Priority priority = Priority.NORMAL;
+
+    /**
+     * When this task ought to be done by, in ms (System.currentTimeMillis()); 0 for no deadline.
+     * @see #setDeadline(long)
+     */
+    long deadline;
+
 
 
 
@@ -78,24 +109,36 @@ public abstract class Task implements EventSubscriber {
      * The object responsible for handing this task to a thread
      * when the task is runnable. 
      */
-    protected Scheduler        scheduler;
+    protected volatile Scheduler scheduler;
     
 
     public    Object           exitResult = "OK";
 
-    // TODO: move into a separate timer service or into the schduler.
-    public final static Timer timer = new Timer(true);
+    /**
+     * The task's timeout, used by the timed variants of Task.sleep, Mailbox and Cell's get/put.
+     * Expiry resumes the task.
+     * @see kilim.timerservice.TimerService
+     */
+    public final Timer         taskTimer;
+
+    /**
+     * @deprecated kilim no longer uses it; timeouts go through each task's {@link #taskTimer}.
+     *             Kept for code outside kilim that schedules its own TimerTasks on it.
+     */
+    @Deprecated
+    public final static java.util.Timer timer = new java.util.Timer(true);
 
     public Task() {
         id = idSource.incrementAndGet();
         fiber = new Fiber(this);
+        taskTimer = new Timer(this);
     }
     
     public int id() {
         return id;
     }
 
-    public synchronized Task setScheduler(Scheduler s) {
+    public Task setScheduler(Scheduler s) {
 //        if (running) {
 //            throw new AssertionError("Attempt to change task's scheduler while it is running");
 //        }
@@ -103,9 +146,40 @@ public abstract class Task implements EventSubscriber {
         return this;
     }
     
-    public synchronized Scheduler getScheduler() {
+    public Scheduler getScheduler() {
       return scheduler;
     }
+
+    /**
+     * Choose the scheduler lane of this task (see {@link Priority}); NORMAL by default. Takes effect
+     * the next time the task is scheduled, so call it before start(), or from the task itself.
+     */
+    public Task setPriority(Priority p) {
+        if (p == null) {
+            throw new NullPointerException("Null priority");
+        }
+        priority = p;
+        return this;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Set the time, in ms (System.currentTimeMillis()), by which this task ought to be done; 0 for
+     * none. Only a {@link DeadlineScheduler} looks at it: it runs the task with the earliest deadline
+     * first, and may shed a task that comes up after its deadline. Takes effect the next time the
+     * task is scheduled.
+     */
+    public Task setDeadline(long deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
     
     public void resumeOnScheduler(Scheduler s) throws Pausable {
         if (scheduler == s) return; 
@@ -128,9 +202,10 @@ public abstract class Task implements EventSubscriber {
     }
     
     /**
-     * The generated code calls Fiber.upEx, which in turn calls
+     * Code woven by older versions of the weaver calls Fiber.upEx(), which in turn calls
      * this to find out out where the current method is w.r.t
-     * the closest _runExecute method. 
+     * the closest _runExecute method. Current weaving records the depth on method
+     * entry instead (see Fiber.upEx(int)). 
      * @return the number of stack frames above _runExecute(), not including
      * this method
      */
@@ -156,31 +231,43 @@ public abstract class Task implements EventSubscriber {
      * @return True if it scheduled itself.
      */
     public boolean resume() {
-        if (scheduler == null) return false;
+        Scheduler s = scheduler;
+        if (s == null) return false;
         
-        boolean doSchedule = false;
         // We don't check pauseReason while resuming (to verify whether
         // it is worth returning to a pause state. The code at the top of stack 
         // will be doing that anyway.
-        synchronized(this) {
-            if (done || running) return false;
-            running = doSchedule = true;
+        while (true) {
+            int st = state;
+            if (st != IDLE && st != PAUSED) return false; // already scheduled, running or done
+            if (stateUpdater.compareAndSet(this, st, SCHEDULED)) break;
         }
-        if (doSchedule) {
-            scheduler.schedule(this);
-        }
-        return doSchedule;
+        s.schedule(this);
+        return true;
+    }
+
+    /**
+     * @return true if the task is on a run queue or running, i.e. calls to resume() have no effect.
+     *         This is what the <code>running</code> field said before the task had a state word;
+     *         use {@link #isDone()} for <code>done</code>.
+     */
+    public boolean isRunning() {
+        int st = state;
+        return st == SCHEDULED || st == RUNNING;
     }
     
     public void informOnExit(Mailbox<ExitMsg> exit) {
-        if (isDone()) {
-            exit.putnb(new ExitMsg(this, exitResult));
-            return;
-        }
-        synchronized (this) {
-            if (exitMBs == null) exitMBs = new LinkedList<Mailbox<ExitMsg>>();
-            exitMBs.add(exit);
+        if (!isDone()) {
+            synchronized (this) {
+                // re-checked under the lock, which _runExecute takes to collect exitMBs once done.
+                if (!isDone()) {
+                    if (exitMBs == null) exitMBs = new LinkedList<Mailbox<ExitMsg>>();
+                    exitMBs.add(exit);
+                    return;
+                }
+            }
         }
+        exit.putnb(new ExitMsg(this, exitResult));
     }
     
     /**
@@ -328,14 +415,25 @@ public abstract class Task implements EventSubscriber {
      * doesn't hog the java thread.
      */
     public static void sleep(final long millis) throws Pausable {
-        // create a temp mailbox, and wait on it.
-        final Mailbox<Integer> sleepmb = new Mailbox<Integer>(1); // TODO: will need a better mechanism for monitoring later on.
-        timer.schedule(new TimerTask() {
-            public void run() {
-                sleepmb.putnb(0);
-            }
-        }, millis);
-        sleepmb.get(); // block until a message posted
+        Task t = getCurrentTask();
+        long end = System.currentTimeMillis() + millis;
+        // Loop, as the task may be resumed early by an unrelated event.
+        for (long left = millis; left > 0; left = end - System.currentTimeMillis()) {
+            t.taskTimer.setTimer(left);
+            pause(t.taskTimer);
+            t.taskTimer.cancel();
+        }
+    }
+
+    /**
+     * Run a blocking call on the default {@link BlockingPool}, pausing the task (but not its
+     * thread) until the call returns. Use for APIs with no non-blocking alternative, such as file
+     * I/O, DNS lookups or JDBC.
+     * @return c's result
+     * @throws Exception whatever c threw
+     */
+    public static <T> T blocking(Callable<T> c) throws Pausable, Exception {
+        return BlockingPool.getDefault().call(c);
     }
 
     /**
@@ -352,6 +450,25 @@ public abstract class Task implements EventSubscriber {
         f.task.checkKill();
     }
 
+    /**
+     * Called by the checks that the weaver inserts on loop back-edges, in code woven with
+     * kilim.analysis.MethodWeaver#preemptLoops set; the loop yields if this returns true.
+     * @return true if the current task has had its worker thread for a whole time slice
+     *         (see {@link Scheduler#setTimeSlice(long)}). Clears the request.
+     */
+    public static boolean preemptRequested() {
+        Thread t = Thread.currentThread();
+        if (t instanceof WorkerThread) {
+            WorkerThread wt = (WorkerThread) t;
+            if (wt.preempt) {
+                wt.preempt = false;
+                wt.numPreemptions++;
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Ask the current task to pause with a reason object, that is 
      * responsible for resuming the task when the reason (for pausing)
@@ -386,16 +503,14 @@ public abstract class Task implements EventSubscriber {
     }
 
     public String toString() {
-        return "" + id + "(running=" + running + ",pr=" + pauseReason+")";
+        return "" + id + "(running=" + isRunning() + ",pr=" + pauseReason+")";
     }
     
     public String dump() {
-        synchronized(this) {
-            return "" + id + 
-            "(running=" + running + 
-            ", pr=" + pauseReason +
-            ")";
-        }
+        return "" + id + 
+        "(running=" + isRunning() + 
+        ", pr=" + pauseReason +
+        ")";
     }
 
     public void pinToThread() {
@@ -406,6 +521,16 @@ public abstract class Task implements EventSubscriber {
         numActivePins--;
     }
 
+    /**
+     * Run this task on wt, and only wt, for the rest of its life, so that the data it works on
+     * stays in that thread's caches. Unlike {@link #pinToThread()}, this may be called before
+     * the task is started; wt must belong to the task's scheduler.
+     */
+    public void bindToThread(WorkerThread wt) {
+        boundToThread = true;
+        preferredResumeThread = wt;
+    }
+
 
     final protected void setPauseReason(PauseReason pr) {
         pauseReason = pr;
@@ -416,8 +541,8 @@ public abstract class Task implements EventSubscriber {
     }
 
     
-    public synchronized boolean isDone() {
-        return done;
+    public boolean isDone() {
+        return state == DONE;
     }
     
     /**
@@ -428,15 +553,20 @@ public abstract class Task implements EventSubscriber {
     public void _runExecute(WorkerThread thread) throws NotPausable {
         Fiber f = fiber;
         boolean isDone = false; 
+        state = RUNNING;
         try {
             currentThread = Thread.currentThread();
             assert (preferredResumeThread == null || preferredResumeThread == thread) : "Resumed " + id + " in incorrect thread. ";
+            f.statePool = (thread == null) ? null : thread.statePool;
             // start execute. fiber is wound to the beginning.
             execute(f.begin());
         
             // execute() done. Check fiber if it is pausing and reset it.
             isDone = f.end() || (pauseReason instanceof TaskDoneReason);
             assert (pauseReason == null && isDone) || (pauseReason != null && !isDone) : "pauseReason:" + pauseReason + ",isDone =" + isDone;
+        } catch (ShedException se) {
+            setPauseReason(new TaskDoneReason(DeadlineScheduler.SHED));
+            isDone = true;
         } catch (Throwable th) {
             th.printStackTrace();
             // Definitely done
@@ -445,24 +575,19 @@ public abstract class Task implements EventSubscriber {
         }
 
         if (isDone) {
-            done = true;
+            if (pauseReason instanceof TaskDoneReason) {
+                exitResult = ((TaskDoneReason)pauseReason).exitObj;
+            }
+            state = DONE; // after exitResult, for informOnExit
             // inform on exit
             if (numActivePins > 0) {
                 throw new AssertionError("Task ended but has active locks");
             }
-            if (exitMBs != null) {
-                if (pauseReason instanceof TaskDoneReason) {
-                    exitResult = ((TaskDoneReason)pauseReason).exitObj;
-                }
-                ExitMsg msg = new ExitMsg(this, exitResult);
-                for (Mailbox<ExitMsg> exitMB: exitMBs) {
-                    exitMB.putnb(msg);
-                }
-            }
+            notifyExit();
             preferredResumeThread = null;
         } else {
             if (thread != null) { // it is null for generators
-                if (numActivePins > 0) {
+                if (numActivePins > 0 || boundToThread) {
                     preferredResumeThread = thread;
                 } else {
                     assert numActivePins == 0: "numActivePins == " + numActivePins;
@@ -471,10 +596,8 @@ public abstract class Task implements EventSubscriber {
             }
             
             PauseReason pr = this.pauseReason;
-            synchronized (this) {
-                running = false;
-                currentThread = null;
-            }
+            currentThread = null;
+            state = PAUSED;
 
             // The task has been in "running" mode until now, and may have missed
             // notifications to the pauseReason object (that is, it would have
@@ -489,6 +612,33 @@ public abstract class Task implements EventSubscriber {
         }
     }
         
+    private void notifyExit() {
+        LinkedList<Mailbox<ExitMsg>> mbs;
+        synchronized (this) {
+            mbs = exitMBs;
+        }
+        if (mbs != null) {
+            ExitMsg msg = new ExitMsg(this, exitResult);
+            for (Mailbox<ExitMsg> exitMB: mbs) {
+                exitMB.putnb(msg);
+            }
+        }
+    }
+
+    /**
+     * End a scheduled task without running it again, as if it had exited with the given result.
+     * Called by whoever took the task off a run queue, instead of running it; see
+     * {@link DeadlineScheduler.Shedder}.
+     */
+    void abandon(Object result) {
+        assert state == SCHEDULED : "Abandoned task " + id + " is not scheduled";
+        assert !fiber.hasState() : "Abandoned task " + id + " has run";
+        exitResult = result;
+        state = DONE;
+        currentThread = null;
+        notifyExit();
+    }
+
     public ExitMsg joinb() {
         Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
         informOnExit(mb);
@@ -511,7 +661,25 @@ public abstract class Task implements EventSubscriber {
         return id;
     }
     
+    /**
+     * Called where a task pauses or yields, both on the way out and when it resumes there. On
+     * resumption, throws the exception set by {@link #killOnResume(RuntimeException)}, if any.
+     */
     public void checkKill() {
+        RuntimeException ex = killWith;
+        if (ex != null && !fiber.isPausing) {
+            killWith = null;
+            throw ex;
+        }
+    }
+
+    /**
+     * Make the task throw ex from the pause or yield it resumes from next, instead of returning.
+     * Called by whoever took the task off a run queue, before running it; see
+     * {@link DeadlineScheduler.Shedder}.
+     */
+    void killOnResume(RuntimeException ex) {
+        killWith = ex;
     }
 
 }
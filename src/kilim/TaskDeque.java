@@ -0,0 +1,105 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A lock-free run queue owned by a single WorkerThread of a {@link WorkStealingScheduler}.
+ * Only the owner thread may put(); any thread (the owner or a thief) may get().
+ * <p>
+ * Unlike a classic Chase-Lev deque, the owner takes from the same end as thieves, so tasks
+ * are run in FIFO order (as in ForkJoinPool's async mode). A LIFO owner would run a task that
+ * calls Task.yield() again immediately, which defeats the purpose of yielding.
+ * <p>
+ * put() costs a plain array store and an ordered (lazySet) store of the tail index; get() costs
+ * one CAS on the head index. Slots are not cleared after a get(), because the owner may have
+ * already reused the slot by the time the CAS succeeds; at most elements.length stale
+ * references are retained.
+ */
+public class TaskDeque {
+    private volatile Task[]     elements;
+    private final AtomicInteger head = new AtomicInteger(); // consumer index, advanced by CAS
+    private final AtomicInteger tail = new AtomicInteger(); // producer index, written by owner only
+
+    /**
+     * @param initialSize rounded up to a power of 2.
+     */
+    public TaskDeque(int initialSize) {
+        int n = 1;
+        while (n < initialSize) n <<= 1;
+        elements = new Task[n];
+    }
+
+    /**
+     * Append a task. Must only be called by the thread that owns this deque.
+     */
+    public void put(Task t) {
+        if (t == null) {
+            throw new NullPointerException("Null task supplied to put");
+        }
+        int tl = tail.get();
+        Task[] elems = elements;
+        if (tl - head.get() >= elems.length) {
+            elems = grow(elems, tl);
+        }
+        elems[tl & (elems.length - 1)] = t;
+        tail.lazySet(tl + 1); // publishes the slot written above
+    }
+
+    /**
+     * Remove the oldest task. Safe to call from any thread.
+     * @return the task, or null if the deque is empty.
+     */
+    public Task get() {
+        while (true) {
+            int hd = head.get();
+            int tl = tail.get();
+            if (hd - tl >= 0) {
+                return null;
+            }
+            Task[] elems = elements;
+            Task t = elems[hd & (elems.length - 1)];
+            if (head.compareAndSet(hd, hd + 1)) {
+                return t;
+            }
+            // lost the race with the owner or another thief; retry.
+        }
+    }
+
+    /**
+     * @return an estimate of the number of queued tasks.
+     */
+    public int size() {
+        int n = tail.get() - head.get();
+        return n < 0 ? 0 : n;
+    }
+
+    private Task[] grow(Task[] elems, int tl) {
+        int len = elems.length;
+        Task[] newElems = new Task[len * 2];
+        int newMask = newElems.length - 1;
+        // Copying a few slots that thieves consume concurrently is harmless; their
+        // indices are below head and will never be read again.
+        for (int i = head.get(); i - tl < 0; i++) {
+            newElems[i & newMask] = elems[i & (len - 1)];
+        }
+        elements = newElems;
+        return newElems;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        Task[] elems = elements;
+        int tl = tail.get();
+        for (int i = head.get(); i - tl < 0; i++) {
+            sb.append(elems[i & (elems.length - 1)]);
+        }
+        return sb.toString();
+    }
+}
@@ -13,19 +13,25 @@ public class TaskGroup extends Task {
     public List<ExitMsg> results = Collections.synchronizedList(new ArrayList<ExitMsg>());
 
     public void execute() throws Pausable {
-        while (!tasks.isEmpty() || addedTasksMB.hasMessage()) {
-            switch (Mailbox.select(addedTasksMB, exitmb)) {
-            case 0: 
-                Task t = addedTasksMB.getnb();
-                t.informOnExit(exitmb);
-                tasks.add(t);
-                break;
-            case 1: 
-                ExitMsg em = exitmb.getnb();
-                results.add(em);
-                tasks.remove(em.task);
-                break;
+        MailboxSelector sel = new MailboxSelector(addedTasksMB, exitmb);
+        try {
+            while (!tasks.isEmpty() || addedTasksMB.hasMessage()) {
+                switch (sel.select()) {
+                case 0: 
+                    Task t = addedTasksMB.getnb();
+                    t.informOnExit(exitmb);
+                    tasks.add(t);
+                    break;
+                case 1: 
+                    ExitMsg em = exitmb.getnb();
+                    results.add(em);
+                    tasks.remove(em.task);
+                    break;
+                }
             }
+        } finally {
+            // even if the task is killed, so that the mailboxes can be selected on again
+            sel.close();
         }
         exit(results);
     }
@@ -0,0 +1,49 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A daemon thread that wakes up every time slice (see {@link Scheduler#setTimeSlice(long)}) and
+ * asks the tasks that have held a worker thread since its previous round to yield. Only code woven
+ * with kilim.analysis.MethodWeaver#preemptLoops set heeds the request, at its next loop back-edge;
+ * other code carries on until it pauses by itself.
+ * <p>
+ * The workers cannot do this themselves, as the point is to interrupt a worker that is busy.
+ */
+class TimeSlicer extends Thread {
+    final Scheduler scheduler;
+
+    TimeSlicer(Scheduler ascheduler) {
+        super("KilimTimeSlicer");
+        setDaemon(true);
+        scheduler = ascheduler;
+    }
+
+    public void run() {
+        Scheduler s = scheduler;
+        while (!s.isShutdown()) {
+            long slice = s.timeSlice;
+            if (slice <= 0) {
+                synchronized (s.allThreads) {
+                    if (s.timeSlice <= 0) {
+                        s.timeSlicer = null;
+                        return;
+                    }
+                }
+                continue;
+            }
+            LockSupport.parkNanos(this, slice * 1000000L);
+            synchronized (s.allThreads) {
+                for (WorkerThread wt : s.allThreads) {
+                    wt.checkTimeSlice();
+                }
+            }
+        }
+    }
+}
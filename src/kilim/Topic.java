@@ -0,0 +1,387 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A broadcast channel: every message published to a topic is seen by all of its subscribers. The
+ * messages are kept once, in a single pre-allocated ring, and each subscriber has its own cursor (the
+ * sequence number of the next message it will read) into that ring. Publishing a message to n
+ * subscribers is one array store, not n puts into n mailboxes.
+ * <p>
+ * A subscriber whose cursor has caught up with the publisher pauses; the publisher resumes only the
+ * subscribers that have paused since its last publish, found on a queue they put themselves on, and
+ * never walks the list of subscribers to do so.
+ * <p>
+ * When a subscriber lags a whole ring behind, the topic either makes the publisher wait until it
+ * catches up ({@link Overflow#BLOCK}) or overwrites the messages it hasn't read yet and drops it
+ * ({@link Overflow#DROP}): the dropped subscriber's get() returns null from then on and
+ * {@link Subscriber#isDropped()} tells why. Publishers are serialized by the topic's monitor;
+ * subscribers take no lock.
+ */
+public class Topic<T> {
+    public enum Overflow {
+        /** The publisher waits for the slowest subscriber. */
+        BLOCK,
+        /** The publisher never waits; a subscriber that falls a ring behind is dropped. */
+        DROP
+    }
+
+    final Object[] ring;
+    final int mask;
+    final Overflow overflow;
+
+    /** sequence number of the next message; message s is in ring[s & mask] once published > s */
+    volatile long published;
+    /**
+     * published + 1 while the next message is being stored, so a subscriber that has read a slot can
+     * tell whether it was being overwritten meanwhile (DROP).
+     */
+    volatile long claimed;
+    /** lowest subscriber cursor at the last check; publish needn't look again until it passes it (BLOCK) */
+    long gate;
+
+    volatile Subscriber<?>[] subscribers = new Subscriber<?>[0];
+    /** subscribers paused since the last publish */
+    final ConcurrentLinkedQueue<Subscriber<?>> parked = new ConcurrentLinkedQueue<Subscriber<?>>();
+    /** tasks and threads waiting for the slowest subscriber (BLOCK) */
+    final ConcurrentLinkedQueue<Object> spaceWaiters = new ConcurrentLinkedQueue<Object>();
+    final SpaceAvailable spaceAvailable = new SpaceAvailable();
+
+    public Topic(int capacity) {
+        this(capacity, Overflow.BLOCK);
+    }
+
+    /**
+     * @param capacity the number of messages a subscriber may lag behind, rounded up to a power of two
+     */
+    public Topic(int capacity, Overflow overflow) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        ring = new Object[size];
+        mask = size - 1;
+        this.overflow = overflow;
+    }
+
+    /**
+     * @return a new subscriber, which will see the messages published from now on.
+     */
+    public synchronized Subscriber<T> subscribe() {
+        Subscriber<T> s = new Subscriber<T>(this, published);
+        Subscriber<?>[] subs = Arrays.copyOf(subscribers, subscribers.length + 1);
+        subs[subs.length - 1] = s;
+        subscribers = subs;
+        return s;
+    }
+
+    synchronized void unsubscribe(Subscriber<?> s) {
+        Subscriber<?>[] subs = subscribers;
+        for (int i = 0; i < subs.length; i++) {
+            if (subs[i] == s) {
+                Subscriber<?>[] newsubs = new Subscriber<?>[subs.length - 1];
+                System.arraycopy(subs, 0, newsubs, 0, i);
+                System.arraycopy(subs, i + 1, newsubs, i, subs.length - i - 1);
+                subscribers = newsubs;
+                break;
+            }
+        }
+        // the publisher may be waiting for this one
+        wakeSpaceWaiters();
+    }
+
+    /**
+     * Publish, don't pause or block.
+     * @return false if a subscriber is a whole ring behind (BLOCK only).
+     */
+    public boolean publishnb(T msg) {
+        if (msg == null) {
+            throw new NullPointerException("Null message supplied to publish");
+        }
+        synchronized (this) {
+            long p = published;
+            if (overflow == Overflow.BLOCK && p - gate >= ring.length) {
+                gate = minCursor(p);
+                if (p - gate >= ring.length) {
+                    return false;
+                }
+            }
+            claimed = p + 1;
+            ring[(int) p & mask] = msg;
+            published = p + 1; // volatile store; must precede the poll of parked below
+        }
+        Subscriber<?> s;
+        while ((s = parked.poll()) != null) {
+            s.queued.set(false);
+            s.task.resume();
+        }
+        return true;
+    }
+
+    /**
+     * Publish, pausing the calling task while a subscriber is a whole ring behind (BLOCK).
+     */
+    public void publish(T msg) throws Pausable {
+        if (publishnb(msg)) {
+            return;
+        }
+        Task t = Task.getCurrentTask();
+        spaceWaiters.add(t);
+        while (!publishnb(msg)) {
+            Task.pause(spaceAvailable);
+        }
+        spaceWaiters.remove(t);
+    }
+
+    /**
+     * Publish, blocking the calling thread while a subscriber is a whole ring behind (BLOCK).
+     */
+    public void publishb(T msg) {
+        if (publishnb(msg)) {
+            return;
+        }
+        Thread th = Thread.currentThread();
+        spaceWaiters.add(th);
+        while (!publishnb(msg)) {
+            LockSupport.park(this);
+        }
+        spaceWaiters.remove(th);
+    }
+
+    long minCursor(long p) {
+        long min = p;
+        for (Subscriber<?> s : subscribers) {
+            long c = s.cursor;
+            if (c < min) {
+                min = c;
+            }
+        }
+        return min;
+    }
+
+    boolean isFull() {
+        long p = published;
+        return p - minCursor(p) >= ring.length;
+    }
+
+    /**
+     * Called by a subscriber that advanced its cursor while a publisher is waiting. Waiters are not
+     * removed; each one re-checks and removes itself once it has published.
+     */
+    void wakeSpaceWaiters() {
+        for (Object w : spaceWaiters) {
+            if (w instanceof Task) {
+                ((Task) w).resume();
+            } else {
+                LockSupport.unpark((Thread) w);
+            }
+        }
+    }
+
+    public int capacity() {
+        return ring.length;
+    }
+
+    public int numSubscribers() {
+        return subscribers.length;
+    }
+
+    /** @return the number of messages published so far */
+    public long getPublished() {
+        return published;
+    }
+
+    public String toString() {
+        return "Topic(capacity=" + ring.length + ", " + overflow + ", subscribers=" + subscribers.length
+                + ", published=" + published + ")";
+    }
+
+    class SpaceAvailable implements PauseReason {
+        public boolean isValid(Task t) {
+            return isFull();
+        }
+
+        public String toString() {
+            return "topic full";
+        }
+    }
+
+    /**
+     * A subscriber's view of the topic. Like a mailbox, a subscriber has a single consumer; a topic
+     * with n consumers has n subscribers.
+     */
+    public static class Subscriber<T> implements PauseReason {
+        final Topic<T> topic;
+        /** sequence number of the next message to read */
+        volatile long cursor;
+        volatile boolean closed;
+        volatile boolean dropped;
+        /** set while on topic.parked, so that it is queued at most once */
+        final AtomicBoolean queued = new AtomicBoolean();
+        /** the consuming task, for the publisher to resume */
+        volatile Task task;
+
+        Subscriber(Topic<T> topic, long cursor) {
+            this.topic = topic;
+            this.cursor = cursor;
+        }
+
+        /**
+         * Non-blocking, nonpausing get.
+         * @return the next message, or null if there is none or if this subscriber is closed or dropped.
+         */
+        @SuppressWarnings("unchecked")
+        public T getnb() {
+            if (closed) {
+                return null;
+            }
+            Topic<T> tp = topic;
+            long c = cursor;
+            if (c == tp.published) {
+                return null;
+            }
+            T msg = (T) tp.ring[(int) c & tp.mask];
+            if (tp.overflow == Overflow.DROP && tp.claimed - c > tp.ring.length) {
+                // overwritten, maybe while we were reading it
+                drop();
+                return null;
+            }
+            advance(c + 1);
+            return msg;
+        }
+
+        /**
+         * Non-blocking, nonpausing bulk get. Moves up to len messages into dst, advancing the cursor once.
+         * @return the number of messages moved; 0 if there are none or if this subscriber is closed or
+         *         dropped.
+         */
+        @SuppressWarnings("unchecked")
+        public int get(T[] dst, int off, int len) {
+            if (closed) {
+                return 0;
+            }
+            Topic<T> tp = topic;
+            long c = cursor;
+            int n = (int) Math.min(len, tp.published - c);
+            if (n <= 0) {
+                return 0;
+            }
+            for (int i = 0; i < n; i++) {
+                dst[off + i] = (T) tp.ring[(int) (c + i) & tp.mask];
+            }
+            if (tp.overflow == Overflow.DROP && tp.claimed - c > tp.ring.length) {
+                Arrays.fill(dst, off, off + n, null);
+                drop();
+                return 0;
+            }
+            advance(c + n);
+            return n;
+        }
+
+        private void advance(long c) {
+            cursor = c; // volatile store; must precede the check of spaceWaiters
+            if (!topic.spaceWaiters.isEmpty()) {
+                topic.wakeSpaceWaiters();
+            }
+        }
+
+        /**
+         * Get the next message, pausing the current task until there is one.
+         * @return the message, or null once this subscriber is closed or dropped.
+         */
+        public T get() throws Pausable {
+            Task t = Task.getCurrentTask();
+            T msg;
+            while ((msg = getnb()) == null && !closed) {
+                park(t);
+                Task.pause(this);
+            }
+            return msg;
+        }
+
+        /**
+         * Get the next message, pausing the current task for up to timeoutMillis.
+         * @return the message, or null if timed out or if this subscriber is closed or dropped.
+         */
+        public T get(long timeoutMillis) throws Pausable {
+            final Task t = Task.getCurrentTask();
+            long begin = System.currentTimeMillis();
+            T msg;
+            while ((msg = getnb()) == null && !closed) {
+                long left = timeoutMillis - (System.currentTimeMillis() - begin);
+                if (left <= 0) {
+                    break;
+                }
+                park(t);
+                t.taskTimer.setTimer(left);
+                Task.pause(this);
+                t.taskTimer.cancel();
+            }
+            return msg;
+        }
+
+        private void park(Task t) {
+            task = t;
+            if (queued.compareAndSet(false, true)) {
+                topic.parked.offer(this);
+            }
+        }
+
+        /** @return the number of messages published but not yet read (or lost, if dropped) */
+        public long available() {
+            return topic.published - cursor;
+        }
+
+        public boolean isDropped() {
+            return dropped;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Stop receiving messages. A task paused in get() returns null.
+         */
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            topic.unsubscribe(this);
+            Task t = task;
+            if (t != null) {
+                t.resume();
+            }
+        }
+
+        void drop() {
+            dropped = true;
+            close();
+        }
+
+        // Implementation of PauseReason
+        public boolean isValid(Task t) {
+            // Keep pausing while there is nothing to read and we are still on topic.parked: the
+            // publisher clears queued before resuming us, so once it is clear the resume may have
+            // come (and gone) already.
+            return cursor == topic.published && queued.get() && !closed && !t.taskTimer.isExpired();
+        }
+
+        public String toString() {
+            return "Subscriber(cursor=" + cursor + (dropped ? ", dropped" : closed ? ", closed" : "") + ")";
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A scheduler that gives each WorkerThread its own run queue, instead of sharing
+ * {@link Scheduler#runnableTasks} (and the scheduler's monitor) among all threads.
+ * <ul>
+ * <li>A task resumed by one of this scheduler's workers (the common case: a task puts a message into
+ * another task's mailbox) is pushed onto that worker's {@link TaskDeque} without taking any lock.</li>
+ * <li>A task resumed by any other thread is handed over through a lock-free injection queue.</li>
+ * <li>A worker whose own deque is empty polls the injection queue and then steals from its peers,
+ * starting at a random victim. Only when there is nothing to steal does it fall back on its {@link IdleStrategy}.</li>
+ * <li>Tasks that are pinned to a thread ({@link Task#preferredResumeThread}, see {@link ReentrantLock}) bypass
+ * the deques and go to the pinned thread's private queue, exactly as with the base Scheduler.</li>
+ * <li>Only NORMAL tasks go through the deques. CRITICAL and BULK tasks (see {@link Priority}) have a
+ * lock-free queue each, shared by all workers; each worker takes from the three lanes in weighted
+ * round-robin order, as with a {@link LaneQueue}, stealing being part of the NORMAL lane.</li>
+ * </ul>
+ * Set the system property <code>kilim.Scheduler.workStealing=true</code> to make this the default scheduler.
+ */
+public class WorkStealingScheduler extends Scheduler {
+    final StealingWorkerThread[]      workers;
+
+    /**
+     * Tasks scheduled by threads that are not workers of this scheduler.
+     */
+    final ConcurrentLinkedQueue<Task> injectedTasks = new ConcurrentLinkedQueue<Task>();
+
+    /**
+     * The CRITICAL and BULK lanes, and the number of tasks in each (ConcurrentLinkedQueue.size() is a
+     * traversal).
+     */
+    final ConcurrentLinkedQueue<Task> criticalTasks = new ConcurrentLinkedQueue<Task>();
+    final ConcurrentLinkedQueue<Task> bulkTasks     = new ConcurrentLinkedQueue<Task>();
+    final AtomicInteger               numCritical   = new AtomicInteger();
+    final AtomicInteger               numBulk       = new AtomicInteger();
+
+    final int[]                       weights       = Priority.defaultWeights;
+
+    public WorkStealingScheduler(int numThreads) {
+        this(numThreads, defaultIdleStrategy);
+    }
+
+    public WorkStealingScheduler(int numThreads, IdleStrategy idleStrategy) {
+        this.idleStrategy = idleStrategy;
+        workers = new StealingWorkerThread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            StealingWorkerThread wt = new StealingWorkerThread(this, i);
+            workers[i] = wt;
+            allThreads.add(wt);
+        }
+        for (WorkerThread wt : workers) {
+            wt.start();
+        }
+        setTimeSlice(defaultTimeSlice);
+    }
+
+    @Override
+    public void schedule(Task t) {
+        assert t.state == Task.SCHEDULED : "Task " + t + " scheduled even though it is not in the SCHEDULED state";
+        WorkerThread prefThread = t.preferredResumeThread;
+        if (prefThread != null) {
+            prefThread.addRunnableTask(t);
+            return;
+        }
+        Priority p = t.priority;
+        if (p == Priority.CRITICAL) {
+            numCritical.incrementAndGet();
+            criticalTasks.offer(t);
+            wakeIdleWorker();
+            return;
+        } else if (p == Priority.BULK) {
+            numBulk.incrementAndGet();
+            bulkTasks.offer(t);
+            wakeIdleWorker();
+            return;
+        }
+        Thread cur = Thread.currentThread();
+        if (cur instanceof StealingWorkerThread && ((StealingWorkerThread) cur).owner == this) {
+            // No wakeup is needed for the task itself (this thread will get to it), but an idle
+            // peer may as well steal it.
+            ((StealingWorkerThread) cur).deque.put(t);
+        } else {
+            injectedTasks.offer(t);
+        }
+        wakeIdleWorker();
+    }
+
+    /**
+     * Called in the worker's own thread. Takes from the lanes in priority order, skipping those that
+     * have used up their turns in the worker's current round; see {@link LaneQueue#get()}.
+     * @return a runnable task or null
+     */
+    Task findTask(StealingWorkerThread wt) {
+        int[] cs = wt.credits;
+        boolean exhausted = false;
+        for (int i = 0; i < cs.length; i++) {
+            if (cs[i] > 0) {
+                Task t = pollLane(wt, i);
+                if (t != null) {
+                    cs[i]--;
+                    return t;
+                }
+            } else {
+                exhausted = true;
+            }
+        }
+        // Every lane with turns left is empty; start a new round.
+        System.arraycopy(weights, 0, cs, 0, cs.length);
+        if (exhausted) {
+            for (int i = 0; i < cs.length; i++) {
+                Task t = pollLane(wt, i);
+                if (t != null) {
+                    cs[i]--;
+                    return t;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Task pollLane(StealingWorkerThread wt, int lane) {
+        Task t;
+        switch (Priority.lanes[lane]) {
+        case CRITICAL:
+            t = criticalTasks.poll();
+            if (t != null) {
+                numCritical.decrementAndGet();
+            }
+            return t;
+        case BULK:
+            t = bulkTasks.poll();
+            if (t != null) {
+                numBulk.decrementAndGet();
+            }
+            return t;
+        default:
+            return findNormalTask(wt);
+        }
+    }
+
+    /**
+     * Looks in the worker's deque, then the injection queue, and finally tries to steal from the
+     * other workers.
+     */
+    Task findNormalTask(StealingWorkerThread wt) {
+        Task t = wt.deque.get();
+        if (t != null) {
+            return t;
+        }
+        t = injectedTasks.poll();
+        if (t != null) {
+            return t;
+        }
+        StealingWorkerThread[] ws = workers;
+        int n = ws.length;
+        if (n > 1) {
+            int start = wt.nextRandom(n);
+            for (int i = 0; i < n; i++) {
+                StealingWorkerThread victim = ws[(start + i) % n];
+                if (victim != wt) {
+                    t = victim.deque.get();
+                    if (t != null) {
+                        return t;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int getQueueDepth(Priority p) {
+        int n = super.getQueueDepth(p); // tasks pinned to a worker
+        switch (p) {
+        case CRITICAL:
+            return n + numCritical.get();
+        case BULK:
+            return n + numBulk.get();
+        default:
+            n += injectedTasks.size();
+            for (StealingWorkerThread wt : workers) {
+                n += wt.deque.size();
+            }
+            return n;
+        }
+    }
+
+    @Override
+    public void dump() {
+        System.out.println(criticalTasks);
+        System.out.println(injectedTasks);
+        System.out.println(bulkTasks);
+        for (StealingWorkerThread wt : workers) {
+            System.out.println(wt.getName() + ": " + wt.deque);
+        }
+    }
+
+    static class StealingWorkerThread extends WorkerThread {
+        final WorkStealingScheduler owner;
+        final TaskDeque             deque = new TaskDeque(256);
+        final int                   index;
+        private int                 seed;
+        /** turns left to each lane in this worker's current round; see findTask */
+        final int[]                 credits;
+
+        StealingWorkerThread(WorkStealingScheduler ascheduler, int aindex) {
+            super(ascheduler);
+            owner = ascheduler;
+            index = aindex;
+            seed = aindex * 0x9E3779B9 + 1;
+            credits = ascheduler.weights.clone();
+        }
+
+        /**
+         * xorshift; only used to pick a victim, so quality hardly matters.
+         */
+        int nextRandom(int n) {
+            int x = seed;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            seed = x;
+            return (x & Integer.MAX_VALUE) % n;
+        }
+
+        @Override
+        protected Task pollTask() throws ShutdownException {
+            Task t = getNextTask(); // tasks pinned to this thread
+            if (t == null) {
+                t = owner.findTask(this);
+            }
+            return t;
+        }
+    }
+}
@@ -7,6 +7,11 @@
 package kilim;
 
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import kilim.timerservice.TimerService;
+import zhmt.dawn.NonpausableTask;
 
 public class WorkerThread extends Thread {
     volatile Task        runningTask;
@@ -14,20 +19,65 @@ public class WorkerThread extends Thread {
      * A list of tasks that prefer to run only on this thread. This is used by kilim.ReentrantLock and Task to ensure
      * that lock.release() is done on the same thread as lock.acquire()
      */
-    RingQueue<Task>      tasks      = new RingQueue<Task>(10);
+    LaneQueue            tasks      = new LaneQueue(10);
+    /**
+     * Callbacks scheduled by this thread itself (see {@link Scheduler#schedule(NonpausableTask)}). Only this thread
+     * touches it.
+     */
+    final RingQueue<NonpausableTask> callbacks = new RingQueue<NonpausableTask>(16);
     Scheduler            scheduler;
     static AtomicInteger gid        = new AtomicInteger();
     public int           numResumes = 0;
 
+    /** This thread's index in its scheduler's {@link IdleWorkerStack}, and the link to the next idle worker. */
+    final int            idleIndex;
+    int                  nextIdle;
+
+    /** Not on the idle stack. */
+    static final int     ACTIVE       = 0;
+    /** On the idle stack, and looking for work or parked. */
+    static final int     IDLE         = 1;
+    /** On the idle stack, but busy; {@link IdleWorkerStack#pop()} skips it. */
+    static final int     BUSY         = 2;
+    volatile int         idleState;
+    private static final AtomicIntegerFieldUpdater<WorkerThread> idleStateUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(WorkerThread.class, "idleState");
+    /** Whether this thread has gone idle (called park()) since it last found work; this thread only. */
+    private boolean      idle;
+    /** Whether this thread has parked since it went idle; this thread only. */
+    private boolean      parked;
+
+    /**
+     * Set by the scheduler's {@link TimeSlicer} when the running task has had this thread for a
+     * whole time slice; see {@link Task#preemptRequested()}.
+     */
+    volatile boolean     preempt;
+    /** Tasks run so far; written by this thread only, read by the TimeSlicer. */
+    int                  numDispatches;
+    /** numDispatches as of the TimeSlicer's previous tick; TimeSlicer only. */
+    int                  sliceMark;
+    /** Loops that yielded on a preemption request. */
+    public int           numPreemptions;
+
+    /** Timers armed by tasks running on this thread. */
+    final TimerService   timerService = new TimerService(this);
+    /** Recycled states, for tasks running on this thread in code woven with state pooling. */
+    final StatePool      statePool    = new StatePool();
+
     WorkerThread(Scheduler ascheduler) {
         super("KilimWorker-" + gid.incrementAndGet());
         scheduler = ascheduler;
+        idleIndex = ascheduler.idleWorkers.register(this);
     }
 
     public void run() {
         try {
             while (true) {
                 Task t = getNextTask(this); // blocks until task available
+                numDispatches++;
+                if (preempt) {
+                    preempt = false; // meant for a task that has since paused by itself
+                }
                 runningTask = t;
                 t._runExecute(this);
                 runningTask = null;
@@ -45,34 +95,141 @@ public class WorkerThread extends Thread {
     }
 
     protected Task getNextTask(WorkerThread workerThread) throws ShutdownException {
-        Task t = null;
-        while (true) {
+        IdleStrategy idleStrategy = scheduler.idleStrategy;
+        Task t;
+        for (int n = 0; ; n++) {
             if (scheduler.isShutdown())
                 throw new ShutdownException();
 
-            t = getNextTask();
-            if (t != null)
+            timerService.service();
+            int nCallbacks = runCallbacks();
+            t = pollTask();
+            if (t != null) {
+                foundWork();
                 break;
+            }
+            if (nCallbacks > 0) {
+                foundWork();
+                n = -1; // not idle
+                continue;
+            }
+
+            idleStrategy.idle(this, n);
+        }
+        return t;
+    }
+
+    /**
+     * Run a batch of callbacks: this thread's own first, then those scheduled by other threads.
+     * @return the number of callbacks run.
+     */
+    int runCallbacks() {
+        int max = Scheduler.callbackBatch;
+        int n = 0;
+        NonpausableTask c;
+        while (n < max && (c = callbacks.get()) != null) {
+            Scheduler.runCallback(c);
+            n++;
+        }
+        return n + scheduler.runCallbacks(max - n);
+    }
 
-            // try loading from scheduler
+    /**
+     * Look for a runnable task without blocking: first among the tasks pinned to this thread, then
+     * in the scheduler's queue.
+     * @return a task, or null if there is nothing to do.
+     */
+    protected Task pollTask() throws ShutdownException {
+        Task t = getNextTask();
+        if (t == null) {
             scheduler.loadNextTask(this);
-            synchronized (this) { // ///////////////////////////////////////
-                // Wait if still no task to execute.
-                t = tasks.get();
-                if (t != null)
-                    break;
-
-                scheduler.addWaitingThread(this);
-                try {
-                    wait();
-                } catch (InterruptedException ignore) {
-                } // shutdown indicator checked above
-            } // //////////////////////////////////////////////////////////
+            t = getNextTask();
         }
-        assert t != null : "Returning null task";
         return t;
     }
 
+    /**
+     * Called by the idle strategy when there is nothing to do. The first call puts this thread on
+     * the scheduler's idle stack (or marks it idle again, if it is still there) and returns at once,
+     * so that the caller looks for work once more before parking; a task scheduled in between either
+     * shows up in that last look or pops and unparks this thread. Later calls park until unparked by
+     * {@link Scheduler#schedule(Task)}, {@link Scheduler#schedule(NonpausableTask)},
+     * {@link #addRunnableTask(Task)} or shutdown, or until the next of this thread's timers is due.
+     */
+    void park() {
+        if (!idle) {
+            idle = true;
+            parked = false;
+            if (!idleStateUpdater.compareAndSet(this, BUSY, IDLE)) {
+                pushIdle(); // not on the stack (any more)
+            }
+        } else if (idleState == ACTIVE) {
+            // Popped, but the work went to someone else; back on the stack, and look once more.
+            pushIdle();
+        } else {
+            parked = true;
+            timerService.park(this);
+        }
+    }
+
+    private void pushIdle() {
+        parked = false;
+        idleState = IDLE;
+        scheduler.idleWorkers.push(this);
+    }
+
+    /**
+     * Called when this thread finds something to do. If it is still on the idle stack, it is marked
+     * busy there, so that a wakeup does not go to it while other workers sleep. If it was popped
+     * off the stack before it got to park, the wakeup meant for some task may have been spent on it;
+     * it passes the wakeup on, so the task does not wait behind whatever this thread runs next.
+     */
+    private void foundWork() {
+        if (idle) {
+            idle = false;
+            if (!idleStateUpdater.compareAndSet(this, IDLE, BUSY) && !parked) {
+                scheduler.wakeIdleWorker();
+            }
+        }
+    }
+
+    /**
+     * Called by {@link IdleWorkerStack#pop()}, which has just taken this thread off the stack.
+     * @return true if this thread is idle, false if it is busy and need not be woken up.
+     */
+    boolean takeWakeup() {
+        return idleStateUpdater.getAndSet(this, ACTIVE) == IDLE;
+    }
+
+    /**
+     * Called by the TimeSlicer every time slice. Asks the running task to yield if it has been
+     * running since the previous call, so a task is preempted after one to two slices. The read of
+     * numDispatches races with this thread; a stale value delays or hastens a preemption by a
+     * slice, which is harmless.
+     */
+    void checkTimeSlice() {
+        int n = numDispatches;
+        if (n == sliceMark && runningTask != null) {
+            preempt = true;
+        }
+        sliceMark = n;
+    }
+
+    public TimerService getTimerService() {
+        return timerService;
+    }
+
+    /**
+     * @return the states recycled by code woven with state pooling, for tasks run on this thread.
+     */
+    public StatePool getStatePool() {
+        return statePool;
+    }
+
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
     public Task getCurrentTask() {
         return runningTask;
     }
@@ -80,7 +237,9 @@ public class WorkerThread extends Thread {
     public synchronized void addRunnableTask(Task t) {
         assert t.preferredResumeThread == null || t.preferredResumeThread == this : "Task given to wrong thread";
         tasks.put(t);
-        notify();
+        if (Thread.currentThread() != this) {
+            LockSupport.unpark(this);
+        }
     }
 
     public synchronized boolean hasTasks() {
@@ -91,12 +250,13 @@ public class WorkerThread extends Thread {
         return tasks.get();
     }
 
-    public synchronized void waitForMsgOrSignal() {
-        try {
-            if (tasks.size() == 0) {
-                wait();
-            }
-        } catch (InterruptedException ignore) {
+    synchronized int queueDepth(Priority p) {
+        return tasks.size(p);
+    }
+
+    public void waitForMsgOrSignal() {
+        if (!hasTasks()) {
+            LockSupport.park(this);
         }
     }
 }
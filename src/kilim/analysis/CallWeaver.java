@@ -30,6 +30,7 @@ import static kilim.Constants.ISTORE_0;
 import static kilim.Constants.LLOAD_0;
 import static kilim.Constants.LSTORE_0;
 import static kilim.Constants.STATE_CLASS;
+import static kilim.Constants.STATE_POOL_ID;
 import static kilim.analysis.VMType.TOBJECT;
 import static kilim.analysis.VMType.loadVar;
 import static kilim.analysis.VMType.storeVar;
@@ -53,12 +54,14 @@ import static org.objectweb.asm.Opcodes.FLOAD;
 import static org.objectweb.asm.Opcodes.FRETURN;
 import static org.objectweb.asm.Opcodes.FSTORE;
 import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.GETSTATIC;
 import static org.objectweb.asm.Opcodes.GOTO;
 import static org.objectweb.asm.Opcodes.I2B;
 import static org.objectweb.asm.Opcodes.I2C;
 import static org.objectweb.asm.Opcodes.I2S;
 import static org.objectweb.asm.Opcodes.ICONST_0;
 import static org.objectweb.asm.Opcodes.ICONST_M1;
+import static org.objectweb.asm.Opcodes.IFNONNULL;
 import static org.objectweb.asm.Opcodes.ILOAD;
 import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
 import static org.objectweb.asm.Opcodes.INVOKESTATIC;
@@ -201,6 +204,10 @@ public class CallWeaver {
         varUsage.set(mw.getFiberVar());
         numVars = mw.getFiberVar() + 1; // knowing fiberVar is beyond anything
                                         // that's used
+        if (mw.getDepthVar() != -1) {
+            varUsage.set(mw.getDepthVar());
+            numVars = mw.getDepthVar() + 1;
+        }
         mw.ensureMaxVars(numVars);
         Usage u = bb.usage;
         valInfoList = new ValInfoList();
@@ -345,7 +352,7 @@ public class CallWeaver {
                 mv.visitVarInsn(ALOAD, 0);
             } else {
                 loadVar(mv, TOBJECT, methodWeaver.getFiberVar());
-                mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "getCallee", "()Ljava/lang/Object;");
+                mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "getCallee", "()Ljava/lang/Object;", false);
                 mv.visitTypeInsn(CHECKCAST, getReceiverTypename());
             }
             spos++;
@@ -383,7 +390,7 @@ public class CallWeaver {
     void genCall(MethodVisitor mv) {
         mv.visitLabel(callLabel.getLabel());
         loadVar(mv, TOBJECT, methodWeaver.getFiberVar());
-        mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "down", "()" + D_FIBER);
+        mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "down", "()" + D_FIBER, false);
         MethodInsnNode mi = getMethodInsn();
         if (mi.desc.indexOf(fiberArg) == -1) {
             // Don't add another fiberarg if it already has one. It'll already
@@ -426,7 +433,7 @@ public class CallWeaver {
      */
     void genPostCall(MethodVisitor mv) {
         loadVar(mv, TOBJECT, methodWeaver.getFiberVar());
-        mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "up", "()I");
+        mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "up", "()I", false);
         LabelNode restoreLabel = new LabelNode();
         LabelNode saveLabel = new LabelNode();
         LabelNode unwindLabel = new LabelNode();
@@ -513,10 +520,32 @@ public class CallWeaver {
          * the method weaver's list. This allows us to do a switch in the
          * method's entry.
          */
-        mv.visitTypeInsn(NEW, stateClassName);
-        mv.visitInsn(DUP); // 
-        // call constructor
-        mv.visitMethodInsn(INVOKESPECIAL, stateClassName, "<init>", "()V");
+        if (isPooled()) {
+            /*
+             * state = fiber.allocState(xxxState.POOL_ID);
+             * if (state == null) state = new xxxState();
+             */
+            LabelNode recycledLabel = new LabelNode();
+            LabelNode stateLabel = new LabelNode();
+            loadVar(mv, TOBJECT, methodWeaver.getFiberVar());
+            mv.visitFieldInsn(GETSTATIC, stateClassName, STATE_POOL_ID, D_INT);
+            mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "allocState", "(I)" + D_STATE, false);
+            mv.visitInsn(DUP);
+            mv.visitJumpInsn(IFNONNULL, recycledLabel.getLabel());
+            mv.visitInsn(POP);
+            mv.visitTypeInsn(NEW, stateClassName);
+            mv.visitInsn(DUP);
+            mv.visitMethodInsn(INVOKESPECIAL, stateClassName, "<init>", "()V", false);
+            mv.visitJumpInsn(GOTO, stateLabel.getLabel());
+            recycledLabel.accept(mv);
+            mv.visitTypeInsn(CHECKCAST, stateClassName);
+            stateLabel.accept(mv);
+        } else {
+            mv.visitTypeInsn(NEW, stateClassName);
+            mv.visitInsn(DUP); // 
+            // call constructor
+            mv.visitMethodInsn(INVOKESPECIAL, stateClassName, "<init>", "()V", false);
+        }
         // save state in register
         int stateVar = allocVar(1);
         storeVar(mv, TOBJECT, stateVar);
@@ -576,7 +605,7 @@ public class CallWeaver {
         loadVar(mv, TOBJECT, methodWeaver.getFiberVar());
         loadVar(mv, TOBJECT, stateVar);
         mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "setState", "("
-                + D_STATE + ")V");
+                + D_STATE + ")V", false);
         releaseVar(stateVar, 1);
         // Figure out the return type of the calling method and issue the
         // appropriate xRETURN instruction
@@ -667,6 +696,10 @@ public class CallWeaver {
             }
         }
 
+        if (isPooled()) {
+            genReleaseState(mv, stateVar);
+        }
+
         // restore the saved return value, if any
         // But we would have popped and saved the return value only
         // if there were any dummy values in the stack bottom to be
@@ -691,9 +724,28 @@ public class CallWeaver {
             stateVar = allocVar(1);
         }
         genRestoreVars(mv, stateVar);
+        if (isPooled()) {
+            genReleaseState(mv, stateVar);
+        }
         releaseVar(stateVar, 1);
     }
 
+    /**
+     * fiber.releaseState(state), once all values have been read from it.
+     */
+    private void genReleaseState(MethodVisitor mv, int stateVar) {
+        loadVar(mv, TOBJECT, methodWeaver.getFiberVar());
+        loadVar(mv, TOBJECT, stateVar);
+        mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "releaseState", "(" + D_STATE + ")V", false);
+    }
+
+    /**
+     * Plain kilim.State objects (for frames with nothing to save) are not worth pooling.
+     */
+    private boolean isPooled() {
+        return ClassWeaver.poolStates && !stateClassName.equals(STATE_CLASS);
+    }
+
     /*
      */
     private void genRestoreVars(MethodVisitor mv, int stateVar) {
@@ -109,6 +109,10 @@ public class ClassFlow extends ClassNode {
                     mf.verifyPausables();
                     if (mf.isPausable())
                         isPausable = true;
+                    if (MethodWeaver.preemptLoops && mf.isPausable() && !mf.isAbstract() && !isWoven
+                            && !isWovenByHand(mf)) {
+                        mf.insertYieldChecks();
+                    }
                     if ((mf.isPausable() || forceAnalysis) && (!mf.isAbstract())) {
                         mf.analyze();
                     }
@@ -145,6 +149,25 @@ public class ClassFlow extends ClassNode {
         // this.name + "::" + bridgeMethod.name + bridgeMethod.desc);
     }
 
+    /**
+     * @return true if mf takes a Fiber already, or if the class has a method with the same name and
+     *         parameters as mf plus a trailing Fiber, mf then being a stub for code woven by hand
+     *         (e.g. kilim.Task.yield).
+     */
+    boolean isWovenByHand(MethodFlow mf) {
+        if (mf.desc.endsWith(ClassWeaver.FIBER_SUFFIX)) {
+            return true;
+        }
+        String fdesc = mf.desc.replace(")", ClassWeaver.FIBER_SUFFIX);
+        for (Object o : methods) {
+            MethodFlow omf = (MethodFlow) o;
+            if (omf != mf && mf.name.equals(omf.name) && fdesc.equals(omf.desc)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public String getClassDescriptor() {
         return classDesc;
     }
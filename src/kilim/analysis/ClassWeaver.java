@@ -7,14 +7,21 @@
 package kilim.analysis;
 import static kilim.Constants.D_FIBER;
 import static kilim.Constants.STATE_CLASS;
+import static kilim.Constants.STATE_POOL_CLASS;
+import static kilim.Constants.STATE_POOL_ID;
 import static kilim.Constants.WOVEN_FIELD;
 import static org.objectweb.asm.Opcodes.ACC_FINAL;
 import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
 import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACONST_NULL;
 import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.GETSTATIC;
 import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.PUTFIELD;
+import static org.objectweb.asm.Opcodes.PUTSTATIC;
 import static org.objectweb.asm.Opcodes.RETURN;
-import static org.objectweb.asm.Opcodes.V1_1;
+import static org.objectweb.asm.Opcodes.V1_5;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -29,6 +36,7 @@ import org.objectweb.asm.Attribute;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AnnotationNode;
 import org.objectweb.asm.tree.FieldNode;
 import org.objectweb.asm.tree.InnerClassNode;
@@ -39,6 +47,12 @@ import org.objectweb.asm.tree.InnerClassNode;
  * CPS transformed file if needed
  */
 public class ClassWeaver {
+    /**
+     * If set, pausing code recycles State objects through the fiber's StatePool instead of
+     * allocating new ones. See kilim.StatePool and the weaver's -p option.
+     */
+    public static boolean poolStates = Boolean.getBoolean("kilim.Weaver.poolStates");
+
     public ClassFlow classFlow;
     List<ClassInfo> classInfoList = new LinkedList<ClassInfo>();
     static ThreadLocal<HashMap<String, ClassInfo>> stateClasses_ = 
@@ -181,16 +195,7 @@ public class ClassWeaver {
      */
     static String FIBER_SUFFIX = D_FIBER + ')';
     boolean needsWeaving(MethodFlow mf) {
-        if (!mf.isPausable() || mf.desc.endsWith(FIBER_SUFFIX)) 
-            return false;
-        String fdesc = mf.desc.replace(")", FIBER_SUFFIX);
-        for (MethodFlow omf: classFlow.getMethodFlows()) {
-            if (omf == mf) continue;
-            if (mf.name.equals(omf.name) && fdesc.equals(omf.desc)) {
-                return false;
-            }
-        }
-        return true;
+        return mf.isPausable() && !classFlow.isWovenByHand(mf);
     }
     
     boolean needsWeaving() {
@@ -229,19 +234,46 @@ public class ClassWeaver {
             classInfo= stateClasses_.get().get(className);
             if (classInfo == null) {
                 ClassWriter cw = new kilim.analysis.ClassWriter(ClassWriter.COMPUTE_FRAMES, classFlow.detector());
-                cw.visit(V1_1, ACC_PUBLIC | ACC_FINAL, className, null, "kilim/State", null);
+                cw.visit(V1_5, ACC_PUBLIC | ACC_FINAL, className, null, "kilim/State", null);
+
+                // public static final int POOL_ID = StatePool.register(<className>.class);
+                cw.visitField(ACC_PUBLIC | ACC_STATIC | ACC_FINAL, STATE_POOL_ID, "I", null, null);
+                MethodVisitor mw = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+                mw.visitLdcInsn(Type.getObjectType(className));
+                mw.visitMethodInsn(INVOKESTATIC, STATE_POOL_CLASS, "register", "(Ljava/lang/Class;)I", false);
+                mw.visitFieldInsn(PUTSTATIC, className, STATE_POOL_ID, "I");
+                mw.visitInsn(RETURN);
+                mw.visitMaxs(1, 0);
+                mw.visitEnd();
 
                 // Create default constructor
                 // <init>() {
-                // super(); // call java/lang/Object.<init>()
+                // super(POOL_ID); // call kilim/State.<init>(int)
                 // }
-                MethodVisitor mw = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+                mw = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
                 mw.visitVarInsn(ALOAD, 0);
-                mw.visitMethodInsn(INVOKESPECIAL, STATE_CLASS, "<init>", "()V");
+                mw.visitFieldInsn(GETSTATIC, className, STATE_POOL_ID, "I");
+                mw.visitMethodInsn(INVOKESPECIAL, STATE_CLASS, "<init>", "(I)V", false);
                 mw.visitInsn(RETURN);
-                // this code uses a maximum of one stack element and one local variable
-                mw.visitMaxs(1, 1);
+                // this code uses a maximum of two stack elements and one local variable
+                mw.visitMaxs(2, 1);
                 mw.visitEnd();
+
+                // clearRefs() { super.clearRefs(); f0 = null; ... } for the object fields
+                mw = cw.visitMethod(ACC_PUBLIC, "clearRefs", "()V", null, null);
+                mw.visitVarInsn(ALOAD, 0);
+                mw.visitMethodInsn(INVOKESPECIAL, STATE_CLASS, "clearRefs", "()V", false);
+                for (ValInfo vi : valInfoList) {
+                    if (vi.vmt == VMType.TOBJECT) {
+                        mw.visitVarInsn(ALOAD, 0);
+                        mw.visitInsn(ACONST_NULL);
+                        mw.visitFieldInsn(PUTFIELD, className, vi.fieldName, vi.fieldDesc());
+                    }
+                }
+                mw.visitInsn(RETURN);
+                mw.visitMaxs(2, 1);
+                mw.visitEnd();
+
                 // create fields of the appropriate type.
                 for (ValInfo vi : valInfoList) {
                     cw.visitField(ACC_PUBLIC, vi.fieldName, vi.fieldDesc(), null, null);
@@ -7,12 +7,18 @@
 package kilim.analysis;
 import static kilim.Constants.NOT_PAUSABLE_CLASS;
 import static kilim.Constants.PAUSABLE_CLASS;
+import static kilim.Constants.TASK_CLASS;
 import static kilim.analysis.BasicBlock.COALESCED;
 import static kilim.analysis.BasicBlock.ENQUEUED;
 import static kilim.analysis.BasicBlock.INLINE_CHECKED;
 import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACC_SYNCHRONIZED;
 import static org.objectweb.asm.Opcodes.ACC_VOLATILE;
+import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
 import static org.objectweb.asm.Opcodes.JSR;
+import static org.objectweb.asm.Opcodes.MONITORENTER;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -20,6 +26,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.TreeMap;
 
@@ -34,10 +41,13 @@ import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.AnnotationNode;
 import org.objectweb.asm.tree.FrameNode;
 import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
 import org.objectweb.asm.tree.TryCatchBlockNode;
 
 
@@ -147,6 +157,103 @@ public class MethodFlow extends MethodNode {
     }
 
     
+    /**
+     * Cooperative preemption (see {@link MethodWeaver#preemptLoops}). Every backward jump, whether a
+     * branch or a case of a tableswitch or lookupswitch, is sent through a trampoline, appended after
+     * the last instruction, that calls Task.yield() if {@link kilim.Task#preemptRequested()} says so,
+     * and then jumps to the original target. The trampoline is reached with the same operand stack as
+     * the loop head, and the call to yield is woven like any other pausable call. Must be called
+     * before {@link #analyze()}.
+     * <p>
+     * An exception thrown by the yield (see {@link kilim.Task#checkKill()}) must reach the handlers
+     * of the try blocks the jump was in, so each trampoline is covered by a copy of every
+     * try-catch block that covers its jumps. Jumps to the same head from within different try
+     * blocks get trampolines of their own.
+     * <p>
+     * Methods that take a monitor are left alone, as they may not pause while holding it.
+     */
+    @SuppressWarnings("unchecked")
+    void insertYieldChecks() {
+        if ((access & ACC_SYNCHRONIZED) != 0) {
+            return;
+        }
+        int n = instructions.size();
+        for (int i = 0; i < n; i++) {
+            if (instructions.get(i).getOpcode() == MONITORENTER) {
+                return;
+            }
+        }
+        List<TryCatchBlockNode> tcbs = new ArrayList<TryCatchBlockNode>(tryCatchBlocks);
+        // One trampoline per loop head and set of enclosing try blocks
+        HashMap<List<Object>, LabelNode> trampolines = new HashMap<List<Object>, LabelNode>();
+        for (int i = 0; i < n; i++) {
+            AbstractInsnNode ain = instructions.get(i);
+            if (ain instanceof JumpInsnNode && ain.getOpcode() != JSR) {
+                JumpInsnNode jin = (JumpInsnNode) ain;
+                jin.label = backEdgeTarget(jin.label, i, tcbs, trampolines);
+            } else if (ain instanceof TableSwitchInsnNode) {
+                TableSwitchInsnNode tsin = (TableSwitchInsnNode) ain;
+                tsin.dflt = backEdgeTarget(tsin.dflt, i, tcbs, trampolines);
+                backEdgeTargets(tsin.labels, i, tcbs, trampolines);
+            } else if (ain instanceof LookupSwitchInsnNode) {
+                LookupSwitchInsnNode lsin = (LookupSwitchInsnNode) ain;
+                lsin.dflt = backEdgeTarget(lsin.dflt, i, tcbs, trampolines);
+                backEdgeTargets(lsin.labels, i, tcbs, trampolines);
+            }
+        }
+        if (!trampolines.isEmpty()) {
+            maxStack++; // preemptRequested's result
+        }
+    }
+
+    private void backEdgeTargets(List<LabelNode> labels, int pos, List<TryCatchBlockNode> tcbs,
+            HashMap<List<Object>, LabelNode> trampolines) {
+        for (int k = 0; k < labels.size(); k++) {
+            labels.set(k, backEdgeTarget(labels.get(k), pos, tcbs, trampolines));
+        }
+    }
+
+    /**
+     * @return the trampoline for head, appending it if need be, if a jump from pos to head is a
+     *         back-edge; head otherwise.
+     * @param tcbs the method's own try-catch blocks, without the copies made for trampolines.
+     */
+    @SuppressWarnings("unchecked")
+    private LabelNode backEdgeTarget(LabelNode head, int pos, List<TryCatchBlockNode> tcbs,
+            HashMap<List<Object>, LabelNode> trampolines) {
+        if (getLabelPosition(head) > pos) {
+            return head;
+        }
+        ArrayList<Object> key = new ArrayList<Object>();
+        key.add(head);
+        for (TryCatchBlockNode tcb : tcbs) { // innermost first
+            if (getLabelPosition(tcb.start) <= pos && pos < getLabelPosition(tcb.end)) {
+                key.add(tcb);
+            }
+        }
+        LabelNode tramp = trampolines.get(key);
+        if (tramp == null) {
+            int end = instructions.size();
+            tramp = getOrCreateLabelAtPos(end); // may be the end label of the local vars' ranges
+            trampolines.put(key, tramp);
+            Map.Entry<Integer, LineNumberNode> line = lineNumberNodes.floorEntry(getLabelPosition(head));
+            if (line != null && !lineNumberNodes.containsKey(end)) {
+                lineNumberNodes.put(end, new LineNumberNode(line.getValue().line, tramp));
+            }
+            LabelNode resume = new LabelNode();
+            instructions.add(new MethodInsnNode(INVOKESTATIC, TASK_CLASS, "preemptRequested", "()Z", false));
+            instructions.add(new JumpInsnNode(IFEQ, resume));
+            visitMethodInsn(INVOKESTATIC, TASK_CLASS, "yield", "()V", false); // registers the pausable call
+            setLabel(instructions.size(), resume);
+            instructions.add(new JumpInsnNode(GOTO, head));
+            for (int k = 1; k < key.size(); k++) {
+                TryCatchBlockNode tcb = (TryCatchBlockNode) key.get(k);
+                tryCatchBlocks.add(new TryCatchBlockNode(tramp, resume, tcb.handler, tcb.type));
+            }
+        }
+        return tramp;
+    }
+
     public void analyze() throws KilimException {
         buildBasicBlocks();
         if (basicBlocks.size() == 0) return;
@@ -208,8 +315,8 @@ public class MethodFlow extends MethodNode {
     
     
     @Override
-    public void visitMethodInsn(int opcode, String owner, String name, String desc) {
-        super.visitMethodInsn(opcode, owner, name, desc);
+    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
         // The only reason for adding to pausableMethods is to create a BB for pausable
         // method call sites. If the class is already woven, we don't need this 
         // functionality.
@@ -17,8 +17,10 @@ import static org.objectweb.asm.Opcodes.ASTORE;
 import static org.objectweb.asm.Opcodes.DUP;
 import static org.objectweb.asm.Opcodes.GETFIELD;
 import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.ILOAD;
 import static org.objectweb.asm.Opcodes.INVOKESTATIC;
 import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.ISTORE;
 import static org.objectweb.asm.Opcodes.RETURN;
 
 import java.util.ArrayList;
@@ -43,6 +45,14 @@ import org.objectweb.asm.tree.TryCatchBlockNode;
  */
 
 public class MethodWeaver {
+    /**
+     * If set, loops in pausable methods check on every iteration whether the task has had its
+     * worker thread for a whole time slice (see kilim.Scheduler#setTimeSlice), and if so yield, so
+     * that a task that computes without pausing does not hold up the other tasks on its thread. The
+     * check is a static call and a volatile read. Loops in methods that hold a monitor are not
+     * checked. See MethodFlow.insertYieldChecks and the weaver's -y option.
+     */
+    public static boolean preemptLoops = Boolean.getBoolean("kilim.Weaver.preemptLoops");
 
     private ClassWeaver           classWeaver;
 
@@ -62,6 +72,13 @@ public class MethodWeaver {
      * fiberVar.
      */
     private int                   fiberVar;
+
+    /**
+     * If a pausable call is covered by an exception handler, the handler needs to know
+     * the fiber's depth at this method (see Fiber.upEx(int)). The prelude stores it in
+     * this slot, just beyond fiberVar. -1 if not needed.
+     */
+    private int                   depthVar = -1;
     private int                   numWordsInSig;
     private ArrayList<CallWeaver> callWeavers = new ArrayList<CallWeaver>(5);
 
@@ -73,6 +90,10 @@ public class MethodWeaver {
         maxVars = fiberVar + 1;
         maxStack = methodFlow.maxStack + 1; // plus Fiber 
         if (!mf.isAbstract()) {
+            if (hasPausableCallUnderHandler()) {
+                depthVar = fiberVar + 1;
+                maxVars = depthVar + 1;
+            }
             createCallWeavers();
         }
     }
@@ -291,6 +312,14 @@ public class MethodWeaver {
         }
         return false;
     }
+    private boolean hasPausableCallUnderHandler() {
+        for (BasicBlock bb : methodFlow.getBasicBlocks()) {
+            if (!bb.isPausable() || bb.startFrame==null || bb.isGetCurrentTask()) continue;
+            if (bb.handlers.size() > 0) return true;
+        }
+        return false;
+    }
+
     private void createCallWeavers() {
         MethodFlow mf = methodFlow;
         for (BasicBlock bb : mf.getBasicBlocks()) {
@@ -313,6 +342,9 @@ public class MethodWeaver {
      *     aload lastVar
      *     dup
      *     astore fiberVar 
+     *     dup                  ;; only if depthVar is needed
+     *     invokevirtual fiber.getDepth()
+     *     istore depthVar
      *     switch (fiber.pc) { 
      *       default: 0: START 
      *       1: F_PASS_DOWN 
@@ -346,6 +378,11 @@ public class MethodWeaver {
            return; 
         }
 
+        if (depthVar != -1) {
+            mv.visitInsn(DUP);
+            mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "getDepth", "()I", false);
+            mv.visitVarInsn(ISTORE, depthVar);
+        }
         mv.visitFieldInsn(GETFIELD, FIBER_CLASS, "pc", D_INT);
         // The prelude doesn't need more than two words in the stack.
         // The callweaver gen* methods may need more. 
@@ -364,7 +401,7 @@ public class MethodWeaver {
         
         errLabel.accept(mv);
         mv.visitVarInsn(ALOAD, getFiberVar());
-        mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "wrongPC", "()V");
+        mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "wrongPC", "()V", false);
         // Generate pass through down code, one for each pausable method
         // invocation
         int last = callWeavers.size() - 1;
@@ -413,7 +450,7 @@ public class MethodWeaver {
      * 
      * ; Figure out which pausable method could have caused this.
      * 
-     * switch (fiber.upEx()) {
+     * switch (fiber.upEx(depthVar)) {
      *    0: goto NORMAL_EXCEPTION_HANDLING;
      *    2: goto RESTORE_F
      * }
@@ -430,7 +467,8 @@ public class MethodWeaver {
         bb.startLabel.accept(mv);
         LabelNode resumeLabel = new LabelNode();
         VMType.loadVar(mv, VMType.TOBJECT, getFiberVar());
-        mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "upEx", "()I");
+        mv.visitVarInsn(ILOAD, depthVar);
+        mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "upEx", "(I)I", false);
         // fiber.pc is on stack
         LabelNode[] labels = new LabelNode[cwList.size()];
         int[] keys = new int[cwList.size()];
@@ -463,6 +501,10 @@ public class MethodWeaver {
         return fiberVar; // The first available slot
     }
 
+    int getDepthVar() {
+        return depthVar;
+    }
+
     void visitTryCatchBlocks(MethodVisitor mv) {
         MethodFlow mf = methodFlow;
         ArrayList<BasicBlock> bbs = mf.getBasicBlocks();
@@ -514,7 +556,7 @@ public class MethodWeaver {
                     mf.signature, ClassWeaver.toStringArray(mf.exceptions));
             mv.visitCode();
             visitAttrs(mv);
-            mv.visitMethodInsn(INVOKESTATIC, TASK_CLASS, "errNotWoven", "()V");
+            mv.visitMethodInsn(INVOKESTATIC, TASK_CLASS, "errNotWoven", "()V", false);
             
             String rdesc = TypeDesc.getReturnTypeDesc(mf.desc);
             // stack size depends on return type, because we want to load
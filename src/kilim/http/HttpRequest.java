@@ -17,7 +17,8 @@ import kilim.nio.EndPoint;
 /**
  * This object encapsulates a bytebuffer (via HttpMsg). HttpRequestParser creates an instance of this object, but only
  * converts a few of the important fields into Strings; the rest are maintained as ranges (offset + length) in the
- * bytebuffer. Use {@link #getHeader(String)} to get the appropriate field.
+ * bytebuffer. Use {@link #getHeader(String)} to get the appropriate field, and {@link #getKey(int)} (0 &lt;= i &lt;
+ * nFields) to list the header's keys.
  */
 public class HttpRequest extends HttpMsg {
     // All the header related members of this class are initialized by the HttpRequestParser class.
@@ -35,9 +36,11 @@ public class HttpRequest extends HttpMsg {
 
     public int    nFields;
     /**
-     * Keys present in the HTTP header
+     * Keys present in the HTTP header. Known header names are interned by the parser; the others are null until
+     * asked for. Not public, as a null here does not mean a missing key: read the keys with {@link #getKey(int)}.
      */
-    public String keys[];
+    String        keys[];
+    public int[]  keyRanges;
 
     // range variables encode the offset and length within the header. The strings corresponding
     // to these variables are created lazily.
@@ -46,6 +49,13 @@ public class HttpRequest extends HttpMsg {
     public int    queryStringRange;
     public int[]  valueRanges;
 
+    // Value ranges of the headers consulted for every request, filled in by addField. 0 if absent.
+    public int    hostRange;
+    public int    connectionRange;
+    public int    contentLengthRange;
+    public int    transferEncodingRange;
+    public int    teRange;
+
     public int    contentOffset;
     public int    contentLength;
 
@@ -54,23 +64,56 @@ public class HttpRequest extends HttpMsg {
      */
     public int    iread;
 
+    /**
+     * The session whose held-back responses must go out before this request waits for more bytes from the socket (see
+     * {@link HttpSession#batchResponses}); the client may not send the rest of this request until it has them.
+     */
+    HttpSession   flushBeforeRead;
+
     public HttpRequest() {
         keys = new String[5];
+        keyRanges = new int[5];
         valueRanges = new int[5];
     }
 
     /** 
      * Get the value for a given key
      * @param key
-     * @return null if the key is not present in the header.
+     * @return "" if the key is not present in the header.
      */
     public String getHeader(String key) {
+        int range = getHeaderRange(key);
+        return range == 0 ? "" : extractRange(range); // no point returning null
+    }
+
+    /**
+     * Like {@link #getHeader(String)}, but returns the value's range instead of creating a string.
+     * @return 0 if the key is not present in the header.
+     */
+    public int getHeaderRange(String key) {
+        for (int i = 0; i < nFields; i++) {
+            if (keys[i] == key) { // both interned; the common case
+                return valueRanges[i];
+            }
+        }
         for (int i = 0; i < nFields; i++) {
-            if (key.equalsIgnoreCase(keys[i])) {
-                return extractRange(valueRanges[i]);
+            int kr = keyRanges[i];
+            if (kr == 0 ? key.equalsIgnoreCase(keys[i]) : rangeEqualsIgnoreCase(kr, key)) {
+                return valueRanges[i];
             }
         }
-        return ""; // no point returning null
+        return 0;
+    }
+
+    /**
+     * @return the i'th header key, creating the string if the parser didn't recognize it as a known keyword.
+     */
+    public String getKey(int i) {
+        String key = keys[i];
+        if (key == null) {
+            key = keys[i] = extractRange(keyRanges[i]);
+        }
+        return key;
     }
 
     /**
@@ -85,7 +128,8 @@ public class HttpRequest extends HttpMsg {
     }
     
     public boolean keepAlive() {
-        return isOldHttp() ? "Keep-Alive".equals(getHeader("Connection;")) : !("close".equals(getHeader("Connection")));
+        return isOldHttp() ? rangeEqualsIgnoreCase(connectionRange, "Keep-Alive")
+                : !rangeEqualsIgnoreCase(connectionRange, "close");
     }
 
     public KeyValues getQueryComponents() {
@@ -142,7 +186,7 @@ public class HttpRequest extends HttpMsg {
                 "path = ").append(uriPath).append('\n').append("uri_fragment = ").append(uriFragment()).append('\n')
                 .append("query = ").append(getQueryComponents()).append('\n');
         for (int i = 0; i < nFields; i++) {
-            sb.append(keys[i]).append(": ").append(extractRange(valueRanges[i])).append('\n');
+            sb.append(getKey(i)).append(": ").append(extractRange(valueRanges[i])).append('\n');
         }
 
         return sb.toString();
@@ -158,7 +202,8 @@ public class HttpRequest extends HttpMsg {
     }
 
     /**
-     * Clear the request object so that it can be reused for the next message. 
+     * Clear the request object so that it can be reused for the next message. Bytes that were read past the end of
+     * the current message (pipelined requests) are moved to the front of the buffer.
      */
     public void reuse() {
         method = null;
@@ -167,28 +212,78 @@ public class HttpRequest extends HttpMsg {
         uriFragmentRange = queryStringRange = 0;
         contentOffset = 0;
         contentLength = 0;
+        hostRange = connectionRange = contentLengthRange = transferEncodingRange = teRange = 0;
 
         if (buffer != null) {
-            buffer.clear();
+            int end = buffer.position();
+            if (iread > 0 && iread < end) {
+                buffer.limit(end);
+                buffer.position(iread);
+                buffer.compact();
+            } else {
+                buffer.clear();
+            }
         }
+        iread = 0;
         for (int i = 0; i < nFields; i++) {
             keys[i] = null;
         }
         nFields = 0;
     }
 
+    /**
+     * @return true if the buffer already holds the complete header of another request, beyond the one last read.
+     */
+    public boolean hasBufferedRequest() {
+        if (buffer == null) {
+            return false;
+        }
+        int end = buffer.position();
+        byte[] bufa = buffer.array();
+        for (int i = iread + 3; i < end; i++) {
+            if (bufa[i] == LF && bufa[i - 1] == CR && bufa[i - 2] == LF && bufa[i - 3] == CR) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the bytes read past the end of prev's message into this request's buffer, for when a session doesn't
+     * reuse the same request object.
+     */
+    void takeBuffered(HttpRequest prev) {
+        if (prev.buffer == null) {
+            return;
+        }
+        int end = prev.buffer.position();
+        int n = end - prev.iread;
+        if (prev.iread == 0 || n <= 0) {
+            return;
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(Math.max(1024, n));
+        } else if (buffer.remaining() < n) {
+            buffer.flip();
+            buffer = ByteBuffer.allocate(buffer.limit() + n).put(buffer);
+        }
+        buffer.put(prev.buffer.array(), prev.iread, n);
+        prev.iread = end;
+    }
+
     
     /*
      * Internal methods 
      */
     public void readFrom(EndPoint endpoint) throws Pausable, IOException {
-        iread = 0;
         readHeader(endpoint);
         readBody(endpoint);
     }
 
     public void readHeader(EndPoint endpoint) throws Pausable, IOException {
-        buffer = ByteBuffer.allocate(1024);
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(1024); // kept across requests; reuse() clears it.
+        }
         int headerLength = 0;
         int n;
         do {
@@ -198,15 +293,9 @@ public class HttpRequest extends HttpMsg {
         // dumpBuffer(buffer);
         HttpRequestParser.initHeader(this, headerLength);
         contentOffset = headerLength; // doesn't mean there's necessarily any content.
-        String cl = getHeader("Content-Length");
-        if (cl.length() > 0) {
-            try {
-                contentLength = Integer.parseInt(cl);
-            } catch (NumberFormatException nfe) {
-                throw new IOException("Malformed Content-Length hdr");
-            }
-        } else if ((getHeader("Transfer-Encoding").indexOf("chunked") >= 0)
-                || (getHeader("TE").indexOf("chunked") >= 0)) {
+        if (contentLengthRange != 0 && (contentLengthRange >> 16) != (contentLengthRange & 0xFFFF)) {
+            contentLength = parseContentLength(contentLengthRange);
+        } else if (rangeContains(transferEncodingRange, "chunked") || rangeContains(teRange, "chunked")) {
             contentLength = -1;
         } else {
             contentLength = 0;
@@ -222,13 +311,93 @@ public class HttpRequest extends HttpMsg {
     }
 
     public void addField(String key, int valRange) {
+        addField(key, 0, valRange);
+    }
+
+    /**
+     * @param key an interned keyword, or null if keyRange is to be turned into a string on demand.
+     */
+    public void addField(String key, int keyRange, int valRange) {
         if (keys.length == nFields) {
             keys = (String[]) Utils.growArray(keys, 5);
+            keyRanges = Utils.growArray(keyRanges, 5);
             valueRanges = Utils.growArray(valueRanges, 5);
         }
         keys[nFields] = key;
+        keyRanges[nFields] = keyRange;
         valueRanges[nFields] = valRange;
         nFields++;
+        // HttpRequestParser.kw_lookup returns string literals, so identity comparisons suffice.
+        if (key == "Host") {
+            hostRange = valRange;
+        } else if (key == "Connection") {
+            connectionRange = valRange;
+        } else if (key == "Content-Length") {
+            contentLengthRange = valRange;
+        } else if (key == "Transfer-Encoding") {
+            transferEncodingRange = valRange;
+        } else if (key == "TE") {
+            teRange = valRange;
+        }
+    }
+
+    /**
+     * @return true if the bytes in range are an ASCII case-insensitive match of s. False if range is 0.
+     */
+    public boolean rangeEqualsIgnoreCase(int range, String s) {
+        int beg = range >> 16;
+        int end = range & 0xFFFF;
+        int len = s.length();
+        if (range == 0 || end - beg != len) {
+            return false;
+        }
+        byte[] bufa = buffer.array();
+        for (int i = 0; i < len; i++) {
+            if (toLower(bufa[beg + i]) != toLower(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if s (in lower case) occurs anywhere in range, ignoring case.
+     */
+    public boolean rangeContains(int range, String s) {
+        int beg = range >> 16;
+        int end = range & 0xFFFF;
+        int len = s.length();
+        byte[] bufa = buffer.array();
+        outer: for (int i = beg; i <= end - len; i++) {
+            for (int j = 0; j < len; j++) {
+                if (toLower(bufa[i + j]) != s.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static int toLower(int c) {
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+    private int parseContentLength(int range) throws IOException {
+        int beg = range >> 16;
+        int end = range & 0xFFFF;
+        byte[] bufa = buffer.array();
+        while (end > beg && (bufa[end - 1] == ' ' || bufa[end - 1] == '\t')) {
+            end--;
+        }
+        long len = 0;
+        for (int i = beg; i < end; i++) {
+            byte b = bufa[i];
+            if (b < b0 || b > b9 || (len = len * 10 + (b - b0)) > Integer.MAX_VALUE) {
+                throw new IOException("Malformed Content-Length hdr");
+            }
+        }
+        return (int) len;
     }
 
 
@@ -255,11 +424,17 @@ public class HttpRequest extends HttpMsg {
         } else if (contentLength == -1) {
             // CHUNKED
             readAllChunks(endpoint);
+            readTrailers(endpoint);
         }
-        readTrailers(endpoint);
     }
 
-    public void readTrailers(EndPoint endpoint) {
+    /**
+     * Skip the trailer fields after the last chunk, up to and including the terminating blank line, so that iread
+     * ends up at the start of the next (pipelined) request.
+     */
+    public void readTrailers(EndPoint endpoint) throws IOException, Pausable {
+        while (readLine(endpoint) > 2)
+            ;
     }
 
     /*
@@ -334,11 +509,23 @@ public class HttpRequest extends HttpMsg {
     }
 
     // topup if request's buffer doesn't have all the bytes yet.
+    /**
+     * Read at least atleastN more bytes into the buffer, first sending the responses held back by flushBeforeRead.
+     */
+    private ByteBuffer fill(EndPoint endpoint, int atleastN) throws IOException, Pausable {
+        HttpSession session = flushBeforeRead;
+        if (session != null) {
+            flushBeforeRead = null;
+            session.flush();
+        }
+        return endpoint.fill(buffer, atleastN);
+    }
+
     public void fill(EndPoint endpoint, int offset, int size) throws IOException, Pausable {
         int total = offset + size;
         int currentPos = buffer.position();
         if (total > buffer.position()) {
-            buffer = endpoint.fill(buffer, (total - currentPos));
+            buffer = fill(endpoint, (total - currentPos));
         }
     }
 
@@ -352,7 +539,7 @@ public class HttpRequest extends HttpMsg {
                 if (bufa[i] == CR) {
                     ++i;
                     if (i >= end) {
-                        buffer = endpoint.fill(buffer, 1);
+                        buffer = fill(endpoint, 1);
                         bufa = buffer.array(); // fill could have changed the buffer.
                         end = buffer.position();
                     }
@@ -365,7 +552,7 @@ public class HttpRequest extends HttpMsg {
                     return lineLength;
                 }
             }
-            buffer = endpoint.fill(buffer, 1); // no CRLF found. fill a bit more and start over.
+            buffer = fill(endpoint, 1); // no CRLF found. fill a bit more and start over.
         }
     }
 }
\ No newline at end of file
@@ -212,7 +212,8 @@ static final int http_parser_en_main = 1;
     // variables used by actions in http_req_parser machine above.
     int query_start = 0;
     int mark = 0;
-    String field_name = "";
+    String field_name = null;
+    int field_range = 0;
 
     
 // line 219 "HttpRequestParser.java"
@@ -313,17 +314,15 @@ case 1:
 	case 2:
 // line 35 "HttpRequestParser.rl"
 	{ 
-      field_name = kw_lookup(data, mark, p);
-      if (field_name == null) {// not a known keyword
-        field_name = req.extractRange(mark, p);
-      }
+      field_range = encodeRange(mark, p);
+      field_name = kw_lookup(data, mark, p - mark); // null if not a known keyword; see HttpRequest.getKey
     }
 	break;
 	case 3:
 // line 42 "HttpRequestParser.rl"
 	{
       int value = encodeRange(mark, p);
-      req.addField(field_name, value);
+      req.addField(field_name, field_range, value);
     }
 	break;
 	case 4:
@@ -1309,6 +1308,9 @@ case 5:
 
 // line 241 "HttpRequestParser.rl"
 
+    if (kw != null && kw.length() != len) {
+      kw = null; // only a prefix matched, as in "Hostname"
+    }
     return kw;
   }
 
@@ -33,15 +33,13 @@ public class HttpRequestParser {
     action start_query {query_start = fpc; }
 
     action extract_field_name { 
-      field_name = kw_lookup(data, mark, fpc);
-      if (field_name == null) {// not a known keyword
-        field_name = req.extractRange(mark, fpc);
-      }
+      field_range = encodeRange(mark, fpc);
+      field_name = kw_lookup(data, mark, fpc - mark); // null if not a known keyword; see HttpRequest.getKey
     }
 
     action extract_value {
       int value = encodeRange(mark, fpc);
-      req.addField(field_name, value);
+      req.addField(field_name, field_range, value);
     }
 
     action request_path {
@@ -152,7 +150,8 @@ public class HttpRequestParser {
     // variables used by actions in http_req_parser machine above.
     int query_start = 0;
     int mark = 0;
-    String field_name = "";
+    String field_name = null;
+    int field_range = 0;
 
     %% write init;
     %% write exec;
@@ -239,6 +238,9 @@ public class HttpRequestParser {
     %% write init;
     %% write exec;
 
+    if (kw != null && kw.length() != len) {
+      kw = null; // only a prefix matched, as in "Hostname"
+    }
     return kw;
   }
 
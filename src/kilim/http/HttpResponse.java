@@ -6,13 +6,13 @@
 
 package kilim.http;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Locale;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -125,14 +125,49 @@ public class HttpResponse extends HttpMsg {
     public ArrayList<String>                        keys                             = new ArrayList<String>();
     public ArrayList<String>                        values                           = new ArrayList<String>();
     public ExposedBaos                              bodyStream;
+    private ExposedBaos                             headerStream;
+    private final ByteBuffer[]                      headerAndBody                    = new ByteBuffer[2];
 
+    /**
+     * Not thread-safe; guarded by its own lock. See {@link #currentDate()}.
+     */
     public static final SimpleDateFormat            gmtdf;
 
     static {
-        gmtdf = new SimpleDateFormat("EEE, dd MMM yyyy hh:mm:ss");
+        gmtdf = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
         gmtdf.setTimeZone(TimeZone.getTimeZone("GMT:00"));
     }
 
+    private static volatile CachedDate              cachedDate                       = new CachedDate(0, null);
+
+    private static final class CachedDate {
+        final long   second;
+        final byte[] bytes;
+
+        CachedDate(long second, byte[] bytes) {
+            this.second = second;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * @return the value of the Date header. It has a resolution of a second, so it is formatted at most once a
+     *         second and shared by all responses.
+     */
+    public static byte[] currentDate() {
+        long now = System.currentTimeMillis();
+        long second = now / 1000;
+        CachedDate cd = cachedDate;
+        if (cd.second != second) {
+            byte[] b;
+            synchronized (gmtdf) {
+                b = gmtdf.format(new Date(second * 1000)).getBytes();
+            }
+            cd = cachedDate = new CachedDate(second, b);
+        }
+        return cd.bytes;
+    }
+
     public HttpResponse() {
         this(ST_OK);
     }
@@ -179,14 +214,12 @@ public class HttpResponse extends HttpMsg {
         return null;
     }
 
-    public void writeHeader(OutputStream os) throws IOException {
-        DataOutputStream dos = new DataOutputStream(os);
+    public void writeHeader(OutputStream dos) throws IOException {
         dos.write(PROTOCOL);
         dos.write(status);
 
         dos.write(F_DATE);
-        byte[] date = gmtdf.format(new Date()).getBytes();
-        dos.write(date);
+        dos.write(currentDate());
         dos.write(CRLF);
 
         dos.write(F_SERVER);
@@ -218,17 +251,42 @@ public class HttpResponse extends HttpMsg {
         return bodyStream;
     }
 
+    /**
+     * Write the header and the body with a single gathering write.
+     */
     public void writeTo(EndPoint endpoint) throws IOException, Pausable {
-        ExposedBaos headerStream = new ExposedBaos();
-        writeHeader(headerStream);
-        ByteBuffer bb = headerStream.toByteBuffer();
-        endpoint.write(bb);
-        if (bodyStream != null && bodyStream.size() > 0) {
-            bb = bodyStream.toByteBuffer();
-            endpoint.write(bb);
+        ByteBuffer[] bufs = headerAndBody;
+        bufs[0] = formatHeader();
+        bufs[1] = (bodyStream == null) ? EMPTY : bodyStream.toByteBuffer();
+        endpoint.write(bufs);
+        bufs[0] = bufs[1] = null;
+    }
+
+    /**
+     * Append the header and the body to os. Used to batch up the responses to pipelined requests.
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        writeHeader(os);
+        if (bodyStream != null) {
+            bodyStream.writeTo(os);
         }
     }
 
+    /**
+     * @return the header, formatted into a buffer that is reused by this response object.
+     */
+    public ByteBuffer formatHeader() throws IOException {
+        if (headerStream == null) {
+            headerStream = new ExposedBaos(256);
+        } else {
+            headerStream.reset();
+        }
+        writeHeader(headerStream);
+        return headerStream.toByteBuffer();
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
     public void setContentLength(long length) {
         addField("Content-Length", Long.toString(length));
     }
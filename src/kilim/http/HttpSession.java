@@ -8,15 +8,38 @@ package kilim.http;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import kilim.Pausable;
+import kilim.nio.ExposedBaos;
 import kilim.nio.SessionTask;
 
 /**
  * Responsible for creating an HTTPRequest object out of raw bytes from a socket, and for sending an HTTPResponse object
  * in its entirety.
+ * <p>
+ * Pipelined requests are read from the bytes left over after the previous request. If {@link #batchResponses} is set,
+ * responses are held back (copied into a batch) while the complete header of another request is already buffered,
+ * and the batch goes out together with the next response in a single gathering write. It also goes out as soon as
+ * reading a request has to wait for the socket, as the client may be waiting for those responses before it sends the
+ * rest (say, the body of a request with "Expect: 100-continue").
  */
 public class HttpSession extends SessionTask {
+    /**
+     * The most responses held back for one gathering write.
+     */
+    public static int     maxBatchedResponses = Integer.getInteger("kilim.http.maxBatchedResponses", 16);
+
+    /**
+     * Set this if every response is sent in its entirety by {@link #sendResponse(HttpResponse)}; a session that writes
+     * a body separately (e.g. straight from a file) must not batch, or must call {@link #flush()} first.
+     */
+    public boolean        batchResponses;
+
+    private HttpRequest   lastRequest;
+    private ExposedBaos   batch;
+    private int           numBatched;
+    private ByteBuffer[]  bufs;
 
     /**
      * Reads the socket, parses the HTTP headers and the body (including chunks) into the req object.
@@ -28,6 +51,12 @@ public class HttpSession extends SessionTask {
      */
     public HttpRequest readRequest(HttpRequest req) throws IOException, Pausable {
         req.reuse();
+        HttpRequest prev = lastRequest;
+        if (prev != null && prev != req) {
+            req.takeBuffered(prev);
+        }
+        lastRequest = req;
+        req.flushBeforeRead = (numBatched > 0) ? this : null;
         req.readFrom(endpoint);
         return req;
     }
@@ -47,10 +76,44 @@ public class HttpSession extends SessionTask {
      * header (in terms of encoding, length, chunking etc.)
      */
     public void sendResponse(HttpResponse resp) throws IOException, Pausable {
-        resp.writeTo(endpoint);
+        HttpRequest req = lastRequest;
+        if (batchResponses && req != null && numBatched < maxBatchedResponses && req.hasBufferedRequest()
+                && req.keepAlive()) {
+            if (batch == null) {
+                batch = new ExposedBaos(4096);
+            }
+            resp.writeTo(batch);
+            numBatched++;
+        } else if (numBatched > 0) {
+            if (bufs == null) {
+                bufs = new ByteBuffer[3];
+            }
+            bufs[0] = batch.toByteBuffer();
+            bufs[1] = resp.formatHeader();
+            bufs[2] = (resp.bodyStream == null) ? EMPTY : resp.bodyStream.toByteBuffer();
+            endpoint.write(bufs);
+            bufs[0] = bufs[1] = bufs[2] = null;
+            batch.reset();
+            numBatched = 0;
+        } else {
+            resp.writeTo(endpoint);
+        }
         resp.reuse();
     }
 
+    /**
+     * Write out the responses held back by {@link #sendResponse(HttpResponse)}, if any.
+     */
+    public void flush() throws IOException, Pausable {
+        if (numBatched > 0) {
+            endpoint.write(batch.toByteBuffer());
+            batch.reset();
+            numBatched = 0;
+        }
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
     static byte[] pre  = "<html><body><p>".getBytes();
     static byte[] post = "</body></html>".getBytes();
 
@@ -87,7 +87,41 @@ public class EndPoint extends Mailbox<SockEvent> { // Mailbox for receiving sock
             remaining -= n;
         }
     }
-    
+
+    /**
+     * Write the remaining bytes of all the buffers to dataChannel(), using gathering writes so that a batch of
+     * buffers usually goes out in a single system call.
+     */
+    public void write(ByteBuffer[] bufs) throws IOException, Pausable {
+        SocketChannel ch = dataChannel();
+        long remaining = 0;
+        for (ByteBuffer buf : bufs) {
+            remaining += buf.remaining();
+        }
+        if (remaining == 0)
+            return;
+        long n = ch.write(bufs);
+        remaining -= n;
+        int yieldCount = 0;
+        int first = 0;
+        while (remaining > 0) {
+            if (n == 0) {
+                yieldCount++;
+                if (yieldCount < YIELD_COUNT) {
+                    Task.yield(); // don't go back to selector yet.
+                } else {
+                    pauseUntilWritable();
+                    yieldCount = 0;
+                }
+            }
+            while (!bufs[first].hasRemaining()) {
+                first++;
+            }
+            n = ch.write(bufs, first, bufs.length - first);
+            remaining -= n;
+        }
+    }
+
     
 
     /**
@@ -8,19 +8,24 @@ package kilim.nio;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import kilim.LaneQueue;
 import kilim.Mailbox;
 import kilim.Pausable;
-import kilim.RingQueue;
 import kilim.Scheduler;
 import kilim.Task;
+import kilim.WorkerThread;
 import kilim.http.IntList;
+import zhmt.dawn.NonpausableTask;
 
 /**
  * This class wraps a selector and runs it in a separate thread.
@@ -29,6 +34,12 @@ import kilim.http.IntList;
  * {@link #listen(int, Class, Scheduler)}) as the number of new http connections. The supplied scheduler is used to
  * execute the tasks. It is possible, although not typical, to run tasks in the NioSelectorScheduler itself, as it too
  * is a scheduler.
+ * <p>
+ * One selector thread can only service so many sockets. Constructed with more than one selector (see
+ * {@link #NioSelectorScheduler(int, Balance)}, or <code>-Dkilim.nio.numSelectors</code>), the scheduler starts as many
+ * selector threads, each with its own selector and registration mailbox. Every selector accepts connections on each
+ * listening port, and hands the new channels to the selectors in turn or to the one with the fewest registered keys
+ * (<code>-Dkilim.nio.balance=roundrobin|leastload</code>). A channel stays with its selector for its whole life.
  * 
  * Usage is as follows:
  * <pre>
@@ -45,9 +56,45 @@ public class NioSelectorScheduler extends Scheduler {
     //TODO: Fix hardcoding
     public static int         LISTEN_BACKLOG  = 1000;
 
+    /**
+     * If set, each new session task is bound to one of its scheduler's worker threads (taken in
+     * turn) for its whole life, instead of resuming on whichever worker gets to it first. That
+     * keeps the session's buffers and parser state in one thread's caches. See
+     * {@link Task#bindToThread(kilim.WorkerThread)}. Set with -Dkilim.nio.affinity=true.
+     */
+    public static boolean     sessionAffinity = Boolean.getBoolean("kilim.nio.affinity");
+
+    /**
+     * The number of selectors started by the no-arg constructor.
+     */
+    public static int         defaultNumSelectors = Integer.getInteger("kilim.nio.numSelectors", 1);
+
+    public static Balance     defaultBalance  = Balance.parse(System.getProperty("kilim.nio.balance"),
+                                                      Balance.ROUND_ROBIN);
+
+    /**
+     * How accepted channels are spread over the selectors.
+     */
+    public enum Balance {
+        ROUND_ROBIN, LEAST_LOAD;
+
+        public static Balance parse(String s, Balance dflt) {
+            if (s == null) {
+                return dflt;
+            }
+            s = s.trim().toLowerCase();
+            if (s.equals("roundrobin") || s.equals("round_robin")) {
+                return ROUND_ROBIN;
+            } else if (s.equals("leastload") || s.equals("least_load")) {
+                return LEAST_LOAD;
+            }
+            return dflt;
+        }
+    }
+
     public Selector           sel;
     /* 
-     * The thread in which the selector runs. THe NioSelectorScheduler only runs one thread,
+     * The thread in which the selector runs. Each NioSelectorScheduler only runs one thread,
      * unlike typical schedulers that manage a pool of threads.
      */
     public SelectorThread     selectorThread;
@@ -57,14 +104,60 @@ public class NioSelectorScheduler extends Scheduler {
      * message on this mailbox. 
      */
     public Mailbox<SockEvent> registrationMbx = new Mailbox<SockEvent>(1000);
-    
+
+    /**
+     * All the selectors started together, this one included; the first one is the one
+     * constructed by the user.
+     */
+    final NioSelectorScheduler[] selectors;
+    final Balance                balance;
+    private final AtomicInteger  nextSelector;
+
+    /**
+     * Set by whoever wakes up the selector, cleared by the selector thread before it looks for
+     * runnable tasks. Only the first of many schedule() calls in between pays for a wakeup().
+     */
+    final AtomicBoolean          wakeupPending = new AtomicBoolean();
+
+    /**
+     * The number of keys registered with this selector as of its last select, plus the channels
+     * handed to it since.
+     */
+    final AtomicInteger          load          = new AtomicInteger();
 
     /**
      * @throws IOException
      */
     public NioSelectorScheduler() throws IOException {
+        this(defaultNumSelectors, defaultBalance);
+    }
+
+    /**
+     * @param numSelectors the number of selectors (and selector threads) to run.
+     * @param balance how to spread accepted channels over them.
+     * @throws IOException
+     */
+    public NioSelectorScheduler(int numSelectors, Balance balance) throws IOException {
+        this.balance = balance;
+        this.selectors = new NioSelectorScheduler[Math.max(numSelectors, 1)];
+        this.nextSelector = new AtomicInteger();
+        selectors[0] = this;
+        start("KilimSelector");
+        for (int i = 1; i < selectors.length; i++) {
+            selectors[i] = new NioSelectorScheduler(this, i);
+        }
+    }
+
+    private NioSelectorScheduler(NioSelectorScheduler first, int index) throws IOException {
+        this.balance = first.balance;
+        this.selectors = first.selectors;
+        this.nextSelector = first.nextSelector;
+        start("KilimSelector-" + index);
+    }
+
+    private void start(String threadName) throws IOException {
         this.sel = Selector.open();
-        selectorThread = new SelectorThread(this);
+        selectorThread = new SelectorThread(this, threadName);
         selectorThread.start();
         Task t = new RegistrationTask(registrationMbx, sel);
         t.setScheduler(this);
@@ -73,22 +166,68 @@ public class NioSelectorScheduler extends Scheduler {
 
     public int listen(int port, Class<? extends SessionTask> sockTaskClass, Scheduler sockTaskScheduler)
             throws IOException {
-        ListenTask t = new ListenTask(port, this, sockTaskClass);
-        t.setScheduler(this);
-        t.start();
-        return t.port(); 
+        ServerSocketChannel ssc = ListenTask.openChannel(port);
+        // Each selector accepts on the same channel.
+        for (NioSelectorScheduler s : selectors) {
+            ListenTask t = new ListenTask(ssc, s, sockTaskClass, sockTaskScheduler);
+            t.setScheduler(s);
+            t.start();
+        }
+        return ssc.socket().getLocalPort();
+    }
+
+    /**
+     * @return the selector to register a newly accepted channel with.
+     */
+    NioSelectorScheduler nextSelector() {
+        NioSelectorScheduler[] all = selectors;
+        NioSelectorScheduler ret;
+        if (all.length == 1) {
+            return all[0];
+        } else if (balance == Balance.LEAST_LOAD) {
+            ret = all[0];
+            for (int i = 1; i < all.length; i++) {
+                if (all[i].load.get() < ret.load.get()) {
+                    ret = all[i];
+                }
+            }
+        } else {
+            ret = all[(nextSelector.getAndIncrement() & Integer.MAX_VALUE) % all.length];
+        }
+        ret.load.incrementAndGet();
+        return ret;
     }
 
     @Override
     public void schedule(Task t) {
         addRunnable(t);
-        if (Thread.currentThread() != selectorThread) {
+        if (Thread.currentThread() != selectorThread && wakeupPending.compareAndSet(false, true)) {
             sel.wakeup();
         }
     }
 
+    /**
+     * Callbacks run on the selector thread, after the tasks that are runnable at the time.
+     */
+    @Override
+    public void schedule(NonpausableTask callback) {
+        callbacks.offer(callback);
+        if (Thread.currentThread() != selectorThread && wakeupPending.compareAndSet(false, true)) {
+            sel.wakeup();
+        }
+    }
+
+    /**
+     * Shuts down this selector, and if it is the one constructed by the user, all the others
+     * started with it.
+     */
     @Override
     public void shutdown() {
+        if (this == selectors[0]) {
+            for (int i = 1; i < selectors.length; i++) {
+                selectors[i].shutdown();
+            }
+        }
         super.shutdown();
         sel.wakeup();
     }
@@ -97,8 +236,8 @@ public class NioSelectorScheduler extends Scheduler {
         runnableTasks.put(t);
     }
 
-    synchronized RingQueue<Task> swapRunnables(RingQueue<Task> emptyRunnables) {
-        RingQueue<Task> ret = runnableTasks;
+    synchronized LaneQueue swapRunnables(LaneQueue emptyRunnables) {
+        LaneQueue ret = runnableTasks;
         runnableTasks = emptyRunnables;
         return ret;
     }
@@ -107,14 +246,18 @@ public class NioSelectorScheduler extends Scheduler {
         NioSelectorScheduler _scheduler;
 
         public SelectorThread(NioSelectorScheduler scheduler) {
-            super("KilimSelector");
+            this(scheduler, "KilimSelector");
+        }
+
+        public SelectorThread(NioSelectorScheduler scheduler, String name) {
+            super(name);
             _scheduler = scheduler;
         }
 
         @Override
         public void run() {
             Selector sel = _scheduler.sel;
-            RingQueue<Task> runnables = new RingQueue<Task>(100); // to swap with scheduler
+            LaneQueue runnables = new LaneQueue(100); // to swap with scheduler
             while (true) {
                 int n;
                 try {
@@ -134,11 +277,15 @@ public class NioSelectorScheduler extends Scheduler {
                         }
                         break;
                     }
-                    if (_scheduler.numRunnables() > 0) {
+                    // Clear the flag before looking for runnables: a task scheduled after the check
+                    // sets it again and wakes up the select below.
+                    _scheduler.wakeupPending.set(false);
+                    if (_scheduler.numRunnables() > 0 || !_scheduler.callbacks.isEmpty()) {
                         n = sel.selectNow();
                     } else {
                         n = sel.select();
                     }
+                    _scheduler.load.set(sel.keys().size());
                 } catch (IOException ignore) {
                     n = 0;
                     ignore.printStackTrace();
@@ -180,6 +327,7 @@ public class NioSelectorScheduler extends Scheduler {
                         }
                     }
                 }
+                _scheduler.runCallbacks(callbackBatch);
             }
         }
     }
@@ -190,23 +338,37 @@ public class NioSelectorScheduler extends Scheduler {
 
     public static class ListenTask extends SessionTask {
         Class<? extends SessionTask> sessionClass;
+        Scheduler                    sessionScheduler;
+        NioSelectorScheduler         selScheduler;
         ServerSocketChannel          ssc;
         int                          port;
 
         public ListenTask(int port, NioSelectorScheduler selScheduler, Class<? extends SessionTask> sessionClass)
                 throws IOException {
-            this.port = port;
+            this(openChannel(port), selScheduler, sessionClass, null);
+        }
+
+        /**
+         * @param ssc a bound, non-blocking server socket channel, possibly shared with the ListenTasks of other
+         *            selectors.
+         * @param sessionScheduler the scheduler for session tasks; the default scheduler if null.
+         */
+        public ListenTask(ServerSocketChannel ssc, NioSelectorScheduler selScheduler,
+                Class<? extends SessionTask> sessionClass, Scheduler sessionScheduler) throws IOException {
+            this.ssc = ssc;
+            this.port = ssc.socket().getLocalPort();
             this.sessionClass = sessionClass;
-            this.ssc = ServerSocketChannel.open();
+            this.sessionScheduler = sessionScheduler;
+            this.selScheduler = selScheduler;
+            setEndPoint(new EndPoint(selScheduler.registrationMbx, ssc));
+        }
+
+        static ServerSocketChannel openChannel(int port) throws IOException {
+            ServerSocketChannel ssc = ServerSocketChannel.open();
             ssc.socket().setReuseAddress(true);
             ssc.socket().bind(new InetSocketAddress(port), LISTEN_BACKLOG); //
             ssc.configureBlocking(false);
-            setEndPoint(new EndPoint(selScheduler.registrationMbx, ssc));
-        
-            // if port is automatically assigned then retrieve actual value
-            if(port == 0) {
-                this.port = ssc.socket().getLocalPort();
-            };    
+            return ssc;
         }
 
         public int port() {
@@ -233,8 +395,18 @@ public class NioSelectorScheduler extends Scheduler {
                     ch.configureBlocking(false);
                     SessionTask task = sessionClass.newInstance();
                     try {
-                        EndPoint ep = new EndPoint(this.endpoint.sockEvMbx, ch);
+                        EndPoint ep = new EndPoint(selScheduler.nextSelector().registrationMbx, ch);
                         task.setEndPoint(ep);
+                        if (task.getScheduler() == null) {
+                            task.setScheduler(sessionScheduler == null ? Scheduler.getDefaultScheduler()
+                                    : sessionScheduler);
+                        }
+                        if (sessionAffinity) {
+                            WorkerThread wt = task.getScheduler().nextWorker();
+                            if (wt != null) {
+                                task.bindToThread(wt);
+                            }
+                        }
                         n++;
                         // System.out.println("Num sessions created:" + n);
                         task.start();
@@ -261,8 +433,15 @@ public class NioSelectorScheduler extends Scheduler {
         public void execute() throws Pausable, Exception {
             while (true) {
                 SockEvent ev = mbx.get();
-                SelectionKey sk = ev.ch.register(selector, ev.interestOps);
-                sk.attach(ev);
+                // Register everything that has piled up before going back to select().
+                do {
+                    try {
+                        SelectionKey sk = ev.ch.register(selector, ev.interestOps);
+                        sk.attach(ev);
+                    } catch (ClosedChannelException ignore) {
+                        // The session closed its channel in the meantime.
+                    }
+                } while ((ev = mbx.getnb()) != null);
             }
         }
     }
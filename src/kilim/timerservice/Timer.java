@@ -0,0 +1,95 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.timerservice;
+
+import kilim.EventPublisher;
+import kilim.EventSubscriber;
+import kilim.PauseReason;
+import kilim.Task;
+
+/**
+ * A reusable timeout for one subscriber, typically a task (see {@link Task#taskTimer}). Only the
+ * subscriber's own thread of control may call setTimer() and cancel(). Usage:
+ * <pre>
+ *   t.taskTimer.setTimer(timeoutMillis);
+ *   Task.pause(this);  // until an event or the timeout
+ *   t.taskTimer.cancel();
+ * </pre>
+ * The timer is an {@link EventPublisher}; when it expires, it calls
+ * <code>target.onEvent(timer, Mailbox.timedOut)</code>. It is also a {@link PauseReason} that stays
+ * valid until the timer expires, which is all Task.sleep() needs.
+ * <p>
+ * Arming and cancelling allocates nothing, once the timer has its entries. If the task was moved
+ * to another worker in between, the cancelled entry is left for its shard to unlink, and the next
+ * setTimer() uses a spare; a new entry is allocated only if neither has been handed back yet.
+ */
+public class Timer implements EventPublisher, PauseReason {
+    private final EventSubscriber target;
+    private TimerEntry            entry;
+    /** The previous entry, possibly still awaiting its shard's acknowledgement of a cancel. */
+    private TimerEntry            spare;
+
+    public Timer(EventSubscriber target) {
+        this.target = target;
+    }
+
+    /**
+     * Arm the timer, cancelling any previous timeout.
+     */
+    public void setTimer(long timeoutMillis) {
+        cancel();
+        TimerEntry e = entry;
+        if (e == null || e.state != TimerEntry.IDLE) {
+            TimerEntry s = spare;
+            if (s == null || s.state != TimerEntry.IDLE) {
+                s = new TimerEntry();
+            }
+            spare = e;
+            entry = e = s;
+        }
+        long now = System.currentTimeMillis();
+        long exeTime = timeoutMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeoutMillis;
+        TimerService.current().add(e, target, this, exeTime);
+    }
+
+    /**
+     * Disarm the timer, and forget whether it had expired.
+     */
+    public void cancel() {
+        TimerEntry e = entry;
+        if (e == null) {
+            return;
+        }
+        int st = e.state;
+        if (st == TimerEntry.IDLE || st == TimerEntry.CANCELLED) {
+            return; // a CANCELLED entry goes IDLE when its shard is done with it
+        }
+        if (e.shard.cancel(e)) {
+            e.state = TimerEntry.IDLE;
+        }
+    }
+
+    /**
+     * @return true if the timer was set and has expired since.
+     */
+    public boolean isExpired() {
+        TimerEntry e = entry;
+        return e != null && e.state == TimerEntry.FIRED;
+    }
+
+    /**
+     * Valid (that is, keep pausing) until the timer expires.
+     */
+    public boolean isValid(Task t) {
+        return !isExpired();
+    }
+
+    @Override
+    public String toString() {
+        return "Timer(" + entry + ")";
+    }
+}
@@ -0,0 +1,57 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.timerservice;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import kilim.EventPublisher;
+import kilim.EventSubscriber;
+import zhmt.dawn.TimerExe;
+import zhmt.dawn.util.TimerNode;
+
+/**
+ * One arming of a {@link Timer}, as held in a {@link TimerService}'s wheel. The state word
+ * decides the race between the shard firing the entry and some other thread cancelling it:
+ * whoever moves it out of ARMED first wins.
+ */
+final class TimerEntry extends TimerNode {
+    /** not in any wheel; free to be armed */
+    static final int IDLE      = 0;
+    /** in the shard's wheel */
+    static final int ARMED     = 1;
+    static final int FIRED     = 2;
+    /** cancelled by a thread other than the owner; in the shard's inbox, until the owner unlinks it */
+    static final int CANCELLED = 3;
+
+    private static final AtomicIntegerFieldUpdater<TimerEntry> stateUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(TimerEntry.class, "state");
+
+    volatile int    state;
+    long            exeTime;
+    EventSubscriber target;
+    EventPublisher  source;
+    TimerService    shard;
+    /** link in the shard's inbox */
+    TimerEntry      nextInInbox;
+
+    boolean cas(int expect, int update) {
+        return stateUpdater.compareAndSet(this, expect, update);
+    }
+
+    public long getExeTime() {
+        return exeTime;
+    }
+
+    public Type getType() {
+        return TimerExe.Type.Task;
+    }
+
+    @Override
+    public String toString() {
+        return "TimerEntry(state=" + state + ", exeTime=" + exeTime + ", target=" + target + ")";
+    }
+}
@@ -0,0 +1,307 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.timerservice;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import kilim.EventPublisher;
+import kilim.EventSubscriber;
+import kilim.Mailbox;
+import kilim.WorkerThread;
+import zhmt.dawn.util.CascadeTimerWheel;
+
+/**
+ * A shard of kilim's timer service: a {@link CascadeTimerWheel} owned by one thread. Every
+ * WorkerThread has a shard, which it services between tasks and while idle; a timer armed by a
+ * task goes into the shard of the worker the task is running on, without any synchronization.
+ * Threads that are not workers use a shared shard, serviced by a daemon thread of its own and
+ * guarded by its monitor; they arm and cancel their timers in it directly.
+ * <p>
+ * Cancelling an armed entry is O(1). The owner unlinks it at once. Any other thread (the task
+ * has moved to another worker since it armed the timer) marks it cancelled and posts it to the
+ * shard's lock-free inbox. The owner unlinks it, and hands it back to its {@link Timer} for reuse,
+ * the next time it services its timers; only if the owner is parked is it woken up for that.
+ * <p>
+ * Expired timers call <code>target.onEvent(source, Mailbox.timedOut)</code> on the owner's thread.
+ * A worker services its shard between tasks, so a task that keeps its worker for a long time
+ * delays the timers armed on that worker, even if other workers are idle. A scheduler's time slice
+ * ({@link kilim.Scheduler#setTimeSlice(long)}) bounds the delay for code woven to heed it; code
+ * that blocks the thread, or is not woven so, delays them for as long as it runs.
+ */
+public class TimerService {
+    private static final long                     TICK_PERIOD  = 1;
+    private static final int[]                    WHEEL_LEVELS = {256, 64, 64, 64, 64};
+
+    private final CascadeTimerWheel<TimerEntry>   wheel        =
+            new CascadeTimerWheel<TimerEntry>(TICK_PERIOD, WHEEL_LEVELS);
+    private final Thread                          owner;
+    /** Cancelled entries posted by other threads; worker shards only. */
+    private final AtomicReference<TimerEntry>     inbox        = new AtomicReference<TimerEntry>();
+    /** Set while the owner is parked in {@link #park(Object)}. */
+    private volatile boolean                      sleeping;
+
+    /** The shared shard is guarded by its monitor, rather than confined to its owner. */
+    private final boolean                         locked;
+    /** When the shared shard's thread is due to wake up; 0 while it is awake. Set under the monitor. */
+    private volatile long                         wakeAt;
+
+    private static volatile TimerService          shared;
+
+    public TimerService(Thread owner) {
+        this(owner, false);
+    }
+
+    private TimerService(Thread owner, boolean locked) {
+        this.owner = owner;
+        this.locked = locked;
+    }
+
+    /**
+     * @return the shard for timers armed by the calling thread.
+     */
+    public static TimerService current() {
+        Thread t = Thread.currentThread();
+        if (t instanceof WorkerThread) {
+            return ((WorkerThread) t).getTimerService();
+        }
+        return shared();
+    }
+
+    static TimerService shared() {
+        TimerService ts = shared;
+        if (ts == null) {
+            synchronized (TimerService.class) {
+                ts = shared;
+                if (ts == null) {
+                    Thread th = new Thread("KilimTimer") {
+                        public void run() {
+                            shared.loop();
+                        }
+                    };
+                    th.setDaemon(true);
+                    shared = ts = new TimerService(th, true);
+                    th.start();
+                }
+            }
+        }
+        return ts;
+    }
+
+    /**
+     * Arm e to fire at e.exeTime. Called by the thread that armed the timer, which is the owner
+     * unless this is the shared shard.
+     */
+    void add(TimerEntry e, EventSubscriber target, EventPublisher source, long exeTime) {
+        e.target = target;
+        e.source = source;
+        e.exeTime = exeTime;
+        e.shard = this;
+        if (locked) {
+            synchronized (this) {
+                e.state = TimerEntry.ARMED;
+                wheel.add(e);
+            }
+            if (exeTime < wakeAt) {
+                LockSupport.unpark(owner); // to wake up earlier than it meant to
+            }
+        } else {
+            assert Thread.currentThread() == owner : "Timer armed in another thread's shard";
+            e.state = TimerEntry.ARMED;
+            wheel.add(e);
+        }
+    }
+
+    /**
+     * Cancel e unless it has already fired.
+     * @return true if e is out of this shard's hands, and may be armed again right away; false if
+     *         the owner has yet to unlink it, after which it sets e's state to IDLE.
+     */
+    boolean cancel(TimerEntry e) {
+        if (locked) {
+            synchronized (this) {
+                if (e.state == TimerEntry.ARMED) {
+                    wheel.remove(e);
+                }
+            }
+            return true;
+        }
+        if (e.cas(TimerEntry.ARMED, TimerEntry.CANCELLED)) {
+            if (Thread.currentThread() == owner) {
+                wheel.remove(e);
+                return true;
+            }
+            post(e);
+            if (sleeping) {
+                LockSupport.unpark(owner);
+            }
+            return false;
+        }
+        // fired (or never armed); the wheel no longer refers to it.
+        return true;
+    }
+
+    private void post(TimerEntry e) {
+        while (true) {
+            TimerEntry h = inbox.get();
+            e.nextInInbox = h;
+            if (inbox.compareAndSet(h, e)) {
+                return;
+            }
+        }
+    }
+
+    private void drainInbox() {
+        if (inbox.get() == null) {
+            return;
+        }
+        TimerEntry e = inbox.getAndSet(null);
+        while (e != null) {
+            // Read the link first: once e is IDLE, its Timer may arm and cancel it again.
+            TimerEntry next = e.nextInInbox;
+            e.nextInInbox = null;
+            wheel.remove(e);
+            e.state = TimerEntry.IDLE;
+            e = next;
+        }
+    }
+
+    /**
+     * Fire all expired timers. Must be called by the owner thread only.
+     */
+    public void service() {
+        if (locked) {
+            TimerEntry e;
+            while ((e = pollExpired(System.currentTimeMillis())) != null) {
+                e.target.onEvent(e.source, Mailbox.timedOut);
+            }
+            return;
+        }
+        drainInbox();
+        if (wheel.size() == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        fireCurrent();
+        while (wheel.canTick(now)) {
+            wheel.tick();
+            fireCurrent();
+        }
+    }
+
+    private void fireCurrent() {
+        TimerEntry e;
+        while ((e = wheel.pollFirst()) != null) {
+            // Read the fields before the CAS; after it the owning Timer may re-arm e.
+            EventSubscriber target = e.target;
+            EventPublisher source = e.source;
+            // A cancelled entry is left for drainInbox, as it is in the inbox too.
+            if (e.cas(TimerEntry.ARMED, TimerEntry.FIRED)) {
+                target.onEvent(source, Mailbox.timedOut);
+            }
+        }
+    }
+
+    /**
+     * The shared shard's service: the next expired entry, marked FIRED, or null.
+     */
+    private synchronized TimerEntry pollExpired(long now) {
+        while (wheel.size() > 0) {
+            TimerEntry e = wheel.pollFirst();
+            if (e != null) {
+                e.state = TimerEntry.FIRED;
+                return e;
+            }
+            if (!wheel.canTick(now)) {
+                break;
+            }
+            wheel.tick();
+        }
+        return null;
+    }
+
+    /**
+     * @return true if there are no timers pending in this shard. Owner thread only.
+     */
+    public boolean isEmpty() {
+        return size() == 0 && inbox.get() == null;
+    }
+
+    /**
+     * @return how long the owner may park before the next timer is due; 0 if one is due now,
+     *         and Long.MAX_VALUE if there are no timers.
+     */
+    public long nanosToNextTimer() {
+        if (inbox.get() != null) {
+            return 0;
+        }
+        if (locked) {
+            synchronized (this) {
+                return nanosToNextTick();
+            }
+        }
+        return nanosToNextTick();
+    }
+
+    private long nanosToNextTick() {
+        long ticks = wheel.ticksToNextEvent();
+        if (ticks == Long.MAX_VALUE) {
+            return ticks;
+        }
+        long millis = wheel.getTickStamp() + ticks * TICK_PERIOD - System.currentTimeMillis();
+        return millis <= 0 ? 0 : millis * 1000000L;
+    }
+
+    /**
+     * Park the owner until the next timer is due, or until it is unparked. Owner thread only.
+     */
+    public void park(Object blocker) {
+        sleeping = true;
+        // Checks the inbox after setting sleeping, which cancel() reads after posting.
+        long nanos = nanosToNextTimer();
+        if (nanos == Long.MAX_VALUE) {
+            LockSupport.park(blocker);
+        } else if (nanos > 0) {
+            LockSupport.parkNanos(blocker, nanos);
+        }
+        sleeping = false;
+    }
+
+    public int size() {
+        if (locked) {
+            synchronized (this) {
+                return wheel.size();
+            }
+        }
+        return wheel.size();
+    }
+
+    private void loop() {
+        while (true) {
+            service();
+            long nanos;
+            synchronized (this) {
+                nanos = nanosToNextTick();
+                if (nanos == 0) {
+                    continue;
+                }
+                wakeAt = nanos == Long.MAX_VALUE ? nanos : System.currentTimeMillis() + nanos / 1000000L;
+            }
+            if (nanos == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, nanos);
+            }
+            wakeAt = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TimerService(" + owner.getName() + ", size=" + size() + ")";
+    }
+}
@@ -20,6 +20,7 @@ import kilim.KilimException;
 import kilim.analysis.ClassInfo;
 import kilim.analysis.ClassWeaver;
 import kilim.analysis.FileLister;
+import kilim.analysis.MethodWeaver;
 import kilim.mirrors.CachedClassMirrors;
 import kilim.mirrors.Detector;
 
@@ -203,6 +204,8 @@ public class Weaver {
         System.err.println("java kilim.tools.Weaver opts -d <outputDir> (class/directory/jar)+");
         System.err.println("   where opts are   -q : quiet");
         System.err.println("                    -x <regex> : exclude all classes matching regex");
+        System.err.println("                    -p : recycle State objects through per-thread pools");
+        System.err.println("                    -y : yield on loop back-edges once a task's time slice is up");
         System.exit(1);
     }
 
@@ -223,6 +226,10 @@ public class Weaver {
             } else if (arg.equals("-x")) {
                 regex = args[++i];
                 excludePattern = Pattern.compile(regex);
+            } else if (arg.equals("-p")) {
+                ClassWeaver.poolStates = true;
+            } else if (arg.equals("-y")) {
+                MethodWeaver.preemptLoops = true;
             } else {
                 ret.add(arg);
             }
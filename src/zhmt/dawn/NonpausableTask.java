@@ -1,9 +1,20 @@
 package zhmt.dawn;
 
+import kilim.Event;
+import kilim.EventPublisher;
+import kilim.EventSubscriber;
 import kilim.Scheduler;
-
-public class NonpausableTask implements TimerExe {
+import kilim.WorkerThread;
+import kilim.timerservice.Timer;
+
+/**
+ * A plain callback, run on a scheduler's worker thread without a fiber. It can't pause; its job is
+ * typically to resume a task. See {@link Scheduler#schedule(NonpausableTask)}.
+ */
+public class NonpausableTask implements TimerExe, EventSubscriber {
 	public long exeTime;
+	private Scheduler scheduler;
+	private Timer timer;
 
 	public void execute() {
 
@@ -19,9 +30,33 @@ public class NonpausableTask implements TimerExe {
 		return TimerExe.Type.CallbackTimerTask;
 	}
 
+	/**
+	 * Run this callback once startTime (in ms) has passed, on the scheduler of the calling worker
+	 * thread, or on the default scheduler if the caller isn't a worker. The timer is armed in the
+	 * caller's timer shard, so start() and a later start() must be called by the same thread.
+	 */
 	public void start(long startTime) {
 		this.exeTime = startTime;
-//		Scheduler.getDefaultScheduler().schedule(this);
+		Thread t = Thread.currentThread();
+		scheduler = (t instanceof WorkerThread) ? ((WorkerThread) t).getScheduler() : Scheduler
+				.getDefaultScheduler();
+		long delay = startTime - System.currentTimeMillis();
+		if (delay <= 0) {
+			scheduler.schedule(this);
+			return;
+		}
+		if (timer == null) {
+			timer = new Timer(this);
+		}
+		timer.setTimer(delay);
+	}
+
+	/**
+	 * Called by the timer service on expiry.
+	 */
+	@Override
+	public void onEvent(EventPublisher ep, Event e) {
+		scheduler.schedule(this);
 	}
 
 }
@@ -0,0 +1,77 @@
+package zhmt.dawn.concurrent;
+
+import java.util.ArrayList;
+
+import kilim.Pausable;
+import kilim.Task;
+
+/**
+ * A CountDownLatch for fibers: await() pauses the fiber, not its thread, until
+ * the count reaches zero. Counting down may be done from any thread, fiber or
+ * not.
+ */
+public class FiberCountDownLatch {
+	private int count;
+	private ArrayList<WaitCtx> waiters = new ArrayList<WaitCtx>();
+
+	public FiberCountDownLatch(int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("count < 0");
+		}
+		this.count = count;
+	}
+
+	public void countDown() {
+		ArrayList<WaitCtx> ws;
+		synchronized (this) {
+			if (count == 0 || --count > 0) {
+				return;
+			}
+			ws = waiters;
+			waiters = null;
+		}
+		for (WaitCtx ctx : ws) {
+			ctx.grant();
+		}
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	public void await() throws Pausable {
+		WaitCtx ctx = enqueue(Task.getCurrentTask());
+		if (ctx != null) {
+			WaitQueue.await(ctx);
+		}
+	}
+
+	/**
+	 * @return true if the count reached zero, false if timeoutMillis passed
+	 *         first
+	 */
+	public boolean await(long timeoutMillis) throws Pausable {
+		WaitCtx ctx = enqueue(Task.getCurrentTask());
+		if (ctx == null) {
+			return true;
+		}
+		if (WaitQueue.await(ctx, timeoutMillis)) {
+			return true;
+		}
+		synchronized (this) {
+			if (waiters != null) {
+				waiters.remove(ctx);
+			}
+		}
+		return false;
+	}
+
+	private synchronized WaitCtx enqueue(Task t) {
+		if (count == 0) {
+			return null;
+		}
+		WaitCtx ctx = new WaitCtx(t);
+		waiters.add(ctx);
+		return ctx;
+	}
+}
@@ -0,0 +1,143 @@
+package zhmt.dawn.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import kilim.Pausable;
+import kilim.Task;
+
+/**
+ * A read-write lock for fibers: any number of readers, or one writer. Waiting
+ * fibers are paused, never their threads, and nothing is pinned, so the lock
+ * may be held across pauses and shared by fibers on any threads.
+ * <p>
+ * Waiters are served in FIFO order. Once a writer is waiting, new readers
+ * queue behind it, so a steady stream of readers can't starve writers; when
+ * the writer is done, the run of readers queued behind it is let in at once.
+ * <p>
+ * The lock is not reentrant. The monitor guards only the counts and the waiter
+ * queue; it is never held across a pause.
+ */
+public class FiberReadWriteLock {
+	private static final int READ = 0;
+	private static final int WRITE = 1;
+
+	private int readers = 0;
+	private boolean writer = false;
+	private final ArrayDeque<WaitCtx> waiters = new ArrayDeque<WaitCtx>();
+
+	public void readLock() throws Pausable {
+		WaitCtx ctx = enqueue(Task.getCurrentTask(), READ);
+		if (ctx != null) {
+			WaitQueue.await(ctx);
+		}
+	}
+
+	/**
+	 * @return false if the read lock couldn't be had within timeoutMillis
+	 */
+	public boolean tryReadLock(long timeoutMillis) throws Pausable {
+		return tryLock(READ, timeoutMillis);
+	}
+
+	public synchronized void readUnlock() {
+		if (readers <= 0) {
+			throw new IllegalStateException("Read lock not held");
+		}
+		if (--readers == 0) {
+			dispatch();
+		}
+	}
+
+	public void writeLock() throws Pausable {
+		WaitCtx ctx = enqueue(Task.getCurrentTask(), WRITE);
+		if (ctx != null) {
+			WaitQueue.await(ctx);
+		}
+	}
+
+	/**
+	 * @return false if the write lock couldn't be had within timeoutMillis
+	 */
+	public boolean tryWriteLock(long timeoutMillis) throws Pausable {
+		return tryLock(WRITE, timeoutMillis);
+	}
+
+	public synchronized void writeUnlock() {
+		if (!writer) {
+			throw new IllegalStateException("Write lock not held");
+		}
+		writer = false;
+		dispatch();
+	}
+
+	public synchronized int getReadLockCount() {
+		return readers;
+	}
+
+	public synchronized boolean isWriteLocked() {
+		return writer;
+	}
+
+	private boolean tryLock(int mode, long timeoutMillis) throws Pausable {
+		WaitCtx ctx = enqueue(Task.getCurrentTask(), mode);
+		if (ctx == null) {
+			return true;
+		}
+		if (WaitQueue.await(ctx, timeoutMillis)) {
+			return true;
+		}
+		withdraw(ctx);
+		return false;
+	}
+
+	/**
+	 * @return null if the lock was taken, else the ctx to wait on.
+	 */
+	private synchronized WaitCtx enqueue(Task t, int mode) {
+		if (waiters.isEmpty() && !writer) {
+			if (mode == READ) {
+				readers++;
+				return null;
+			} else if (readers == 0) {
+				writer = true;
+				return null;
+			}
+		}
+		WaitCtx ctx = new WaitCtx(t);
+		ctx.arg = mode;
+		waiters.add(ctx);
+		return ctx;
+	}
+
+	/**
+	 * A timed-out waiter leaves the queue; if it was a writer at the head,
+	 * the readers behind it may now go.
+	 */
+	private synchronized void withdraw(WaitCtx ctx) {
+		waiters.remove(ctx);
+		dispatch();
+	}
+
+	private void dispatch() {
+		Iterator<WaitCtx> it = waiters.iterator();
+		while (it.hasNext() && !writer) {
+			WaitCtx ctx = it.next();
+			if (!ctx.isWaiting()) { // timed out, about to withdraw
+				it.remove();
+				continue;
+			}
+			if (ctx.arg == WRITE && readers > 0) {
+				return;
+			}
+			it.remove();
+			if (ctx.grant()) {
+				if (ctx.arg == WRITE) {
+					writer = true;
+				} else {
+					readers++;
+				}
+			}
+		}
+	}
+}
@@ -1,33 +1,48 @@
 package zhmt.dawn.concurrent;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import kilim.Pausable;
 import kilim.Task;
-import zhmt.dawn.util.SimpleLinkedList;
 
 /**
- * A ReentrantLock can be used in scheduler between fibers only.
+ * A ReentrantLock for fibers. Waiting fibers are paused, never their threads,
+ * and the lock can be shared by fibers on any worker thread of any scheduler;
+ * unlike kilim.ReentrantLock, the owner isn't pinned to its thread.
+ * <p>
+ * The lock is fair: release() hands ownership straight to the oldest waiter
+ * that hasn't timed out, without freeing the lock in between, so a newcomer
+ * can't barge in ahead of the queue. The lock is only freed when no waiter is
+ * linked in. A fiber that queues up while a release() finds the queue empty
+ * re-checks the lock once it is linked in, and the releaser re-checks the
+ * queue after freeing the lock, so neither can miss the other.
  * 
  * @author zhmt
  * @createdate 2015年6月14日 下午5:41:40
  */
 public class FiberReentrantLock {
-	private final SimpleLinkedList<Task> waiters = new SimpleLinkedList<>();
-	private Task owner = null;
-	private int ref = 0;
+	/** 1 while held or being handed to a waiter, 0 when free */
+	private final AtomicInteger state = new AtomicInteger();
+	private final WaitQueue waiters = new WaitQueue();
+	private volatile Task owner = null;
+	private int ref = 0; // owner only
 
 	public void lock() throws Pausable {
 		Task curTask = Task.getCurrentTask();
-		if (owner == null) {
-			owner = curTask;
-			ref++;
-			return;
-		}
 		if (owner == curTask) {
 			ref++;
 			return;
 		}
-		waiters.add(Task.getCurrentTask());
-		Task.yield();
+		if (!state.compareAndSet(0, 1)) {
+			WaitCtx ctx = waiters.add(curTask);
+			// A release() may have found the queue empty before we were linked in.
+			if (!(state.compareAndSet(0, 1) && ctx.cancel())) {
+				WaitQueue.await(ctx);
+				// ownership was handed to us by release()
+			}
+		}
+		owner = curTask;
+		ref = 1;
 	}
 
 	public void release() throws Pausable {
@@ -38,38 +53,66 @@ public class FiberReentrantLock {
 
 		ref--;
 		if (ref <= 0) {
-			owner = waiters.size() > 0 ? waiters.removeFirst() : null;
-			if (owner != null)
-				owner.resume();
+			ref = 0;
+			owner = null;
+			handOff();
+		}
+	}
+
+	/**
+	 * Pass the lock to the oldest waiter that hasn't timed out, or free it if
+	 * no waiter is linked in.
+	 */
+	private void handOff() {
+		while (waiters.grantFirst(null) == null) {
+			state.set(0);
+			// A waiter linked in since the poll either sees the lock free, or
+			// is left for us to wake if we can take the lock back first.
+			if (waiters.isEmpty() || !state.compareAndSet(0, 1)) {
+				return;
+			}
 		}
 	}
 
+	/**
+	 * Acquire the lock, waiting at most timeout ms.
+	 * 
+	 * @throws RuntimeException
+	 *             "TimeoutException" if the lock couldn't be had in time
+	 */
 	public void tryLock(long timeout) throws Pausable {
 		final Task curTask = Task.getCurrentTask();
 
 		//could acquire lock directly.
-		if (owner == null) {
-			owner = curTask;
-			ref++;
-			return;
-		}
 		if (owner == curTask) {
 			ref++;
 			return;
 		}
-
-		//wait for lock is available, or timeout.
-		waiters.add(curTask);
-		final TimerResumer timerResumer = TimerResumer.timerResumerPool.getOne();
-		timerResumer.curTask = curTask;
-		timerResumer.start(System.currentTimeMillis() + timeout);
-		Task.yield();
-		if (timerResumer.timeout) {
-			waiters.remove(curTask);
-			TimerResumer.timerResumerPool.returnOne(timerResumer);
-			throw new RuntimeException("TimeoutException");
-		} else {
-			timerResumer.canceled = true;
+		if (!state.compareAndSet(0, 1)) {
+			WaitCtx ctx = waiters.add(curTask);
+			if (!(state.compareAndSet(0, 1) && ctx.cancel())) {
+				//wait for the lock to be handed to us, or timeout. A timed-out
+				//ctx is skipped by the next release().
+				if (!WaitQueue.await(ctx, timeout)) {
+					throw new RuntimeException("TimeoutException");
+				}
+			}
 		}
+		owner = curTask;
+		ref = 1;
+	}
+
+	/**
+	 * @return true if the lock is held by, or being handed to, some fiber.
+	 */
+	public boolean isLocked() {
+		return state.get() != 0;
+	}
+
+	/**
+	 * @return true if the current fiber holds the lock.
+	 */
+	public boolean isHeldByCurrentTask() throws Pausable {
+		return owner == Task.getCurrentTask();
 	}
 }
@@ -0,0 +1,120 @@
+package zhmt.dawn.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import kilim.Pausable;
+import kilim.Task;
+
+/**
+ * A counting semaphore for fibers. Waiting fibers are paused, never their
+ * threads, and are served in FIFO order: a waiter wanting many permits is not
+ * overtaken by later, smaller requests. Fibers on any threads may share it.
+ * <p>
+ * The monitor guards only the permit count and the waiter queue; it is never
+ * held across a pause.
+ */
+public class FiberSemaphore {
+	private int permits;
+	private final ArrayDeque<WaitCtx> waiters = new ArrayDeque<WaitCtx>();
+
+	public FiberSemaphore(int permits) {
+		this.permits = permits;
+	}
+
+	public void acquire() throws Pausable {
+		acquire(1);
+	}
+
+	public void acquire(int n) throws Pausable {
+		WaitCtx ctx = enqueue(Task.getCurrentTask(), n);
+		if (ctx != null) {
+			WaitQueue.await(ctx);
+		}
+	}
+
+	/**
+	 * @return true if the permits were had without waiting
+	 */
+	public synchronized boolean tryAcquire(int n) {
+		if (waiters.isEmpty() && permits >= n) {
+			permits -= n;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Acquire n permits, waiting at most timeoutMillis.
+	 * 
+	 * @return false if timed out, in which case no permits are taken
+	 */
+	public boolean tryAcquire(int n, long timeoutMillis) throws Pausable {
+		WaitCtx ctx = enqueue(Task.getCurrentTask(), n);
+		if (ctx == null) {
+			return true;
+		}
+		if (WaitQueue.await(ctx, timeoutMillis)) {
+			return true;
+		}
+		withdraw(ctx);
+		return false;
+	}
+
+	public void release() {
+		release(1);
+	}
+
+	public synchronized void release(int n) {
+		permits += n;
+		dispatch();
+	}
+
+	public synchronized int availablePermits() {
+		return permits;
+	}
+
+	public synchronized int waiterNum() {
+		return waiters.size();
+	}
+
+	/**
+	 * @return null if the permits were taken, else the ctx to wait on.
+	 */
+	private synchronized WaitCtx enqueue(Task t, int n) {
+		if (waiters.isEmpty() && permits >= n) {
+			permits -= n;
+			return null;
+		}
+		WaitCtx ctx = new WaitCtx(t);
+		ctx.arg = n;
+		waiters.add(ctx);
+		return ctx;
+	}
+
+	/**
+	 * A timed-out waiter leaves the queue; those behind it may now fit.
+	 */
+	private synchronized void withdraw(WaitCtx ctx) {
+		waiters.remove(ctx);
+		dispatch();
+	}
+
+	private void dispatch() {
+		Iterator<WaitCtx> it = waiters.iterator();
+		while (it.hasNext()) {
+			WaitCtx ctx = it.next();
+			if (!ctx.isWaiting()) { // timed out, about to withdraw
+				it.remove();
+				continue;
+			}
+			if (permits < ctx.arg) {
+				return;
+			}
+			it.remove();
+			if (ctx.grant()) {
+				permits -= ctx.arg;
+			}
+		}
+	}
+}
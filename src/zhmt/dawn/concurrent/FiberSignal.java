@@ -1,64 +1,79 @@
 package zhmt.dawn.concurrent;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import kilim.Pausable;
 import kilim.Task;
-import zhmt.dawn.util.ObjectPool;
-import zhmt.dawn.util.PooledObj;
-import zhmt.dawn.util.SimpleLinkedList;
-import zhmt.dawn.util.TlsObjPool;
 
+/**
+ * Fibers wait for a signal; each signal wakes the oldest waiter, or is lost if
+ * there is none. Waiters and signallers may run on any threads.
+ */
 public class FiberSignal {
-	public static class WaitCtx implements PooledObj {
-		Task task;
-		public Object attachment;
-
-		@Override
-		public void reset() {
-			task = null;
-			attachment = null;
-		}
+	private static final Object NULL = new Object();
 
-		private static final TlsObjPool<WaitCtx> tlsPool = new TlsObjPool<FiberSignal.WaitCtx>() {
-			@Override
-			protected WaitCtx create() {
-				return new WaitCtx();
-			}
-		};
-	}
-
-	private final SimpleLinkedList<WaitCtx> waiters = new SimpleLinkedList<WaitCtx>();
-	private ObjectPool<WaitCtx> ctxPool;
-
-	public FiberSignal() {
-		ctxPool = WaitCtx.tlsPool.getPool();
-	}
+	private final WaitQueue waiters = new WaitQueue();
+	/** Waiters enqueued and not yet claimed by a signal. */
+	private final AtomicInteger waiting = new AtomicInteger();
+	/** Attachments of claimed signals that haven't woken anyone yet. */
+	private final ConcurrentLinkedQueue<Object> pending = new ConcurrentLinkedQueue<Object>();
 
 	public int waiterNum() {
-		return waiters.size();
+		return waiting.get();
 	}
 
 	public Object waitForSignal() throws Pausable {
-		WaitCtx ctx = ctxPool.getOne();//new WaitCtx();
-		ctx.task = Task.getCurrentTask();
-		waiters.add(ctx);
-		Task.yield();
-		Object ret = ctx.attachment;
-		ctxPool.returnOne(ctx);
-		return ret;
+		WaitCtx ctx = waiters.add(Task.getCurrentTask());
+		waiting.incrementAndGet();
+		// A signal may have found no one linked in while we were being added.
+		dispatch();
+		WaitQueue.await(ctx);
+		return ctx.attachment;
 	}
 
 	public void signalFirst() {
-		if (waiters.size() > 0) {
-			WaitCtx t = waiters.removeFirst();
-			t.task.resume();
-		}
+		signalFirst(null);
 	}
 
 	public void signalFirst(Object result) {
-		if (waiters.size() > 0) {
-			WaitCtx t = waiters.removeFirst();
-			t.attachment = result;
-			t.task.resume();
+		// Claim a waiter first, so that concurrent signals wake distinct waiters
+		// and a signal is only lost if there is no one to wake.
+		while (true) {
+			int n = waiting.get();
+			if (n <= 0) {
+				return;
+			}
+			if (waiting.compareAndSet(n, n - 1)) {
+				break;
+			}
+		}
+		pending.add(result == null ? NULL : result);
+		dispatch();
+	}
+
+	/**
+	 * Match pending signals with linked-in waiters. A claimed waiter may still
+	 * be between its enqueue and its link; its signal then stays pending, and
+	 * the waiter's own dispatch() delivers it once it is linked in.
+	 */
+	private void dispatch() {
+		while (true) {
+			Object a = pending.poll();
+			if (a == null) {
+				return;
+			}
+			WaitCtx n = waiters.poll();
+			if (n != null) {
+				n.attachment = (a == NULL) ? null : a;
+				n.grant();
+				continue;
+			}
+			pending.add(a);
+			// The waiter we missed may have checked pending while we held a.
+			if (waiters.isEmpty()) {
+				return;
+			}
 		}
 	}
 }
@@ -2,56 +2,67 @@ package zhmt.dawn.concurrent;
 
 import kilim.Pausable;
 import kilim.Task;
-import zhmt.dawn.util.SimpleLinkedList;
 
+/**
+ * Fibers wait for the switch to be turned on; turning it on wakes them all.
+ * Waiters and the switching side may run on any threads.
+ */
 public class FiberSwitch {
-	private boolean on = false;
-	private final SimpleLinkedList<Task> waiters = new SimpleLinkedList<Task>();
+	private volatile boolean on = false;
+	private final WaitQueue waiters = new WaitQueue();
 
 	public FiberSwitch(boolean on) {
 		this.on = on;
 	}
 
+	public boolean isOn() {
+		return on;
+	}
+
 	public void waitForTurningOn() throws Pausable {
 		if (this.on) {
 			return;
 		}
-		waiters.add(Task.getCurrentTask());
-		Task.yield();
+		WaitCtx ctx = waiters.add(Task.getCurrentTask());
+		if (recheck(ctx)) {
+			return;
+		}
+		WaitQueue.await(ctx);
 	}
 
 	public void waitForTurningOn(long timeout) throws Pausable {
 		if (this.on) {
 			return;
 		}
-
-		final Task curTask = Task.getCurrentTask();
-		waiters.add(curTask);
-
-		TimerResumer timer = TimerResumer.timerResumerPool.getOne();
-		timer.curTask = curTask;
-		timer.start(System.currentTimeMillis() + timeout);
-		Task.yield();
-		if (timer.timeout) {
-			waiters.remove(curTask);
-			TimerResumer.timerResumerPool.returnOne(timer);
+		WaitCtx ctx = waiters.add(Task.getCurrentTask());
+		if (recheck(ctx)) {
+			return;
+		}
+		if (!WaitQueue.await(ctx, timeout)) {
 			throw new RuntimeException("TimeoutException");
-		} else {
-			timer.canceled = true;
 		}
 	}
 
+	/**
+	 * turnOn() may have drained the queue before ctx was linked in; if it is
+	 * on now, withdraw (or accept the grant) instead of waiting.
+	 */
+	private boolean recheck(WaitCtx ctx) {
+		if (this.on) {
+			ctx.cancel();
+			return true;
+		}
+		return false;
+	}
+
 	public void turnOn() {
 		if (this.on) {
 			return;
 		}
 		this.on = true;
-		if (waiters.size() <= 0)
-			return;
-
-		while (waiters.size()>0) {
-			Task task = waiters.removeFirst();
-			task.resume();
+		WaitCtx ctx;
+		while ((ctx = waiters.poll()) != null) {
+			ctx.grant();
 		}
 	}
 
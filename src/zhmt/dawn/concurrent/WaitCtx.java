@@ -0,0 +1,71 @@
+package zhmt.dawn.concurrent;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import kilim.PauseReason;
+import kilim.Task;
+
+/**
+ * A fiber waiting in a {@link WaitQueue}. It is also the fiber's pause reason:
+ * the fiber stays paused while the ctx is WAITING.
+ * <p>
+ * A ctx leaves the WAITING state exactly once, either granted by whoever wakes
+ * it or cancelled by the waiter itself (on a timeout). The two race through a
+ * CAS, so a waiter that times out never also receives the grant.
+ */
+public class WaitCtx implements PauseReason {
+	static final int WAITING = 0;
+	static final int GRANTED = 1;
+	static final int CANCELLED = 2;
+
+	private static final AtomicIntegerFieldUpdater<WaitCtx> stateUpdater = AtomicIntegerFieldUpdater
+			.newUpdater(WaitCtx.class, "state");
+
+	final Task task;
+	/** Passed from the waker to the waiter, see {@link FiberSignal#signalFirst(Object)}. */
+	public Object attachment;
+	/** Available to the primitive, e.g. the number of permits wanted. */
+	int arg;
+	volatile int state;
+	volatile WaitCtx next;
+
+	WaitCtx(Task task) {
+		this.task = task;
+	}
+
+	/**
+	 * Hand the resource to the waiter and resume it.
+	 * 
+	 * @return false if the waiter had already given up
+	 */
+	boolean grant() {
+		if (stateUpdater.compareAndSet(this, WAITING, GRANTED)) {
+			task.resume();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Called by the waiter to give up.
+	 * 
+	 * @return false if it was granted in the meantime
+	 */
+	boolean cancel() {
+		return stateUpdater.compareAndSet(this, WAITING, CANCELLED);
+	}
+
+	boolean isWaiting() {
+		return state == WAITING;
+	}
+
+	@Override
+	public boolean isValid(Task t) {
+		return state == WAITING;
+	}
+
+	@Override
+	public String toString() {
+		return "WaitCtx(state=" + state + ")";
+	}
+}
@@ -0,0 +1,119 @@
+package zhmt.dawn.concurrent;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import kilim.Pausable;
+import kilim.Task;
+
+/**
+ * The waiter queue of the fiber primitives in this package; safe for fibers on
+ * any number of worker threads.
+ * <p>
+ * It is an intrusive linked queue of {@link WaitCtx} in the style of Vyukov's
+ * multi-producer/single-consumer queue: adding a waiter is an atomic swap of
+ * the tail plus a volatile store. The head is advanced by CAS, so that several
+ * wakers (e.g. concurrent signalFirst() calls) may poll at once. Nodes are
+ * never reused, which rules out ABA.
+ * <p>
+ * A waiter that gave up (see {@link WaitCtx#cancel()}) stays linked until a
+ * poll skips over it.
+ * <p>
+ * A waiter is visible to polls once its producer has linked it in. Wakers
+ * never wait for a producer that is between its tail swap and its link: they
+ * treat the queue as empty, and the producer checks for a wakeup it may have
+ * missed once it is linked in.
+ */
+public class WaitQueue {
+	private final AtomicReference<WaitCtx> head;
+	private final AtomicReference<WaitCtx> tail;
+
+	public WaitQueue() {
+		WaitCtx stub = new WaitCtx(null);
+		head = new AtomicReference<WaitCtx>(stub);
+		tail = new AtomicReference<WaitCtx>(stub);
+	}
+
+	/**
+	 * Enqueue the current fiber. Doesn't pause; see {@link #await(WaitCtx)}.
+	 */
+	public WaitCtx add(Task t) {
+		WaitCtx ctx = new WaitCtx(t);
+		WaitCtx prev = tail.getAndSet(ctx);
+		prev.next = ctx;
+		return ctx;
+	}
+
+	/**
+	 * @return the oldest waiter, cancelled or not, or null if none is linked in
+	 *         yet.
+	 */
+	public WaitCtx poll() {
+		while (true) {
+			WaitCtx h = head.get();
+			WaitCtx n = h.next;
+			if (n == null) {
+				return null;
+			}
+			if (head.compareAndSet(h, n)) {
+				return n; // n is the new stub; its fields stay readable
+			}
+		}
+	}
+
+	/**
+	 * Wake the oldest waiter that hasn't given up.
+	 * 
+	 * @return it, or null if there are none
+	 */
+	public WaitCtx grantFirst(Object attachment) {
+		WaitCtx n;
+		while ((n = poll()) != null) {
+			n.attachment = attachment;
+			if (n.grant()) {
+				return n;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if no waiter is linked in. Waiters that gave up count until
+	 *         they are polled.
+	 */
+	public boolean isEmpty() {
+		return head.get().next == null;
+	}
+
+	/**
+	 * Pause the current fiber until ctx is granted.
+	 */
+	public static void await(WaitCtx ctx) throws Pausable {
+		while (ctx.isWaiting()) {
+			Task.pause(ctx);
+		}
+	}
+
+	/**
+	 * Pause the current fiber until ctx is granted or timeoutMillis have passed,
+	 * using the task's timer.
+	 * 
+	 * @return true if granted, false if timed out (ctx is then cancelled)
+	 */
+	public static boolean await(WaitCtx ctx, long timeoutMillis) throws Pausable {
+		Task t = ctx.task;
+		long end = System.currentTimeMillis() + timeoutMillis;
+		while (ctx.isWaiting()) {
+			long left = end - System.currentTimeMillis();
+			if (left <= 0) {
+				if (ctx.cancel()) {
+					return false;
+				}
+				break; // granted just now
+			}
+			t.taskTimer.setTimer(left);
+			Task.pause(ctx);
+			t.taskTimer.cancel();
+		}
+		return true;
+	}
+}
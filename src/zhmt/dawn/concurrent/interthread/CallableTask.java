@@ -1,21 +1,20 @@
 package zhmt.dawn.concurrent.interthread;
 
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.CompletionException;
 
 import kilim.Pausable;
 import kilim.Task;
 
 /**
  * Post a task from a non-schduler thread to a scheduler,and wait for the result
- * until the task is done.
+ * until the task is done. Use {@link #startAsync()} to get the result as a
+ * future instead of blocking.
  * 
  * @author zhmt
  * @createdate 2015年6月22日 上午8:08:10
  */
 public class CallableTask<RET> {
-	private final AtomicReference<Object> result = new AtomicReference<>();
-	private final CountDownLatch latch = new CountDownLatch(1);
+	private final KFuture<RET> result = new KFuture<RET>();
 	private final Task task = new FiberTask();
 
 	public RET execute() throws Pausable, Exception {
@@ -24,25 +23,37 @@ public class CallableTask<RET> {
 
 	private RET getResult() {
 		try {
-			latch.await();
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
-		}
-		Object obj = result.get();
-		if (obj instanceof RuntimeException) {
-			throw (RuntimeException) obj;
-		} else if (obj instanceof Exception) {
-			throw new RuntimeException((Exception) obj);
-		} else {
-			return (RET) obj;
+			return result.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else {
+				throw new RuntimeException(cause);
+			}
 		}
 	}
 
+	/**
+	 * Start the task and block the calling thread until it is done. Not for
+	 * use on a scheduler thread; fibers should await {@link #startAsync()}.
+	 */
 	public RET startOn() {
 		this.task.start();
 		return getResult();
 	}
 
+	/**
+	 * Start the task.
+	 * 
+	 * @return a future completed with the result of execute(), or with the
+	 *         exception it threw
+	 */
+	public KFuture<RET> startAsync() {
+		this.task.start();
+		return result;
+	}
+
 	public Task getTask() {
 		return task;
 	}
@@ -56,11 +67,9 @@ public class CallableTask<RET> {
 		public void execute() throws Pausable, Exception {
 			try {
 				RET ret = CallableTask.this.execute();
-				result.set(ret);
+				result.complete(ret);
 			} catch (Exception e) {
-				result.set(e);
-			} finally {
-				latch.countDown();
+				result.completeExceptionally(e);
 			}
 		}
 	}
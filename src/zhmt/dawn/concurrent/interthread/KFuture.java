@@ -0,0 +1,152 @@
+package zhmt.dawn.concurrent.interthread;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+import kilim.EventSubscriber;
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.PauseReason;
+import kilim.Task;
+
+/**
+ * A CompletableFuture that a fiber can wait on without blocking its worker thread. A fiber calls
+ * {@link #await()} and is paused until the future completes; completion, from whatever thread,
+ * resumes the fiber through its scheduler. Plain threads use the usual get()/join()/callbacks.
+ * <p>
+ * The static await methods do the same for futures produced elsewhere (JDK async clients, executors),
+ * and {@link #of(Task)} exposes a task's exit result to plain threads.
+ */
+public class KFuture<T> extends CompletableFuture<T> {
+	/** Bounds of the polling interval (ms) for futures that can't call back, see {@link #await(Future)}. */
+	static final long MIN_POLL = 1;
+	static final long MAX_POLL = 64;
+
+	/**
+	 * Pause the current fiber until this future completes.
+	 *
+	 * @return the value this future was completed with
+	 * @throws ExecutionException
+	 *             if it completed exceptionally
+	 * @throws CancellationException
+	 *             if it was cancelled
+	 */
+	public T await() throws Pausable, ExecutionException {
+		return await((CompletableFuture<T>) this);
+	}
+
+	/**
+	 * Pause the current fiber until the future completes.
+	 */
+	public static <T> T await(CompletableFuture<T> f) throws Pausable, ExecutionException {
+		if (!f.isDone()) {
+			Waiter w = new Waiter(Task.getCurrentTask(), f);
+			f.whenComplete(w);
+			while (!f.isDone()) {
+				Task.pause(w);
+			}
+		}
+		return getDone(f);
+	}
+
+	/**
+	 * Pause the current fiber until the stage completes.
+	 */
+	public static <T> T await(CompletionStage<T> stage) throws Pausable, ExecutionException {
+		return await(stage.toCompletableFuture());
+	}
+
+	/**
+	 * Pause the current fiber until the future completes. CompletionStages are awaited by callback. Other
+	 * futures offer no completion hook, so they are polled by sleeping on the timer service between
+	 * checks, from {@link #MIN_POLL} doubling up to {@link #MAX_POLL} ms; the worker thread is never
+	 * blocked.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T await(Future<T> future) throws Pausable, ExecutionException {
+		if (future instanceof CompletionStage) {
+			return await(((CompletionStage<T>) future).toCompletableFuture());
+		}
+		long poll = MIN_POLL;
+		while (!future.isDone()) {
+			Task.sleep(poll);
+			poll = Math.min(poll * 2, MAX_POLL);
+		}
+		return getDone(future);
+	}
+
+	/**
+	 * @return a future completed with the task's exit result when it ends, or completed exceptionally if the
+	 *         task ended with a Throwable.
+	 */
+	public static KFuture<Object> of(Task task) {
+		KFuture<Object> f = new KFuture<Object>();
+		task.informOnExit(new ExitCompleter(f));
+		return f;
+	}
+
+	private static <T> T getDone(Future<T> f) throws ExecutionException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			// not reached, the future is done
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Resumes the waiting task on completion. Resuming through the task's scheduler is all it takes; if
+	 * the completion races with the pause, isValid() turns false and the task resumes itself.
+	 */
+	static class Waiter implements PauseReason, BiConsumer<Object, Throwable> {
+		final Task task;
+		final Future<?> future;
+
+		Waiter(Task task, Future<?> future) {
+			this.task = task;
+			this.future = future;
+		}
+
+		@Override
+		public void accept(Object value, Throwable th) {
+			task.resume();
+		}
+
+		@Override
+		public boolean isValid(Task t) {
+			return !future.isDone();
+		}
+
+		@Override
+		public String toString() {
+			return "await " + future;
+		}
+	}
+
+	/**
+	 * An exit mailbox that completes a future instead of buffering the ExitMsg.
+	 */
+	static class ExitCompleter extends Mailbox<ExitMsg> {
+		final KFuture<Object> future;
+
+		ExitCompleter(KFuture<Object> future) {
+			super(1, 1);
+			this.future = future;
+		}
+
+		@Override
+		public boolean put(ExitMsg msg, EventSubscriber eo) {
+			if (msg.result instanceof Throwable) {
+				future.completeExceptionally((Throwable) msg.result);
+			} else {
+				future.complete(msg.result);
+			}
+			return true;
+		}
+	}
+}
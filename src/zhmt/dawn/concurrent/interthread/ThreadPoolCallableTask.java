@@ -2,45 +2,40 @@ package zhmt.dawn.concurrent.interthread;
 
 import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.Callable;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ExecutionException;
 
 import kilim.Pausable;
-import kilim.Scheduler;
-import kilim.Task;
-import zhmt.dawn.NonpausableTask;
 
 /**
- * Post a long run task(CPU bounded) to an ThreadPool from a fiber.
+ * Post a long run task(CPU bounded) to an ThreadPool from a fiber. The fiber
+ * is paused, not its worker thread, until the pool thread completes the result.
  * 
  * @author zhmt
  * @createdate 2015年6月22日 下午3:42:49
  * @param <RET>
  */
 public class ThreadPoolCallableTask<RET> {
-	private final AtomicReference<Object> result = new AtomicReference<>();
+	private final KFuture<RET> result = new KFuture<RET>();
 	private final Callable<RET> task = new ThreadPoolTask();
-	private Scheduler sch;
-	private Task callerTask;
 
 	public RET execute() throws Exception {
 		return null;
 	}
 
 	private RET getResult() throws Pausable {
-		Task.yield();
-		Object obj = result.get();
-		if (obj instanceof RuntimeException) {
-			throw (RuntimeException) obj;
-		} else if (obj instanceof Exception) {
-			throw new RuntimeException((Exception) obj);
-		} else {
-			return (RET) obj;
+		try {
+			return result.await();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else {
+				throw new RuntimeException(cause);
+			}
 		}
 	}
 
 	public RET startOn(AbstractExecutorService es) throws Pausable {
-		sch = Scheduler.getDefaultScheduler();
-		callerTask = Task.getCurrentTask();
 		es.submit(task);
 		return getResult();
 	}
@@ -49,25 +44,14 @@ public class ThreadPoolCallableTask<RET> {
 		return task;
 	}
 
-	private void postWakingTask() {
-		sch.schedule(new NonpausableTask() {
-			@Override
-			public void execute() {
-				callerTask.resume();
-			}
-		});
-	}
-
 	private class ThreadPoolTask implements Callable<RET> {
 		@Override
 		public RET call() throws Exception {
 			try {
 				RET ret = ThreadPoolCallableTask.this.execute();
-				result.set(ret);
+				result.complete(ret);
 			} catch (Exception e) {
-				result.set(e);
-			} finally {
-				postWakingTask();
+				result.completeExceptionally(e);
 			}
 			return null;
 		}
@@ -8,7 +8,6 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Set;
 
-import zhmt.dawn.util.CascadeTimerWheel;
 import zhmt.dawn.util.TlsInstance;
 import kilim.Pausable;
 import kilim.Scheduler;
@@ -99,12 +98,10 @@ public class NioMainLoop {
 				blankLoop = 0;
 				nonblankLoopNum = 0;
 				mmap.clear();
-				CascadeTimerWheel.moveCount = 0;
 				sleep(1000);
 				System.out.println(String.format("LoopHit %d : miss %d",
 						nonblankLoopNum, blankLoop));
 //				System.out.println(mmap);
-				System.out.println(CascadeTimerWheel.moveCount);
 			}
 		};
 	};
@@ -1,206 +1,253 @@
 package zhmt.dawn.util;
 
-import java.util.ArrayList;
-import java.util.Collections;
-
-import zhmt.dawn.TimerExe;
-
 /**
  * 级联时间轮定时器
- * 
+ *
+ * Hierarchical timing wheel. Level 0 has one slot per tick; each slot of level i+1 spans a
+ * whole revolution of level i. An element is put on the lowest level that can hold its
+ * expiry time, and is moved down (cascaded) when the slot it is in comes round.
+ *
+ * Slots are intrusive doubly linked lists of {@link TimerNode}s, so add and remove are O(1)
+ * and allocation free. Expiry times are rounded up to a whole tick, so
+ * {@link #pollFirst()} never returns an element before its time. Not thread safe.
+ *
  * @author zhmt
  * @createdate 2015年6月12日 下午3:17:57
  * @param <E>
  */
-public class CascadeTimerWheel<E extends TimerExe> {
-	private Object[] wheels = new Object[5];
+public class CascadeTimerWheel<E extends TimerNode> {
+	private final Slot[][] wheels;
+	/** number of ticks spanned by one slot of each level */
+	private final long[] granularity;
+	/** number of ticks spanned by all the levels together */
+	private final long span;
 	public final long tickPeriod;
 	private long tickStamp;
+	private long curTick;
+	private int size;
 
 	public CascadeTimerWheel() {
-		initWheels(new int[] { 500, 64, 64, 64, 64 });
-		tickPeriod = 1000 / ((Wheel)wheels[0]).ticks.size();
+		this(2, new int[] { 500, 64, 64, 64, 64 });
+	}
+
+	/**
+	 * @param tickPeriod
+	 *            milliseconds per tick
+	 * @param ticksNums
+	 *            number of slots on each level, from the finest to the
+	 *            coarsest
+	 */
+	public CascadeTimerWheel(long tickPeriod, int[] ticksNums) {
+		this.tickPeriod = tickPeriod;
+		wheels = new Slot[ticksNums.length][];
+		granularity = new long[ticksNums.length];
+		long g = 1;
+		for (int i = 0; i < ticksNums.length; i++) {
+			wheels[i] = new Slot[ticksNums[i]];
+			for (int j = 0; j < ticksNums[i]; j++) {
+				wheels[i][j] = new Slot();
+			}
+			granularity[i] = g;
+			g *= ticksNums[i];
+		}
+		span = g;
 		tickStamp = getStdTime(System.currentTimeMillis());
+		curTick = tickStamp / tickPeriod;
 	}
 
-	public static long moveCount = 0;
+	/** number of elements moved down a level so far, for tuning */
+	public long moveCount = 0;
 
 	public boolean canTick() {
-		boolean ret = System.currentTimeMillis() - tickPeriod >= tickStamp;
-		return ret;
+		return canTick(System.currentTimeMillis());
+	}
+
+	public boolean canTick(long now) {
+		return now - tickPeriod >= tickStamp;
 	}
 
 	long getStdTime(long time) {
 		return time - time % tickPeriod;
 	}
 
+	/**
+	 * @return the time of the current tick. Every element whose time is at
+	 *         or before this is in the current slot.
+	 */
+	public long getTickStamp() {
+		return tickStamp;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Advance by one tick. The caller must have drained the current slot
+	 * with {@link #pollFirst()} first.
+	 */
 	public void tick() {
 		tickStamp += tickPeriod;
-		Wheel w = ((Wheel)wheels[0]);
-		w.tick();
+		curTick++;
+		// Cascade from the coarsest level whose slot boundary we crossed,
+		// so that its elements can land in the finer slots cascaded next.
+		int top = 0;
+		while (top + 1 < wheels.length && curTick % granularity[top + 1] == 0) {
+			top++;
+		}
+		for (int i = top; i >= 1; i--) {
+			Slot s = wheels[i][slotIndex(i, curTick)];
+			TimerNode n = s.head;
+			s.head = s.tail = null;
+			while (n != null) {
+				TimerNode next = n.next;
+				n.prev = n.next = null;
+				n.slot = null;
+				size--;
+				insert(n);
+				moveCount++;
+				n = next;
+			}
+		}
 	}
 
+	/**
+	 * Remove and return an element of the current slot, all of which are
+	 * due.
+	 *
+	 * @return an element, or null if the current slot is empty.
+	 */
+	@SuppressWarnings("unchecked")
 	public E pollFirst() {
-		Wheel w = ((Wheel)wheels[0]);
-		E ret = w.ticks.get(w.curTick).removeFirst();
-		return ret;
-	}
-
-	private int timeToTickIndex(long time) {
-		long idx = (time - tickStamp);
-		if (idx < 0) {
-			idx = 0;
-		} else {
-			idx /= tickPeriod;
+		Slot s = wheels[0][slotIndex(0, curTick)];
+		TimerNode n = s.head;
+		if (n != null) {
+			unlink(n);
 		}
-		return (int) idx;
+		return (E) n;
 	}
 
-	private int toWheelTickBlockIndex(Wheel w, long idx) {
-		if (w.min > 0)
-			idx = idx / w.min;
-		idx += w.curTick;
-		idx %= w.ticks.size();
-		return (int) idx;
+	private int slotIndex(int level, long tick) {
+		return (int) ((tick / granularity[level]) % wheels[level].length);
 	}
 
 	public void add(E e) {
-		long idx = timeToTickIndex(e.getExeTime());
-		Wheel w;
-		for (int i = 0; i < wheels.length; i++) {
-			w = (Wheel)wheels[i];
-			if (idx < w.max) {
-				idx = toWheelTickBlockIndex(w, idx);
-				w.ticks.get((int) idx).add(e);
-				return;
+		if (e.slot != null) {
+			throw new IllegalStateException("Timer is already in a wheel: " + e);
+		}
+		if (size == 0) {
+			// Nothing to cascade; skip the ticks that went by while empty.
+			long now = System.currentTimeMillis();
+			if (canTick(now)) {
+				tickStamp = getStdTime(now);
+				curTick = tickStamp / tickPeriod;
 			}
 		}
-		throw new RuntimeException("Time is too long to create a timer.");
+		insert(e);
 	}
 
-	private void initWheels(int[] ticksNums) {
-		ArrayList<Wheel> tmp = new ArrayList<Wheel>(ticksNums.length);
-		for (int i = ticksNums.length - 1, widx = 0; i >= 0; i--, widx++) {
-			tmp.add(new Wheel(ticksNums[i], widx > 0 ? tmp.get(widx - 1) : null));
-		}
-		Collections.reverse(tmp);
-
-		for (int i = 0; i < tmp.size(); i++) {
-			tmp.get(i).min = (i == 0 ? 0 : tmp.get(i - 1).max);
-			long tickSize = 1;
-			for (int n = 0; n < i; n++) {
-				tickSize = tickSize * tmp.get(n).ticks.size();
+	private void insert(TimerNode e) {
+		long time = e.getExeTime();
+		long exp = time / tickPeriod + (time % tickPeriod > 0 ? 1 : 0);
+		long delta = exp - curTick;
+		Slot s;
+		if (delta <= 0) {
+			s = wheels[0][slotIndex(0, curTick)];
+		} else {
+			if (delta >= span) {
+				// Park it in the farthest slot; it is looked at again when
+				// that slot cascades.
+				delta = span - 1;
+				exp = curTick + delta;
+			}
+			int i = 0;
+			while (delta >= granularity[i] * wheels[i].length) {
+				i++;
 			}
-			tmp.get(i).max = tmp.get(i).ticks.size() * tickSize;
+			s = wheels[i][slotIndex(i, exp)];
 		}
-
-		for (int i = 0; i < wheels.length; i++) {
-			wheels[i] = tmp.get(i);
+		e.slot = s;
+		e.prev = s.tail;
+		if (s.tail == null) {
+			s.head = e;
+		} else {
+			s.tail.next = e;
 		}
+		s.tail = e;
+		size++;
 	}
 
-	public void dump() {
-		System.out.println("==============");
-		for (Object w : wheels) {
-			System.out.println(w);
+	/**
+	 * Remove an element from whichever slot it is in, in O(1).
+	 *
+	 * @return false if the element was not in the wheel.
+	 */
+	public boolean remove(E e) {
+		if (e.slot == null) {
+			return false;
 		}
+		unlink(e);
+		return true;
 	}
 
-	private class Wheel {
-		ArrayList<LinkedArrayList<E>> ticks;
-		Wheel parent;
-		private int curTick;
-		long min;//include
-		long max;//exclude
+	private void unlink(TimerNode n) {
+		Slot s = n.slot;
+		if (n.prev == null) {
+			s.head = n.next;
+		} else {
+			n.prev.next = n.next;
+		}
+		if (n.next == null) {
+			s.tail = n.prev;
+		} else {
+			n.next.prev = n.prev;
+		}
+		n.prev = n.next = null;
+		n.slot = null;
+		size--;
+	}
 
-		public Wheel(int tickNum, Wheel parent) {
-			ticks = new ArrayList<LinkedArrayList<E>>(tickNum);
-			this.parent = parent;
-			for (int i = 0; i < tickNum; i++) {
-				ticks.add(new LinkedArrayList<E>());
+	/**
+	 * @return the number of ticks until an element in the wheel may become
+	 *         due, or until the next cascade, whichever is earlier;
+	 *         Long.MAX_VALUE if the wheel is empty.
+	 */
+	public long ticksToNextEvent() {
+		if (size == 0) {
+			return Long.MAX_VALUE;
+		}
+		Slot[] w = wheels[0];
+		long limit = w.length - curTick % w.length;
+		for (long d = 0; d < limit; d++) {
+			if (w[(int) ((curTick + d) % w.length)].head != null) {
+				return d;
 			}
 		}
+		return limit;
+	}
 
-		public void tick() {
-			curTick++;
-			if (curTick >= ticks.size()) {
-				curTick = 0;
-				if (parent != null) {
-					parent.tick();
-					LinkedArrayList<E> parentTick = parent.ticks
-							.get(parent.curTick);
-
-					E e = null;
-					long idx;
-					while ((e = parentTick.removeFirst()) != null) {
-						idx = timeToTickIndex(e.getExeTime());
-						idx = toWheelTickBlockIndex(this, idx);
-
-						ticks.get((int) idx).add(e);
-						moveCount++;
-					}
+	public void dump() {
+		System.out.println("==============");
+		for (int i = 0; i < wheels.length; i++) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("Wheel [level=").append(i).append(", curTick=")
+					.append(slotIndex(i, curTick)).append(", granularity=")
+					.append(granularity[i]).append(", ticks={");
+			for (int j = 0; j < wheels[i].length; j++) {
+				int n = 0;
+				for (TimerNode t = wheels[i][j].head; t != null; t = t.next) {
+					n++;
+				}
+				if (n > 0) {
+					sb.append(j).append(':').append(n).append(' ');
 				}
 			}
+			System.out.println(sb.append("}]"));
 		}
-
-		@Override
-		public String toString() {
-			return "Wheel [ticks=" + ticks + ",hashCode=" + hashCode()
-					+ ", curTick=" + curTick + ", parent="
-					+ (parent == null ? null : parent.hashCode()) + ", min="
-					+ min + ", max=" + max + "]";
-		}
-
 	}
 
-	//	Simple
-
-	public static void main(String[] args) throws InterruptedException {
-//		CascadeTimerWheel<TimerExe> t = new CascadeTimerWheel<TimerExe>();
-//		for (int i = 0; i < 16; i++) {
-//			final int tmpi = i;
-//			final long tmp = i * 1000 + System.currentTimeMillis();
-//			t.add(new TimerExe() {
-//				@Override
-//				public long getExeTime() {
-//					return tmp;
-//				}
-//
-//				@Override
-//				public String toString() {
-//					return "" + tmpi;
-//				}
-//
-//				@Override
-//				public Type getType() {
-//					// TODO Auto-generated method stub
-//					return null;
-//				}
-//			});
-//		}
-//
-//		t.dump();
-//
-//		while (true) {
-//			do {
-//				TimerExe hi = t.pollFirst();
-//				while (hi != null) {
-//					System.out.println(hi);
-//					hi = t.pollFirst();
-//				}
-//				if (t.canTick()) {
-//					t.tick();
-//					if (((Wheel)(t.wheels[0])).curTick == 0) {
-//						t.dump();
-//					}
-//				} else {
-//					break;
-//				}
-//			} while (true);
-//
-//			//					System.out.println("sleep");
-//			Thread.sleep(t.tickPeriod);
-//
-//		}
+	static final class Slot {
+		TimerNode head;
+		TimerNode tail;
 	}
 }
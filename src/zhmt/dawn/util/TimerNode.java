@@ -0,0 +1,23 @@
+package zhmt.dawn.util;
+
+import zhmt.dawn.TimerExe;
+
+/**
+ * An element of a {@link CascadeTimerWheel}. The links live in the element itself, so adding
+ * to and removing from the wheel allocate nothing, and removal is O(1).
+ *
+ * A node can be in at most one wheel at a time, and only the thread that owns the wheel may
+ * touch the links.
+ */
+public abstract class TimerNode implements TimerExe {
+	TimerNode prev;
+	TimerNode next;
+	CascadeTimerWheel.Slot slot;
+
+	/**
+	 * @return true if the node is currently in a wheel.
+	 */
+	public boolean isQueued() {
+		return slot != null;
+	}
+}
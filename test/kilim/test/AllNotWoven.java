@@ -21,6 +21,8 @@ public class AllNotWoven extends TestSuite {
         ret.addTestSuite(TestFlow.class);
         ret.addTestSuite(TestExprs.class);
         ret.addTestSuite(TestClassInfo.class);
+        ret.addTestSuite(TestStatePool.class);
+        ret.addTestSuite(TestPreemption.class);
 //        ret.addTestSuite(TestInvalidPausables.class);
         ret.addTestSuite(TestDynamicWeaver.class);
         return ret;
@@ -17,10 +17,18 @@ public class AllWoven extends TestSuite {
         ret.addTestSuite(TestYieldExceptions.class);
         ret.addTestSuite(TestYieldJSR.class);
         ret.addTestSuite(TestMailbox.class);
+        ret.addTestSuite(TestMpscMailbox.class);
+        ret.addTestSuite(TestSpscChannel.class);
         ret.addTestSuite(TestLock.class);
+        ret.addTestSuite(TestScheduler.class);
+        ret.addTestSuite(TestTimerService.class);
         ret.addTestSuite(TestGenerics.class);
         ret.addTestSuite(TestIO.class);
         ret.addTestSuite(TestHTTP.class);
+        ret.addTestSuite(TestKFuture.class);
+        ret.addTestSuite(TestBlockingPool.class);
+        ret.addTestSuite(TestFiberSync.class);
+        ret.addTestSuite(TestTopic.class);
         return ret;
     }
 }
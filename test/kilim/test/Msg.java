@@ -0,0 +1,17 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license 
+ * specified in the file "License"
+ */
+
+package kilim.test;
+
+class Msg {
+    int tid; // thread or task id
+    int num;
+    Msg(){}
+    Msg(int id, int n) {tid = id; num = n;}
+    public String toString() {
+        return "Msg(" + tid + "," + num + ")";
+    }
+}
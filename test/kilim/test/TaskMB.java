@@ -0,0 +1,35 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license 
+ * specified in the file "License"
+ */
+
+package kilim.test;
+
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Task;
+
+class TaskMB extends Task {
+    Mailbox<Msg> mymb;
+    Mailbox<Msg> mainmb;
+    
+    TaskMB(Mailbox<Msg> ms) {
+        mymb = new Mailbox<Msg>();
+        mainmb = ms;
+    }
+    
+    public void execute() throws Pausable {
+        Msg m = mymb.get();
+        assert m != null : "task rcvd null msg";
+        int id = m.tid; // Receive this task's id
+        int n = m.num;  // Receive the number of times we have to loop
+        
+        for (int i = 0; i < n; i++) {
+            mainmb.put(new Msg(id, i));
+            if (i % 10 == 0) {
+                Task.yield();
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import kilim.BlockingPool;
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Scheduler;
+import kilim.Task;
+
+public class TestBlockingPool extends TestCase {
+
+    public void testResultAndException() throws Exception {
+        Task t = new Task() {
+            public void execute() throws Pausable, Exception {
+                String s = Task.blocking(new Callable<String>() {
+                    public String call() {
+                        return Thread.currentThread().getName();
+                    }
+                });
+                try {
+                    Task.blocking(new Callable<String>() {
+                        public String call() throws IOException {
+                            throw new IOException("expected");
+                        }
+                    });
+                    exitResult = "no exception";
+                } catch (IOException e) {
+                    exitResult = s;
+                }
+            }
+        }.start();
+        Object result = t.joinb().result;
+        assertTrue(String.valueOf(result), String.valueOf(result).startsWith("kilim-blocking-"));
+    }
+
+    public void testBackpressure() throws Exception {
+        final int maxQueue = 2;
+        final BlockingPool pool = new BlockingPool(1, maxQueue, 60);
+        final AtomicInteger maxDepth = new AtomicInteger();
+        final int n = 20;
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        try {
+            for (int i = 0; i < n; i++) {
+                Task t = new Task() {
+                    public void execute() throws Pausable, Exception {
+                        pool.call(new Callable<Object>() {
+                            public Object call() throws Exception {
+                                int d = pool.getQueueDepth();
+                                if (d > maxDepth.get()) {
+                                    maxDepth.set(d); // only one pool thread
+                                }
+                                Thread.sleep(5);
+                                return null;
+                            }
+                        });
+                    }
+                };
+                t.informOnExit(exitmb);
+                t.start();
+            }
+            for (int i = 0; i < n; i++) {
+                assertEquals("OK", exitmb.getb(5000).result);
+            }
+            assertTrue("depth " + maxDepth.get(), maxDepth.get() <= maxQueue);
+            assertTrue(pool.getWaitsForSpace() > 0);
+            assertEquals(n, pool.getCalls());
+            assertEquals(1, pool.getPoolSize());
+            assertTrue(pool.getWakeups() <= n);
+            assertTrue(pool.getAvgRunNanos() >= 5000000);
+            assertTrue(pool.getMaxQueueNanos() >= pool.getAvgQueueNanos());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testBatchedWakeup() throws Exception {
+        final BlockingPool pool = new BlockingPool(4, 1024, 60);
+        final int n = 1000;
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        try {
+            for (int i = 0; i < n; i++) {
+                Task t = new Task() {
+                    public void execute() throws Pausable, Exception {
+                        exitResult = pool.call(new Callable<Integer>() {
+                            public Integer call() {
+                                return 1;
+                            }
+                        });
+                    }
+                };
+                t.informOnExit(exitmb);
+                t.start();
+            }
+            for (int i = 0; i < n; i++) {
+                assertEquals(1, exitmb.getb(5000).result);
+            }
+            assertEquals(n, pool.getCalls());
+            assertTrue(pool.getWakeups() <= n);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A call finishing for a task whose scheduler has been shut down must not hold up the calls of
+     * tasks on other schedulers.
+     */
+    public void testSchedulerShutDown() throws Exception {
+        final BlockingPool pool = new BlockingPool(2, 16, 60);
+        Scheduler dead = new Scheduler(1);
+        Scheduler live = new Scheduler(1);
+        try {
+            Task first = new Task() {
+                public void execute() throws Pausable, Exception {
+                    pool.call(new Callable<Object>() {
+                        public Object call() throws Exception {
+                            Thread.sleep(100);
+                            return null;
+                        }
+                    });
+                }
+            };
+            first.setScheduler(dead).start();
+            Thread.sleep(20);
+            dead.shutdown();
+            Thread.sleep(200); // the first call has finished by now
+
+            Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+            Task second = new Task() {
+                public void execute() throws Pausable, Exception {
+                    exitResult = pool.call(new Callable<Integer>() {
+                        public Integer call() {
+                            return 2;
+                        }
+                    });
+                }
+            };
+            second.informOnExit(exitmb);
+            second.setScheduler(live).start();
+            ExitMsg m = exitmb.getb(2000);
+            assertNotNull("Timed out", m);
+            assertEquals(2, m.result);
+        } finally {
+            live.shutdown();
+            pool.shutdown();
+        }
+    }
+}
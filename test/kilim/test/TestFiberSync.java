@@ -0,0 +1,398 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Scheduler;
+import kilim.Task;
+import zhmt.dawn.concurrent.FiberCountDownLatch;
+import zhmt.dawn.concurrent.FiberReadWriteLock;
+import zhmt.dawn.concurrent.FiberReentrantLock;
+import zhmt.dawn.concurrent.FiberSemaphore;
+import zhmt.dawn.concurrent.FiberSignal;
+import zhmt.dawn.concurrent.FiberSwitch;
+
+/**
+ * The zhmt.dawn.concurrent primitives, shared by fibers on several worker threads.
+ */
+public class TestFiberSync extends TestCase {
+    Scheduler scheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        scheduler = new Scheduler(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        scheduler.shutdown();
+    }
+
+    Mailbox<ExitMsg> startAll(Task[] tasks) {
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        for (Task t : tasks) {
+            t.setScheduler(scheduler);
+            t.informOnExit(exitmb);
+            t.start();
+        }
+        return exitmb;
+    }
+
+    void joinAll(Mailbox<ExitMsg> exitmb, int n) {
+        for (int i = 0; i < n; i++) {
+            ExitMsg m = exitmb.getb(10000);
+            assertNotNull("Timed out", m);
+            assertEquals("OK", m.result);
+        }
+    }
+
+    static class Counter {
+        int value; // guarded by the lock under test
+    }
+
+    public void testLockMutualExclusion() {
+        final FiberReentrantLock lock = new FiberReentrantLock();
+        final Counter c = new Counter();
+        final int nTasks = 20, nRounds = 200;
+        Task[] tasks = new Task[nTasks];
+        for (int i = 0; i < nTasks; i++) {
+            tasks[i] = new Task() {
+                public void execute() throws Pausable {
+                    for (int r = 0; r < nRounds; r++) {
+                        lock.lock();
+                        lock.lock(); // reentrant
+                        int v = c.value;
+                        Task.yield(); // let others, on any thread, try for the lock
+                        c.value = v + 1;
+                        lock.release();
+                        lock.release();
+                    }
+                }
+            };
+        }
+        joinAll(startAll(tasks), nTasks);
+        assertEquals(nTasks * nRounds, c.value);
+        assertFalse(lock.isLocked());
+    }
+
+    /**
+     * Waiters get the lock in the order they queued up for it, ahead of the fibers that try for it
+     * while it is being handed over.
+     */
+    public void testLockFifo() {
+        final Scheduler one = new Scheduler(1); // runs the tasks in the order they are started
+        try {
+            final FiberReentrantLock lock = new FiberReentrantLock();
+            final int n = 10;
+            final StringBuilder order = new StringBuilder(); // guarded by the lock
+            final Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+            Task holder = new Task() {
+                public void execute() throws Pausable {
+                    lock.lock();
+                    for (int i = 0; i < n; i++) {
+                        start(new Locker(lock, order, "w" + i + " "));
+                    }
+                    Task.sleep(50); // the waiters queue up in turn
+                    for (int i = 0; i < n; i++) {
+                        start(new Locker(lock, order, "n" + i + " "));
+                    }
+                    lock.release();
+                }
+
+                void start(Task t) {
+                    t.setScheduler(one);
+                    t.informOnExit(exitmb);
+                    t.start();
+                }
+            };
+            holder.setScheduler(one);
+            holder.informOnExit(exitmb);
+            holder.start();
+            joinAll(exitmb, 2 * n + 1);
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                expected.append("w" + i + " ");
+            }
+            assertTrue(order.toString(), order.toString().startsWith(expected.toString()));
+            assertFalse(lock.isLocked());
+        } finally {
+            one.shutdown();
+        }
+    }
+
+    static class Locker extends Task {
+        final FiberReentrantLock lock;
+        final StringBuilder order;
+        final String name;
+
+        Locker(FiberReentrantLock lock, StringBuilder order, String name) {
+            this.lock = lock;
+            this.order = order;
+            this.name = name;
+        }
+
+        public void execute() throws Pausable {
+            lock.lock();
+            order.append(name);
+            Task.yield(); // let the others try for the lock
+            lock.release();
+        }
+    }
+
+    public void testTryLockTimeout() {
+        final FiberReentrantLock lock = new FiberReentrantLock();
+        final FiberSwitch held = new FiberSwitch(false);
+        Task holder = new Task() {
+            public void execute() throws Pausable {
+                lock.lock();
+                held.turnOn();
+                Task.sleep(200);
+                lock.release();
+            }
+        };
+        Task waiter = new Task() {
+            public void execute() throws Pausable {
+                held.waitForTurningOn();
+                try {
+                    lock.tryLock(20);
+                    exitResult = "acquired a held lock";
+                    return;
+                } catch (RuntimeException expected) {
+                }
+                lock.tryLock(5000); // outlives the holder
+                lock.release();
+            }
+        };
+        joinAll(startAll(new Task[] {holder, waiter}), 2);
+        assertFalse(lock.isLocked());
+    }
+
+    public void testSignal() throws Exception {
+        final FiberSignal signal = new FiberSignal();
+        final int n = 50;
+        Task[] tasks = new Task[n];
+        for (int i = 0; i < n; i++) {
+            tasks[i] = new Task() {
+                public void execute() throws Pausable {
+                    if (!"go".equals(signal.waitForSignal())) {
+                        exitResult = "wrong attachment";
+                    }
+                }
+            };
+        }
+        Mailbox<ExitMsg> exitmb = startAll(tasks);
+        while (signal.waiterNum() < n) {
+            Thread.sleep(1);
+        }
+        // from plain threads, concurrently
+        Thread[] signallers = new Thread[2];
+        for (int i = 0; i < signallers.length; i++) {
+            signallers[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < n / 2; j++) {
+                        signal.signalFirst("go");
+                    }
+                }
+            };
+            signallers[i].start();
+        }
+        joinAll(exitmb, n);
+        assertEquals(0, signal.waiterNum());
+        signal.signalFirst(); // no waiter; lost
+    }
+
+    public void testSwitch() throws Exception {
+        final FiberSwitch sw = new FiberSwitch(false);
+        final int n = 50;
+        Task[] tasks = new Task[n];
+        for (int i = 0; i < n; i++) {
+            tasks[i] = new Task() {
+                public void execute() throws Pausable {
+                    sw.waitForTurningOn();
+                }
+            };
+        }
+        Mailbox<ExitMsg> exitmb = startAll(tasks);
+        Thread.sleep(20);
+        sw.turnOn();
+        joinAll(exitmb, n);
+
+        final FiberSwitch off = new FiberSwitch(false);
+        Task t = new Task() {
+            public void execute() throws Pausable {
+                try {
+                    off.waitForTurningOn(20);
+                    exitResult = "switch is off";
+                } catch (RuntimeException expected) {
+                }
+            }
+        };
+        joinAll(startAll(new Task[] {t}), 1);
+    }
+
+    static void updateMax(AtomicInteger max, int v) {
+        int m;
+        while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+        }
+    }
+
+    public void testReadWriteLock() {
+        final FiberReadWriteLock rw = new FiberReadWriteLock();
+        final AtomicInteger readersIn = new AtomicInteger();
+        final AtomicInteger writersIn = new AtomicInteger();
+        final AtomicInteger maxReaders = new AtomicInteger();
+        final Counter c = new Counter();
+        final int nReaders = 20, nWriters = 4, nRounds = 50;
+        Task[] tasks = new Task[nReaders + nWriters];
+        for (int i = 0; i < nReaders; i++) {
+            tasks[i] = new Task() {
+                public void execute() throws Pausable {
+                    for (int r = 0; r < nRounds; r++) {
+                        rw.readLock();
+                        updateMax(maxReaders, readersIn.incrementAndGet());
+                        if (writersIn.get() != 0) {
+                            exitResult = "reader overlapped a writer";
+                        }
+                        Task.yield();
+                        readersIn.decrementAndGet();
+                        rw.readUnlock();
+                    }
+                }
+            };
+        }
+        for (int i = nReaders; i < tasks.length; i++) {
+            tasks[i] = new Task() {
+                public void execute() throws Pausable {
+                    for (int r = 0; r < nRounds; r++) {
+                        rw.writeLock();
+                        if (writersIn.incrementAndGet() != 1 || readersIn.get() != 0) {
+                            exitResult = "writer not exclusive";
+                        }
+                        int v = c.value;
+                        Task.yield();
+                        c.value = v + 1;
+                        writersIn.decrementAndGet();
+                        rw.writeUnlock();
+                    }
+                }
+            };
+        }
+        joinAll(startAll(tasks), tasks.length);
+        assertEquals(nWriters * nRounds, c.value);
+        assertTrue("readers never shared the lock", maxReaders.get() > 1);
+        assertEquals(0, rw.getReadLockCount());
+        assertFalse(rw.isWriteLocked());
+    }
+
+    public void testReadWriteTimeout() {
+        final FiberReadWriteLock rw = new FiberReadWriteLock();
+        final FiberCountDownLatch held = new FiberCountDownLatch(1);
+        Task writer = new Task() {
+            public void execute() throws Pausable {
+                rw.writeLock();
+                held.countDown();
+                Task.sleep(200);
+                rw.writeUnlock();
+            }
+        };
+        Task reader = new Task() {
+            public void execute() throws Pausable {
+                held.await();
+                if (rw.tryReadLock(20)) {
+                    exitResult = "read a write-locked lock";
+                    return;
+                }
+                if (!rw.tryReadLock(5000)) {
+                    exitResult = "timed out after the writer left";
+                    return;
+                }
+                rw.readUnlock();
+            }
+        };
+        joinAll(startAll(new Task[] {writer, reader}), 2);
+        assertEquals(0, rw.getReadLockCount());
+    }
+
+    public void testSemaphore() {
+        final int permits = 3;
+        final FiberSemaphore sem = new FiberSemaphore(permits);
+        final AtomicInteger in = new AtomicInteger();
+        final AtomicInteger maxIn = new AtomicInteger();
+        final int n = 20, nRounds = 50;
+        Task[] tasks = new Task[n];
+        for (int i = 0; i < n; i++) {
+            tasks[i] = new Task() {
+                public void execute() throws Pausable {
+                    for (int r = 0; r < nRounds; r++) {
+                        sem.acquire();
+                        updateMax(maxIn, in.incrementAndGet());
+                        Task.yield();
+                        in.decrementAndGet();
+                        sem.release();
+                    }
+                }
+            };
+        }
+        joinAll(startAll(tasks), n);
+        assertTrue("max " + maxIn.get(), maxIn.get() <= permits);
+        assertEquals(permits, sem.availablePermits());
+
+        Task t = new Task() {
+            public void execute() throws Pausable {
+                sem.acquire(permits);
+                if (sem.tryAcquire(1, 20)) {
+                    exitResult = "acquired more than there are";
+                    return;
+                }
+                sem.release(permits);
+                if (!sem.tryAcquire(permits, 20)) {
+                    exitResult = "permits lost after a timeout";
+                    return;
+                }
+                sem.release(permits);
+            }
+        };
+        joinAll(startAll(new Task[] {t}), 1);
+        assertEquals(permits, sem.availablePermits());
+        assertEquals(0, sem.waiterNum());
+    }
+
+    public void testCountDownLatch() throws Exception {
+        final FiberCountDownLatch latch = new FiberCountDownLatch(3);
+        final int n = 20;
+        Task[] tasks = new Task[n];
+        for (int i = 0; i < n; i++) {
+            tasks[i] = new Task() {
+                public void execute() throws Pausable {
+                    latch.await();
+                }
+            };
+        }
+        Mailbox<ExitMsg> exitmb = startAll(tasks);
+        Task timed = new Task() {
+            public void execute() throws Pausable {
+                if (latch.await(10)) {
+                    exitResult = "latch opened early";
+                }
+            }
+        };
+        joinAll(startAll(new Task[] {timed}), 1);
+        for (int i = 0; i < 3; i++) {
+            assertNull(exitmb.getnb());
+            latch.countDown(); // from a plain thread
+        }
+        joinAll(exitmb, n);
+        assertEquals(0, latch.getCount());
+        latch.countDown();
+        assertEquals(0, latch.getCount());
+    }
+}
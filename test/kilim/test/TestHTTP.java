@@ -6,14 +6,18 @@
 
 package kilim.test;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.HttpURLConnection;
+import java.net.Socket;
 import java.net.URL;
 import java.net.URLConnection;
 
@@ -31,11 +35,13 @@ public class TestHTTP extends TestCase {
 
     NioSelectorScheduler nio;
     int port;
+    int batchingPort;
     
     @Override
     protected void setUp() throws Exception {
         nio = new NioSelectorScheduler(); // Starts a single thread that manages the select loop
         port = nio.listen(0, TestHttpServer.class, Scheduler.getDefaultScheduler()); //
+        batchingPort = nio.listen(0, BatchingHttpServer.class, Scheduler.getDefaultScheduler());
         Thread.sleep(50); // Allow the socket to be registered and opened.
     }
     
@@ -106,6 +112,109 @@ public class TestHTTP extends TestCase {
         
     }
     
+    /**
+     * Content-Length with trailing blanks, a header that only starts with a keyword, and a
+     * "Connection: Close" in a different case than usual, over a raw keep-alive connection.
+     */
+    public void testHeaderSlots() throws IOException {
+        Socket sock = new Socket("localhost", port);
+        sock.setSoTimeout(5000);
+        try {
+            OutputStream os = sock.getOutputStream();
+            InputStream is = sock.getInputStream();
+            os.write(("POST /echo HTTP/1.1\r\n" +
+                      "Hostname: other\r\n" +
+                      "content-length: 3 \r\n" +
+                      "X-Custom: 42\r\n\r\n" +
+                      "abc").getBytes());
+            os.flush();
+            assertEquals("abc", readBody(is));
+            os.write(("GET /bye HTTP/1.1\r\n" +
+                      "Host: localhost\r\n" +
+                      "Connection: Close\r\n\r\n").getBytes());
+            os.flush();
+            assertTrue(readBody(is).startsWith("/bye"));
+            assertEquals(-1, is.read()); // the server closed the connection
+        } finally {
+            sock.close();
+        }
+    }
+
+    /**
+     * Several requests in one write; the responses must come back complete and in order.
+     */
+    public void testPipelining() throws IOException {
+        Socket sock = new Socket("localhost", batchingPort);
+        sock.setSoTimeout(5000);
+        try {
+            OutputStream os = sock.getOutputStream();
+            InputStream is = new BufferedInputStream(sock.getInputStream());
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 5; i++) {
+                sb.append("GET /p").append(i).append(" HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            }
+            sb.append("POST /echo HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n0\r\n\r\n");
+            sb.append("GET /last HTTP/1.1\r\nConnection: close\r\n\r\n");
+            os.write(sb.toString().getBytes());
+            os.flush();
+            for (int i = 0; i < 5; i++) {
+                assertTrue(readBody(is).startsWith("/p" + i));
+            }
+            assertEquals("abc", readBody(is));
+            assertTrue(readBody(is).startsWith("/last"));
+            assertEquals(-1, is.read());
+        } finally {
+            sock.close();
+        }
+    }
+
+    /**
+     * A response held back in the batch must go out once the server waits for the rest of the next
+     * request, here the body that the client only sends after it has the first response.
+     */
+    public void testBatchFlushedBeforeRead() throws IOException {
+        Socket sock = new Socket("localhost", batchingPort);
+        sock.setSoTimeout(5000);
+        try {
+            OutputStream os = sock.getOutputStream();
+            InputStream is = new BufferedInputStream(sock.getInputStream());
+            os.write(("GET /first HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                      "POST /echo HTTP/1.1\r\nContent-Length: 3\r\nConnection: close\r\n\r\n").getBytes());
+            os.flush();
+            assertTrue(readBody(is).startsWith("/first"));
+            os.write("abc".getBytes());
+            os.flush();
+            assertEquals("abc", readBody(is));
+            assertEquals(-1, is.read());
+        } finally {
+            sock.close();
+        }
+    }
+
+    static String readBody(InputStream is) throws IOException {
+        StringBuilder hdr = new StringBuilder();
+        while (!hdr.toString().endsWith("\r\n\r\n")) {
+            int c = is.read();
+            if (c < 0) {
+                throw new EOFException();
+            }
+            hdr.append((char) c);
+        }
+        String h = hdr.toString();
+        int idx = h.indexOf("Content-Length:");
+        int eol = h.indexOf('\r', idx);
+        int len = Integer.parseInt(h.substring(idx + "Content-Length:".length(), eol).trim());
+        byte[] body = new byte[len];
+        for (int n = 0; n < len; ) {
+            int r = is.read(body, n, len - n);
+            if (r < 0) {
+                throw new EOFException();
+            }
+            n += r;
+        }
+        return new String(body);
+    }
+
     public static class TestHttpServer extends HttpSession {
         public void execute() throws Pausable, Exception {
             try {
@@ -138,6 +247,16 @@ public class TestHTTP extends TestCase {
                 }
             } catch (EOFException ignore) {
             }
+            close();
+        }
+    }
+
+    /**
+     * The test server with pipelined responses batched.
+     */
+    public static class BatchingHttpServer extends TestHttpServer {
+        public BatchingHttpServer() {
+            batchResponses = true;
         }
     }
 }
@@ -14,6 +14,10 @@ import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 import kilim.Pausable;
@@ -55,6 +59,22 @@ public class TestIO extends TestCase {
         }
     }
     
+    /**
+     * Sessions are spread over all the selectors, and each is served by the one it was given to.
+     */
+    public void testMultipleSelectors() throws Exception {
+        NioSelectorScheduler nio3 = new NioSelectorScheduler(3, NioSelectorScheduler.Balance.ROUND_ROBIN);
+        try {
+            int port3 = nio3.listen(0, SelectorCountingEchoServer.class, Scheduler.getDefaultScheduler());
+            for (int i = 0; i < 12; i++) {
+                client(port3);
+            }
+            assertEquals(3, SelectorCountingEchoServer.selectors.size());
+        } finally {
+            nio3.shutdown();
+        }
+    }
+
     public void testDelay() throws IOException {
         SocketChannel sc = SocketChannel.open();
         
@@ -87,6 +107,43 @@ public class TestIO extends TestCase {
     }
     
 
+    /**
+     * With session affinity, every session task stays on the worker it was bound to, even though
+     * the delayed chunks make it pause and resume many times.
+     */
+    public void testAffinity() throws Exception {
+        boolean old = NioSelectorScheduler.sessionAffinity;
+        NioSelectorScheduler.sessionAffinity = true;
+        try {
+            int aport = nio.listen(0, AffinityEchoServer.class, Scheduler.getDefaultScheduler());
+            for (int i = 0; i < 5; i++) {
+                SocketChannel sc = SocketChannel.open();
+                try {
+                    sc.socket().connect(new InetSocketAddress("localhost", aport));
+                    OutputStream os = sc.socket().getOutputStream();
+                    for (int j = 0; j < 3; j++) {
+                        String s = "Iteration #" + j;
+                        if (j == 2) {s += " DONE";}
+                        byte[] sbytes = s.getBytes();
+                        ByteArrayOutputStream baos = new ByteArrayOutputStream(100);
+                        DataOutputStream dos = new DataOutputStream(baos);
+                        dos.writeInt(sbytes.length);
+                        dos.write(sbytes);
+                        byte[] sendbuf = baos.toByteArray();
+                        sendChunkWithDelay(os, sendbuf, 0, 2);
+                        sendChunkWithDelay(os, sendbuf, 2, sendbuf.length - 2);
+                        assertEquals(s, rcv(sc));
+                    }
+                } finally {
+                    sc.close();
+                }
+            }
+            assertEquals(0, AffinityEchoServer.numMoved.get());
+        } finally {
+            NioSelectorScheduler.sessionAffinity = old;
+        }
+    }
+
     public void sendChunkWithDelay(OutputStream os, byte[] sendbuf, int offset, int len) throws IOException {
         os.write(sendbuf, offset, len);
         os.flush();
@@ -169,4 +226,41 @@ public class TestIO extends TestCase {
             }
         }
     }
+
+    public static class AffinityEchoServer extends SessionTask {
+        static AtomicInteger numMoved = new AtomicInteger();
+
+        @Override
+        public void execute() throws Pausable, Exception {
+            Thread thread = Thread.currentThread();
+            ByteBuffer buf = ByteBuffer.allocate(100);
+            EndPoint ep = getEndPoint();
+            while (true) {
+                buf.clear();
+                buf = ep.fillMessage(buf, 4, /*lengthIncludesItself*/ false);
+                if (Thread.currentThread() != thread) {
+                    numMoved.incrementAndGet();
+                }
+                buf.flip();
+                int strlen = buf.getInt();
+                String s= new String(buf.array(), 4, strlen);
+                buf.position(0);
+                ep.write(buf);
+                if (s.endsWith("DONE")) {
+                    ep.close();
+                    break;
+                }
+            }
+        }
+    }
+
+    public static class SelectorCountingEchoServer extends EchoServer {
+        static Set<Object> selectors = Collections.synchronizedSet(new HashSet<Object>());
+
+        @Override
+        public void execute() throws Pausable, Exception {
+            selectors.add(getEndPoint().sockEvMbx);
+            super.execute();
+        }
+    }
 }
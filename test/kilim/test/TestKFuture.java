@@ -0,0 +1,177 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import junit.framework.TestCase;
+import kilim.ExitMsg;
+import kilim.Pausable;
+import kilim.Task;
+import zhmt.dawn.concurrent.interthread.CallableTask;
+import zhmt.dawn.concurrent.interthread.KFuture;
+import zhmt.dawn.concurrent.interthread.ThreadPoolCallableTask;
+
+public class TestKFuture extends TestCase {
+
+    public void testAwaitCompletedLater() throws Exception {
+        final KFuture<String> f = new KFuture<String>();
+        Task t = new Task() {
+            public void execute() throws Pausable, Exception {
+                exitResult = f.await();
+            }
+        }.start();
+        Thread.sleep(50);
+        assertFalse(t.isDone());
+        f.complete("done");
+        assertEquals("done", t.joinb().result);
+    }
+
+    public void testAwaitCompleted() throws Exception {
+        final CompletableFuture<String> f = CompletableFuture.completedFuture("now");
+        Task t = new Task() {
+            public void execute() throws Pausable, Exception {
+                exitResult = KFuture.await(f);
+            }
+        }.start();
+        assertEquals("now", t.joinb().result);
+    }
+
+    public void testAwaitExceptional() throws Exception {
+        final CompletableFuture<String> f = new CompletableFuture<String>();
+        Task t = new Task() {
+            public void execute() throws Pausable, Exception {
+                try {
+                    KFuture.await(f);
+                    exitResult = "no exception";
+                } catch (ExecutionException e) {
+                    exitResult = e.getCause().getMessage();
+                }
+            }
+        }.start();
+        f.completeExceptionally(new IllegalStateException("boom"));
+        assertEquals("boom", t.joinb().result);
+    }
+
+    public void testAwaitManyFromOtherThreads() throws Exception {
+        final int n = 1000;
+        final ExecutorService es = Executors.newFixedThreadPool(2);
+        try {
+            Task t = new Task() {
+                public void execute() throws Pausable, Exception {
+                    int sum = 0;
+                    for (int i = 0; i < n; i++) {
+                        final int v = i;
+                        sum += KFuture.await(CompletableFuture.supplyAsync(new Supplier<Integer>() {
+                            public Integer get() {
+                                return v;
+                            }
+                        }, es));
+                    }
+                    exitResult = sum;
+                }
+            }.start();
+            assertEquals(n * (n - 1) / 2, t.joinb().result);
+        } finally {
+            es.shutdown();
+        }
+    }
+
+    public void testAwaitPlainFuture() throws Exception {
+        final FutureTask<String> f = new FutureTask<String>(new Callable<String>() {
+            public String call() {
+                return "polled";
+            }
+        });
+        Task t = new Task() {
+            public void execute() throws Pausable, Exception {
+                exitResult = KFuture.await(f);
+            }
+        }.start();
+        Thread.sleep(20);
+        new Thread(f).start();
+        assertEquals("polled", t.joinb().result);
+    }
+
+    public void testOfTask() throws Exception {
+        Task t = new Task() {
+            public void execute() throws Pausable, Exception {
+                Task.sleep(20);
+                exitResult = "result";
+            }
+        };
+        KFuture<Object> f = KFuture.of(t);
+        t.start();
+        assertEquals("result", f.get(5, TimeUnit.SECONDS));
+
+        // already finished
+        assertEquals("result", KFuture.of(t).get(5, TimeUnit.SECONDS));
+
+        Task bad = new Task() {
+            public void execute() throws Pausable, Exception {
+                throw new IllegalStateException("expected");
+            }
+        };
+        f = KFuture.of(bad);
+        bad.start();
+        try {
+            f.join();
+            fail("Expected exceptional completion");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    public void testCallableTask() throws Exception {
+        CallableTask<String> ct = new CallableTask<String>() {
+            public String execute() throws Pausable, Exception {
+                Task.sleep(10);
+                return "called";
+            }
+        };
+        assertEquals("called", ct.startOn());
+
+        ct = new CallableTask<String>() {
+            public String execute() throws Pausable, Exception {
+                return "async";
+            }
+        };
+        assertEquals("async", ct.startAsync().get(5, TimeUnit.SECONDS));
+    }
+
+    public void testThreadPoolCallableTask() throws Exception {
+        final ThreadPoolExecutor es = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        try {
+            Task t = new Task() {
+                public void execute() throws Pausable, Exception {
+                    ThreadPoolCallableTask<String> pt = new ThreadPoolCallableTask<String>() {
+                        public String execute() throws Exception {
+                            Thread.sleep(20);
+                            return "pooled";
+                        }
+                    };
+                    exitResult = pt.startOn(es);
+                }
+            }.start();
+            ExitMsg m = t.joinb();
+            assertEquals("pooled", m.result);
+        } finally {
+            es.shutdown();
+        }
+    }
+}
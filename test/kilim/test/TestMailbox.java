@@ -6,11 +6,19 @@
 
 package kilim.test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 
 import junit.framework.TestCase;
+import kilim.CreditMailbox;
+import kilim.ExitMsg;
+import kilim.IntMailbox;
+import kilim.LongMailbox;
 import kilim.Mailbox;
+import kilim.MailboxSelector;
+import kilim.MpscMailbox;
 import kilim.Pausable;
 import kilim.Task;
 
@@ -173,6 +181,484 @@ public class TestMailbox extends TestCase {
         assertTrue(mb.getnb() == null); 
     }
     
+    public void testBulk() {
+        Mailbox<Msg> mb = new Mailbox<Msg>(4, 10);
+        Msg[] src = new Msg[8];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = new Msg(0, i);
+        }
+        // wrap the ring around before growing it
+        assertEquals(3, mb.putnb(src, 0, 3));
+        assertSame(src[0], mb.getnb());
+        assertSame(src[1], mb.getnb());
+        assertEquals(5, mb.putnb(src, 3, 5)); // grows to 8
+        assertEquals(6, mb.size());
+        assertEquals(4, mb.putnb(src, 0, 8)); // bounded by maxSize 10
+        assertEquals(10, mb.size());
+        assertFalse(mb.hasSpace());
+
+        Msg[] dst = new Msg[7];
+        assertEquals(7, mb.get(dst, 0, 7, null));
+        for (int i = 0; i < 6; i++) {
+            assertSame(src[i + 2], dst[i]);
+        }
+        assertSame(src[0], dst[6]);
+        ArrayList<Msg> rest = new ArrayList<Msg>();
+        assertEquals(2, mb.drainTo(rest, 2));
+        assertEquals(1, mb.drainTo(rest, 100));
+        assertSame(src[1], rest.get(0));
+        assertSame(src[3], rest.get(2));
+        assertEquals(0, mb.drainTo(rest, 100));
+        assertNull(mb.getnb());
+    }
+
+    public void testBatch() {
+        runBatch(new Mailbox<Msg>(10, 50));
+    }
+
+    /**
+     * Producer tasks putAll() batches of messages into mb, which a consumer task drains with
+     * getBatch() and forwards, one message at a time, to a mailbox checked for per-producer order.
+     */
+    static void runBatch(final Mailbox<Msg> mb) {
+        final int nTasks = 20;
+        final int nTimes = 1000;
+        final int batch = 7;
+        final Mailbox<Msg> mainmb = new Mailbox<Msg>();
+        for (int i = 0; i < nTasks; i++) {
+            final int id = i;
+            new Task() {
+                public void execute() throws Pausable {
+                    Msg[] src = new Msg[batch];
+                    for (int j = 0; j < nTimes; j += batch) {
+                        int n = Math.min(batch, nTimes - j);
+                        for (int k = 0; k < n; k++) {
+                            src[k] = new Msg(id, j + k);
+                        }
+                        mb.putAll(src, 0, n);
+                    }
+                }
+            }.start();
+        }
+        Task consumer = new Task() {
+            public void execute() throws Pausable {
+                Msg[] dst = new Msg[32];
+                int total = 0;
+                while (total < nTasks * nTimes) {
+                    int n = mb.getBatch(dst);
+                    for (int k = 0; k < n; k++) {
+                        mainmb.putnb(dst[k]);
+                    }
+                    total += n;
+                }
+            }
+        };
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        consumer.informOnExit(exitmb);
+        consumer.start();
+        TestMpscMailbox.checkOrder(mainmb, nTasks, nTimes);
+        assertNotNull(exitmb.getb(5000));
+    }
+
+    public void testLongMailbox() {
+        final LongMailbox mb = new LongMailbox(4, 16);
+        final int nTasks = 10;
+        final int nTimes = 1000;
+        for (int i = 0; i < nTasks; i++) {
+            final long base = (long) i << 32;
+            new Task() {
+                public void execute() throws Pausable {
+                    long[] src = new long[5];
+                    for (int j = 0; j < nTimes; j += 2 * src.length) {
+                        for (int k = 0; k < src.length; k++) {
+                            mb.put(base + j + k);
+                        }
+                        for (int k = 0; k < src.length; k++) {
+                            src[k] = base + j + src.length + k;
+                        }
+                        mb.putAll(src, 0, src.length);
+                    }
+                }
+            }.start();
+        }
+        final Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        Task consumer = new Task() {
+            public void execute() throws Pausable {
+                long[] last = new long[nTasks];
+                Arrays.fill(last, -1);
+                long[] dst = new long[8];
+                int total = 0;
+                while (total < nTasks * nTimes) {
+                    int n;
+                    if (total % 2 == 0) {
+                        dst[0] = mb.getLong();
+                        n = 1;
+                    } else {
+                        n = mb.getBatch(dst);
+                    }
+                    for (int k = 0; k < n; k++) {
+                        int id = (int) (dst[k] >>> 32);
+                        long num = dst[k] & 0xffffffffL;
+                        if (num != last[id] + 1) {
+                            exitResult = "out of order: " + id + ", " + num;
+                        }
+                        last[id] = num;
+                    }
+                    total += n;
+                }
+            }
+        };
+        consumer.informOnExit(exitmb);
+        consumer.start();
+        ExitMsg m = exitmb.getb(10000);
+        assertNotNull("Timed out", m);
+        assertEquals("OK", m.result);
+        assertEquals(0, mb.size());
+    }
+
+    public void testGetBatchEmptyDst() {
+        final Mailbox<String> mb = new Mailbox<String>();
+        mb.putnb("x");
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        Task t = new Task() {
+            public void execute() throws Pausable {
+                try {
+                    mb.getBatch(new String[0]);
+                    exitResult = "getBatch returned";
+                } catch (IllegalArgumentException expected) {
+                }
+            }
+        };
+        t.informOnExit(exitmb);
+        t.start();
+        ExitMsg m = exitmb.getb(5000);
+        assertNotNull("Timed out", m);
+        assertEquals("OK", m.result);
+        assertEquals(1, mb.size());
+    }
+
+    public void testIntMailbox() {
+        IntMailbox mb = new IntMailbox(2, 5);
+        assertTrue(mb.putnb(1));
+        assertTrue(mb.putnb(Integer.valueOf(2))); // the boxed API works too
+        assertEquals(3, mb.putnb(new int[] {3, 4, 5, 6}, 0, 4));
+        assertFalse(mb.putnb(7));
+        assertEquals(5, mb.size());
+        assertEquals(Integer.valueOf(3), mb.peek(2));
+        assertEquals(Integer.valueOf(1), mb.getnb());
+        assertEquals(2, mb.getIntb());
+        int[] dst = new int[10];
+        assertEquals(3, mb.get(dst, 0, 10, null));
+        assertEquals(5, dst[2]);
+        assertEquals(0, mb.get(dst, 0, 10, null));
+        assertNull(mb.getnb());
+    }
+
+    public void testSelectPrimitive() {
+        final IntMailbox ints = new IntMailbox();
+        final Mailbox<String> strs = new Mailbox<String>();
+        final Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        Task t = new Task() {
+            public void execute() throws Pausable {
+                int sum = 0;
+                int nStrs = 0;
+                while (sum < 10 || nStrs < 2) {
+                    switch (Mailbox.select(ints, strs)) {
+                        case 0: sum += ints.getInt(); break;
+                        case 1: strs.get(); nStrs++; break;
+                    }
+                }
+                exitResult = sum;
+            }
+        };
+        t.informOnExit(exitmb);
+        t.start();
+        for (int i = 1; i <= 4; i++) {
+            try {Thread.sleep(5);} catch (InterruptedException ignore) {}
+            ints.putb(i);
+            if (i % 2 == 0) {
+                strs.putnb("s" + i);
+            }
+        }
+        ExitMsg m = exitmb.getb(5000);
+        assertNotNull("Timed out", m);
+        assertEquals(10, m.result);
+    }
+
+    public void testSelector() throws Exception {
+        final int nBoxes = 32;
+        final int nThreads = 4;
+        final int nTimes = 1024;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final Mailbox<Integer>[] mboxes = new Mailbox[nBoxes];
+        for (int i = 0; i < nBoxes; i++) {
+            // mix the implementations, including one with its own put path
+            mboxes[i] = i % 4 == 0 ? new MpscMailbox<Integer>() : new Mailbox<Integer>(4);
+        }
+        final MailboxSelector sel = new MailboxSelector(mboxes);
+        final Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        Task consumer = new Task() {
+            public void execute() throws Pausable {
+                int[] counts = new int[nBoxes];
+                int total = 0;
+                while (total < nThreads * nTimes) {
+                    int i = sel.select();
+                    // take one or two, leaving the rest for the next select
+                    int n = total % 2 == 0 ? 1 : 2;
+                    Integer msg;
+                    while (n-- > 0 && (msg = mboxes[i].getnb()) != null) {
+                        if (msg.intValue() != i) {
+                            exitResult = "message " + msg + " in mailbox " + i;
+                        }
+                        counts[i]++;
+                        total++;
+                    }
+                }
+                for (int i = 0; i < nBoxes; i++) {
+                    if (counts[i] != nThreads * nTimes / nBoxes) {
+                        exitResult = "mailbox " + i + ": " + counts[i];
+                    }
+                }
+                sel.close();
+            }
+        };
+        consumer.informOnExit(exitmb);
+        consumer.start();
+        Thread[] producers = new Thread[nThreads];
+        for (int t = 0; t < nThreads; t++) {
+            producers[t] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < nTimes; j++) {
+                        int i = j % nBoxes;
+                        mboxes[i].putb(i);
+                    }
+                }
+            };
+            producers[t].start();
+        }
+        for (Thread t : producers) {
+            t.join();
+        }
+        ExitMsg m = exitmb.getb(10000);
+        assertNotNull("Timed out", m);
+        assertEquals("OK", m.result);
+        // closed: the mailboxes can be registered again
+        new MailboxSelector(mboxes).close();
+    }
+
+    public void testSelectorNonpausing() {
+        Mailbox<String> a = new Mailbox<String>();
+        IntMailbox b = new IntMailbox();
+        Mailbox<String> c = new Mailbox<String>();
+        c.putnb("early"); // ready as soon as it is registered
+        MailboxSelector sel = new MailboxSelector(a, b, c);
+        try {
+            new MailboxSelector(c);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(2, sel.selectnb());
+        assertEquals("early", c.getnb());
+        assertEquals(-1, sel.selectnb());
+        b.putnb(1);
+        b.putnb(2);
+        a.putnb("a");
+        assertEquals(1, sel.selectnb());
+        assertEquals(1, b.getIntb());
+        // b still has a message, but goes behind a
+        assertEquals(0, sel.selectnb());
+        assertEquals("a", a.getnb());
+        assertEquals(1, sel.selectnb());
+        assertEquals(2, b.getIntb());
+        assertEquals(-1, sel.selectnb());
+        sel.close();
+        new MailboxSelector(c).close();
+    }
+
+    public void testSelectorTimeout() {
+        final Mailbox<String> a = new Mailbox<String>();
+        final Mailbox<String> b = new Mailbox<String>();
+        final Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        Task t = new Task() {
+            public void execute() throws Pausable {
+                MailboxSelector sel = new MailboxSelector(a, b);
+                long begin = System.currentTimeMillis();
+                if (sel.select(50) != -1) {
+                    exitResult = "expected timeout";
+                } else if (System.currentTimeMillis() - begin < 40) {
+                    exitResult = "woke up early";
+                } else {
+                    int i = sel.select(5000);
+                    exitResult = i == 1 ? b.getnb() : "got " + i;
+                }
+                sel.close();
+            }
+        };
+        t.informOnExit(exitmb);
+        t.start();
+        try {Thread.sleep(200);} catch (InterruptedException ignore) {}
+        b.putnb("b");
+        ExitMsg m = exitmb.getb(5000);
+        assertNotNull("Timed out", m);
+        assertEquals("b", m.result);
+    }
+
+    public void testCredits() {
+        final CreditMailbox<Msg> mb = new CreditMailbox<Msg>(64, 8);
+        final int nTasks = 20;
+        final int nTimes = 1000;
+        for (int i = 0; i < nTasks; i++) {
+            final int id = i;
+            new Task() {
+                public void execute() throws Pausable {
+                    CreditMailbox<Msg>.Sender sender = mb.sender();
+                    for (int j = 0; j < nTimes; j++) {
+                        sender.put(new Msg(id, j));
+                    }
+                    sender.close();
+                }
+            }.start();
+        }
+        // and a thread, which blocks instead
+        new Thread() {
+            public void run() {
+                CreditMailbox<Msg>.Sender sender = mb.sender();
+                for (int j = 0; j < nTimes; j++) {
+                    sender.putb(new Msg(nTasks, j));
+                }
+                sender.close();
+            }
+        }.start();
+        final Mailbox<Msg> mainmb = new Mailbox<Msg>();
+        Task consumer = new Task() {
+            public void execute() throws Pausable {
+                Msg[] dst = new Msg[5];
+                for (int total = 0; total < (nTasks + 1) * nTimes;) {
+                    int n;
+                    if (total % 2 == 0) {
+                        dst[0] = mb.get();
+                        n = 1;
+                    } else {
+                        n = mb.getBatch(dst);
+                    }
+                    for (int k = 0; k < n; k++) {
+                        mainmb.putnb(dst[k]);
+                    }
+                    total += n;
+                }
+            }
+        };
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        consumer.informOnExit(exitmb);
+        consumer.start();
+        TestMpscMailbox.checkOrder(mainmb, nTasks + 1, nTimes);
+        assertNotNull(exitmb.getb(5000));
+        assertNull(mb.getnb()); // returns the last partial batch
+        assertEquals(64, mb.getCredits());
+        // a sender is woken once per batch returned, not once per message
+        assertTrue(mb.getWakeups() + " wakeups", mb.getWakeups() <= (nTasks + 1) * nTimes / 8 + mb.getGrants());
+    }
+
+    public void testCreditsNonpausing() {
+        CreditMailbox<String> mb = new CreditMailbox<String>(4, 2);
+        CreditMailbox<String>.Sender a = mb.sender();
+        CreditMailbox<String>.Sender b = mb.sender();
+        assertTrue(a.putnb("a1"));
+        assertEquals(1, a.getCredits()); // drew a batch of 2
+        assertEquals(2, mb.getCredits());
+        assertTrue(b.putnb("b1"));
+        assertTrue(b.putnb("b2"));
+        assertFalse(b.putnb("b3")); // a holds the last credit
+        a.close();
+        assertTrue(b.putnb("b3"));
+        assertEquals(0, mb.getCredits());
+        assertFalse(mb.putnb("direct")); // no credits
+        assertEquals("a1", mb.getnb());
+        assertEquals(0, mb.getCredits()); // less than a batch taken
+        assertEquals("b1", mb.getnb());
+        assertEquals(2, mb.getCredits());
+        assertEquals("b2", mb.getnb());
+        assertEquals("b3", mb.getnb());
+        assertEquals(4, mb.getCredits());
+        assertTrue(a.putnb("a2"));
+        assertEquals("a2", mb.getnb());
+        assertEquals(2, mb.getCredits());
+        assertNull(mb.getnb()); // empty: the consumer returns what it has
+        assertEquals(3, mb.getCredits());
+        a.close();
+        assertEquals(4, mb.getCredits());
+    }
+
+    /**
+     * The puts inherited from Mailbox, mixed with a Sender, against a consumer that takes one message
+     * at a time.
+     */
+    public void testCreditsInheritedPuts() {
+        final CreditMailbox<Msg> mb = new CreditMailbox<Msg>(8, 4);
+        final int nTimes = 1000;
+        new Task() {
+            public void execute() throws Pausable {
+                Msg[] src = new Msg[3];
+                for (int j = 0; j < nTimes; j += 4) {
+                    mb.put(new Msg(0, j));
+                    for (int k = 0; k < 3; k++) {
+                        src[k] = new Msg(0, j + 1 + k);
+                    }
+                    mb.putAll(src, 0, 3);
+                }
+            }
+        }.start();
+        new Task() {
+            public void execute() throws Pausable {
+                for (int j = 0; j < nTimes; j++) {
+                    while (!mb.put(new Msg(1, j), 1000)) {
+                    }
+                }
+            }
+        }.start();
+        new Thread() {
+            public void run() {
+                for (int j = 0; j < nTimes; j++) {
+                    mb.putb(new Msg(2, j));
+                }
+            }
+        }.start();
+        new Task() {
+            public void execute() throws Pausable {
+                CreditMailbox<Msg>.Sender sender = mb.sender();
+                for (int j = 0; j < nTimes; j++) {
+                    sender.put(new Msg(3, j));
+                }
+                sender.close();
+            }
+        }.start();
+        final Mailbox<Msg> mainmb = new Mailbox<Msg>();
+        new Thread() {
+            public void run() {
+                for (int i = 0; i < 4 * nTimes; i++) {
+                    mainmb.putnb(mb.getb());
+                }
+            }
+        }.start();
+        TestMpscMailbox.checkOrder(mainmb, 4, nTimes);
+        assertNull(mb.getnb());
+        assertEquals(8, mb.getCredits());
+
+        // Nonpausing, with a listener for the next grant
+        for (int i = 0; i < 8; i++) {
+            assertTrue(mb.putnb(new Msg()));
+        }
+        Mailbox<Msg>.BlockingSubscriber evs = mb.new BlockingSubscriber();
+        assertFalse(mb.put(new Msg(), evs));
+        assertEquals(0, mb.putnb(new Msg[] {new Msg()}, 0, 1));
+        for (int i = 0; i < 4; i++) {
+            mb.getnb();
+        }
+        assertTrue(evs.eventRcvd);
+        assertEquals(4, mb.putnb(new Msg[] {new Msg(), new Msg(), new Msg(), new Msg(), new Msg()}, 0, 5));
+        assertEquals(8, mb.size());
+    }
+
     // Send messages on two mailboxes and collect them back on one mailbox.
     public void testSelectSimple() {
         Mailbox<Msg> mainmb = new Mailbox<Msg>();
@@ -201,42 +687,6 @@ public class TestMailbox extends TestCase {
     }
 }
 
-class Msg {
-    int tid; // thread or task id
-    int num;
-    Msg(){}
-    Msg(int id, int n) {tid = id; num = n;}
-    public String toString() {
-        return "Msg(" + tid + "," + num + ")";
-    }
-};
-
-
-class TaskMB extends Task {
-    Mailbox<Msg> mymb;
-    Mailbox<Msg> mainmb;
-    
-    TaskMB(Mailbox<Msg> ms) {
-        mymb = new Mailbox<Msg>();
-        mainmb = ms;
-    }
-    
-    public void execute() throws Pausable {
-        Msg m = mymb.get();
-        assert m != null : "task rcvd null msg";
-        int id = m.tid; // Receive this task's id
-        int n = m.num;  // Receive the number of times we have to loop
-        
-        for (int i = 0; i < n; i++) {
-            mainmb.put(new Msg(id, i));
-            if (i % 10 == 0) {
-                Task.yield();
-            }
-        }
-    }
-}
-
-
 /** 
  * A Task that only makes nonpausing calls.
  * @author s
@@ -0,0 +1,160 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+import kilim.Mailbox;
+import kilim.MpscMailbox;
+import kilim.Pausable;
+import kilim.Task;
+
+public class TestMpscMailbox extends TestCase {
+    public void testThread() {
+        final Mailbox<Msg> mb = new MpscMailbox<Msg>();
+        final int nThreads = 30;
+        final int nTimes = 1000;
+        for (int i = 0; i < nThreads ; i++) {
+            final int id = i;
+            new Thread() {
+                public void run() {
+                    for (int j = 0; j < nTimes; j++) {
+                        mb.putnb(new Msg(id, j));
+                        Thread.yield();
+                    }
+                }
+            }.start();
+        }
+        checkOrder(mb, nThreads, nTimes);
+    }
+
+    public void testTasks() {
+        Mailbox<Msg> mb = new MpscMailbox<Msg>();
+        final int nTasks = 100;
+        final int nTimes = 1000;
+        for (int i = 0; i < nTasks ; i++) {
+            TaskMB t = new TaskMB(/*mainmb=*/mb);
+            t.start();
+            t.mymb.putnb(new Msg(i, nTimes));
+        }
+        checkOrder(mb, nTasks, nTimes);
+    }
+
+    /**
+     * A task consuming from an MpscMailbox, fed by many threads, pausing whenever it is empty.
+     */
+    public void testTaskConsumer() {
+        final Mailbox<Msg> mb = new MpscMailbox<Msg>();
+        Mailbox<Msg> mainmb = new Mailbox<Msg>();
+        final int nThreads = 10;
+        final int nTimes = 1000;
+        new ForwardTask(mb, mainmb, nThreads * nTimes).start();
+        for (int i = 0; i < nThreads ; i++) {
+            final int id = i;
+            new Thread() {
+                public void run() {
+                    for (int j = 0; j < nTimes; j++) {
+                        mb.putnb(new Msg(id, j));
+                        if (j % 100 == 0) {
+                            try {Thread.sleep(1);} catch (InterruptedException ignore) {}
+                        }
+                    }
+                }
+            }.start();
+        }
+        checkOrder(mainmb, nThreads, nTimes);
+    }
+
+    public void testBatch() {
+        TestMailbox.runBatch(new MpscMailbox<Msg>());
+    }
+
+    public void testBulk() {
+        Mailbox<Msg> mb = new MpscMailbox<Msg>();
+        Msg[] src = new Msg[5];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = new Msg(0, i);
+        }
+        assertEquals(5, mb.putnb(src, 0, 5));
+        Msg[] dst = new Msg[3];
+        assertEquals(3, mb.get(dst, 0, 3, null));
+        assertSame(src[2], dst[2]);
+        ArrayList<Msg> rest = new ArrayList<Msg>();
+        assertEquals(2, mb.drainTo(rest, 10));
+        assertSame(src[4], rest.get(1));
+        assertEquals(0, mb.get(dst, 0, 3, null));
+    }
+
+    public void testPeekRemove() {
+        Mailbox<Msg> mb = new MpscMailbox<Msg>();
+        Msg[] msgs = new Msg[5];
+        for (int i = 0; i < msgs.length; i++) {
+            msgs[i] = new Msg(0, i);
+            assertTrue(mb.putnb(msgs[i]));
+        }
+        assertEquals(5, mb.size());
+        assertSame(msgs[2], mb.peek(2));
+        assertSame(msgs[2], mb.remove(2));
+        assertEquals(4, mb.size());
+        assertSame(msgs[3], mb.peek(2));
+        assertEquals(4, mb.messages().length);
+        assertSame(msgs[0], mb.getnb());
+        assertSame(msgs[1], mb.getnb());
+        assertSame(msgs[3], mb.getnb());
+        assertSame(msgs[4], mb.getnb());
+        assertNull(mb.getnb());
+        assertFalse(mb.hasMessage());
+    }
+
+    public void testTimeout() {
+        Mailbox<Msg> mb = new MpscMailbox<Msg>();
+        long start = System.currentTimeMillis();
+        assertNull(mb.getb(100));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        mb.putnb(new Msg());
+        assertNotNull(mb.getb(100));
+    }
+
+    static void checkOrder(Mailbox<Msg> mb, int nSenders, int nTimes) {
+        HashMap<Integer, Integer> lastRcvd = new HashMap<Integer,Integer>();
+        for (int i = 0; i < nSenders * nTimes; i++) {
+            Msg m = mb.getb(5000);
+            assertNotNull("Timed out after " + i + " messages", m);
+            // Each sender's messages must arrive in the order they were sent.
+            Integer last = lastRcvd.put(m.tid, m.num);
+            if (last == null) {
+                assertEquals(0, m.num);
+            } else {
+                assertEquals(last.intValue() + 1, m.num);
+            }
+        }
+        assertEquals(nSenders, lastRcvd.size());
+        for (Integer v : lastRcvd.values()) {
+            assertEquals(nTimes - 1, v.intValue());
+        }
+        assertNull(mb.getnb());
+    }
+
+    static class ForwardTask extends Task {
+        Mailbox<Msg> in, out;
+        int n;
+
+        ForwardTask(Mailbox<Msg> in, Mailbox<Msg> out, int n) {
+            this.in = in;
+            this.out = out;
+            this.n = n;
+        }
+
+        public void execute() throws Pausable {
+            for (int i = 0; i < n; i++) {
+                out.put(in.get());
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.test;
+
+import junit.framework.TestCase;
+import kilim.DeadlineScheduler;
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Scheduler;
+import kilim.Task;
+import kilim.analysis.MethodWeaver;
+
+/**
+ * Weaves kilim.test.ex.ExSpin (or ExSwitchSpin) with yield checks on loop back-edges (it is not
+ * woven yet on this test's classpath), and runs two of them on a single worker thread.
+ */
+public class TestPreemption extends TestCase {
+    static final String SPIN = "kilim.test.ex.ExSpin";
+    static final String SWITCH_SPIN = "kilim.test.ex.ExSwitchSpin";
+    static final String SHED_SPIN = "kilim.test.ex.ExShedSpin";
+
+    public void testTimeSlice() throws Exception {
+        Class<?> c = weaveWithYieldChecks(SPIN);
+        Scheduler s = new Scheduler(1);
+        try {
+            s.setTimeSlice(5);
+            c.getField("stop").setBoolean(null, false);
+            Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
+            Task a = start(c, s, mb);
+            Task b = start(c, s, mb);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (count(a) == 0 || count(b) == 0) {
+                assertTrue("Spinners did not take turns", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            c.getField("stop").setBoolean(null, true);
+            for (int i = 0; i < 2; i++) {
+                ExitMsg m = mb.getb(10000);
+                assertNotNull("Timed out", m);
+                assertEquals("OK", m.result);
+            }
+            long expected = 100000000L * (100000000L - 1) / 2;
+            assertEquals(expected, c.getField("total").getLong(a));
+            assertEquals(expected, c.getField("total").getLong(b));
+            assertTrue(s.allThreads.get(0).numPreemptions > 0);
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    /**
+     * A loop closed by a switch case rather than a branch is preempted as well.
+     */
+    public void testSwitchBackEdge() throws Exception {
+        Class<?> c = weaveWithYieldChecks(SWITCH_SPIN);
+        Scheduler s = new Scheduler(1);
+        try {
+            s.setTimeSlice(5);
+            c.getField("stop").setBoolean(null, false);
+            Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
+            Task a = start(c, s, mb);
+            Task b = start(c, s, mb);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (count(a) == 0 || count(b) == 0) {
+                assertTrue("Spinners did not take turns", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            c.getField("stop").setBoolean(null, true);
+            for (int i = 0; i < 2; i++) {
+                ExitMsg m = mb.getb(10000);
+                assertNotNull("Timed out", m);
+                assertEquals("OK", m.result);
+            }
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    /**
+     * Without a time slice, the checks never trip, and the first spinner keeps the thread.
+     */
+    public void testNoTimeSlice() throws Exception {
+        Class<?> c = weaveWithYieldChecks(SPIN);
+        Scheduler s = new Scheduler(1);
+        try {
+            c.getField("stop").setBoolean(null, false);
+            Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
+            Task a = start(c, s, mb);
+            Task b = start(c, s, mb);
+            Thread.sleep(100);
+            assertTrue(count(a) > 0);
+            assertEquals(0, count(b));
+            c.getField("stop").setBoolean(null, true);
+            assertNotNull(mb.getb(10000));
+            assertNotNull(mb.getb(10000));
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    /**
+     * A task shed while preempted in a loop gets a ShedException from the yield check, which the
+     * try block around the loop must see.
+     */
+    public void testShedPreempted() throws Exception {
+        Class<?> c = weaveWithYieldChecks(SHED_SPIN);
+        DeadlineScheduler s = new DeadlineScheduler(1);
+        try {
+            s.setTimeSlice(5);
+            s.setShedder(new DeadlineScheduler.Shedder() {
+                public boolean shed(Task t) {
+                    return true;
+                }
+            });
+            c.getField("stop").setBoolean(null, false);
+            Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
+            Task t = (Task) c.getDeclaredConstructor().newInstance();
+            t.setDeadline(System.currentTimeMillis() + 50).setScheduler(s);
+            t.informOnExit(mb);
+            t.start();
+            ExitMsg m = mb.getb(5000);
+            c.getField("stop").setBoolean(null, true);
+            assertNotNull("Timed out", m);
+            assertSame(DeadlineScheduler.SHED, m.result);
+            assertTrue(count(t) > 0);
+            assertTrue("finally block skipped", c.getField("cleanedUp").getBoolean(t));
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    static Task start(Class<?> c, Scheduler s, Mailbox<ExitMsg> mb) throws Exception {
+        Task t = (Task) c.getDeclaredConstructor().newInstance();
+        t.setScheduler(s);
+        t.informOnExit(mb);
+        t.start();
+        return t;
+    }
+
+    static long count(Task t) throws Exception {
+        return t.getClass().getField("count").getLong(t);
+    }
+
+    static Class<?> weaveWithYieldChecks(String className) throws Exception {
+        boolean save = MethodWeaver.preemptLoops;
+        MethodWeaver.preemptLoops = true;
+        try {
+            return new WovenClassLoader().weave(className).loadClass(className);
+        } finally {
+            MethodWeaver.preemptLoops = save;
+        }
+    }
+}
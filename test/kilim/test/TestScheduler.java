@@ -0,0 +1,588 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import kilim.DeadlineQueue;
+import kilim.DeadlineScheduler;
+import kilim.ExitMsg;
+import kilim.IdleStrategy;
+import kilim.LaneQueue;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Priority;
+import kilim.Scheduler;
+import kilim.Task;
+import kilim.WorkStealingScheduler;
+import kilim.WorkerThread;
+import zhmt.dawn.NonpausableTask;
+
+public class TestScheduler extends TestCase {
+    static final int NUM_TASKS = 100;
+
+    public void testWorkStealingRing() {
+        Scheduler scheduler = new WorkStealingScheduler(4);
+        try {
+            runRing(scheduler);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testWorkStealingPinned() {
+        Scheduler scheduler = new WorkStealingScheduler(4);
+        Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
+        for (int i = 0; i < NUM_TASKS; i++) {
+            Task t = new TestLock.LockTask();
+            t.informOnExit(mb);
+            t.setScheduler(scheduler);
+            t.start();
+        }
+        for (int i = 0; i < NUM_TASKS; i++) {
+            ExitMsg em = mb.getb(5000);
+            assertNotNull("Timed out. #tasks finished = " + i + "/" + NUM_TASKS, em);
+            assertFalse(em.result instanceof Exception);
+        }
+        scheduler.shutdown();
+    }
+
+    public void testIdleStrategies() {
+        for (IdleStrategy idle : IdleStrategy.values()) {
+            Scheduler[] schedulers = {new Scheduler(4, idle), new WorkStealingScheduler(4, idle)};
+            for (Scheduler scheduler : schedulers) {
+                try {
+                    runRing(scheduler);
+                } finally {
+                    scheduler.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * A worker woken up by a task bound to it, rather than by a pop, is still on the idle stack. The
+     * wakeups for the next tasks must go past it to the workers that are parked.
+     */
+    public void testWakeupSkipsBusyWorker() throws Exception {
+        final int n = 4;
+        Scheduler scheduler = new Scheduler(n, IdleStrategy.PARK);
+        try {
+            // Wait for all the workers to park.
+            String idle = null;
+            for (int i = 0; i < 500; i++) {
+                idle = scheduler.idleWorkers.toString();
+                if (idle.split(",").length == n && allParked(scheduler)) break;
+                Thread.sleep(10);
+            }
+            assertEquals(idle, n, idle.split(",").length);
+            String top = idle.substring(1, idle.indexOf(','));
+            WorkerThread busy = null;
+            for (WorkerThread wt : scheduler.allThreads) {
+                if (wt.getName().equals(top)) busy = wt;
+            }
+            assertNotNull(busy);
+
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            Task hog = new Task() {
+                public void execute() throws Pausable {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignore) {}
+                }
+            };
+            hog.setScheduler(scheduler);
+            hog.bindToThread(busy);
+            hog.start();
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            final CountDownLatch running = new CountDownLatch(n - 1);
+            for (int i = 0; i < n - 1; i++) {
+                Task t = new Task() {
+                    public void execute() throws Pausable {
+                        running.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException ignore) {}
+                    }
+                };
+                t.setScheduler(scheduler);
+                t.start();
+            }
+            boolean ok = running.await(2, TimeUnit.SECONDS);
+            release.countDown();
+            assertTrue("Tasks waited while workers slept", ok);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    static boolean allParked(Scheduler scheduler) {
+        for (WorkerThread wt : scheduler.allThreads) {
+            if (wt.getState() != Thread.State.WAITING) return false;
+        }
+        return true;
+    }
+
+    public void testParseIdleStrategy() {
+        assertEquals(IdleStrategy.SPIN, IdleStrategy.parse("spin", IdleStrategy.PARK));
+        assertEquals(IdleStrategy.YIELD, IdleStrategy.parse(" Yield ", IdleStrategy.PARK));
+        assertEquals(IdleStrategy.PARK, IdleStrategy.parse("bogus", IdleStrategy.PARK));
+        assertEquals(IdleStrategy.PARK, IdleStrategy.parse(null, IdleStrategy.PARK));
+    }
+
+    /**
+     * Pass a token around a ring of tasks; every hop is a resume from a worker thread.
+     */
+    static void runRing(Scheduler scheduler) {
+        final int nTimes = 1000;
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        Mailbox<Integer> first = new Mailbox<Integer>();
+        Mailbox<Integer> mb = first;
+        for (int i = 0; i < NUM_TASKS; i++) {
+            Mailbox<Integer> next = (i == NUM_TASKS - 1) ? first : new Mailbox<Integer>();
+            Task t = new RingTask(mb, next, nTimes);
+            t.setScheduler(scheduler);
+            t.informOnExit(exitmb);
+            t.start();
+            mb = next;
+        }
+        first.putnb(0);
+        for (int i = 0; i < NUM_TASKS; i++) {
+            ExitMsg em = exitmb.getb(10000);
+            assertNotNull("Timed out. #tasks finished = " + i + "/" + NUM_TASKS, em);
+        }
+    }
+
+    static class RingTask extends Task {
+        Mailbox<Integer> mymb, nextmb;
+        int nTimes;
+
+        RingTask(Mailbox<Integer> my, Mailbox<Integer> next, int n) {
+            mymb = my;
+            nextmb = next;
+            nTimes = n;
+        }
+
+        public void execute() throws Pausable {
+            for (int i = 0; i < nTimes; i++) {
+                Integer v = mymb.get();
+                if (i % 10 == 0) {
+                    Task.yield();
+                }
+                nextmb.put(v + 1);
+            }
+        }
+    }
+
+    static class YieldTask extends Task {
+        public void execute() throws Pausable {
+            for (int i = 0; i < 1000; i++) {
+                Task.yield();
+            }
+        }
+    }
+
+    static class NopTask extends Task {
+        public void execute() throws Pausable {}
+    }
+
+    /**
+     * Yielding tasks are rescheduled on the yielding worker's own deque.
+     */
+    public void testYield() {
+        Scheduler scheduler = new WorkStealingScheduler(1);
+        Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
+        for (int i = 0; i < 10; i++) {
+            Task t = new YieldTask();
+            t.setScheduler(scheduler);
+            t.informOnExit(mb);
+            t.start();
+        }
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(mb.getb(5000));
+        }
+        scheduler.shutdown();
+    }
+
+    /**
+     * Callbacks scheduled from outside, and from a worker (which queues them locally), all run
+     * exactly once, on the scheduler's workers.
+     */
+    public void testCallbacks() throws Exception {
+        Scheduler[] schedulers = {new Scheduler(4), new WorkStealingScheduler(4)};
+        for (final Scheduler scheduler : schedulers) {
+            final int n = 1000;
+            final CountDownLatch latch = new CountDownLatch(2 * n);
+            final AtomicInteger wrongThread = new AtomicInteger();
+            for (int i = 0; i < n; i++) {
+                scheduler.schedule(new NonpausableTask() {
+                    public void execute() {
+                        if (!(Thread.currentThread() instanceof WorkerThread)) {
+                            wrongThread.incrementAndGet();
+                        }
+                        latch.countDown();
+                        scheduler.schedule(new NonpausableTask() {
+                            public void execute() {
+                                latch.countDown();
+                            }
+                        });
+                    }
+                });
+            }
+            try {
+                assertTrue("callbacks left: " + latch.getCount(), latch.await(5, TimeUnit.SECONDS));
+                assertEquals(0, wrongThread.get());
+            } finally {
+                scheduler.shutdown();
+            }
+        }
+    }
+
+    public void testDelayedCallback() throws Exception {
+        final Scheduler scheduler = new Scheduler(2);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long[] times = new long[2];
+        scheduler.schedule(new NonpausableTask() {
+            public void execute() {
+                times[0] = System.currentTimeMillis();
+                new NonpausableTask() {
+                    public void execute() {
+                        times[1] = System.currentTimeMillis();
+                        latch.countDown();
+                    }
+                }.start(times[0] + 50);
+            }
+        });
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertTrue("Fired early: " + (times[1] - times[0]), times[1] - times[0] >= 50);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testLaneQueue() {
+        LaneQueue q = new LaneQueue(2, new int[] {3, 2, 1});
+        Task[] bulk = new Task[4], normal = new Task[6], critical = new Task[4];
+        for (int i = 0; i < 4; i++) {
+            bulk[i] = new YieldTask().setPriority(Priority.BULK);
+            q.put(bulk[i]);
+        }
+        for (int i = 0; i < 6; i++) {
+            normal[i] = new YieldTask();
+            q.put(normal[i]);
+        }
+        for (int i = 0; i < 4; i++) {
+            critical[i] = new YieldTask().setPriority(Priority.CRITICAL);
+            q.put(critical[i]);
+        }
+        assertEquals(14, q.size());
+        assertEquals(4, q.size(Priority.BULK));
+        Task[] expected = {
+                critical[0], critical[1], critical[2], normal[0], normal[1], bulk[0], // round 1
+                critical[3], normal[2], normal[3], bulk[1],                          // round 2
+                normal[4], normal[5], bulk[2],                                       // round 3
+                bulk[3]};
+        for (int i = 0; i < expected.length; i++) {
+            assertSame("at " + i, expected[i], q.get());
+        }
+        assertNull(q.get());
+        assertEquals(0, q.size());
+
+        q.put(normal[0]);
+        q.put(bulk[0]);
+        q.reset();
+        assertEquals(0, q.size());
+        assertNull(q.get());
+        q.put(bulk[1]);
+        assertSame(bulk[1], q.get());
+    }
+
+    public void testParseLaneWeights() {
+        int[] dflt = {16, 8, 1};
+        assertEquals(4, Priority.parseWeights(" 4, 2,1", dflt)[0]);
+        assertSame(dflt, Priority.parseWeights("4,2", dflt));
+        assertSame(dflt, Priority.parseWeights("4,0,1", dflt));
+        assertSame(dflt, Priority.parseWeights("a,b,c", dflt));
+        assertSame(dflt, Priority.parseWeights(null, dflt));
+    }
+
+    /**
+     * With a single worker saturated by BULK tasks, a CRITICAL task is run next.
+     */
+    public void testCriticalOvertakesBulk() {
+        Scheduler[] schedulers = {new Scheduler(1), new WorkStealingScheduler(1)};
+        for (Scheduler scheduler : schedulers) {
+            try {
+                runCriticalOvertakesBulk(scheduler);
+            } finally {
+                scheduler.shutdown();
+            }
+        }
+    }
+
+    static void runCriticalOvertakesBulk(Scheduler scheduler) {
+        final int nBulk = 50;
+        final AtomicInteger turns = new AtomicInteger();
+        final int[] waited = new int[2];
+        final Task critical = new Task() {
+            public void execute() throws Pausable {
+                waited[1] = turns.get() - waited[0];
+            }
+        };
+        critical.setPriority(Priority.CRITICAL).setScheduler(scheduler);
+        Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
+        critical.informOnExit(mb);
+        final Mailbox<ExitMsg> bulkmb = new Mailbox<ExitMsg>();
+        for (int i = 0; i < nBulk; i++) {
+            final boolean starter = i == nBulk - 1;
+            Task t = new Task() {
+                public void execute() throws Pausable {
+                    for (int j = 0; j < 200; j++) {
+                        if (starter && j == 100) {
+                            // All the others are queued by now.
+                            waited[0] = turns.get();
+                            critical.start();
+                        }
+                        turns.incrementAndGet();
+                        Task.yield();
+                    }
+                }
+            };
+            t.setPriority(Priority.BULK).setScheduler(scheduler);
+            t.informOnExit(bulkmb);
+            t.start();
+        }
+        assertNotNull("Timed out", mb.getb(10000));
+        // Without lanes, it would queue up behind the other nBulk - 1 tasks.
+        assertTrue("Waited for " + waited[1] + " turns", waited[1] <= 1);
+        assertEquals(0, scheduler.getQueueDepth(Priority.CRITICAL));
+        for (int i = 0; i < nBulk; i++) {
+            assertNotNull("Timed out", bulkmb.getb(10000));
+        }
+        assertEquals(0, scheduler.getQueueDepth(Priority.BULK));
+    }
+
+    /**
+     * BULK tasks still get turns while NORMAL tasks keep a single worker busy.
+     */
+    public void testBulkNotStarved() {
+        Scheduler[] schedulers = {new Scheduler(1), new WorkStealingScheduler(1)};
+        for (final Scheduler scheduler : schedulers) {
+            try {
+                final Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
+                final Task bulk = new Task() {
+                    public void execute() throws Pausable {
+                        for (int j = 0; j < 100; j++) {
+                            Task.yield();
+                        }
+                    }
+                };
+                bulk.setPriority(Priority.BULK).setScheduler(scheduler);
+                bulk.informOnExit(mb);
+                // Start them all from the worker, so that none runs before the others are queued.
+                Task starter = new Task() {
+                    public void execute() throws Pausable {
+                        for (int i = 0; i < 20; i++) {
+                            Task t = new YieldTask();
+                            t.setScheduler(scheduler);
+                            t.informOnExit(mb);
+                            t.start();
+                        }
+                        bulk.start();
+                    }
+                };
+                starter.setScheduler(scheduler);
+                starter.start();
+                // 20 * 1000 NORMAL turns against 100 BULK ones; the BULK task must not be last.
+                ExitMsg first = mb.getb(10000);
+                assertNotNull("Timed out", first);
+                assertSame(bulk, first.task);
+                for (int i = 0; i < 20; i++) {
+                    assertNotNull("Timed out", mb.getb(10000));
+                }
+            } finally {
+                scheduler.shutdown();
+            }
+        }
+    }
+
+    public void testDeadlineQueue() {
+        DeadlineQueue q = new DeadlineQueue(64, 10); // a horizon of 640ms
+        long now = 100000;
+        Task a = new YieldTask().setDeadline(now + 500);
+        Task b = new YieldTask().setDeadline(now + 100);
+        Task c = new YieldTask(); // no deadline: due at the horizon
+        Task d = new YieldTask().setDeadline(now + 105); // same bucket as b
+        Task e = new YieldTask().setDeadline(now - 50); // overdue
+        Task f = new YieldTask().setDeadline(now + 10000); // beyond the horizon
+        Task[] tasks = {a, b, c, d, e, f};
+        for (Task t : tasks) {
+            q.put(t, now);
+        }
+        assertEquals(6, q.size());
+        Task[] expected = {e, b, d, a, c, f};
+        for (int i = 0; i < expected.length; i++) {
+            assertSame("at " + i, expected[i], q.get(now + i));
+        }
+        assertNull(q.get(now));
+        assertEquals(0, q.size());
+
+        // Around the ring, with the clock moved on.
+        now += 1234;
+        Task g = new YieldTask().setDeadline(now + 50);
+        Task h = new YieldTask().setDeadline(now + 10);
+        q.put(g, now);
+        q.put(h, now);
+        assertSame(h, q.get(now));
+        Task i = new YieldTask().setDeadline(now + 20);
+        q.put(i, now + 5);
+        assertSame(i, q.get(now + 5));
+        assertSame(g, q.get(now + 5));
+        assertNull(q.get(now + 5));
+    }
+
+    /**
+     * Tasks queued on a single worker run in deadline order, not in the order they were started.
+     */
+    public void testEarliestDeadlineFirst() {
+        final DeadlineScheduler scheduler = new DeadlineScheduler(1);
+        try {
+            final Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
+            final AtomicInteger order = new AtomicInteger();
+            final int[] ran = new int[5];
+            // Start them all from the worker, so that none runs before the others are queued.
+            Task starter = new Task() {
+                public void execute() throws Pausable {
+                    long now = System.currentTimeMillis();
+                    for (int i = 0; i < 5; i++) {
+                        final int n = i;
+                        Task t = new Task() {
+                            public void execute() throws Pausable {
+                                ran[n] = order.getAndIncrement();
+                            }
+                        };
+                        t.setDeadline(now + 100 * (5 - i) + 500).setScheduler(scheduler);
+                        t.informOnExit(mb);
+                        t.start();
+                    }
+                }
+            };
+            starter.setScheduler(scheduler);
+            starter.start();
+            for (int i = 0; i < 5; i++) {
+                assertNotNull("Timed out", mb.getb(10000));
+            }
+            for (int i = 0; i < 5; i++) {
+                assertEquals(4 - i, ran[i]);
+            }
+            assertEquals(0, scheduler.getLate());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * The worker is held up past the deadlines of the tasks queued behind it. With a shedder set,
+     * the late ones are dropped and the one that can still make it runs.
+     */
+    public void testShedding() {
+        final DeadlineScheduler scheduler = new DeadlineScheduler(1);
+        try {
+            for (int round = 0; round < 2; round++) {
+                final boolean shed = round == 1;
+                scheduler.setShedder(shed ? new DeadlineScheduler.Shedder() {
+                    public boolean shed(Task t) {
+                        return true;
+                    }
+                } : null);
+                final Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
+                final Task[] late = new Task[5];
+                final Task[] onTime = new Task[1];
+                Task starter = new Task() {
+                    public void execute() throws Pausable {
+                        long now = System.currentTimeMillis();
+                        for (int i = 0; i < late.length; i++) {
+                            late[i] = new NopTask().setDeadline(now + 5).setScheduler(scheduler);
+                            late[i].informOnExit(mb);
+                            late[i].start();
+                        }
+                        onTime[0] = new NopTask().setDeadline(now + 60000).setScheduler(scheduler);
+                        onTime[0].informOnExit(mb);
+                        onTime[0].start();
+                        try {
+                            Thread.sleep(50); // hog the worker
+                        } catch (InterruptedException ignore) {}
+                    }
+                };
+                starter.setScheduler(scheduler);
+                starter.start();
+                int numShed = 0;
+                for (int i = 0; i < late.length + 1; i++) {
+                    ExitMsg m = mb.getb(10000);
+                    assertNotNull("Timed out", m);
+                    if (m.result == DeadlineScheduler.SHED) {
+                        assertNotSame(onTime[0], m.task);
+                        numShed++;
+                    }
+                }
+                assertEquals(shed ? late.length : 0, numShed);
+                assertEquals(late.length * (round + 1), scheduler.getLate());
+                assertEquals(numShed, scheduler.getShed());
+            }
+            assertEquals(0, scheduler.getQueueDepth());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * A task that has run and paused is not dropped where it paused: it resumes with a
+     * ShedException, so that its finally blocks run.
+     */
+    public void testSheddingStartedTask() {
+        final DeadlineScheduler scheduler = new DeadlineScheduler(1);
+        try {
+            scheduler.setShedder(new DeadlineScheduler.Shedder() {
+                public boolean shed(Task t) {
+                    return true;
+                }
+            });
+            final AtomicInteger cleanedUp = new AtomicInteger();
+            Task t = new Task() {
+                public void execute() throws Pausable {
+                    try {
+                        try {
+                            Thread.sleep(300); // past the deadline
+                        } catch (InterruptedException ignore) {}
+                        Task.yield();
+                        exitResult = "resumed normally";
+                    } finally {
+                        cleanedUp.incrementAndGet();
+                    }
+                }
+            };
+            Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
+            t.setDeadline(System.currentTimeMillis() + 200).setScheduler(scheduler);
+            t.informOnExit(mb);
+            t.start();
+            ExitMsg m = mb.getb(5000);
+            assertNotNull("Timed out", m);
+            assertSame(DeadlineScheduler.SHED, m.result);
+            assertEquals(1, cleanedUp.get());
+            assertEquals(1, scheduler.getShed());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.test;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.MailboxSelector;
+import kilim.Pausable;
+import kilim.SpscChannel;
+import kilim.Task;
+
+public class TestSpscChannel extends TestCase {
+    /**
+     * A thread feeding a task through a small channel, so that both sides keep waiting for each other.
+     */
+    public void testThreadToTask() {
+        final Mailbox<Msg> ch = new SpscChannel<Msg>(8);
+        Mailbox<Msg> mainmb = new Mailbox<Msg>();
+        final int nTimes = 10000;
+        new TestMpscMailbox.ForwardTask(ch, mainmb, nTimes).start();
+        new Thread() {
+            public void run() {
+                for (int j = 0; j < nTimes; j++) {
+                    ch.putb(new Msg(0, j));
+                }
+            }
+        }.start();
+        TestMpscMailbox.checkOrder(mainmb, 1, nTimes);
+    }
+
+    /**
+     * A chain of tasks, as in bench/kilim/bench/Chain, half of them moving messages in batches.
+     */
+    public void testChain() {
+        final int nStages = 20;
+        final int nTimes = 10000;
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        Mailbox<Msg> first = new SpscChannel<Msg>(4);
+        Mailbox<Msg> in = first;
+        for (int i = 0; i < nStages; i++) {
+            final Mailbox<Msg> from = in;
+            final Mailbox<Msg> to = new SpscChannel<Msg>(i % 3 == 0 ? 2 : 16);
+            final boolean batched = i % 2 == 0;
+            new Task() {
+                public void execute() throws Pausable {
+                    Msg[] buf = new Msg[5];
+                    int n = 0;
+                    while (n < nTimes) {
+                        if (batched) {
+                            int k = from.getBatch(buf);
+                            to.putAll(buf, 0, k);
+                            n += k;
+                        } else {
+                            to.put(from.get());
+                            n++;
+                        }
+                    }
+                }
+            }.start();
+            in = to;
+        }
+        final Mailbox<Msg> last = in;
+        Task sink = new Task() {
+            public void execute() throws Pausable {
+                for (int j = 0; j < nTimes; j++) {
+                    Msg m = last.get();
+                    if (m.num != j) {
+                        exitResult = "expected " + j + ", got " + m.num;
+                        return;
+                    }
+                }
+            }
+        };
+        sink.informOnExit(exitmb);
+        sink.start();
+        for (int j = 0; j < nTimes; j++) {
+            first.putb(new Msg(0, j));
+        }
+        ExitMsg m = exitmb.getb(10000);
+        assertNotNull("Timed out", m);
+        assertEquals("OK", m.result);
+    }
+
+    public void testBounds() {
+        SpscChannel<Msg> ch = new SpscChannel<Msg>(3);
+        assertEquals(4, ch.capacity());
+        MailboxSelector sel = new MailboxSelector(ch);
+        assertEquals(-1, sel.selectnb());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ch.putnb(new Msg(0, i)));
+        }
+        assertFalse(ch.putnb(new Msg()));
+        assertFalse(ch.hasSpace());
+        assertEquals(0, sel.selectnb());
+        assertEquals(0, ch.getnb().num);
+        assertTrue(ch.putnb(new Msg(0, 4)));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, ch.getnb().num);
+        }
+        assertNull(ch.getnb());
+        assertEquals(-1, sel.selectnb());
+        sel.close();
+    }
+
+    public void testBulk() {
+        Mailbox<Msg> ch = new SpscChannel<Msg>(4);
+        Msg[] src = new Msg[6];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = new Msg(0, i);
+        }
+        assertTrue(ch.putnb(new Msg()));
+        assertNotNull(ch.getnb()); // the ring wraps from here on
+        assertEquals(4, ch.putnb(src, 0, 6));
+        Msg[] dst = new Msg[3];
+        assertEquals(3, ch.get(dst, 0, 3, null));
+        assertSame(src[2], dst[2]);
+        assertEquals(2, ch.putnb(src, 4, 2));
+        ArrayList<Msg> rest = new ArrayList<Msg>();
+        assertEquals(3, ch.drainTo(rest, 10));
+        assertSame(src[3], rest.get(0));
+        assertSame(src[5], rest.get(2));
+        assertEquals(0, ch.get(dst, 0, 3, null));
+    }
+
+    public void testPeekRemove() {
+        Mailbox<Msg> ch = new SpscChannel<Msg>(8);
+        Msg[] msgs = new Msg[5];
+        for (int i = 0; i < msgs.length; i++) {
+            msgs[i] = new Msg(0, i);
+            assertTrue(ch.putnb(msgs[i]));
+        }
+        assertEquals(5, ch.size());
+        assertSame(msgs[2], ch.peek(2));
+        assertSame(msgs[2], ch.remove(2));
+        assertEquals(4, ch.size());
+        assertSame(msgs[3], ch.peek(2));
+        assertEquals(4, ch.messages().length);
+        assertSame(msgs[0], ch.getnb());
+        assertSame(msgs[1], ch.getnb());
+        assertSame(msgs[3], ch.getnb());
+        assertSame(msgs[4], ch.getnb());
+        assertNull(ch.getnb());
+        assertFalse(ch.hasMessage());
+    }
+
+    public void testTimeout() {
+        Mailbox<Msg> ch = new SpscChannel<Msg>(1);
+        long start = System.currentTimeMillis();
+        assertNull(ch.getb(100));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        ch.putnb(new Msg());
+        ch.putb(new Msg(), 50); // full; gives up
+        assertEquals(1, ch.size());
+        assertNotNull(ch.getb(100));
+        assertNull(ch.getnb());
+    }
+}
@@ -0,0 +1,134 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.test;
+
+import junit.framework.TestCase;
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Scheduler;
+import kilim.State;
+import kilim.StatePool;
+import kilim.Task;
+import kilim.analysis.ClassWeaver;
+
+public class TestStatePool extends TestCase {
+    /**
+     * Written the way the weaver generates state classes.
+     */
+    static final class S1 extends State {
+        static final int POOL_ID = StatePool.register(S1.class);
+        Object f0;
+        int f1;
+
+        S1() {
+            super(POOL_ID);
+        }
+
+        public void clearRefs() {
+            super.clearRefs();
+            f0 = null;
+        }
+    }
+
+    static final class S2 extends State {
+        static final int POOL_ID = StatePool.register(S2.class);
+
+        S2() {
+            super(POOL_ID);
+        }
+    }
+
+    public void testRecycle() {
+        StatePool pool = new StatePool();
+        assertNull(pool.get(S1.POOL_ID));
+        S1 s = new S1();
+        s.self = this;
+        s.f0 = "foo";
+        s.f1 = 10;
+        pool.put(s);
+        assertEquals(1, pool.size());
+
+        // keyed by class
+        assertNull(pool.get(S2.POOL_ID));
+        State r = pool.get(S1.POOL_ID);
+        assertSame(s, r);
+        assertNull(s.self);
+        assertNull(s.f0);
+        assertNull(pool.get(S1.POOL_ID));
+        assertEquals(0, pool.size());
+    }
+
+    public void testNotPooled() {
+        StatePool pool = new StatePool();
+        State s = new State();
+        assertEquals(0, s.poolId);
+        pool.put(s);
+        assertEquals(0, pool.size());
+    }
+
+    public void testMaxFree() {
+        StatePool pool = new StatePool();
+        int n = StatePool.maxFreePerClass + 10;
+        for (int i = 0; i < n; i++) {
+            pool.put(new S2());
+        }
+        assertEquals(StatePool.maxFreePerClass, pool.size());
+        for (int i = 0; i < StatePool.maxFreePerClass; i++) {
+            assertNotNull(pool.get(S2.POOL_ID));
+        }
+        assertNull(pool.get(S2.POOL_ID));
+    }
+
+    /**
+     * Runs some of TestYield's tasks woven with state pooling (kilim.tools.Weaver -p). They are
+     * not woven yet on this test's classpath.
+     */
+    public void testPooledWeaving() throws Exception {
+        boolean save = ClassWeaver.poolStates;
+        ClassWeaver.poolStates = true;
+        WovenClassLoader cl = new WovenClassLoader();
+        try {
+            cl.weave("kilim.test.ex.ExYieldStack").weave("kilim.test.ex.ExYieldDups").weave("kilim.test.ex.ExLoop");
+        } finally {
+            ClassWeaver.poolStates = save;
+        }
+        Scheduler s = new Scheduler(1);
+        try {
+            Class<?> stack = cl.loadClass("kilim.test.ex.ExYieldStack");
+            Class<?> dups = cl.loadClass("kilim.test.ex.ExYieldDups");
+            // Twice, so that the second round runs on recycled states.
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < 5; i++) {
+                    run(s, (Task) stack.getConstructor(int.class).newInstance(i));
+                }
+                for (int i = 0; i < 2; i++) {
+                    run(s, (Task) dups.getConstructor(int.class).newInstance(i));
+                }
+                Task loop = (Task) cl.loadClass("kilim.test.ex.ExLoop").getDeclaredConstructor().newInstance();
+                run(s, loop);
+                assertEquals(Boolean.TRUE, loop.getClass().getMethod("verify").invoke(loop));
+            }
+            StatePool pool = s.allThreads.get(0).getStatePool();
+            assertTrue("Nothing recycled", pool.size() > 0);
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    static void run(Scheduler s, Task t) {
+        Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
+        t.setScheduler(s);
+        t.informOnExit(mb);
+        t.start();
+        ExitMsg m = mb.getb(10000);
+        assertNotNull("Timed out", m);
+        if (m.result instanceof Throwable) {
+            ((Throwable) m.result).printStackTrace();
+        }
+        assertEquals(t.getClass().getName(), "OK", m.result);
+    }
+}
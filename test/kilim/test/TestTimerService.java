@@ -0,0 +1,247 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import kilim.Event;
+import kilim.EventPublisher;
+import kilim.EventSubscriber;
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Scheduler;
+import kilim.Task;
+import kilim.WorkerThread;
+import kilim.timerservice.Timer;
+import kilim.timerservice.TimerService;
+import zhmt.dawn.util.CascadeTimerWheel;
+import zhmt.dawn.util.TimerNode;
+
+public class TestTimerService extends TestCase {
+    static class Node extends TimerNode {
+        long exeTime;
+        long firedAt;
+
+        Node(long t) {
+            exeTime = t;
+        }
+
+        public long getExeTime() {
+            return exeTime;
+        }
+
+        public Type getType() {
+            return Type.Task;
+        }
+    }
+
+    /**
+     * Tiny levels, so that most entries are cascaded a few times.
+     */
+    public void testWheel() throws Exception {
+        CascadeTimerWheel<Node> wheel = new CascadeTimerWheel<Node>(1, new int[] {4, 4, 4});
+        Random r = new Random(42);
+        long start = System.currentTimeMillis();
+        Node[] nodes = new Node[500];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new Node(start + r.nextInt(300)); // some are beyond the wheel's span
+            wheel.add(nodes[i]);
+        }
+        // remove every 5th one
+        for (int i = 0; i < nodes.length; i += 5) {
+            assertTrue(wheel.remove(nodes[i]));
+            assertFalse(wheel.remove(nodes[i]));
+        }
+        assertEquals(400, wheel.size());
+        int nFired = 0;
+        while (wheel.size() > 0) {
+            long now = System.currentTimeMillis();
+            Node n;
+            while ((n = wheel.pollFirst()) != null) {
+                n.firedAt = now;
+                nFired++;
+            }
+            if (wheel.canTick(now)) {
+                wheel.tick();
+            } else {
+                Thread.sleep(1);
+            }
+            assertTrue("Timers not firing", now - start < 10000);
+        }
+        assertEquals(400, nFired);
+        for (int i = 0; i < nodes.length; i++) {
+            Node n = nodes[i];
+            if (i % 5 == 0) {
+                assertEquals(0, n.firedAt);
+            } else {
+                assertTrue("Fired early: " + n.firedAt + " < " + n.exeTime, n.firedAt >= n.exeTime);
+                assertFalse(n.isQueued());
+            }
+        }
+    }
+
+    public void testSleep() {
+        final int nTasks = 1000;
+        Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
+        Random r = new Random(1);
+        for (int i = 0; i < nTasks; i++) {
+            Task t = new SleepTask(r.nextInt(300));
+            t.informOnExit(mb);
+            t.start();
+        }
+        for (int i = 0; i < nTasks; i++) {
+            ExitMsg em = mb.getb(5000);
+            assertNotNull("Timed out. #tasks finished = " + i + "/" + nTasks, em);
+            assertEquals("OK", em.result);
+        }
+    }
+
+    public void testGetTimeout() {
+        Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
+        Mailbox<Integer> in = new Mailbox<Integer>();
+        Task t = new TimedGetTask(in, 100);
+        t.informOnExit(mb);
+        t.start();
+        ExitMsg em = mb.getb(5000);
+        assertNotNull(em);
+        assertEquals("timeout", em.result);
+
+        // A message that arrives in time cancels the timer.
+        t = new TimedGetTask(in, 10000);
+        t.informOnExit(mb);
+        t.start();
+        in.putnb(1);
+        em = mb.getb(5000);
+        assertNotNull(em);
+        assertEquals(Integer.valueOf(1), em.result);
+    }
+
+    /**
+     * Timed gets that are satisfied long before the timeout must not leave entries behind.
+     */
+    public void testCancel() throws Exception {
+        Scheduler s = new Scheduler(2);
+        try {
+            Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
+            Mailbox<Integer> in = new Mailbox<Integer>();
+            Task t = new TimedEchoTask(in, mb, 1000);
+            t.setScheduler(s);
+            t.start();
+            for (int i = 0; i < 1000; i++) {
+                in.putnb(i);
+                if (i % 50 == 0) {
+                    Thread.sleep(1); // let the task catch up and arm its timer
+                }
+            }
+            ExitMsg em = mb.getb(10000);
+            assertNotNull(em);
+            assertEquals("OK", em.result);
+            Thread.sleep(100);
+            int pending = 0;
+            for (WorkerThread wt : s.allThreads) {
+                pending += wt.getTimerService().size();
+            }
+            assertEquals(0, pending);
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    /**
+     * Threads that are not workers arm and cancel their timers in the shared shard directly.
+     */
+    public void testSharedShard() throws Exception {
+        final CountDownLatch fired = new CountDownLatch(1);
+        Timer timer = new Timer(new EventSubscriber() {
+            public void onEvent(EventPublisher ep, Event e) {
+                fired.countDown();
+            }
+        });
+        TimerService ts = TimerService.current();
+        int before = ts.size();
+        for (int i = 0; i < 1000; i++) {
+            timer.setTimer(60000);
+            timer.cancel();
+        }
+        assertEquals(before, ts.size());
+        timer.setTimer(10);
+        assertTrue("Timed out", fired.await(5, TimeUnit.SECONDS));
+        assertTrue(timer.isExpired());
+        timer.cancel();
+        assertFalse(timer.isExpired());
+        assertEquals(before, ts.size());
+    }
+
+    static class SleepTask extends Task {
+        int millis;
+
+        SleepTask(int millis) {
+            this.millis = millis;
+        }
+
+        public void execute() throws Pausable {
+            long start = System.currentTimeMillis();
+            Task.sleep(millis);
+            long elapsed = System.currentTimeMillis() - start;
+            if (elapsed < millis) {
+                exitResult = "Woke up early: " + elapsed + " < " + millis;
+            }
+        }
+    }
+
+    static class TimedGetTask extends Task {
+        Mailbox<Integer> in;
+        long timeout;
+
+        TimedGetTask(Mailbox<Integer> in, long timeout) {
+            this.in = in;
+            this.timeout = timeout;
+        }
+
+        public void execute() throws Pausable {
+            long start = System.currentTimeMillis();
+            Integer v = in.get(timeout);
+            if (v != null) {
+                exitResult = v;
+            } else if (System.currentTimeMillis() - start < timeout) {
+                exitResult = "early timeout";
+            } else {
+                exitResult = "timeout";
+            }
+        }
+    }
+
+    static class TimedEchoTask extends Task {
+        Mailbox<Integer> in;
+        Mailbox<ExitMsg> out;
+        int n;
+
+        TimedEchoTask(Mailbox<Integer> in, Mailbox<ExitMsg> out, int n) {
+            this.in = in;
+            this.out = out;
+            this.n = n;
+        }
+
+        public void execute() throws Pausable {
+            for (int i = 0; i < n; i++) {
+                Integer v = in.get(60000);
+                if (v == null || v.intValue() != i) {
+                    out.put(new ExitMsg(this, "Unexpected " + v));
+                    return;
+                }
+                if (i % 10 == 0) {
+                    Task.yield();
+                }
+            }
+            out.put(new ExitMsg(this, "OK"));
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.test;
+
+import junit.framework.TestCase;
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Task;
+import kilim.Topic;
+
+public class TestTopic extends TestCase {
+
+    public void testFanOut() {
+        final int nSubs = 100;
+        final int n = 10000;
+        final Topic<Integer> topic = new Topic<Integer>(64);
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        for (int i = 0; i < nSubs; i++) {
+            final Topic.Subscriber<Integer> sub = topic.subscribe();
+            Task t = new Task() {
+                public void execute() throws Pausable {
+                    Integer[] batch = new Integer[16];
+                    int expected = 0;
+                    while (expected < n) {
+                        int k;
+                        if (expected % 3 == 0) {
+                            batch[0] = sub.get();
+                            k = 1;
+                        } else {
+                            k = sub.get(batch, 0, batch.length);
+                            if (k == 0) {
+                                batch[0] = sub.get();
+                                k = 1;
+                            }
+                        }
+                        for (int j = 0; j < k; j++) {
+                            if (batch[j].intValue() != expected++) {
+                                exitResult = "expected " + (expected - 1) + ", got " + batch[j];
+                                return;
+                            }
+                        }
+                    }
+                }
+            };
+            t.informOnExit(exitmb);
+            t.start();
+        }
+        new Task() {
+            public void execute() throws Pausable {
+                for (int i = 0; i < n; i++) {
+                    topic.publish(i);
+                }
+            }
+        }.start();
+        for (int i = 0; i < nSubs; i++) {
+            ExitMsg m = exitmb.getb(20000);
+            assertNotNull("Timed out", m);
+            assertEquals("OK", m.result);
+        }
+        assertEquals(n, topic.getPublished());
+    }
+
+    public void testBlockingPublisher() throws Exception {
+        final Topic<Integer> topic = new Topic<Integer>(4);
+        assertEquals(4, topic.capacity());
+        final Topic.Subscriber<Integer> slow = topic.subscribe();
+        final int n = 50;
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        Task t = new Task() {
+            public void execute() throws Pausable {
+                for (int i = 0; i < n; i++) {
+                    if (i % 10 == 0) {
+                        Task.sleep(10);
+                    }
+                    if (slow.get().intValue() != i) {
+                        exitResult = "out of order at " + i;
+                        return;
+                    }
+                }
+            }
+        };
+        t.informOnExit(exitmb);
+        t.start();
+        for (int i = 0; i < n; i++) {
+            topic.publishb(i); // waits for the slow subscriber
+            assertTrue(slow.available() <= topic.capacity());
+        }
+        ExitMsg m = exitmb.getb(5000);
+        assertNotNull("Timed out", m);
+        assertEquals("OK", m.result);
+        assertEquals(0, slow.available());
+    }
+
+    public void testDrop() {
+        Topic<String> topic = new Topic<String>(5, Topic.Overflow.DROP);
+        assertEquals(8, topic.capacity());
+        Topic.Subscriber<String> idle = topic.subscribe();
+        Topic.Subscriber<String> busy = topic.subscribe();
+        assertEquals(2, topic.numSubscribers());
+        for (int i = 0; i < 20; i++) {
+            assertTrue(topic.publishnb("m" + i)); // never refused
+            assertEquals("m" + i, busy.getnb());
+        }
+        assertNull(busy.getnb());
+        assertFalse(busy.isDropped());
+
+        assertNull(idle.getnb());
+        assertTrue(idle.isDropped());
+        assertEquals(1, topic.numSubscribers());
+        topic.publishnb("more");
+        assertNull(idle.getnb());
+        assertEquals("more", busy.getnb());
+    }
+
+    public void testBlockRefusesWhenFull() {
+        Topic<String> topic = new Topic<String>(2);
+        Topic.Subscriber<String> sub = topic.subscribe();
+        assertTrue(topic.publishnb("a"));
+        assertTrue(topic.publishnb("b"));
+        assertFalse(topic.publishnb("c"));
+        assertEquals("a", sub.getnb());
+        assertTrue(topic.publishnb("c"));
+        // a closed subscriber doesn't hold the publisher back
+        sub.close();
+        assertTrue(topic.publishnb("d"));
+        assertTrue(topic.publishnb("e"));
+        assertNull(sub.getnb());
+        assertFalse(sub.isDropped());
+        assertEquals(0, topic.numSubscribers());
+    }
+
+    public void testCloseWakesSubscriber() throws Exception {
+        Topic<String> topic = new Topic<String>(16);
+        final Topic.Subscriber<String> sub = topic.subscribe();
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        Task t = new Task() {
+            public void execute() throws Pausable {
+                String s = sub.get();
+                if (!"first".equals(s)) {
+                    exitResult = "got " + s;
+                    return;
+                }
+                if (sub.get(50) != null) {
+                    exitResult = "expected timeout";
+                    return;
+                }
+                exitResult = sub.get() == null ? "closed" : "expected null";
+            }
+        };
+        t.informOnExit(exitmb);
+        t.start();
+        Thread.sleep(20);
+        topic.publishnb("first");
+        Thread.sleep(150);
+        sub.close();
+        ExitMsg m = exitmb.getb(5000);
+        assertNotNull("Timed out", m);
+        assertEquals("closed", m.result);
+    }
+}
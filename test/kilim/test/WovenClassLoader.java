@@ -0,0 +1,66 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.test;
+
+import java.util.HashMap;
+
+import kilim.analysis.ClassInfo;
+import kilim.analysis.ClassWeaver;
+import kilim.mirrors.Detector;
+
+/**
+ * Loads classes woven by a test itself, with weaver options that the test build does not use,
+ * rather than the unwoven ones on the classpath. Classes the weaver generates alongside (state
+ * classes) come from the classpath if they are there already.
+ */
+class WovenClassLoader extends ClassLoader {
+    final HashMap<String, byte[]> classes = new HashMap<String, byte[]>();
+    final HashMap<String, byte[]> own     = new HashMap<String, byte[]>();
+
+    WovenClassLoader() {
+        super(WovenClassLoader.class.getClassLoader());
+    }
+
+    /**
+     * Weave className with the weaver's current settings, and load it from here from now on.
+     */
+    WovenClassLoader weave(String className) throws Exception {
+        ClassWeaver cw = new ClassWeaver(className, Detector.DEFAULT);
+        cw.weave();
+        for (ClassInfo ci : cw.getClassInfos()) {
+            if (ci.className.equals(className)) {
+                own.put(ci.className, ci.bytes);
+            } else {
+                classes.put(ci.className, ci.bytes);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        Class<?> c = findLoadedClass(name);
+        if (c == null) {
+            byte[] b = own.get(name);
+            if (b == null) {
+                try {
+                    return super.loadClass(name, resolve);
+                } catch (ClassNotFoundException e) {
+                    b = classes.get(name);
+                    if (b == null) {
+                        throw e;
+                    }
+                }
+            }
+            c = defineClass(name, b, 0, b.length);
+        }
+        if (resolve) {
+            resolveClass(c);
+        }
+        return c;
+    }
+}
@@ -0,0 +1,25 @@
+package kilim.test.ex;
+
+import kilim.Pausable;
+import kilim.Task;
+
+/**
+ * A task that spins inside a try block until stopped, without ever pausing; see TestPreemption,
+ * which weaves it with yield checks on loop back-edges and sheds it while it is preempted.
+ */
+public class ExShedSpin extends Task {
+    public static volatile boolean stop;
+    public volatile long count;
+    public volatile boolean cleanedUp;
+
+    @Override
+    public void execute() throws Pausable {
+        try {
+            while (!stop) {
+                count++;
+            }
+        } finally {
+            cleanedUp = true;
+        }
+    }
+}
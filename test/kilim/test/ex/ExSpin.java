@@ -0,0 +1,41 @@
+package kilim.test.ex;
+
+import kilim.Pausable;
+import kilim.Task;
+
+/**
+ * A task that computes without ever pausing; see TestPreemption, which weaves it with yield checks
+ * on loop back-edges.
+ */
+public class ExSpin extends Task {
+    public static volatile boolean stop;
+    public volatile long count;
+    public long total;
+
+    @Override
+    public void execute() throws Pausable {
+        while (!stop) {
+            count++;
+        }
+        locked(10);
+        total = sum(100000000);
+    }
+
+    // Not checked, as it may not pause while holding the lock.
+    void locked(int n) throws Pausable {
+        synchronized (this) {
+            for (int i = 0; i < n; i++) {
+                count++;
+            }
+        }
+    }
+
+    // Long enough to be preempted, with live locals to restore.
+    long sum(int n) throws Pausable {
+        long s = 0;
+        for (int i = 0; i < n; i++) {
+            s += i;
+        }
+        return s;
+    }
+}